@@ -0,0 +1,119 @@
+package melled.portfolio.vorabpauschale.app;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.app.VapBatchRunner.Arguments;
+
+/**
+ * Tests für VapBatchRunner.
+ */
+public class VapBatchRunnerTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testParseArguments()
+    {
+        Arguments arguments = Arguments.parse(new String[] { "-metadata", "vap.csv", "-output", "out", "-lowMemory",
+                        "a.xml", "b.portfolio" });
+
+        assertThat(arguments.metadataFile()).isEqualTo("vap.csv");
+        assertThat(arguments.outputDirectory()).isEqualTo(new File("out"));
+        assertThat(arguments.lowMemory()).isTrue();
+        assertThat(arguments.passwordVariable()).isNull();
+        assertThat(arguments.householdFile()).isNull();
+        assertThat(arguments.fullModel()).isFalse();
+        assertThat(arguments.parallelism()).isPositive();
+        assertThat(arguments.clientFiles()).containsExactly(new File("a.xml"), new File("b.portfolio"));
+    }
+
+    @Test
+    public void testParseBatchArguments()
+    {
+        Arguments arguments = Arguments.parse(new String[] { "-metadata", "vap.csv", "-output", "out", "-parallelism",
+                        "3", "-household", "haushalt.xlsx", "-fullModel", "-yearCache", "jahre.bin", "a.xml" });
+
+        assertThat(arguments.parallelism()).isEqualTo(3);
+        assertThat(arguments.householdFile()).isEqualTo(new File("haushalt.xlsx"));
+        assertThat(arguments.fullModel()).isTrue();
+        assertThat(arguments.yearCacheFile()).isEqualTo(new File("jahre.bin"));
+
+        assertThatThrownBy(() -> Arguments.parse(new String[] { "-metadata", "vap.csv", "-output", "out",
+                        "-parallelism", "0", "a.xml" })).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Arguments.parse(new String[] { "-metadata", "vap.csv", "-output", "out",
+                        "-parallelism", "viele", "a.xml" })).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testParseArgumentsRejectsMissingValues()
+    {
+        assertThatThrownBy(() -> Arguments.parse(new String[] { "-output", "out", "a.xml" }))
+                        .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Arguments.parse(new String[] { "-metadata", "vap.csv", "-output", "out" }))
+                        .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Arguments.parse(new String[] { "-metadata" }))
+                        .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Arguments.parse(new String[] { "-unknown", "a.xml" }))
+                        .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testRunReportsUsage()
+    {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int exitCode = new VapBatchRunner().run(new String[0], new PrintStream(new ByteArrayOutputStream()),
+                        new PrintStream(err, true, StandardCharsets.UTF_8));
+
+        assertThat(exitCode).isEqualTo(VapBatchRunner.EXIT_USAGE);
+        assertThat(err.toString(StandardCharsets.UTF_8)).contains("-metadata");
+    }
+
+    @Test
+    public void testRunContinuesAfterFailedFile() throws IOException
+    {
+        File metadata = tempFolder.newFile("vap.csv");
+        Files.writeString(metadata.toPath(),
+                        "ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+        File output = new File(tempFolder.getRoot(), "out");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int exitCode = new VapBatchRunner().run(
+                        new String[] { "-metadata", metadata.getPath(), "-output", output.getPath(), "missing1.xml",
+                                        "missing2.xml" },
+                        new PrintStream(new ByteArrayOutputStream()),
+                        new PrintStream(err, true, StandardCharsets.UTF_8));
+
+        assertThat(exitCode).isEqualTo(VapBatchRunner.EXIT_FAILED);
+        assertThat(output).isDirectory();
+        assertThat(err.toString(StandardCharsets.UTF_8)).contains("missing1.xml").contains("missing2.xml");
+    }
+
+    @Test
+    public void testExpandDirectories() throws IOException
+    {
+        File directory = tempFolder.newFolder("depots");
+        File b = new File(directory, "b.portfolio");
+        File a = new File(directory, "a.xml");
+        assertThat(b.createNewFile()).isTrue();
+        assertThat(a.createNewFile()).isTrue();
+        assertThat(new File(directory, "notiz.txt").createNewFile()).isTrue();
+
+        assertThat(VapBatchRunner.expandDirectories(List.of(new File("c.xml"), directory)))
+                        .containsExactly(new File("c.xml"), a, b);
+    }
+}
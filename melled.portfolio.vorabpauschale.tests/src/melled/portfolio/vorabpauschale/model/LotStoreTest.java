@@ -0,0 +1,163 @@
+package melled.portfolio.vorabpauschale.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.Security;
+
+public class LotStoreTest
+{
+    private Client client;
+    private Security security1;
+    private Security security2;
+
+    @Before
+    public void setUp()
+    {
+        client = new Client();
+        security1 = new SecurityBuilder().addTo(client);
+        security2 = new SecurityBuilder().addTo(client);
+    }
+
+    private List<UnsoldTransaction> getUnsoldTransactions(Portfolio portfolio)
+    {
+        return portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList();
+    }
+
+    @Test
+    public void testCursorReadsColumns()
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security2, "2021-03-01", PortfolioBuilder.sharesOf(4), PortfolioBuilder.amountOf(200))
+                        .addTo(client);
+
+        List<UnsoldTransaction> transactions = getUnsoldTransactions(portfolio);
+        transactions.get(0).reduzeUnsoldShare(2.5);
+
+        LotStore lots = LotStore.of(Map.of(portfolio, transactions));
+
+        assertThat(lots.size()).isEqualTo(2);
+        assertThat(lots.getPortfolios()).containsExactly(portfolio);
+        assertThat(lots.getSecurities()).containsExactly(security1, security2);
+
+        LotStore.Cursor lot = lots.cursor();
+        assertThat(lot.next()).isTrue();
+        assertThat(lot.getIndex()).isZero();
+        assertThat(lot.getPurchaseDate()).isEqualTo(LocalDate.of(2020, 1, 15));
+        assertThat(lot.getShare()).isEqualTo(10.0);
+        assertThat(lot.getUnsoldShare()).isEqualTo(7.5);
+        assertThat(lot.getPricePerShare()).isEqualTo(100.0);
+        assertThat(lot.getSecurity()).isSameAs(security1);
+        assertThat(lot.getPortfolio()).isSameAs(portfolio);
+
+        assertThat(lot.next()).isTrue();
+        assertThat(lot.getSecurityOrdinal()).isEqualTo(1);
+        assertThat(lot.getPricePerShare()).isEqualTo(50.0);
+
+        assertThat(lot.next()).isFalse();
+
+        lot.reset();
+        assertThat(lot.next()).isTrue();
+        assertThat(lot.getIndex()).isZero();
+    }
+
+    @Test
+    public void testGroupByKeepsFirstOccurrenceOrder()
+    {
+        Portfolio portfolioA = new PortfolioBuilder()
+                        .buy(security2, "2020-01-15", PortfolioBuilder.sharesOf(1), PortfolioBuilder.amountOf(100))
+                        .buy(security1, "2020-02-15", PortfolioBuilder.sharesOf(1), PortfolioBuilder.amountOf(100))
+                        .buy(security2, "2020-03-15", PortfolioBuilder.sharesOf(1), PortfolioBuilder.amountOf(100))
+                        .addTo(client);
+        Portfolio portfolioB = new PortfolioBuilder()
+                        .buy(security2, "2020-01-15", PortfolioBuilder.sharesOf(1), PortfolioBuilder.amountOf(100))
+                        .addTo(client);
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new LinkedHashMap<>();
+        transactions.put(portfolioA, getUnsoldTransactions(portfolioA));
+        transactions.put(portfolioB, getUnsoldTransactions(portfolioB));
+
+        LotStore lots = LotStore.of(transactions);
+        int securityCount = lots.getSecurities().size();
+
+        int[][] groups = lots.groupBy(
+                        lot -> (lots.getPortfolioOrdinal(lot) * securityCount) + lots.getSecurityOrdinal(lot));
+
+        assertThat(groups).hasNumberOfRows(3);
+        assertThat(groups[0]).containsExactly(0, 2);
+        assertThat(groups[1]).containsExactly(1);
+        assertThat(groups[2]).containsExactly(3);
+
+        LotStore.Cursor lot = lots.cursor(groups[0]);
+        int count = 0;
+        while (lot.next())
+        {
+            assertThat(lot.getSecurity()).isSameAs(security2);
+            assertThat(lot.getPortfolio()).isSameAs(portfolioA);
+            count++;
+        }
+        assertThat(count).isEqualTo(2);
+    }
+
+    @Test
+    public void testCompressByMonth()
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-03", PortfolioBuilder.sharesOf(2), PortfolioBuilder.amountOf(200))
+                        .buy(security2, "2020-01-10", PortfolioBuilder.sharesOf(1), PortfolioBuilder.amountOf(50))
+                        .buy(security1, "2020-01-17", PortfolioBuilder.sharesOf(2), PortfolioBuilder.amountOf(240))
+                        .buy(security1, "2020-02-03", PortfolioBuilder.sharesOf(1), PortfolioBuilder.amountOf(130))
+                        .addTo(client);
+
+        List<UnsoldTransaction> transactions = getUnsoldTransactions(portfolio);
+        transactions.get(2).reduzeUnsoldShare(0.5);
+
+        LotStore lots = LotStore.of(Map.of(portfolio, transactions));
+        LotStore buckets = lots.compressByMonth();
+
+        assertThat(buckets.size()).isEqualTo(3);
+        assertThat(buckets.getSecurities()).isEqualTo(lots.getSecurities());
+
+        LotStore.Cursor bucket = buckets.cursor();
+        assertThat(bucket.next()).isTrue();
+        assertThat(bucket.getSecurity()).isSameAs(security1);
+        assertThat(bucket.getPurchaseDate()).isEqualTo(LocalDate.of(2020, 1, 1));
+        assertThat(bucket.getShare()).isEqualTo(4.0);
+        assertThat(bucket.getUnsoldShare()).isEqualTo(3.5);
+        assertThat(bucket.getPricePerShare()).isEqualTo(110.0);
+
+        assertThat(bucket.next()).isTrue();
+        assertThat(bucket.getSecurity()).isSameAs(security2);
+        assertThat(bucket.getUnsoldShare()).isEqualTo(1.0);
+
+        assertThat(bucket.next()).isTrue();
+        assertThat(bucket.getSecurity()).isSameAs(security1);
+        assertThat(bucket.getPurchaseDate()).isEqualTo(LocalDate.of(2020, 2, 1));
+
+        assertThat(bucket.next()).isFalse();
+    }
+
+    @Test
+    public void testEmptyPortfolioGetsOrdinal()
+    {
+        Portfolio portfolio = new PortfolioBuilder().addTo(client);
+
+        LotStore lots = LotStore.of(Map.of(portfolio, List.of()));
+
+        assertThat(lots.isEmpty()).isTrue();
+        assertThat(lots.getPortfolios()).containsExactly(portfolio);
+        assertThat(lots.cursor().next()).isFalse();
+    }
+}
@@ -0,0 +1,68 @@
+package melled.portfolio.vorabpauschale.model;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class YearRangeTest
+{
+    @Test
+    public void testOfSortsAndDeduplicates()
+    {
+        YearRange years = YearRange.of(2023, 2018, 2021, 2018);
+
+        assertThat(years.toArray()).containsExactly(2018, 2021, 2023);
+        assertThat(years.size()).isEqualTo(3);
+        assertThat(years.first()).isEqualTo(2018);
+        assertThat(years.last()).isEqualTo(2023);
+    }
+
+    @Test
+    public void testBetween()
+    {
+        assertThat(YearRange.between(2018, 2021).toArray()).containsExactly(2018, 2019, 2020, 2021);
+        assertThat(YearRange.between(2021, 2018).isEmpty()).isTrue();
+        assertThat(YearRange.between(1990, 2100).size()).isEqualTo(111);
+        assertThat(YearRange.between(2048, 2111).size()).isEqualTo(64);
+    }
+
+    @Test
+    public void testSetOperations()
+    {
+        YearRange a = YearRange.of(2018, 2019, 2020);
+        YearRange b = YearRange.of(2020, 2021);
+
+        assertThat(a.union(b)).isEqualTo(YearRange.between(2018, 2021));
+        assertThat(a.intersect(b)).isEqualTo(YearRange.of(2020));
+        assertThat(a.from(2019).toArray()).containsExactly(2019, 2020);
+        assertThat(a.with(2018)).isSameAs(a);
+    }
+
+    @Test
+    public void testIndexOf()
+    {
+        YearRange years = YearRange.of(2018, 2020, 2023);
+
+        assertThat(years.indexOf(2018)).isZero();
+        assertThat(years.indexOf(2020)).isEqualTo(1);
+        assertThat(years.indexOf(2023)).isEqualTo(2);
+        assertThat(years.indexOf(2019)).isEqualTo(-1);
+        assertThat(years.contains(1999)).isFalse();
+    }
+
+    @Test
+    public void testYearsAcrossWords()
+    {
+        YearRange years = YearRange.of(2064, 1999, 2023);
+
+        assertThat(years.toArray()).containsExactly(1999, 2023, 2064);
+        assertThat(years.first()).isEqualTo(1999);
+        assertThat(years.last()).isEqualTo(2064);
+        assertThat(years.indexOf(2064)).isEqualTo(2);
+        assertThat(YearRange.EMPTY.with(2064).with(1999)).isEqualTo(years.intersect(YearRange.of(1999, 2064)));
+        assertThat(years.from(2000)).isEqualTo(YearRange.of(2023, 2064));
+        assertThat(years.from(2024)).isEqualTo(YearRange.of(2064));
+        assertThat(years.intersect(YearRange.of(2023))).isEqualTo(YearRange.of(2023));
+        assertThat(years.intersect(YearRange.of(2100)).isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,187 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class AsyncOutputStreamTest
+{
+    @Test
+    public void testWritesAllBytesInOrder() throws IOException
+    {
+        byte[] data = new byte[(AsyncOutputStream.BUFFER_SIZE * 3) + 17];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (AsyncOutputStream out = new AsyncOutputStream(target, false))
+        {
+            out.write(data[0]);
+            out.write(data, 1, 1000);
+            out.flush();
+            out.write(data, 1001, data.length - 1001);
+        }
+
+        assertThat(target.toByteArray()).isEqualTo(data);
+    }
+
+    @Test
+    public void testClosesDelegateOnlyIfRequested() throws IOException
+    {
+        CloseTrackingStream target = new CloseTrackingStream();
+        new AsyncOutputStream(target, false).close();
+        assertThat(target.closed).isFalse();
+
+        new AsyncOutputStream(target, true).close();
+        assertThat(target.closed).isTrue();
+    }
+
+    @Test
+    public void testPropagatesWriteFailure()
+    {
+        OutputStream failing = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                throw new IOException("Datenträger voll");
+            }
+        };
+
+        assertThatThrownBy(() -> {
+            try (AsyncOutputStream out = new AsyncOutputStream(failing, false))
+            {
+                out.write(new byte[10]);
+            }
+        }).isInstanceOf(IOException.class).hasRootCauseMessage("Datenträger voll");
+    }
+
+    @Test(timeout = 10000)
+    public void testPropagatesRuntimeFailureWithoutBlocking()
+    {
+        OutputStream failing = new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                throw new IllegalStateException("Ziel defekt");
+            }
+        };
+
+        // mehr Puffer als die Warteschlange fasst, der Erzeuger darf nicht blockieren
+        assertThatThrownBy(() -> {
+            try (AsyncOutputStream out = new AsyncOutputStream(failing, false))
+            {
+                for (int i = 0; i < 20; i++)
+                {
+                    out.write(new byte[AsyncOutputStream.BUFFER_SIZE]);
+                }
+            }
+        }).isInstanceOf(IOException.class).hasRootCauseInstanceOf(IllegalStateException.class)
+                        .hasRootCauseMessage("Ziel defekt");
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptedCloseWaitsForWriter() throws InterruptedException
+    {
+        BlockingStream target = new BlockingStream();
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        AtomicBoolean closing = new AtomicBoolean();
+        AtomicReference<Boolean> interruptedAfterClose = new AtomicReference<>();
+
+        Thread producer = new Thread(() -> {
+            try
+            {
+                AsyncOutputStream out = new AsyncOutputStream(target, true);
+                // ein Puffer beim Schreib-Thread, vier in der Warteschlange, der
+                // letzte blockiert in close()
+                for (int i = 0; i < 6; i++)
+                {
+                    out.write(new byte[AsyncOutputStream.BUFFER_SIZE]);
+                }
+                closing.set(true);
+                out.close();
+            }
+            catch (IOException e)
+            {
+                thrown.set(e);
+            }
+            interruptedAfterClose.set(Thread.currentThread().isInterrupted());
+        });
+        producer.start();
+
+        target.writing.await();
+        while (!closing.get() || (producer.getState() != Thread.State.WAITING))
+        {
+            Thread.sleep(10);
+        }
+        producer.interrupt();
+
+        // der Schreib-Thread schreibt noch, close() muss weiter warten
+        producer.join(200);
+        assertThat(producer.isAlive()).isTrue();
+        assertThat(target.closed).isFalse();
+
+        target.release.countDown();
+        producer.join();
+
+        assertThat(thrown.get()).isInstanceOf(InterruptedIOException.class);
+        assertThat(interruptedAfterClose.get()).isTrue();
+        assertThat(target.closed).isTrue();
+        assertThat(target.closedWhileWriting).isFalse();
+        assertThat(target.size()).isEqualTo(AsyncOutputStream.BUFFER_SIZE);
+    }
+
+    private static class BlockingStream extends ByteArrayOutputStream
+    {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean active;
+        private volatile boolean closed;
+        private volatile boolean closedWhileWriting;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len)
+        {
+            active = true;
+            writing.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            super.write(b, off, len);
+            active = false;
+        }
+
+        @Override
+        public void close()
+        {
+            closedWhileWriting = active;
+            closed = true;
+        }
+    }
+
+    private static class CloseTrackingStream extends ByteArrayOutputStream
+    {
+        private boolean closed;
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import melled.portfolio.vorabpauschale.model.VapMetadata;
+import melled.portfolio.vorabpauschale.service.ClientFingerprint.PositionKey;
+import name.abuchen.portfolio.junit.repacked.AccountBuilder;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Tests für ClientFingerprint.
+ */
+public class ClientFingerprintTest
+{
+    private Client client;
+    private Portfolio portfolio;
+    private Security security1;
+    private Security security2;
+    private VapMetadataIndex index;
+
+    @Before
+    public void setUp()
+    {
+        client = new Client();
+        security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        Account account = new AccountBuilder().addTo(client);
+
+        portfolio = new PortfolioBuilder(account)
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .sell(security1, "2021-01-15", PortfolioBuilder.sharesOf(3), PortfolioBuilder.amountOf(330))
+                        .buy(security2, "2020-02-01", PortfolioBuilder.sharesOf(5), PortfolioBuilder.amountOf(500))
+                        .addTo(client);
+
+        index = VapMetadataIndex.create(Map.of("DE0001", Set.of(new VapMetadata("DE0001", 2020, 0.5, 30)),
+                        "DE0002", Set.of(new VapMetadata("DE0002", 2020, 0.6, 15))));
+    }
+
+    @Test
+    public void testSameClientHasSameHash()
+    {
+        ClientFingerprint first = ClientFingerprint.of(client, index);
+        ClientFingerprint second = ClientFingerprint.of(client, index);
+
+        assertThat(first.getHash()).isEqualTo(second.getHash()).isNotZero();
+        assertThat(first.getPositions()).containsExactlyInAnyOrder(PositionKey.of(portfolio, security1),
+                        PositionKey.of(portfolio, security2));
+        assertThat(first.changedPositions(second)).isEmpty();
+    }
+
+    @Test
+    public void testUpdateChangesOnlyAffectedPosition()
+    {
+        ClientFingerprint before = ClientFingerprint.of(client, index);
+        ClientFingerprint fingerprint = before.copy();
+        long otherPosition = fingerprint.getTransactionHash(portfolio, security2);
+
+        PortfolioTransaction sale = findTransaction(security1, PortfolioTransaction.Type.SELL);
+        sale.setShares(PortfolioBuilder.sharesOf(4));
+
+        assertThat(fingerprint.update(portfolio, sale)).isTrue();
+        assertThat(fingerprint.update(portfolio, sale)).isFalse();
+        assertThat(fingerprint.getTransactionHash(portfolio, security2)).isEqualTo(otherPosition);
+        assertThat(fingerprint.changedPositions(before)).containsExactly(PositionKey.of(portfolio, security1));
+
+        // inkrementeller Stand entspricht einer vollständigen Neuberechnung
+        assertThat(fingerprint.getHash()).isEqualTo(ClientFingerprint.of(client, index).getHash());
+
+        sale.setShares(PortfolioBuilder.sharesOf(3));
+        fingerprint.update(portfolio, sale);
+        assertThat(fingerprint.getHash()).isEqualTo(before.getHash());
+    }
+
+    @Test
+    public void testRemoveDropsEmptyPosition()
+    {
+        ClientFingerprint fingerprint = ClientFingerprint.of(client, index);
+        PortfolioTransaction purchase = findTransaction(security2, PortfolioTransaction.Type.BUY);
+
+        assertThat(fingerprint.getPosition(purchase.getUUID())).isEqualTo(PositionKey.of(portfolio, security2));
+        assertThat(fingerprint.remove(purchase)).isTrue();
+        assertThat(fingerprint.remove(purchase)).isFalse();
+        assertThat(fingerprint.getPosition(purchase.getUUID())).isNull();
+        assertThat(fingerprint.getPositions()).containsExactly(PositionKey.of(portfolio, security1));
+        assertThat(fingerprint.getTransactionHash(portfolio, security2)).isZero();
+        assertThat(fingerprint.getTransactionIds()).hasSize(2);
+        assertThat(ClientFingerprint.empty(index).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testTransactionHashCoversShares()
+    {
+        PortfolioTransaction sale = findTransaction(security1, PortfolioTransaction.Type.SELL);
+        long before = ClientFingerprint.hash(sale);
+
+        assertThat(ClientFingerprint.hash(sale)).isEqualTo(before);
+        assertThat(ClientFingerprint.hash(findTransaction(security2, PortfolioTransaction.Type.BUY)))
+                        .isNotEqualTo(before);
+
+        sale.setShares(PortfolioBuilder.sharesOf(4));
+        assertThat(ClientFingerprint.hash(sale)).isNotEqualTo(before);
+
+        sale.setShares(PortfolioBuilder.sharesOf(3));
+        assertThat(ClientFingerprint.hash(sale)).isEqualTo(before);
+    }
+
+    @Test
+    public void testPositionKey()
+    {
+        assertThat(PositionKey.of(portfolio, security1)).isEqualTo(PositionKey.of(portfolio, security1))
+                        .isNotEqualTo(PositionKey.of(portfolio, security2));
+        assertThat(PositionKey.of(portfolio, null).securityUuid()).isEmpty();
+    }
+
+    @Test
+    public void testMetadataHashPerSecurity()
+    {
+        VapMetadataIndex changed = VapMetadataIndex.create(
+                        Map.of("DE0001", Set.of(new VapMetadata("DE0001", 2020, 0.5, 30)), "DE0002",
+                                        Set.of(new VapMetadata("DE0002", 2020, 0.7, 15))));
+
+        assertThat(changed.getMetadataHash(security1)).isEqualTo(index.getMetadataHash(security1));
+        assertThat(changed.getMetadataHash(security2)).isNotEqualTo(index.getMetadataHash(security2));
+        assertThat(changed.getHash()).isNotEqualTo(index.getHash());
+        assertThat(VapMetadataIndex.EMPTY.getMetadataHash(security1)).isZero();
+
+        assertThat(ClientFingerprint.of(client, changed).changedPositions(ClientFingerprint.of(client, index)))
+                        .containsExactly(PositionKey.of(portfolio, security2));
+    }
+
+    private PortfolioTransaction findTransaction(Security security, PortfolioTransaction.Type type)
+    {
+        return portfolio.getTransactions().stream()
+                        .filter(tx -> (tx.getSecurity() == security) && (tx.getType() == type)).findFirst()
+                        .orElseThrow();
+    }
+}
@@ -0,0 +1,181 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.model.LotStore;
+import melled.portfolio.vorabpauschale.model.VapMetadata;
+import melled.portfolio.vorabpauschale.service.ClientFingerprint.PositionKey;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.junit.repacked.AccountBuilder;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.BuySellEntry;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.Security;
+import name.abuchen.portfolio.money.CurrencyUnit;
+
+/**
+ * Tests für ClosedYearCache und die Zusammenfassung mit abgeschlossenen
+ * Jahren aus der Ablage.
+ */
+public class ClosedYearCacheTest
+{
+    private static final LocalDate TODAY = LocalDate.of(2022, 3, 1);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapSummaryCollector collector;
+    private VapExportService exportService;
+    private VapMetadataIndex index;
+    private Client client;
+    private Portfolio portfolio;
+    private Security security;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        VapCalculator calculator = new VapCalculator(new VapCsvDataReader());
+        collector = new VapSummaryCollector();
+        exportService = new VapExportService(calculator, new VapExcelExporter(calculator, collector,
+                        new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator())));
+        index = VapMetadataIndex.create(Map.of("DE0001",
+                        Set.of(new VapMetadata("DE0001", 2020, 0.5, 30), new VapMetadata("DE0001", 2021, 0.75, 30),
+                                        new VapMetadata("DE0001", 2022, 1.0, 30))));
+
+        client = new Client();
+        security = new SecurityBuilder().addTo(client);
+        security.setIsin("DE0001");
+        Account account = new AccountBuilder().addTo(client);
+        portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security, "2021-07-01", PortfolioBuilder.sharesOf(4), PortfolioBuilder.amountOf(440))
+                        .addTo(client);
+        portfolio.setName("Depot");
+
+        file = tempFolder.getRoot().toPath().resolve("cache").resolve(ClosedYearCache.FILE_NAME);
+    }
+
+    @Test
+    public void testSameSummaryWithAndWithoutCache()
+    {
+        LotStore lots = exportService.collectLots(client);
+        ClosedYearCache cache = ClosedYearCache.load(file, 2022, TODAY);
+
+        VapSummaryRow expected = collector.collectSummary(index, lots, 1).get(0);
+        VapSummaryRow actual = collector.collectSummary(index, lots, 1, cache).get(0);
+
+        assertThat(actual.getYears()).containsExactly(expected.getYears());
+        for (int year : expected.getYears())
+        {
+            assertThat(actual.getVapBeforeTfs(year)).isCloseTo(expected.getVapBeforeTfs(year), within(1e-9));
+            assertThat(actual.getVapAfterTfs(year)).isCloseTo(expected.getVapAfterTfs(year), within(1e-9));
+        }
+
+        // nur abgeschlossene Jahre werden abgelegt
+        assertThat(cache.get(PositionKey.of(portfolio, security)).beforeTfs()).containsOnlyKeys(2020, 2021);
+    }
+
+    @Test
+    public void testUsesStoredClosedYears()
+    {
+        LotStore lots = exportService.collectLots(client);
+        ClosedYearCache cache = ClosedYearCache.load(file, 2022, TODAY);
+        collector.collectSummary(index, lots, 1, cache);
+
+        PositionKey position = PositionKey.of(portfolio, security);
+        cache.put(position, cache.get(position).hash(), Map.of(2020, 99.0, 2021, 1.0));
+
+        VapSummaryRow row = collector.collectSummary(index, lots, 1, cache).get(0);
+        assertThat(row.getVapBeforeTfs(2020)).isEqualTo(99.0);
+        assertThat(row.getVapBeforeTfs(2021)).isEqualTo(1.0);
+        assertThat(row.getVapBeforeTfs(2022)).isCloseTo(14.0, within(1e-9));
+
+        // geänderte Lots werden neu berechnet
+        BuySellEntry sale = new BuySellEntry(portfolio, portfolio.getReferenceAccount());
+        sale.setType(PortfolioTransaction.Type.SELL);
+        sale.setDate(LocalDateTime.of(2022, 2, 1, 0, 0));
+        sale.setSecurity(security);
+        sale.setShares(PortfolioBuilder.sharesOf(2));
+        sale.setCurrencyCode(CurrencyUnit.EUR);
+        sale.setAmount(PortfolioBuilder.amountOf(240));
+        sale.insert();
+        row = collector.collectSummary(index, exportService.collectLots(client), 1, cache).get(0);
+        assertThat(row.getVapBeforeTfs(2020)).isCloseTo(4.0, within(1e-9));
+
+        // ebenso geänderte Metadaten
+        VapMetadataIndex changedIndex = VapMetadataIndex.create(Map.of("DE0001",
+                        Set.of(new VapMetadata("DE0001", 2020, 0.6, 30), new VapMetadata("DE0001", 2021, 0.75, 30),
+                                        new VapMetadata("DE0001", 2022, 1.0, 30))));
+        row = collector.collectSummary(changedIndex, lots, 1, cache).get(0);
+        assertThat(row.getVapBeforeTfs(2020)).isCloseTo(6.0, within(1e-9));
+    }
+
+    @Test
+    public void testExtendsEntryWhenYearCloses() throws IOException
+    {
+        LotStore lots = exportService.collectLots(client);
+        ClosedYearCache cache = ClosedYearCache.load(file, 2021, TODAY);
+        collector.collectSummary(index, lots, 1, cache);
+
+        PositionKey position = PositionKey.of(portfolio, security);
+        assertThat(cache.get(position).beforeTfs()).containsOnlyKeys(2020);
+
+        cache.save();
+
+        ClosedYearCache nextYear = ClosedYearCache.load(file, 2022, TODAY);
+        assertThat(nextYear.get(position).closedBefore()).isEqualTo(2021);
+        collector.collectSummary(index, lots, 1, nextYear);
+
+        assertThat(nextYear.get(position).closedBefore()).isEqualTo(2022);
+        assertThat(nextYear.get(position).beforeTfs()).containsOnlyKeys(2020, 2021);
+        assertThat(nextYear.get(position).beforeTfs().get(2021)).isCloseTo(7.5 + 1.5, within(1e-9));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException
+    {
+        PositionKey position = new PositionKey("p", "s");
+        ClosedYearCache cache = ClosedYearCache.load(file, 2022, TODAY);
+        cache.put(position, 42L, Map.of(2020, 5.0, 2021, 7.5));
+        cache.save();
+
+        ClosedYearCache loaded = ClosedYearCache.load(file, 2022, TODAY);
+        assertThat(loaded.lookup(position, 42L)).isEqualTo(cache.get(position));
+        assertThat(loaded.lookup(position, 43L)).isNull();
+        assertThat(ClosedYearCache.load(file, 2021, TODAY).lookup(position, 42L)).isNull();
+
+        // lange nicht verwendete Einträge entfallen beim Speichern
+        ClosedYearCache later = ClosedYearCache.load(file, 2022,
+                        TODAY.plusDays(ClosedYearCache.MAX_UNUSED_DAYS + 1L));
+        later.save();
+        assertThat(ClosedYearCache.load(file, 2022, TODAY).size()).isZero();
+    }
+
+    @Test
+    public void testIgnoresDefectFile() throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[] { 1, 2, 3 });
+
+        assertThat(ClosedYearCache.load(file, 2022, TODAY).size()).isZero();
+    }
+}
@@ -0,0 +1,195 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.model.LotStore;
+import melled.portfolio.vorabpauschale.service.LotLedgerCache.Checkpoint;
+import melled.portfolio.vorabpauschale.service.LotLedgerCache.LotEntry;
+import name.abuchen.portfolio.junit.repacked.AccountBuilder;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.BuySellEntry;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.PortfolioTransferEntry;
+import name.abuchen.portfolio.model.Security;
+import name.abuchen.portfolio.money.CurrencyUnit;
+
+/**
+ * Tests für LotLedgerCache und die darauf aufsetzende Lot-Verrechnung.
+ */
+public class LotLedgerCacheTest
+{
+    private static final String KEY = "depot.xml";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapExportService exportService;
+    private LotLedgerCache cache;
+    private Client client;
+    private Portfolio portfolio;
+    private Account account;
+    private Security security;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        VapCalculator calculator = new VapCalculator(new VapCsvDataReader());
+        exportService = new VapExportService(calculator, new VapExcelExporter(calculator,
+                        new VapSummaryCollector(),
+                        new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator())));
+        cache = new LotLedgerCache(tempFolder.newFolder("ledger").toPath());
+
+        client = new Client();
+        security = new SecurityBuilder().addTo(client);
+        account = new AccountBuilder().addTo(client);
+        portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .sell(security, "2021-01-15", PortfolioBuilder.sharesOf(3), PortfolioBuilder.amountOf(330))
+                        .addTo(client);
+        portfolio.setName("Depot");
+    }
+
+    @Test
+    public void testStoresAndReadsCheckpoint() throws IOException
+    {
+        Map<String, List<LotEntry>> lots = new LinkedHashMap<>();
+        lots.put("6f1c2a9e-4b7d-4e55-9a1e-0c3d2b1a0f99", List.of(new LotEntry("b-1", 10, 7)));
+        Checkpoint checkpoint = new Checkpoint(LocalDateTime.of(2021, 1, 15, 10, 30, 5, 42), "abc", lots);
+
+        cache.store(KEY, checkpoint);
+
+        assertThat(cache.lookup(KEY)).contains(checkpoint);
+        assertThat(cache.lookup("anderes.xml")).isEmpty();
+    }
+
+    @Test
+    public void testResumesAfterNewTransactions()
+    {
+        assertThat(describe(exportService.collectLots(client, cache, KEY)))
+                        .isEqualTo(describe(exportService.collectLots(client)));
+        assertThat(cache.lookup(KEY)).map(Checkpoint::watermark).contains(LocalDateTime.of(2021, 1, 15, 0, 0));
+
+        insert(PortfolioTransaction.Type.BUY, "2022-03-01", 5, 600);
+        insert(PortfolioTransaction.Type.SELL, "2022-06-01", 9, 1100);
+
+        List<String> expected = describe(exportService.collectLots(client));
+        assertThat(expected).containsExactly("Depot 2020-01-15 10.0 7.0", "Depot 2022-03-01 5.0 3.0");
+        assertThat(describe(exportService.collectLots(client, cache, KEY))).isEqualTo(expected);
+        assertThat(cache.lookup(KEY)).map(Checkpoint::watermark).contains(LocalDateTime.of(2022, 6, 1, 0, 0));
+    }
+
+    @Test
+    public void testUsesCheckpointWhenHistoryIsUnchanged() throws IOException
+    {
+        exportService.collectLots(client, cache, KEY);
+        Checkpoint checkpoint = cache.lookup(KEY).orElseThrow();
+
+        // abweichender Bestand im Zwischenstand zeigt, dass er verwendet wird
+        Map<String, List<LotEntry>> lots = new LinkedHashMap<>();
+        checkpoint.lots().forEach((uuid, entries) -> lots.put(uuid, entries.stream()
+                        .map(lot -> new LotEntry(lot.transactionUuid(), lot.share(), 1)).toList()));
+        cache.store(KEY, new Checkpoint(checkpoint.watermark(), checkpoint.historyHash(), lots));
+
+        assertThat(describe(exportService.collectLots(client, cache, KEY)))
+                        .containsExactly("Depot 2020-01-15 10.0 1.0");
+    }
+
+    @Test
+    public void testReplaysAllAfterHistoricChange() throws IOException
+    {
+        exportService.collectLots(client, cache, KEY);
+        Checkpoint checkpoint = cache.lookup(KEY).orElseThrow();
+        cache.store(KEY, new Checkpoint(checkpoint.watermark(), checkpoint.historyHash(), Map.of()));
+
+        // nachträglich erfasster Kauf vor dem Zwischenstand
+        insert(PortfolioTransaction.Type.BUY, "2019-05-01", 2, 150);
+
+        assertThat(describe(exportService.collectLots(client, cache, KEY))).containsExactly(
+                        "Depot 2019-05-01 2.0 2.0", "Depot 2020-01-15 10.0 9.0");
+        assertThat(cache.lookup(KEY).orElseThrow().historyHash()).isNotEqualTo(checkpoint.historyHash());
+    }
+
+    @Test
+    public void testReplaysAllForSaleAfterTransferFromLaterPortfolio()
+    {
+        // das Quelldepot folgt im Client auf das Zieldepot
+        Portfolio source = new PortfolioBuilder(account)
+                        .buy(security, "2019-06-01", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(900))
+                        .addTo(client);
+        source.setName("Quelle");
+
+        PortfolioTransferEntry transfer = new PortfolioTransferEntry(source, portfolio);
+        transfer.setDate(LocalDate.parse("2021-06-01").atStartOfDay());
+        transfer.setSecurity(security);
+        transfer.setShares(PortfolioBuilder.sharesOf(6));
+        transfer.setCurrencyCode(CurrencyUnit.EUR);
+        transfer.setAmount(PortfolioBuilder.amountOf(540));
+        transfer.insert();
+
+        exportService.collectLots(client, cache, KEY);
+        assertThat(cache.lookup(KEY)).isPresent();
+
+        insert(PortfolioTransaction.Type.SELL, "2022-01-01", 2, 250);
+
+        List<String> expected = describe(exportService.collectLots(client));
+        assertThat(expected).contains("Depot 2020-01-15 10.0 5.0");
+        assertThat(describe(exportService.collectLots(client, cache, KEY))).isEqualTo(expected);
+    }
+
+    @Test
+    public void testStoresNoCheckpointForUncoveredSale()
+    {
+        insert(PortfolioTransaction.Type.SELL, "2021-06-01", 9, 1000);
+
+        exportService.collectLots(client, cache, KEY);
+        assertThat(cache.lookup(KEY)).isEmpty();
+
+        // die vollständige Verrechnung deckt den Verkauf mit dem späteren Kauf
+        insert(PortfolioTransaction.Type.BUY, "2022-01-01", 5, 600);
+
+        List<String> expected = describe(exportService.collectLots(client));
+        assertThat(expected).contains("Depot 2022-01-01 5.0 3.0");
+        assertThat(describe(exportService.collectLots(client, cache, KEY))).isEqualTo(expected);
+    }
+
+    private void insert(PortfolioTransaction.Type type, String date, double shares, double amount)
+    {
+        BuySellEntry entry = new BuySellEntry(portfolio, account);
+        entry.setType(type);
+        entry.setDate(LocalDate.parse(date).atStartOfDay());
+        entry.setSecurity(security);
+        entry.setShares(PortfolioBuilder.sharesOf(shares));
+        entry.setCurrencyCode(CurrencyUnit.EUR);
+        entry.setAmount(PortfolioBuilder.amountOf(amount));
+        entry.insert();
+    }
+
+    private static List<String> describe(LotStore lots)
+    {
+        List<String> lines = new ArrayList<>();
+        LotStore.Cursor lot = lots.cursor();
+        while (lot.next())
+        {
+            lines.add(lot.getPortfolio().getName() + " " + lot.getPurchaseDate() + " " + lot.getShare() + " "
+                            + lot.getUnsoldShare());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,213 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import name.abuchen.portfolio.junit.repacked.AccountBuilder;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.BuySellEntry;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.PortfolioTransferEntry;
+import name.abuchen.portfolio.model.Security;
+import name.abuchen.portfolio.money.CurrencyUnit;
+
+/**
+ * Tests für LotLedger. Nach jedem Abgleich muss der Stand der vollständigen
+ * Verrechnung entsprechen.
+ */
+public class LotLedgerTest
+{
+    private VapExportService exportService;
+    private Client client;
+    private Account account;
+    private Portfolio portfolio;
+    private Security security1;
+    private Security security2;
+    private List<String> events;
+    private LotLedger ledger;
+
+    @Before
+    public void setUp()
+    {
+        VapCalculator calculator = new VapCalculator(new VapCsvDataReader());
+        exportService = new VapExportService(calculator, new VapExcelExporter(calculator,
+                        new VapSummaryCollector(),
+                        new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator())));
+
+        client = new Client();
+        security1 = new SecurityBuilder().addTo(client);
+        security2 = new SecurityBuilder().addTo(client);
+        account = new AccountBuilder().addTo(client);
+        portfolio = new PortfolioBuilder(account)
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security1, "2020-06-15", PortfolioBuilder.sharesOf(5), PortfolioBuilder.amountOf(550))
+                        .sell(security1, "2021-01-15", PortfolioBuilder.sharesOf(3), PortfolioBuilder.amountOf(330))
+                        .buy(security2, "2020-02-01", PortfolioBuilder.sharesOf(8), PortfolioBuilder.amountOf(800))
+                        .addTo(client);
+        portfolio.setName("Depot");
+
+        events = new ArrayList<>();
+        ledger = new LotLedger(client, new LotChangeListener()
+        {
+            @Override
+            public void lotAdded(Portfolio p, UnsoldTransaction lot)
+            {
+                events.add("added " + lot.getUnsoldShare());
+            }
+
+            @Override
+            public void lotRemoved(Portfolio p, UnsoldTransaction lot)
+            {
+                events.add("removed " + lot.getUnsoldShare());
+            }
+
+            @Override
+            public void lotReduced(Portfolio p, UnsoldTransaction lot, double shares)
+            {
+                events.add("reduced " + shares);
+            }
+        });
+    }
+
+    @Test
+    public void testInitialSyncMatchesFullReplay()
+    {
+        assertThat(ledger.sync()).isTrue();
+
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+        assertThat(events).containsExactlyInAnyOrder("added 7.0", "added 5.0", "added 8.0");
+        assertThat(ledger.sync()).isFalse();
+    }
+
+    @Test
+    public void testAppendsNewTransactionsWithoutReplay()
+    {
+        ledger.sync();
+        events.clear();
+
+        insert(portfolio, security1, PortfolioTransaction.Type.BUY, "2022-03-01", 4);
+        insert(portfolio, security1, PortfolioTransaction.Type.SELL, "2022-06-01", 9);
+
+        assertThat(ledger.sync()).isTrue();
+        assertThat(ledger.getReplayed()).isZero();
+        assertThat(events).containsExactly("added 4.0", "reduced 2.0");
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+    }
+
+    @Test
+    public void testHistoricChangeReplaysOnlyAffectedPosition()
+    {
+        ledger.sync();
+        events.clear();
+
+        // nachträglich erfasster Kauf vor dem letzten Umsatz
+        insert(portfolio, security1, PortfolioTransaction.Type.BUY, "2019-05-01", 2);
+        ledger.sync();
+        assertThat(ledger.getReplayed()).isEqualTo(1);
+        assertThat(events).doesNotContain("removed 8.0");
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+
+        PortfolioTransaction sale = portfolio.getTransactions().stream()
+                        .filter(tx -> tx.getType() == PortfolioTransaction.Type.SELL).findFirst().orElseThrow();
+        sale.setShares(PortfolioBuilder.sharesOf(6));
+        ledger.sync();
+        assertThat(ledger.getReplayed()).isEqualTo(1);
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+    }
+
+    @Test
+    public void testPurchaseAfterShortfallReplaysPosition()
+    {
+        insert(portfolio, security2, PortfolioTransaction.Type.SELL, "2021-03-01", 10);
+        ledger.sync();
+
+        // der offene Abgang verwendet bei vollständiger Verrechnung auch den neuen Kauf
+        insert(portfolio, security2, PortfolioTransaction.Type.BUY, "2022-01-01", 5);
+        ledger.sync();
+
+        assertThat(ledger.getReplayed()).isEqualTo(1);
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+    }
+
+    @Test
+    public void testTransferReplaysSecurityInAllPortfolios()
+    {
+        Portfolio target = new PortfolioBuilder(account).addTo(client);
+        target.setName("Ziel");
+        ledger.sync();
+
+        PortfolioTransferEntry transfer = new PortfolioTransferEntry(portfolio, target);
+        transfer.setDate(LocalDate.parse("2021-06-01").atStartOfDay());
+        transfer.setSecurity(security1);
+        transfer.setShares(PortfolioBuilder.sharesOf(9));
+        transfer.setCurrencyCode(CurrencyUnit.EUR);
+        transfer.setAmount(PortfolioBuilder.amountOf(900));
+        transfer.insert();
+
+        ledger.sync();
+        assertThat(ledger.getReplayed()).isEqualTo(1);
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+
+        insert(target, security1, PortfolioTransaction.Type.SELL, "2022-01-01", 1);
+        ledger.sync();
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+    }
+
+    @Test
+    public void testSyncReadsOnlySnapshot()
+    {
+        Map<Portfolio, List<PortfolioTransaction>> snapshot = LotLedger.snapshot(client);
+        List<String> before = expected();
+
+        // Änderung nach der Kopie, z.B. im UI während der Job läuft
+        insert(portfolio, security1, PortfolioTransaction.Type.BUY, "2022-03-01", 4);
+
+        assertThat(ledger.sync(snapshot)).isTrue();
+        assertThat(describe(ledger.getTransactions())).isEqualTo(before);
+
+        assertThat(ledger.sync()).isTrue();
+        assertThat(events).contains("added 4.0");
+        assertThat(describe(ledger.getTransactions())).isEqualTo(expected());
+    }
+
+    private List<String> expected()
+    {
+        return describe(exportService.collectUnsoldTransactions(client));
+    }
+
+    private void insert(Portfolio target, Security security, PortfolioTransaction.Type type, String date,
+                    double shares)
+    {
+        BuySellEntry entry = new BuySellEntry(target, account);
+        entry.setType(type);
+        entry.setDate(LocalDate.parse(date).atStartOfDay());
+        entry.setSecurity(security);
+        entry.setShares(PortfolioBuilder.sharesOf(shares));
+        entry.setCurrencyCode(CurrencyUnit.EUR);
+        entry.setAmount(PortfolioBuilder.amountOf(shares * 100));
+        entry.insert();
+    }
+
+    private List<String> describe(Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        List<String> lines = new ArrayList<>();
+        transactions.forEach((p, lots) -> lots.forEach(lot -> lines.add(p.getName() + " "
+                        + (lot.getTransaction().getSecurity() == security1 ? "A" : "B") + " "
+                        + lot.getTransaction().getDateTime().toLocalDate() + " " + lot.getShare() + " "
+                        + lot.getUnsoldShare())));
+        lines.sort(null);
+        return lines;
+    }
+}
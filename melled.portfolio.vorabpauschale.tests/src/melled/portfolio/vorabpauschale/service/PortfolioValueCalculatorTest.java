@@ -287,4 +287,16 @@ public class PortfolioValueCalculatorTest
         // Steueranteil: 198.625 / 6000 = 0.0331041...
         assertThat(values.taxRatio).isEqualTo(0.033104166666666664);
     }
+
+    @Test
+    public void testPositionValuesWithTaxProfileIgnoreCalculatorState()
+    {
+        taxCalculator.setKirchensteuer(0.09);
+
+        var values = valueCalculator.calculatePositionValues(100.0, 60.0, 50.0, 30, 0.0, TaxProfile.of(0.08));
+
+        // Steuer mit 8% Kirchensteuer: 700 * 0.28375 = 198.625
+        assertThat(values.taxes).isEqualTo(198.625);
+        assertThat(taxCalculator.getKirchensteuer()).isEqualTo(0.09);
+    }
 }
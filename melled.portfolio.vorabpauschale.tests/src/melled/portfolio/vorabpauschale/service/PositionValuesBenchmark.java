@@ -0,0 +1,153 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.util.Random;
+
+import melled.portfolio.vorabpauschale.service.PortfolioValueCalculator.PositionValues;
+
+/**
+ * Einfacher Vergleich der Laufzeit von Einzel- und Spaltenberechnung der
+ * Portfolio-Werte. Kein Test, wird manuell gestartet, z.B. mit
+ * {@code -Dlots=500 -Drounds=20000}.
+ * <p>
+ * Die Spaltenberechnung rechnet je Wert eine Schleife über alle Lots eines
+ * Wertpapiers, gefolgt von der Verlustverrechnung in Lot-Reihenfolge. Sie
+ * war in Messungen langsamer als die Einzelberechnung und ist deshalb nur
+ * hier zum Vergleich enthalten.
+ */
+public final class PositionValuesBenchmark
+{
+    private static final int WARMUP_ROUNDS = 2_000;
+
+    /**
+     * Portfolio-Werte aller Lots eines Wertpapiers, Index entspricht dem Lot.
+     */
+    private static final class Columns
+    {
+        private final double[] grossValues;
+        private final double[] taxableGains;
+        private final double[] taxableGainsToConsider;
+        private final double[] taxes;
+        private final double[] netValues;
+        private final double[] taxRatios;
+
+        private Columns(int size)
+        {
+            grossValues = new double[size];
+            taxableGains = new double[size];
+            taxableGainsToConsider = new double[size];
+            taxes = new double[size];
+            netValues = new double[size];
+            taxRatios = new double[size];
+        }
+    }
+
+    private PositionValuesBenchmark()
+    {
+    }
+
+    @SuppressWarnings("java:S106") // Ausgabe auf der Konsole
+    public static void main(String[] args)
+    {
+        int lots = Integer.getInteger("lots", 500);
+        int rounds = Integer.getInteger("rounds", 20_000);
+
+        PortfolioValueCalculator calculator = new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator());
+
+        Random random = new Random(1);
+        double[] shares = new double[lots];
+        double[] acquisitionPrices = new double[lots];
+        for (int i = 0; i < lots; i++)
+        {
+            shares[i] = 0.1 + (random.nextDouble() * 20);
+            acquisitionPrices[i] = 50 + (random.nextDouble() * 100);
+        }
+
+        Columns columns = new Columns(lots);
+        if (scalar(calculator, shares, acquisitionPrices) != columns(calculator, shares, acquisitionPrices, columns))
+        { throw new IllegalStateException("Einzel- und Spaltenberechnung unterscheiden sich"); }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+        {
+            scalar(calculator, shares, acquisitionPrices);
+            columns(calculator, shares, acquisitionPrices, columns);
+        }
+
+        double scalarChecksum = 0;
+        long scalarNanos = 0;
+        double columnsChecksum = 0;
+        long columnsNanos = 0;
+        for (int i = 0; i < rounds; i++)
+        {
+            long start = System.nanoTime();
+            scalarChecksum += scalar(calculator, shares, acquisitionPrices);
+            scalarNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            columnsChecksum += columns(calculator, shares, acquisitionPrices, columns);
+            columnsNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("Lots: %d, Runden: %d%n", lots, rounds);
+        System.out.printf("Einzeln: %.2f ns/Lot (Prüfsumme %.6f)%n", scalarNanos / ((double) lots * rounds),
+                        scalarChecksum);
+        System.out.printf("Spalten: %.2f ns/Lot (Prüfsumme %.6f)%n", columnsNanos / ((double) lots * rounds),
+                        columnsChecksum);
+    }
+
+    private static double scalar(PortfolioValueCalculator calculator, double[] shares, double[] acquisitionPrices)
+    {
+        double checksum = 0;
+        double cumulativeTaxableGain = 0;
+        for (int i = 0; i < shares.length; i++)
+        {
+            PositionValues values = calculator.calculatePositionValues(shares[i], 100.0, acquisitionPrices[i], 30,
+                            cumulativeTaxableGain);
+            cumulativeTaxableGain += values.taxableGain;
+            checksum += values.grossValue + values.taxableGainToConsider + values.taxes + values.netValue
+                            + values.taxRatio;
+        }
+        return checksum;
+    }
+
+    private static double columns(PortfolioValueCalculator calculator, double[] shares, double[] acquisitionPrices,
+                    Columns columns)
+    {
+        TaxCalculator taxCalculator = calculator.getTaxCalculator();
+        double currentPricePerShare = 100.0;
+        double remaining = 100 - 30;
+
+        // Brutto-Wert und Gewinn nach TFS
+        for (int i = 0; i < shares.length; i++)
+        {
+            columns.grossValues[i] = currentPricePerShare * shares[i];
+            columns.taxableGains[i] = (((currentPricePerShare - acquisitionPrices[i]) * shares[i]) * remaining)
+                            / 100.0;
+        }
+
+        // Verlustverrechnung in Lot-Reihenfolge
+        double cumulative = 0;
+        for (int i = 0; i < shares.length; i++)
+        {
+            columns.taxableGainsToConsider[i] = taxCalculator.calculateTaxableGainWithLossOffset(cumulative,
+                            columns.taxableGains[i]);
+            cumulative += columns.taxableGains[i];
+        }
+
+        // Steuern, Netto-Wert und Steueranteil
+        double kestFactor = taxCalculator.getProfile().getKestFactor();
+        for (int i = 0; i < shares.length; i++)
+        {
+            columns.taxes[i] = columns.taxableGainsToConsider[i] * kestFactor;
+            columns.netValues[i] = columns.grossValues[i] - columns.taxes[i];
+            columns.taxRatios[i] = columns.grossValues[i] > 0 ? columns.taxes[i] / columns.grossValues[i] : 0.0;
+        }
+
+        double checksum = 0;
+        for (int i = 0; i < shares.length; i++)
+        {
+            checksum += columns.grossValues[i] + columns.taxableGainsToConsider[i] + columns.taxes[i]
+                            + columns.netValues[i] + columns.taxRatios[i];
+        }
+        return checksum;
+    }
+}
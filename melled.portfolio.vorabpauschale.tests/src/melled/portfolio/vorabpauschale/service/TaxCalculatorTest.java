@@ -2,6 +2,8 @@ package melled.portfolio.vorabpauschale.service;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.text.DecimalFormat;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -241,4 +243,17 @@ public class TaxCalculatorTest
         cumulativeGain += currentGain4;
         assertThat(cumulativeGain).isEqualTo(500.0);
     }
+
+    @Test
+    public void testFormatKestFollowsKirchensteuer()
+    {
+        String withoutChurchTax = calculator.formatKest();
+        assertThat(calculator.formatKest()).isSameAs(withoutChurchTax);
+
+        calculator.setKirchensteuer(0.09);
+        String withChurchTax = calculator.formatKest();
+
+        assertThat(withChurchTax).isNotEqualTo(withoutChurchTax)
+                        .isEqualTo(new DecimalFormat("#.##").format(calculator.getKestFactor() * 100));
+    }
 }
@@ -0,0 +1,62 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.Test;
+
+/**
+ * Tests für TaxProfile.
+ */
+@SuppressWarnings("java:S5976") // Move to jupiter test framework
+public class TaxProfileTest
+{
+    @Test
+    public void testDefaultProfile()
+    {
+        assertThat(TaxProfile.DEFAULT.getKestFactor()).isEqualTo(0.26375);
+        assertThat(TaxProfile.DEFAULT.formatKest()).isEqualTo(new TaxCalculator().formatKest());
+        assertThat(TaxProfile.of(0.0)).isSameAs(TaxProfile.DEFAULT);
+    }
+
+    @Test
+    public void testKestFactorMatchesTaxCalculator()
+    {
+        TaxCalculator calculator = new TaxCalculator();
+        calculator.setKirchensteuer(0.09);
+
+        TaxProfile profile = TaxProfile.of(0.09);
+        assertThat(profile.getKestFactor()).isEqualTo(calculator.getKestFactor());
+        assertThat(profile.formatKest()).isEqualTo(calculator.formatKest());
+        assertThat(calculator.getProfile()).isEqualTo(profile);
+    }
+
+    @Test
+    public void testWithKeepsOriginalUnchanged()
+    {
+        TaxProfile profile = TaxProfile.of(0.08, 1000.0);
+        TaxProfile changed = profile.withKirchensteuer(0.09).withAllowance(2000.0);
+
+        assertThat(profile.getKirchensteuer()).isEqualTo(0.08);
+        assertThat(profile.getAllowance()).isEqualTo(1000.0);
+        assertThat(changed.getKirchensteuer()).isEqualTo(0.09);
+        assertThat(changed.getAllowance()).isEqualTo(2000.0);
+    }
+
+    @Test
+    public void testApplyAllowance()
+    {
+        TaxProfile profile = TaxProfile.of(0.0, 1000.0);
+
+        assertThat(profile.applyAllowance(1500.0)).isEqualTo(500.0);
+        assertThat(profile.applyAllowance(800.0)).isEqualTo(0.0);
+        assertThat(TaxProfile.DEFAULT.applyAllowance(800.0)).isEqualTo(800.0);
+    }
+
+    @Test
+    public void testRejectsNegativeValues()
+    {
+        assertThatThrownBy(() -> TaxProfile.of(-0.01)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TaxProfile.of(0.0, -1.0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
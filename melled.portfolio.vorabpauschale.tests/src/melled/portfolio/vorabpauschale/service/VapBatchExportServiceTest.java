@@ -0,0 +1,159 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.service.VapBatchExportService.BatchResult;
+import melled.portfolio.vorabpauschale.service.VapBatchExportService.ClientResult;
+import name.abuchen.portfolio.junit.repacked.AccountBuilder;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Tests für VapBatchExportService.
+ */
+public class VapBatchExportServiceTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapBatchExportService batchService;
+    private Map<String, Client> clients;
+    private File csvFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        csvFile = tempFolder.newFile("test_vap.csv");
+        try (FileWriter writer = new FileWriter(csvFile))
+        {
+            writer.write("ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+            writer.write("DE0001;2020;1,00;30\n");
+        }
+
+        clients = Map.of("anna.xml", createClient("Depot A"), "ben.xml", createClient("Depot B"));
+
+        VapCalculator calculator = new VapCalculator(new VapCsvDataReader());
+        VapSummaryCollector summaryCollector = new VapSummaryCollector();
+        VapExcelExporter exporter = new VapExcelExporter(calculator, summaryCollector,
+                        new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator()));
+        batchService = new VapBatchExportService(calculator, new VapExportService(calculator, exporter), exporter,
+                        summaryCollector, (file, options) -> {
+                            if ("defekt.xml".equals(file.getName()))
+                            { throw new StackOverflowError("zu tief verschachtelt"); }
+                            Client client = clients.get(file.getName());
+                            if (client == null)
+                            { throw new FileNotFoundException(file.getName()); }
+                            return client;
+                        });
+    }
+
+    private static Client createClient(String depotName)
+    {
+        Client client = new Client();
+        Security security = new SecurityBuilder().addTo(client);
+        security.setIsin("DE0001");
+        security.setName("Test ETF 1");
+        Account account = new AccountBuilder().addTo(client);
+
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName(depotName);
+        return client;
+    }
+
+    @Test
+    public void testExportsEachClientAndContinuesAfterFailure() throws IOException
+    {
+        File output = new File(tempFolder.getRoot(), "out");
+        VapBatchExportOptions options = new VapBatchExportOptions();
+        options.setParallelism(2);
+
+        BatchResult result = batchService.exportAll(
+                        List.of(new File("anna.xml"), new File("fehlt.xml"), new File("ben.xml")),
+                        csvFile.getPath(), output, options);
+
+        assertThat(result.clients()).extracting(ClientResult::clientFile).containsExactly(new File("anna.xml"),
+                        new File("fehlt.xml"), new File("ben.xml"));
+        assertThat(result.getFailedCount()).isEqualTo(1);
+        assertThat(result.clients().get(1).error()).isInstanceOf(FileNotFoundException.class);
+        assertThat(result.clients().get(0).outputFile()).isEqualTo(new File(output, "anna_VAP.xlsx")).exists();
+        assertThat(result.clients().get(2).outputFile()).isEqualTo(new File(output, "ben_VAP.xlsx")).exists();
+        assertThat(result.householdSummaryFile()).isNull();
+    }
+
+    @Test
+    public void testRecordsErrorAndContinues() throws IOException
+    {
+        File output = new File(tempFolder.getRoot(), "out");
+        VapBatchExportOptions options = new VapBatchExportOptions();
+        options.setParallelism(1);
+
+        BatchResult result = batchService.exportAll(
+                        List.of(new File("defekt.xml"), new File("anna.xml"), new File("fehlt.xml")),
+                        csvFile.getPath(), output, options);
+
+        assertThat(result.getFailedCount()).isEqualTo(2);
+        assertThat(result.clients().get(0).error()).isInstanceOf(StackOverflowError.class)
+                        .hasMessage("zu tief verschachtelt");
+        assertThat(result.clients().get(0).outputFile()).isNull();
+        assertThat(result.clients().get(1).outputFile()).isEqualTo(new File(output, "anna_VAP.xlsx")).exists();
+        assertThat(result.clients().get(2).error()).isInstanceOf(FileNotFoundException.class);
+    }
+
+    @Test
+    public void testWritesHouseholdSummary() throws IOException
+    {
+        File household = new File(tempFolder.getRoot(), "haushalt.xlsx");
+        VapBatchExportOptions options = new VapBatchExportOptions();
+        options.setHouseholdSummaryFile(household);
+
+        BatchResult result = batchService.exportAll(List.of(new File("anna.xml"), new File("ben.xml")),
+                        csvFile.getPath(), tempFolder.newFolder("out"), options);
+
+        assertThat(result.householdSummaryFile()).isEqualTo(household).exists();
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new FileInputStream(household)))
+        {
+            assertThat(workbook.getNumberOfSheets()).isEqualTo(1);
+            Sheet sheet = workbook.getSheet("VAP");
+            List<String> depots = new ArrayList<>();
+            for (Row row : sheet)
+            {
+                if (row.getCell(2) != null)
+                {
+                    depots.add(row.getCell(2).getStringCellValue());
+                }
+            }
+            assertThat(depots).contains("anna / Depot A", "ben / Depot B");
+        }
+    }
+
+    @Test
+    public void testUniqueBaseNames()
+    {
+        assertThat(VapBatchExportService.uniqueBaseNames(List.of(new File("a/depot.xml"), new File("b/depot.xml"),
+                        new File("depot"), new File(".hidden")))).containsExactly("depot", "depot (2)", "depot (3)",
+                                        ".hidden");
+    }
+}
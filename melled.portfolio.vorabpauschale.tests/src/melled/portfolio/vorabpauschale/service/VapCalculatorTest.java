@@ -2,6 +2,7 @@ package melled.portfolio.vorabpauschale.service;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -17,6 +18,7 @@ import org.junit.rules.TemporaryFolder;
 
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
 import melled.portfolio.vorabpauschale.model.VapMetadata;
+import melled.portfolio.vorabpauschale.model.YearRange;
 import melled.portfolio.vorabpauschale.service.VapCalculator.VapEntry;
 import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
 import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
@@ -32,6 +34,7 @@ public class VapCalculatorTest
     public TemporaryFolder tempFolder = new TemporaryFolder();
 
     private VapCalculator calculator;
+    private VapMetadataIndex index;
     private VapCsvDataReader csvReader;
     private Client client;
     private File csvFile;
@@ -56,13 +59,13 @@ public class VapCalculatorTest
             writer.write("DE0002;2022;0,80;15\n");
         }
 
-        calculator.initializeVapData(csvFile.getAbsolutePath());
+        index = calculator.loadIndex(csvFile.getAbsolutePath());
 
         testBuilder = new TestBuilder(client);
     }
 
     @Test
-    public void testInitializeVapData()
+    public void testLoadIndex()
     {
         Security security = new SecurityBuilder().addTo(client);
         security.setIsin("DE0001");
@@ -70,14 +73,14 @@ public class VapCalculatorTest
         Security security2 = new SecurityBuilder().addTo(client);
         security2.setIsin("DE0002");
 
-        Set<VapMetadata> metadata = calculator.getVapMedatasById(security);
+        Set<VapMetadata> metadata = index.getMetadata(security);
 
         Set<VapMetadata> expectedMetadata = Set.of(new VapMetadata("DE0001", 2020, 0.50, 30),
                         new VapMetadata("DE0001", 2021, 0.75, 30), new VapMetadata("DE0001", 2022, 1.00, 30));
 
         assertThat(metadata).isEqualTo(expectedMetadata);
 
-        Set<VapMetadata> metadata2 = calculator.getVapMedatasById(security2);
+        Set<VapMetadata> metadata2 = index.getMetadata(security2);
 
         Set<VapMetadata> expectedMetadata2 = Set.of(new VapMetadata("DE0002", 2021, 0.6, 15),
                         new VapMetadata("DE0002", 2022, 0.8, 15));
@@ -96,7 +99,7 @@ public class VapCalculatorTest
         }
 
         String absolutePath = wknFile.getAbsolutePath();
-        assertThatThrownBy(() -> calculator.initializeVapData(absolutePath))
+        assertThatThrownBy(() -> calculator.loadIndex(absolutePath))
                         .isInstanceOf(IllegalArgumentException.class)
                         .hasMessageContaining("TFS-Prozentsatz muss zwischen 0 und 100 liegen: -30");
 
@@ -113,7 +116,7 @@ public class VapCalculatorTest
         }
         String absolutePath = wknFile.getAbsolutePath();
 
-        assertThatThrownBy(() -> calculator.initializeVapData(absolutePath))
+        assertThatThrownBy(() -> calculator.loadIndex(absolutePath))
                         .isInstanceOf(IllegalArgumentException.class)
                         .hasMessageContaining("TFS-Prozentsatz muss zwischen 0 und 100 liegen: 130");
 
@@ -130,12 +133,12 @@ public class VapCalculatorTest
             writer.write("123456;2020;0,50;30\n");
         }
 
-        calculator.initializeVapData(wknFile.getAbsolutePath());
+        index = calculator.loadIndex(wknFile.getAbsolutePath());
 
         Security security = new SecurityBuilder().addTo(client);
         security.setWkn("123456");
 
-        Set<VapMetadata> metadata = calculator.getVapMedatasById(security);
+        Set<VapMetadata> metadata = index.getMetadata(security);
 
         Set<VapMetadata> expectedMetadata = Set.of(new VapMetadata("123456", 2020, 0.50, 30));
 
@@ -145,7 +148,7 @@ public class VapCalculatorTest
         security2.setIsin("");
         security2.setWkn("123456");
 
-        Set<VapMetadata> metadata2 = calculator.getVapMedatasById(security);
+        Set<VapMetadata> metadata2 = index.getMetadata(security);
 
         Set<VapMetadata> expectedMetadata2 = Set.of(new VapMetadata("123456", 2020, 0.50, 30));
 
@@ -162,12 +165,12 @@ public class VapCalculatorTest
             writer.write("Test ETF;2020;0,50;30\n");
         }
 
-        calculator.initializeVapData(nameFile.getAbsolutePath());
+        index = calculator.loadIndex(nameFile.getAbsolutePath());
 
         Security security = new SecurityBuilder().addTo(client);
         security.setName("Test ETF");
 
-        Set<VapMetadata> metadata = calculator.getVapMedatasById(security);
+        Set<VapMetadata> metadata = index.getMetadata(security);
 
         Set<VapMetadata> expectedMetadata = Set.of(new VapMetadata("Test ETF", 2020, 0.50, 30));
 
@@ -178,7 +181,7 @@ public class VapCalculatorTest
         security2.setWkn("");
         security2.setWkn("123456");
 
-        Set<VapMetadata> metadata2 = calculator.getVapMedatasById(security);
+        Set<VapMetadata> metadata2 = index.getMetadata(security);
 
         Set<VapMetadata> expectedMetadata2 = Set.of(new VapMetadata("Test ETF", 2020, 0.50, 30));
 
@@ -196,7 +199,7 @@ public class VapCalculatorTest
     {
         UnsoldTransaction unsoldTx = testBuilder.transaction(type);
 
-        Map<Integer, VapEntry> vapList = calculator.calculateVapList(unsoldTx);
+        Map<Integer, VapEntry> vapList = index.calculateVapList(unsoldTx);
 
         assertThat(vapList).containsOnlyKeys(2020, 2021, 2022);
 
@@ -227,7 +230,7 @@ public class VapCalculatorTest
 
         UnsoldTransaction unsoldTx = testBuilder.transaction("2020-12-15", type);
 
-        Map<Integer, VapEntry> vapList = calculator.calculateVapList(unsoldTx);
+        Map<Integer, VapEntry> vapList = index.calculateVapList(unsoldTx);
 
         assertThat(vapList).containsOnlyKeys(2020, 2021, 2022);
 
@@ -257,7 +260,7 @@ public class VapCalculatorTest
 
         UnsoldTransaction unsoldTx = testBuilder.transaction("2020-06-15", type);
 
-        Map<Integer, VapEntry> vapList = calculator.calculateVapList(unsoldTx);
+        Map<Integer, VapEntry> vapList = index.calculateVapList(unsoldTx);
 
         assertThat(vapList).containsOnlyKeys(2020, 2021, 2022);
 
@@ -283,13 +286,24 @@ public class VapCalculatorTest
     {
         UnsoldTransaction unsoldTx = testBuilder.transaction("2021-06-15", type);
 
-        Map<Integer, VapEntry> vapList = calculator.calculateVapList(unsoldTx);
+        Map<Integer, VapEntry> vapList = index.calculateVapList(unsoldTx);
 
         assertThat(vapList).hasSize(2);
         assertThat(vapList).doesNotContainKey(2020); // Vor Kaufdatum
         assertThat(vapList).containsOnlyKeys(2021, 2022);
     }
 
+    @Test
+    public void testGetVapYearsMatchesVapList()
+    {
+        UnsoldTransaction unsoldTx = testBuilder.transaction("2021-06-15", Type.BUY);
+
+        YearRange years = index.getVapYears(unsoldTx);
+
+        assertThat(years.toArray()).containsExactly(2021, 2022);
+        assertThat(years.toArray()).containsExactlyInAnyOrderElementsOf(index.calculateVapList(unsoldTx).keySet());
+    }
+
     @Test
     public void testCalculateTotalVap()
     {
@@ -314,22 +328,22 @@ public class VapCalculatorTest
                         .addTo(client);
 
         List<Double> totalVaps2020 = testBuilder.transactions(portfolio).stream()
-                        .map(tx -> calculator.calculateTotalVap(tx, 2020)).toList();
+                        .map(tx -> index.calculateTotalVap(tx, 2020)).toList();
 
         assertThat(totalVaps2020).containsExactly(5.0, 0.0, 0.0, 0.0, 5.0, 2.5, 0.0, 0.0, 0.0, 0.0);
 
         List<Double> totalVaps2021 = testBuilder.transactions(portfolio).stream()
-                        .map(tx -> calculator.calculateTotalVap(tx, 2021)).toList();
+                        .map(tx -> index.calculateTotalVap(tx, 2021)).toList();
 
         assertThat(totalVaps2021).containsExactly(7.5, 7.5, 0.0, 0.0, 7.5, 7.5, 1.875, 0.0, 0.0, 0.0);
 
         List<Double> totalVaps2022 = testBuilder.transactions(portfolio).stream()
-                        .map(tx -> calculator.calculateTotalVap(tx, 2022)).toList();
+                        .map(tx -> index.calculateTotalVap(tx, 2022)).toList();
 
         assertThat(totalVaps2022).containsExactly(10.0, 10.0, 10.0, 5.0, 10.0, 10.0, 5.0, 2.5, 10.0, 5.0);
 
         List<Double> totalVapPerShares = testBuilder.transactions(portfolio).stream()
-                        .map(tx -> calculator.calculateTotalVapPerShare(tx)).toList();
+                        .map(tx -> index.calculateTotalVapPerShare(tx)).toList();
 
         assertThat(totalVapPerShares).containsExactly(2.25, 1.75, 1.0, 0.5, 2.25, 2.0, 1.375, 0.5, 1.0, 0.5);
     }
@@ -345,7 +359,7 @@ public class VapCalculatorTest
     {
         UnsoldTransaction unsoldTx = testBuilder.transaction(type);
 
-        double totalVap = calculator.calculateTotalVap(unsoldTx, 2020);
+        double totalVap = index.calculateTotalVap(unsoldTx, 2020);
 
         // 10 Anteile * 0.50 VAP = 5.0
         assertThat(totalVap).isEqualTo(5.0);
@@ -363,7 +377,7 @@ public class VapCalculatorTest
                         .addTo(client);
 
         List<Double> totalVaps = testBuilder.transactions(portfolio).stream()
-                        .map(tx -> calculator.calculateTotalVap(tx, 2020)).toList();
+                        .map(tx -> index.calculateTotalVap(tx, 2020)).toList();
 
         assertThat(totalVaps).containsExactly(5.0, 1.25);
     }
@@ -379,12 +393,26 @@ public class VapCalculatorTest
     {
         UnsoldTransaction unsoldTx = testBuilder.transaction(type);
 
-        double totalVapPerShare = calculator.calculateTotalVapPerShare(unsoldTx);
+        double totalVapPerShare = index.calculateTotalVapPerShare(unsoldTx);
 
         // Summe: 0.50 + 0.75 + 1.00 = 2.25
         assertThat(totalVapPerShare).isEqualTo(2.25);
     }
 
+    @Test
+    public void testTotalVapPerShareMatchesVapList()
+    {
+        for (String date : new String[] { "2019-03-01", "2020-01-15", "2021-06-15", "2022-12-01", "2023-01-01" })
+        {
+            UnsoldTransaction unsoldTx = testBuilder.transaction(date, Type.BUY);
+
+            double expected = index.calculateVapList(unsoldTx).values().stream().mapToDouble(VapEntry::vap)
+                            .sum();
+
+            assertThat(index.calculateTotalVapPerShare(unsoldTx)).isCloseTo(expected, within(1e-12));
+        }
+    }
+
     @Test
     public void testCalculateTotalVapPerShareWithSell()
     {
@@ -397,7 +425,7 @@ public class VapCalculatorTest
                         .addTo(client);
 
         List<Double> totalVapPerShares = testBuilder.transactions(portfolio).stream()
-                        .map(tx -> calculator.calculateTotalVapPerShare(tx)).toList();
+                        .map(tx -> index.calculateTotalVapPerShare(tx)).toList();
 
         assertThat(totalVapPerShares).containsExactly(2.25, 2.0);
     }
@@ -415,7 +443,7 @@ public class VapCalculatorTest
         PortfolioTransaction tx = portfolio.getTransactions().get(0);
         UnsoldTransaction unsoldTx = new UnsoldTransaction(tx);
 
-        Map<Integer, VapEntry> vapList = calculator.calculateVapList(unsoldTx);
+        Map<Integer, VapEntry> vapList = index.calculateVapList(unsoldTx);
 
         assertThat(vapList).isEmpty();
     }
@@ -433,7 +461,7 @@ public class VapCalculatorTest
         PortfolioTransaction tx = portfolio.getTransactions().get(0);
         UnsoldTransaction unsoldTx = new UnsoldTransaction(tx);
 
-        double totalVap = calculator.calculateTotalVap(unsoldTx, 2019); // Jahr
+        double totalVap = index.calculateTotalVap(unsoldTx, 2019); // Jahr
                                                                         // vor
                                                                         // Kauf
 
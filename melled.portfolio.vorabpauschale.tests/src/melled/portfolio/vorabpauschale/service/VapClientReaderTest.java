@@ -0,0 +1,241 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.model.LotStore;
+import melled.portfolio.vorabpauschale.model.VapMetadata;
+import melled.portfolio.vorabpauschale.service.ClientFingerprint.PositionKey;
+import melled.portfolio.vorabpauschale.service.LotLedgerCache.Checkpoint;
+import melled.portfolio.vorabpauschale.service.LotLedgerCache.LotEntry;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Tests für VapClientReader.
+ */
+public class VapClientReaderTest
+{
+    private static final String ID_REFERENCES = """
+                    <client id="1">
+                      <version>56</version>
+                      <securities id="2">
+                        <security id="3">
+                          <name>Test ETF 1</name>
+                          <currencyCode>EUR</currencyCode>
+                          <isin>DE0001</isin>
+                          <prices id="4"/>
+                        </security>
+                      </securities>
+                      <accounts id="5">
+                        <account id="6">
+                          <name>Konto</name>
+                          <transactions id="7">
+                            <account-transaction id="8">
+                              <date>2020-03-02T00:00</date>
+                              <currencyCode>EUR</currencyCode>
+                              <amount>50000</amount>
+                              <security reference="3"/>
+                              <crossEntry class="buysell" id="9">
+                                <portfolio id="10">
+                                  <name>Depot</name>
+                                  <referenceAccount reference="6"/>
+                                  <transactions id="11">
+                                    <portfolio-transaction id="12">
+                                      <date>2020-03-02T00:00</date>
+                                      <currencyCode>EUR</currencyCode>
+                                      <amount>50000</amount>
+                                      <security reference="3"/>
+                                      <crossEntry class="buysell" reference="9"/>
+                                      <shares>500000000</shares>
+                                      <type>BUY</type>
+                                    </portfolio-transaction>
+                                  </transactions>
+                                </portfolio>
+                                <portfolioTransaction reference="12"/>
+                                <account reference="6"/>
+                                <accountTransaction reference="8"/>
+                              </crossEntry>
+                              <type>BUY</type>
+                            </account-transaction>
+                          </transactions>
+                        </account>
+                      </accounts>
+                      <portfolios id="13">
+                        <portfolio reference="10"/>
+                      </portfolios>
+                    </client>
+                    """;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapExportService exportService;
+
+    @Before
+    public void setUp()
+    {
+        VapCalculator calculator = new VapCalculator(new VapCsvDataReader());
+        exportService = new VapExportService(calculator, new VapExcelExporter(calculator,
+                        new VapSummaryCollector(),
+                        new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator())));
+    }
+
+    @Test
+    public void testReadsLotsWithRelativeReferences() throws IOException
+    {
+        Client client;
+        try (InputStream in = getClass().getResourceAsStream("VapClientReaderTest.xml"))
+        {
+            client = new VapClientReader().read(in);
+        }
+
+        assertThat(client.getPortfolios()).extracting(Portfolio::getName).containsExactly("Depot", "Depot 2");
+        assertThat(client.getPortfolios().get(1).getReferenceAccount().getName()).isEqualTo("Konto");
+        assertThat(client.getSecurities()).hasSize(1);
+
+        // Kauf 10, Umbuchung 4 nach Depot 2, Verkauf 2, Einlieferung 1
+        LotStore lots = exportService.collectLots(client);
+        assertThat(describe(lots)).containsExactlyInAnyOrder("Depot 2020-01-15 10.0 4.0",
+                        "Depot 2 2020-01-15 4.0 4.0", "Depot 2 2020-06-01 1.0 1.0");
+
+        // Gebühr geht in den Brutto-Kaufpreis ein: (1000 - 5) / 10
+        LotStore.Cursor lot = lots.cursor();
+        while (lot.next())
+        {
+            if (lot.getPurchaseDate().getYear() == 2020 && lot.getPurchaseDate().getMonthValue() == 1)
+            {
+                assertThat(lot.getPricePerShare()).isEqualTo(99.5);
+            }
+        }
+    }
+
+    @Test
+    public void testKeepsOnlyLatestPrice() throws IOException
+    {
+        Client client;
+        try (InputStream in = getClass().getResourceAsStream("VapClientReaderTest.xml"))
+        {
+            client = new VapClientReader().read(in);
+        }
+
+        Security security = client.getSecurities().get(0);
+        assertThat(security.getIsin()).isEqualTo("DE0001");
+        assertThat(security.getCurrencyCode()).isEqualTo("EUR");
+        assertThat(security.getPrices()).hasSize(1);
+        assertThat(security.getSecurityPrice(LocalDate.now()).getValue()).isEqualTo(12500000000L);
+    }
+
+    @Test
+    public void testReadsIdReferences() throws IOException
+    {
+        Client client = new VapClientReader()
+                        .read(new ByteArrayInputStream(ID_REFERENCES.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(client.getPortfolios()).extracting(Portfolio::getName).containsExactly("Depot");
+        assertThat(describe(exportService.collectLots(client))).containsExactly("Depot 2020-03-02 5.0 5.0");
+    }
+
+    @Test
+    public void testCachesHitWhenReadingSameFileAgain() throws IOException
+    {
+        Client first = read();
+        Client second = read();
+
+        assertThat(second.getPortfolios().get(0).getUUID()).isEqualTo("p1")
+                        .isEqualTo(first.getPortfolios().get(0).getUUID());
+        assertThat(second.getSecurities().get(0).getUUID()).isEqualTo("s1");
+        assertThat(second.getPortfolios().get(0).getTransactions().get(0).getUUID()).isEqualTo("pt1");
+
+        // Zwischenstand der Lots: abweichender Bestand zeigt, dass fortgesetzt wird
+        LotLedgerCache ledgerCache = new LotLedgerCache(tempFolder.newFolder("ledger").toPath());
+        exportService.collectLots(first, ledgerCache, "depot.xml");
+        Checkpoint checkpoint = ledgerCache.lookup("depot.xml").orElseThrow();
+        Map<String, List<LotEntry>> lots = new LinkedHashMap<>();
+        checkpoint.lots().forEach((uuid, entries) -> lots.put(uuid, entries.stream()
+                        .map(lot -> new LotEntry(lot.transactionUuid(), lot.share(), 1)).toList()));
+        ledgerCache.store("depot.xml", new Checkpoint(checkpoint.watermark(), checkpoint.historyHash(), lots));
+
+        assertThat(describe(exportService.collectLots(second, ledgerCache, "depot.xml")))
+                        .containsExactlyInAnyOrder("Depot 2020-01-15 10.0 1.0", "Depot 2 2020-01-15 4.0 1.0",
+                                        "Depot 2 2020-06-01 1.0 1.0");
+
+        // abgeschlossene Jahre: abweichender Wert zeigt den Treffer in der Ablage
+        VapSummaryCollector collector = new VapSummaryCollector();
+        VapMetadataIndex index = VapMetadataIndex.create(Map.of("DE0001", Set.of(
+                        new VapMetadata("DE0001", 2020, 0.5, 30), new VapMetadata("DE0001", 2021, 0.75, 30))));
+        ClosedYearCache yearCache = ClosedYearCache.load(
+                        tempFolder.getRoot().toPath().resolve(ClosedYearCache.FILE_NAME), 2022,
+                        LocalDate.of(2022, 3, 1));
+        collector.collectSummary(index, exportService.collectLots(first), 1, yearCache);
+        PositionKey position = PositionKey.of(first.getPortfolios().get(0), first.getSecurities().get(0));
+        yearCache.put(position, yearCache.get(position).hash(), Map.of(2020, 99.0, 2021, 1.0));
+
+        VapSummaryRow row = collector.collectSummary(index, exportService.collectLots(second), 1, yearCache)
+                        .stream().filter(r -> "Depot".equals(r.getDepot())).findFirst().orElseThrow();
+        assertThat(row.getVapBeforeTfs(2020)).isEqualTo(99.0);
+    }
+
+    @Test
+    public void testRejectsOtherXml()
+    {
+        VapClientReader reader = new VapClientReader();
+
+        assertThatThrownBy(() -> reader.read(new ByteArrayInputStream("<workbook/>".getBytes(StandardCharsets.UTF_8))))
+                        .isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> reader.read(new ByteArrayInputStream(
+                        "<client><portfolios><portfolio reference=\"../x\"/></portfolios></client>"
+                                        .getBytes(StandardCharsets.UTF_8))))
+                        .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testResolvePath()
+    {
+        String current = "/client[1]/portfolios[1]/portfolio[2]";
+
+        assertThat(VapClientReader.resolvePath(current, "../../securities/security[3]"))
+                        .isEqualTo("/client[1]/securities[1]/security[3]");
+        assertThat(VapClientReader.resolvePath(current, "..")).isEqualTo("/client[1]/portfolios[1]");
+        assertThat(VapClientReader.resolvePath(current, "/client/accounts/account"))
+                        .isEqualTo("/client[1]/accounts[1]/account[1]");
+    }
+
+    private Client read() throws IOException
+    {
+        try (InputStream in = getClass().getResourceAsStream("VapClientReaderTest.xml"))
+        {
+            return new VapClientReader().read(in);
+        }
+    }
+
+    private static List<String> describe(LotStore lots)
+    {
+        List<String> lines = new ArrayList<>();
+        LotStore.Cursor lot = lots.cursor();
+        while (lot.next())
+        {
+            lines.add(lot.getPortfolio().getName() + " " + lot.getPurchaseDate() + " " + lot.getShare() + " "
+                            + lot.getUnsoldShare());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,151 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.model.VapKey;
+import melled.portfolio.vorabpauschale.service.VapCube.Dimension;
+import melled.portfolio.vorabpauschale.service.VapCube.Slice;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.Security;
+
+public class VapCubeTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapSummaryCollector collector;
+    private VapMetadataIndex index;
+    private Map<Portfolio, List<UnsoldTransaction>> transactions;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        Client client = new Client();
+        VapCalculator calculator = new VapCalculator(new VapCsvDataReader());
+        collector = new VapSummaryCollector();
+
+        File csvFile = tempFolder.newFile("test_vap.csv");
+        try (FileWriter writer = new FileWriter(csvFile))
+        {
+            writer.write("ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+            writer.write("DE0001;2020;1,00;30\n");
+            writer.write("DE0001;2021;1,50;30\n");
+            writer.write("DE0002;2020;0,50;15\n");
+            writer.write("DE0002;2021;0,75;15\n");
+        }
+        index = calculator.loadIndex(csvFile.getAbsolutePath());
+
+        Security security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security1.setName("Test ETF 1");
+        Security security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        security2.setName("Test ETF 2");
+
+        // Broker A: 10 x ETF 1, 20 x ETF 2; Broker B: 30 x ETF 1
+        Portfolio portfolioA = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security2, "2020-01-15", PortfolioBuilder.sharesOf(20), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolioA.setName("Broker A");
+        Portfolio portfolioB = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(30), PortfolioBuilder.amountOf(3000))
+                        .addTo(client);
+        portfolioB.setName("Broker B");
+
+        transactions = new HashMap<>();
+        transactions.put(portfolioA, portfolioA.getTransactions().stream().map(UnsoldTransaction::new).toList());
+        transactions.put(portfolioB, portfolioB.getTransactions().stream().map(UnsoldTransaction::new).toList());
+    }
+
+    @Test
+    public void testCellsAreSortedByDepotAndIsin()
+    {
+        VapCube cube = collector.collectCube(index, transactions);
+
+        assertThat(cube.getYears()).containsExactly(2020, 2021);
+        assertThat(cube.getKeys()).extracting(VapKey::getBroker, VapKey::getIsin).containsExactly(
+                        tuple("Broker A", "DE0001"),
+                        tuple("Broker A", "DE0002"),
+                        tuple("Broker B", "DE0001"));
+
+        Slice cell = cube.get(new VapKey("DE0001", "Test ETF 1", "Broker B", 30));
+        assertThat(cell.getVapBeforeTfs(2020)).isEqualTo(30.0);
+        assertThat(cell.getVapAfterTfs(2021)).isEqualTo(31.5);
+        assertThat(cell.getVapBeforeTfs(2019)).isZero();
+    }
+
+    @Test
+    public void testRollUpPerSecurityAcrossDepots()
+    {
+        VapCube cube = collector.collectCube(index, transactions);
+
+        Slice etf1 = cube.rollUp(Dimension.SECURITY, new VapKey("DE0001", "Test ETF 1", null, 30));
+
+        assertThat(etf1.getKeys()).hasSize(2);
+        assertThat(etf1.getVapBeforeTfs(2020)).isEqualTo(40.0);
+        assertThat(etf1.getVapBeforeTfs(2021)).isEqualTo(60.0);
+        assertThat(etf1.getTotalBeforeTfs()).isEqualTo(100.0);
+        assertThat(cube.rollUp(Dimension.SECURITY)).hasSize(2);
+    }
+
+    @Test
+    public void testRollUpPerTfsClassAndYear()
+    {
+        VapCube cube = collector.collectCube(index, transactions);
+
+        assertThat(cube.rollUp(Dimension.TFS)).extracting(Slice::getMember).containsExactly(30, 15);
+        assertThat(cube.rollUp(Dimension.TFS, 15).getVapBeforeTfs(2020)).isEqualTo(10.0);
+        assertThat(cube.rollUp(Dimension.TFS, 15).getVapAfterTfs(2020)).isEqualTo(8.5);
+
+        // Jahr über alle Depots
+        assertThat(cube.total().getVapBeforeTfs(2020)).isEqualTo(50.0);
+        assertThat(cube.total().getVapBeforeTfs(2021)).isEqualTo(75.0);
+        assertThat(cube.rollUp(Dimension.TFS, 99)).isNull();
+    }
+
+    @Test
+    public void testSummaryIsProjectionOfCube()
+    {
+        VapCube cube = collector.collectCube(index, transactions);
+        List<VapSummaryRow> rows = collector.createRows(cube);
+
+        assertThat(rows).hasSize(8);
+        VapSummaryRow sumRowA = rows.get(2);
+        assertThat(sumRowA.isSumRow()).isTrue();
+        assertThat(sumRowA.getVapBeforeTfs(2021))
+                        .isEqualTo(cube.rollUp(Dimension.DEPOT, "Broker A").getVapBeforeTfs(2021));
+
+        VapSummaryRow totalRow = rows.get(rows.size() - 1);
+        assertThat(totalRow.getVapAfterTfs()).isEqualTo(collector.collectSummary(index, transactions)
+                        .get(rows.size() - 1).getVapAfterTfs());
+    }
+
+    @Test
+    public void testEmptyCube()
+    {
+        VapCube cube = collector.collectCube(index, new HashMap<>());
+
+        assertThat(cube.isEmpty()).isTrue();
+        assertThat(cube.total().getVapBeforeTfs(2020)).isZero();
+        assertThat(collector.createRows(cube)).isEmpty();
+    }
+}
@@ -0,0 +1,67 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.Test;
+
+import melled.portfolio.vorabpauschale.service.VapExportProfile.Strategy;
+
+/**
+ * Tests für VapExportProfile.
+ */
+public class VapExportProfileTest
+{
+    private static final long ONE_GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void testDefaultProfileStreams()
+    {
+        VapExportProfile profile = new VapExportProfile();
+
+        assertThat(profile.getStrategy()).isEqualTo(Strategy.STREAMING);
+        assertThat(profile.getRowAccessWindow()).isEqualTo(VapExportProfile.DEFAULT_ROW_ACCESS_WINDOW);
+        assertThat(profile.isCompressTempFiles()).isFalse();
+        assertThat(profile.isUseSharedStrings()).isFalse();
+        assertThat(profile.resolveStrategy(10, ONE_GB)).isEqualTo(Strategy.STREAMING);
+    }
+
+    @Test
+    public void testAutoUsesMemoryForSmallWorkbooks()
+    {
+        VapExportProfile profile = new VapExportProfile();
+        profile.setStrategy(Strategy.AUTO);
+
+        assertThat(profile.resolveStrategy(1_000, ONE_GB)).isEqualTo(Strategy.IN_MEMORY);
+    }
+
+    @Test
+    public void testAutoStreamsWhenHeapIsTooSmall()
+    {
+        VapExportProfile profile = new VapExportProfile();
+        profile.setStrategy(Strategy.AUTO);
+
+        assertThat(profile.resolveStrategy(500_000, 64L * 1024 * 1024)).isEqualTo(Strategy.STREAMING);
+        assertThat(profile.resolveStrategy(VapExportProfile.COMPRESSION_THRESHOLD_CELLS, 64L * 1024 * 1024))
+                        .isEqualTo(Strategy.STREAMING_COMPRESSED);
+    }
+
+    @Test
+    public void testLowMemoryProfileCompressesTempFiles()
+    {
+        VapExportProfile profile = VapExportProfile.lowMemory();
+
+        assertThat(profile.getStrategy()).isEqualTo(Strategy.AUTO);
+        assertThat(profile.isCompressTempFiles()).isTrue();
+        assertThat(profile.resolveStrategy(500_000, ONE_GB)).isEqualTo(Strategy.STREAMING_COMPRESSED);
+    }
+
+    @Test
+    public void testInvalidValuesAreRejected()
+    {
+        VapExportProfile profile = new VapExportProfile();
+
+        assertThatThrownBy(() -> profile.setRowAccessWindow(0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> profile.setHeapFraction(1.5)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -3,17 +3,27 @@ package melled.portfolio.vorabpauschale.service;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.service.VapExportOptions.SplitMode;
 import name.abuchen.portfolio.junit.repacked.AccountBuilder;
 import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
 import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
@@ -43,7 +53,7 @@ public class VapExportServiceTest
         client = new Client();
         csvReader = new VapCsvDataReader();
         calculator = new VapCalculator(csvReader);
-        excelExporter = new VapExcelExporter(calculator, new VapSummaryCollector(calculator),
+        excelExporter = new VapExcelExporter(calculator, new VapSummaryCollector(),
                         new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator()));
         exportService = new VapExportService(calculator, excelExporter);
 
@@ -268,6 +278,323 @@ public class VapExportServiceTest
         assertOutputFile(outputFile);
     }
 
+    @Test
+    public void testExportVapSplitPerDepot() throws Exception
+    {
+        Portfolio portfolio1 = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio1.setName("Depot 1");
+
+        Account account2 = new AccountBuilder().addTo(client);
+        Portfolio portfolio2 = new PortfolioBuilder(account2)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(20), PortfolioBuilder.amountOf(2000))
+                        .addTo(client);
+        portfolio2.setName("Depot 2");
+
+        VapExportOptions options = new VapExportOptions();
+        options.setSplitMode(SplitMode.PER_DEPOT);
+
+        File outputFile = new File(tempFolder.getRoot(), "split_export.xlsx");
+
+        exportService.exportVap(client, csvFile.getAbsolutePath(), outputFile.getAbsolutePath(), options);
+
+        assertOutputFile(outputFile);
+        File[] parts = tempFolder.getRoot().listFiles((dir, name) -> name.startsWith("split_export_"));
+        assertThat(parts).hasSize(2);
+        for (File part : parts)
+        {
+            assertOutputFile(part);
+        }
+    }
+
+    @Test
+    public void testExportVapSplitBySheetCount() throws Exception
+    {
+        Security security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        security2.setName("Test ETF 2");
+
+        Security security3 = new SecurityBuilder().addTo(client);
+        security3.setIsin("DE0003");
+        security3.setName("Test ETF 3");
+
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security2, "2020-01-15", PortfolioBuilder.sharesOf(20), PortfolioBuilder.amountOf(2000))
+                        .buy(security3, "2020-01-15", PortfolioBuilder.sharesOf(30), PortfolioBuilder.amountOf(3000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        VapExportOptions options = new VapExportOptions();
+        options.setSplitMode(SplitMode.PER_SHEET_COUNT);
+        options.setSheetsPerWorkbook(2);
+        options.setParallelism(2);
+
+        File outputFile = new File(tempFolder.getRoot(), "chunk_export.xlsx");
+
+        exportService.exportVap(client, csvFile.getAbsolutePath(), outputFile.getAbsolutePath(), options);
+
+        assertOutputFile(outputFile);
+        assertThat(new File(tempFolder.getRoot(), "chunk_export_01_Teil 1.xlsx")).exists();
+        assertThat(new File(tempFolder.getRoot(), "chunk_export_02_Teil 2.xlsx")).exists();
+    }
+
+    @Test
+    public void testExportVapSplitDeletesStaleParts() throws Exception
+    {
+        Security security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        security2.setName("Test ETF 2");
+
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security2, "2020-01-15", PortfolioBuilder.sharesOf(20), PortfolioBuilder.amountOf(2000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        VapExportOptions options = new VapExportOptions();
+        options.setSplitMode(SplitMode.PER_SHEET_COUNT);
+        options.setSheetsPerWorkbook(1);
+
+        File outputFile = new File(tempFolder.getRoot(), "stale_export.xlsx");
+        File otherFile = tempFolder.newFile("stale_export_notes.xlsx");
+
+        exportService.exportVap(client, csvFile.getAbsolutePath(), outputFile.getAbsolutePath(), options);
+        assertThat(new File(tempFolder.getRoot(), "stale_export_02_Teil 2.xlsx")).exists();
+
+        options.setSheetsPerWorkbook(2);
+        exportService.exportVap(client, csvFile.getAbsolutePath(), outputFile.getAbsolutePath(), options);
+
+        assertOutputFile(outputFile);
+        assertThat(new File(tempFolder.getRoot(), "stale_export_01_Teil 1.xlsx")).exists();
+        assertThat(new File(tempFolder.getRoot(), "stale_export_02_Teil 2.xlsx")).doesNotExist();
+        assertThat(otherFile).exists();
+    }
+
+    @Test
+    public void testExportVapReusesCachedDetailSheets() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        File cacheDirectory = tempFolder.newFolder("sheet-cache");
+        VapExportOptions options = new VapExportOptions();
+        options.setSheetCacheDirectory(cacheDirectory.toPath());
+
+        File firstFile = new File(tempFolder.getRoot(), "first_export.xlsx");
+        exportService.exportVap(client, csvFile.getAbsolutePath(), firstFile.getAbsolutePath(), options);
+        assertThat(cacheDirectory.listFiles()).hasSize(1);
+
+        File secondFile = new File(tempFolder.getRoot(), "second_export.xlsx");
+        exportService.exportVap(client, csvFile.getAbsolutePath(), secondFile.getAbsolutePath(), options);
+        assertThat(cacheDirectory.listFiles()).hasSize(1);
+
+        try (XSSFWorkbook first = new XSSFWorkbook(firstFile); XSSFWorkbook second = new XSSFWorkbook(secondFile))
+        {
+            Sheet firstSheet = first.getSheetAt(1);
+            Sheet secondSheet = second.getSheetAt(1);
+
+            assertThat(secondSheet.getSheetName()).isEqualTo(firstSheet.getSheetName());
+            assertThat(secondSheet.getRow(0).getCell(0).getStringCellValue()).isEqualTo("ISIN");
+            assertThat(secondSheet.getRow(1).getCell(3).getNumericCellValue())
+                            .isEqualTo(firstSheet.getRow(1).getCell(3).getNumericCellValue()).isEqualTo(10.0);
+        }
+    }
+
+    @Test
+    public void testExportVapReusesCachedDetailSheetsInMemory() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        // gecachte Sheets dürfen nicht auf die Shared Strings des ersten Exports verweisen
+        VapExportProfile profile = new VapExportProfile();
+        profile.setStrategy(VapExportProfile.Strategy.IN_MEMORY);
+        profile.setUseSharedStrings(true);
+
+        VapExportOptions options = new VapExportOptions();
+        options.setProfile(profile);
+        options.setSheetCacheDirectory(tempFolder.newFolder("sheet-cache").toPath());
+
+        File firstFile = new File(tempFolder.getRoot(), "first_export.xlsx");
+        exportService.exportVap(client, csvFile.getAbsolutePath(), firstFile.getAbsolutePath(), options);
+
+        File secondFile = new File(tempFolder.getRoot(), "second_export.xlsx");
+        exportService.exportVap(client, csvFile.getAbsolutePath(), secondFile.getAbsolutePath(), options);
+
+        try (XSSFWorkbook second = new XSSFWorkbook(secondFile))
+        {
+            Sheet detailSheet = second.getSheetAt(1);
+
+            assertThat(detailSheet.getRow(0).getCell(0).getStringCellValue()).isEqualTo("ISIN");
+            assertThat(detailSheet.getRow(1).getCell(0).getStringCellValue()).isEqualTo("DE0001");
+            assertThat(detailSheet.getRow(1).getCell(3).getNumericCellValue()).isEqualTo(10.0);
+        }
+    }
+
+    @Test
+    public void testExportVapWithLowMemoryProfile() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security, "2020-06-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        VapExportOptions options = new VapExportOptions();
+        options.setProfile(VapExportProfile.lowMemory());
+
+        File outputFile = new File(tempFolder.getRoot(), "low_memory_export.xlsx");
+
+        exportService.exportVap(client, csvFile.getAbsolutePath(), outputFile.getAbsolutePath(), options);
+
+        assertOutputFile(outputFile);
+    }
+
+    @Test
+    public void testExportVapToStream() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        exportService.exportVap(client, csvFile.getAbsolutePath(), out, new VapExportOptions());
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray())))
+        {
+            assertThat(workbook.getSheet("VAP")).isNotNull();
+            assertThat(workbook.getNumberOfSheets()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testExportVapToStreamWithAsyncWrite() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        VapExportOptions options = new VapExportOptions();
+        options.setAsyncWrite(true);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        exportService.exportVap(client, csvFile.getAbsolutePath(), out, options);
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray())))
+        {
+            assertThat(workbook.getSheet("VAP")).isNotNull();
+        }
+
+        File outputFile = new File(tempFolder.getRoot(), "async_export.xlsx");
+        exportService.exportVap(client, csvFile.getAbsolutePath(), outputFile.getAbsolutePath(), options);
+
+        assertOutputFile(outputFile);
+    }
+
+    @Test
+    public void testExportVapToChannel() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = Map.of(portfolio,
+                        portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
+
+        excelExporter.export(csvFile.getAbsolutePath(), Channels.newChannel(out), transactions,
+                        new VapExportOptions());
+
+        assertThat(out.size()).isGreaterThan(0);
+    }
+
+    @Test
+    public void testExportVapToStreamRejectsSplitMode()
+    {
+        VapExportOptions options = new VapExportOptions();
+        options.setSplitMode(SplitMode.PER_DEPOT);
+
+        assertThatThrownBy(() -> exportService.exportVap(client, csvFile.getAbsolutePath(),
+                        new ByteArrayOutputStream(), options)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testConcurrentExportsUseOwnMetadata() throws Exception
+    {
+        Portfolio portfolio = new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Test Depot");
+
+        File otherCsvFile = tempFolder.newFile("other_vap.csv");
+        try (FileWriter writer = new FileWriter(otherCsvFile))
+        {
+            writer.write("ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+            writer.write("DE0001;2020;2,00;30\n");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            for (int round = 0; round < 10; round++)
+            {
+                ByteArrayOutputStream first = new ByteArrayOutputStream();
+                ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+                Future<?> firstExport = executor.submit(() -> {
+                    exportService.exportVap(client, csvFile.getAbsolutePath(), first, new VapExportOptions());
+                    return null;
+                });
+                Future<?> secondExport = executor.submit(() -> {
+                    exportService.exportVap(client, otherCsvFile.getAbsolutePath(), second,
+                                    new VapExportOptions());
+                    return null;
+                });
+                firstExport.get();
+                secondExport.get();
+
+                // 10 Anteile * 1,00 bzw. 2,00 VAP für 2020
+                assertThat(readVap2020(first)).isEqualTo(10.0);
+                assertThat(readVap2020(second)).isEqualTo(20.0);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private double readVap2020(ByteArrayOutputStream out) throws IOException
+    {
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray())))
+        {
+            Sheet sheet = workbook.getSheet("VAP");
+            assertThat(sheet.getRow(0).getCell(3).getStringCellValue()).isEqualTo("2020 vor TFS");
+            return sheet.getRow(1).getCell(3).getNumericCellValue();
+        }
+    }
+
+    @Test
+    public void testExportOptionsRejectInvalidValues()
+    {
+        VapExportOptions options = new VapExportOptions();
+
+        assertThatThrownBy(() -> options.setSheetsPerWorkbook(0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> options.setParallelism(0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
     private void assertOutputFile(File outputFile)
     {
         assertThat(outputFile).exists();
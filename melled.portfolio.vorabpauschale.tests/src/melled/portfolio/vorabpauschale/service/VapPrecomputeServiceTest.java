@@ -0,0 +1,165 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.service.VapPrecomputeService.Precomputed;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.junit.repacked.AccountBuilder;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Tests für VapPrecomputeService. Die Vorberechnung wird direkt aufgerufen,
+ * damit die Tests nicht vom Zeitplan des Jobs abhängen.
+ */
+public class VapPrecomputeServiceTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapCalculator calculator;
+    private VapExportService exportService;
+    private VapSummaryCollector collector;
+    private VapPrecomputeService service;
+    private Client client;
+    private File csvFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        System.setProperty(VapPrecomputeService.SUMMARY_PROPERTY, "true");
+
+        calculator = new VapCalculator(new VapCsvDataReader());
+        collector = new VapSummaryCollector();
+        exportService = new VapExportService(calculator, new VapExcelExporter(calculator, collector,
+                        new PortfolioValueCalculator(new CostCalculator(), new TaxCalculator())));
+        service = new VapPrecomputeService(calculator, collector);
+
+        csvFile = tempFolder.newFile("test_vap.csv");
+        try (FileWriter writer = new FileWriter(csvFile))
+        {
+            writer.write("ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+            writer.write("DE0001;2020;1,00;30\n");
+            writer.write("DE0001;2021;1,50;30\n");
+        }
+
+        client = new Client();
+        Security security = new SecurityBuilder().addTo(client);
+        security.setIsin("DE0001");
+        Account account = new AccountBuilder().addTo(client);
+        new PortfolioBuilder(account)
+                        .buy(security, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .sell(security, "2021-01-15", PortfolioBuilder.sharesOf(3), PortfolioBuilder.amountOf(330))
+                        .addTo(client);
+    }
+
+    @After
+    public void tearDown()
+    {
+        service.setClient(null);
+        System.clearProperty(VapPrecomputeService.SUMMARY_PROPERTY);
+    }
+
+    @Test
+    public void testPrecomputesLotsAndSummary()
+    {
+        service.setClient(client);
+        service.setMetadataFile(csvFile.getAbsolutePath());
+        assertThat(service.getTransactions(client)).isNull();
+
+        service.precompute(new NullProgressMonitor());
+
+        assertThat(service.getTransactions(client)).isEqualTo(exportService.collectUnsoldTransactions(client));
+        assertThat(service.getTransactions(new Client())).isNull();
+
+        Precomputed precomputed = service.getPrecomputed(client, csvFile.getAbsolutePath());
+        List<VapSummaryRow> expected = collector.collectSummary(calculator.loadIndex(csvFile.getAbsolutePath()),
+                        precomputed.transactions());
+        assertThat(precomputed.summaryRows()).hasSize(1);
+        assertThat(precomputed.summaryRows().get(0).getVapBeforeTfs())
+                        .isEqualTo(expected.get(0).getVapBeforeTfs());
+    }
+
+    @Test
+    public void testSummaryOnlyForMetadataOfPrecomputation()
+    {
+        service.setClient(client);
+        service.precompute(new NullProgressMonitor());
+        assertThat(service.getPrecomputed(client, csvFile.getAbsolutePath()).summaryRows()).isNull();
+
+        service.setMetadataFile(csvFile.getAbsolutePath());
+        service.precompute(new NullProgressMonitor());
+        assertThat(service.getPrecomputed(client, csvFile.getAbsolutePath()).summaryRows()).isNotNull();
+        assertThat(service.getPrecomputed(client, "andere.csv").summaryRows()).isNull();
+    }
+
+    @Test
+    public void testSummaryPerClient()
+    {
+        service.setClient(client);
+        service.setMetadataFile(csvFile.getAbsolutePath());
+        service.precompute(new NullProgressMonitor());
+
+        Client other = new Client();
+        service.setClient(other);
+        service.precompute(new NullProgressMonitor());
+
+        assertThat(service.getPrecomputed(client, csvFile.getAbsolutePath())).isNull();
+        assertThat(service.getPrecomputed(other, csvFile.getAbsolutePath()).summaryRows()).isEmpty();
+    }
+
+    @Test
+    public void testSummaryDisabledByDefault()
+    {
+        System.clearProperty(VapPrecomputeService.SUMMARY_PROPERTY);
+        service.setClient(client);
+        service.setMetadataFile(csvFile.getAbsolutePath());
+        service.precompute(new NullProgressMonitor());
+
+        Precomputed precomputed = service.getPrecomputed(client, csvFile.getAbsolutePath());
+        assertThat(precomputed.transactions()).isEqualTo(exportService.collectUnsoldTransactions(client));
+        assertThat(precomputed.summaryRows()).isNull();
+    }
+
+    @Test
+    public void testDiscardsResultAfterClientChange()
+    {
+        service.setClient(client);
+        service.precompute(new NullProgressMonitor());
+        assertThat(service.getTransactions(client)).isNotNull();
+
+        client.markDirty();
+        assertThat(service.getTransactions(client)).isNull();
+
+        service.precompute(new NullProgressMonitor());
+        assertThat(service.getTransactions(client)).isNotNull();
+    }
+
+    @Test
+    public void testStopsWithoutClient()
+    {
+        service.setClient(client);
+        service.precompute(new NullProgressMonitor());
+
+        service.setClient(null);
+        assertThat(service.getTransactions(client)).isNull();
+
+        service.precompute(new NullProgressMonitor());
+        assertThat(service.getTransactions(client)).isNull();
+    }
+}
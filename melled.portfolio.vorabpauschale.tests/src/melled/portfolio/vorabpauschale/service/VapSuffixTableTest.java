@@ -0,0 +1,75 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.Test;
+
+import melled.portfolio.vorabpauschale.model.VapMetadata;
+
+public class VapSuffixTableTest
+{
+    private final VapSuffixTable table = VapSuffixTable.create(List.of(new VapMetadata("DE0001", 2020, 0.50, 30),
+                    new VapMetadata("DE0001", 2021, 0.75, 30), new VapMetadata("DE0001", 2023, 1.00, 30)));
+
+    @Test
+    public void testSuffixSums()
+    {
+        assertThat(table.getSuffixSum(2019)).isEqualTo(2.25);
+        assertThat(table.getSuffixSum(2020)).isEqualTo(2.25);
+        assertThat(table.getSuffixSum(2021)).isEqualTo(1.75);
+        assertThat(table.getSuffixSum(2022)).isEqualTo(1.0);
+        assertThat(table.getSuffixSum(2023)).isEqualTo(1.0);
+        assertThat(table.getSuffixSum(2024)).isZero();
+    }
+
+    @Test
+    public void testTotalVapPerShareProRatesPurchaseYear()
+    {
+        assertThat(table.getTotalVapPerShare(LocalDate.of(2019, 5, 1))).isEqualTo(2.25);
+        assertThat(table.getTotalVapPerShare(LocalDate.of(2020, 1, 15))).isEqualTo(2.25);
+        // Juli: 6/12 von 0,75 plus 1,00
+        assertThat(table.getTotalVapPerShare(LocalDate.of(2021, 7, 15))).isEqualTo(1.375);
+        assertThat(table.getTotalVapPerShare(LocalDate.of(2022, 3, 1))).isEqualTo(1.0);
+        assertThat(table.getTotalVapPerShare(LocalDate.of(2024, 1, 1))).isZero();
+    }
+
+    @Test
+    public void testNegativeVapIsIgnored()
+    {
+        VapSuffixTable withNegative = VapSuffixTable.create(
+                        List.of(new VapMetadata("DE0001", 2020, -0.50, 30), new VapMetadata("DE0001", 2021, 0.75, 30)));
+
+        assertThat(withNegative.getTotalVapPerShare(LocalDate.of(2020, 1, 1))).isEqualTo(0.75);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        assertThat(VapSuffixTable.create(List.of())).isSameAs(VapSuffixTable.EMPTY);
+        assertThat(VapSuffixTable.EMPTY.getTotalVapPerShare(LocalDate.of(2020, 1, 1))).isZero();
+    }
+
+    @Test
+    public void testSparseYears()
+    {
+        VapSuffixTable sparse = VapSuffixTable.create(List.of(new VapMetadata("X", 2018, 0.13, 15),
+                        new VapMetadata("X", 2019, 0.37, 15), new VapMetadata("X", 2022, 0.29, 15)));
+
+        for (int month = 1; month <= 12; month++)
+        {
+            LocalDate date = LocalDate.of(2019, month, 10);
+            double expected = (((13 - month) / 12.0) * 0.37) + 0.29;
+            assertThat(sparse.getTotalVapPerShare(date)).isCloseTo(expected, within(1e-12));
+        }
+    }
+
+    @Test
+    public void testIndexWithoutMetadata()
+    {
+        assertThat(VapMetadataIndex.EMPTY.getSuffixTable(null)).isSameAs(VapSuffixTable.EMPTY);
+    }
+}
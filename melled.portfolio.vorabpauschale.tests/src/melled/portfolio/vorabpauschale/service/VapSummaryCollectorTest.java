@@ -1,10 +1,12 @@
 package melled.portfolio.vorabpauschale.service;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,7 +16,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import melled.portfolio.vorabpauschale.model.LotStore;
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.model.VapKey;
 import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
 import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
 import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
@@ -29,6 +33,7 @@ public class VapSummaryCollectorTest
 
     private VapSummaryCollector collector;
     private VapCalculator calculator;
+    private VapMetadataIndex index;
     private VapCsvDataReader csvReader;
     private Client client;
     private File csvFile;
@@ -39,7 +44,7 @@ public class VapSummaryCollectorTest
         client = new Client();
         csvReader = new VapCsvDataReader();
         calculator = new VapCalculator(csvReader);
-        collector = new VapSummaryCollector(calculator);
+        collector = new VapSummaryCollector();
 
         // Erstelle Test-CSV-Datei
         csvFile = tempFolder.newFile("test_vap.csv");
@@ -52,7 +57,7 @@ public class VapSummaryCollectorTest
             writer.write("DE0002;2021;0,75;15\n");
         }
 
-        calculator.initializeVapData(csvFile.getAbsolutePath());
+        index = calculator.loadIndex(csvFile.getAbsolutePath());
     }
 
     /**
@@ -79,7 +84,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, getUnsoldTransactions(portfolio));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).isNotEmpty();
 
@@ -107,7 +112,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, getUnsoldTransactions(portfolio));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         VapSummaryRow firstRow = summary.get(0);
 
@@ -147,7 +152,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         // Sollte mindestens 2 Wertpapier-Zeilen enthalten
         long securityRows = summary.stream().filter(r -> !r.isSumRow() && !r.isTotalRow() && !r.isEmptyRow()).count();
@@ -189,7 +194,7 @@ public class VapSummaryCollectorTest
         transactions.put(portfolio1, portfolio1.getTransactions().stream().map(UnsoldTransaction::new).toList());
         transactions.put(portfolio2, portfolio2.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         // Sollte zwei verschiedene Broker enthalten
         long brokerARows = summary.stream().filter(r -> "Broker A".equals(r.getDepot())).count();
@@ -214,7 +219,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         // Sollte Summen-Zeile für Broker enthalten
         long sumRows = summary.stream().filter(r -> r.isSumRow()).count();
@@ -240,7 +245,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         // Letzte Zeile sollte Gesamtsumme sein
         VapSummaryRow totalRow = summary.get(summary.size() - 1);
@@ -268,7 +273,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         VapSummaryRow totalRow = summary.get(summary.size() - 1);
 
@@ -283,7 +288,7 @@ public class VapSummaryCollectorTest
     {
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).isEmpty();
     }
@@ -309,7 +314,7 @@ public class VapSummaryCollectorTest
         transactions.put(portfolio1, portfolio1.getTransactions().stream().map(UnsoldTransaction::new).toList());
         transactions.put(portfolio2, portfolio2.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         // Sollte leere Zeilen zwischen Depots und vor Gesamtsumme enthalten
         long emptyRows = summary.stream().filter(r -> r.isEmptyRow()).count();
@@ -362,7 +367,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         // Sollte nur eine Zeile für das Wertpapier geben (aggregiert)
         long securityRows = summary.stream().filter(
@@ -400,7 +405,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         List<VapSummaryRow> securityRows = summary.stream()
                         .filter(r -> !r.isSumRow() && !r.isTotalRow() && !r.isEmptyRow()).toList();
@@ -426,7 +431,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, getUnsoldTransactions(portfolio));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).hasSize(4); // Security Row, Sum Row, Empty Row,
                                         // Total Row
@@ -485,7 +490,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, getUnsoldTransactions(portfolio));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).hasSize(4); // Security Row, Sum Row, Empty Row,
                                         // Total Row
@@ -530,7 +535,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, getUnsoldTransactions(portfolio));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).hasSize(4);
 
@@ -575,7 +580,7 @@ public class VapSummaryCollectorTest
         transactions.put(portfolio1, getUnsoldTransactions(portfolio1));
         transactions.put(portfolio2, getUnsoldTransactions(portfolio2));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).hasSize(7); // Broker A Row, Broker A Sum, Empty,
                                         // Broker B Row, Broker B Sum, Empty,
@@ -637,7 +642,7 @@ public class VapSummaryCollectorTest
         Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
         transactions.put(portfolio, getUnsoldTransactions(portfolio));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).hasSize(4);
 
@@ -700,7 +705,7 @@ public class VapSummaryCollectorTest
         transactions.put(portfolioA, getUnsoldTransactions(portfolioA));
         transactions.put(portfolioB, getUnsoldTransactions(portfolioB));
 
-        List<VapSummaryRow> summary = collector.collectSummary(transactions);
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
 
         assertThat(summary).isNotEmpty();
 
@@ -803,6 +808,194 @@ public class VapSummaryCollectorTest
         assertThat(sc2.getVapAfterTfs()).containsEntry(2021, 14.34375); // - 15%
     }
 
+    @Test
+    public void testPrimitiveAccessorsMatchMaps()
+    {
+        Security security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security1.setName("Test ETF 1");
+
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Broker A");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        transactions.put(portfolio, getUnsoldTransactions(portfolio));
+
+        List<VapSummaryRow> summary = collector.collectSummary(index, transactions);
+
+        for (VapSummaryRow row : summary)
+        {
+            if (row.isEmptyRow())
+            {
+                assertThat(row.getYears()).isEmpty();
+                continue;
+            }
+
+            assertThat(row.getYears()).containsExactly(2020, 2021);
+            for (int year : row.getYears())
+            {
+                assertThat(row.getVapBeforeTfs(year)).isEqualTo(row.getVapBeforeTfs().get(year));
+                assertThat(row.getVapAfterTfs(year)).isEqualTo(row.getVapAfterTfs().get(year));
+            }
+            assertThat(row.getVapBeforeTfs(2019)).isZero();
+        }
+
+        VapSummaryRow totalRow = summary.get(summary.size() - 1);
+        assertThat(totalRow.getVapBeforeTfs(2021)).isEqualTo(15.0);
+        assertThat(totalRow.getVapAfterTfs(2021)).isEqualTo(10.5);
+    }
+
+    @Test
+    public void testParallelCollectSummaryMatchesSequential()
+    {
+        Security security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security1.setName("Test ETF 1");
+        Security security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        security2.setName("Test ETF 2");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        for (int depot = 0; depot < 8; depot++)
+        {
+            PortfolioBuilder builder = new PortfolioBuilder();
+            for (int i = 0; i < 40; i++)
+            {
+                Security security = (i % 2) == 0 ? security1 : security2;
+                String date = String.format("%d-%02d-15", 2020 + (i % 2), 1 + (i % 12));
+                builder.buy(security, date, PortfolioBuilder.sharesOf(1 + ((i * 7) % 13)),
+                                PortfolioBuilder.amountOf(100));
+            }
+            Portfolio portfolio = builder.addTo(client);
+            portfolio.setName("Broker " + (char) ('H' - depot));
+            transactions.put(portfolio, getUnsoldTransactions(portfolio));
+        }
+
+        List<VapSummaryRow> sequential = collector.collectSummary(index, transactions);
+        List<VapSummaryRow> parallel = collector.collectSummary(index, transactions, 4);
+
+        assertThat(parallel).hasSameSizeAs(sequential);
+        for (int i = 0; i < sequential.size(); i++)
+        {
+            VapSummaryRow expected = sequential.get(i);
+            VapSummaryRow actual = parallel.get(i);
+
+            assertThat(actual.getIsin()).isEqualTo(expected.getIsin());
+            assertThat(actual.getName()).isEqualTo(expected.getName());
+            assertThat(actual.getDepot()).isEqualTo(expected.getDepot());
+            assertThat(actual.isSumRow()).isEqualTo(expected.isSumRow());
+            assertThat(actual.isTotalRow()).isEqualTo(expected.isTotalRow());
+            assertThat(actual.isEmptyRow()).isEqualTo(expected.isEmptyRow());
+            assertThat(actual.getVapBeforeTfs()).isEqualTo(expected.getVapBeforeTfs());
+            assertThat(actual.getVapAfterTfs()).isEqualTo(expected.getVapAfterTfs());
+        }
+    }
+
+    @Test
+    public void testCollectSummaryFromLotStoreMatchesTransactions()
+    {
+        Security security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security1.setName("Test ETF 1");
+        Security security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        security2.setName("Test ETF 2");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        for (int depot = 0; depot < 4; depot++)
+        {
+            PortfolioBuilder builder = new PortfolioBuilder();
+            for (int i = 0; i < 30; i++)
+            {
+                Security security = (i % 3) == 0 ? security1 : security2;
+                String date = String.format("%d-%02d-15", 2020 + (i % 2), 1 + (i % 12));
+                builder.buy(security, date, PortfolioBuilder.sharesOf(1 + ((i * 5) % 11)),
+                                PortfolioBuilder.amountOf(100));
+            }
+            Portfolio portfolio = builder.addTo(client);
+            portfolio.setName("Broker " + (char) ('A' + (depot % 2)));
+            transactions.put(portfolio, getUnsoldTransactions(portfolio));
+        }
+
+        List<VapSummaryRow> expected = collector.collectSummary(index, transactions);
+        LotStore lots = LotStore.of(transactions);
+
+        for (int parallelism : new int[] { 1, 4 })
+        {
+            List<VapSummaryRow> actual = collector.collectSummary(index, lots, parallelism);
+
+            assertThat(actual).hasSameSizeAs(expected);
+            for (int i = 0; i < expected.size(); i++)
+            {
+                assertThat(actual.get(i).getIsin()).isEqualTo(expected.get(i).getIsin());
+                assertThat(actual.get(i).getDepot()).isEqualTo(expected.get(i).getDepot());
+                assertThat(actual.get(i).getVapBeforeTfs()).isEqualTo(expected.get(i).getVapBeforeTfs());
+                assertThat(actual.get(i).getVapAfterTfs()).isEqualTo(expected.get(i).getVapAfterTfs());
+            }
+        }
+    }
+
+    @Test
+    public void testCollectSummaryFromMonthBucketsMatchesLots()
+    {
+        Security security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security1.setName("Test ETF 1");
+
+        PortfolioBuilder builder = new PortfolioBuilder();
+        for (int week = 0; week < 104; week++)
+        {
+            LocalDate date = LocalDate.of(2020, 1, 2).plusWeeks(week);
+            builder.buy(security1, date.toString(), PortfolioBuilder.sharesOf(1 + (week % 3)),
+                            PortfolioBuilder.amountOf(100));
+        }
+        Portfolio portfolio = builder.addTo(client);
+        portfolio.setName("Broker A");
+
+        LotStore lots = LotStore.of(Map.of(portfolio, getUnsoldTransactions(portfolio)));
+        LotStore buckets = lots.compressByMonth();
+
+        assertThat(buckets.size()).isEqualTo(24);
+
+        List<VapSummaryRow> expected = collector.collectSummary(index, lots, 1);
+        List<VapSummaryRow> actual = collector.collectSummary(index, buckets, 1);
+
+        assertThat(actual).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.size(); i++)
+        {
+            for (int year : expected.get(i).getYears())
+            {
+                assertThat(actual.get(i).getVapBeforeTfs(year))
+                                .isCloseTo(expected.get(i).getVapBeforeTfs(year), within(1e-9));
+                assertThat(actual.get(i).getVapAfterTfs(year))
+                                .isCloseTo(expected.get(i).getVapAfterTfs(year), within(1e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testAggregationWidensYearsAndMergesCells()
+    {
+        VapKey keyA = new VapKey("DE0001", "Test ETF 1", "Broker A", 30);
+        VapKey keyB = new VapKey("DE0002", "Test ETF 2", "Broker B", 15);
+
+        VapSummaryCollector.Aggregation left = new VapSummaryCollector.Aggregation();
+        left.add(keyA, 2021, 1.0);
+        left.add(keyA, 2019, 2.0);
+        left.add(keyA, 2021, 0.5);
+
+        VapSummaryCollector.Aggregation right = new VapSummaryCollector.Aggregation();
+        right.add(keyB, 2023, 4.0);
+        right.add(keyA, 2018, 3.0);
+
+        left.merge(right);
+
+        assertThat(left.years().toArray()).containsExactly(2018, 2019, 2021, 2023);
+        assertThat(left.toMatrix()).containsExactly(3.0, 2.0, 1.5, 0.0, 0.0, 0.0, 0.0, 4.0);
+    }
+
     private void validateScalable(VapSummaryRow sc1)
     {
         assertThat(sc1.getName()).isEqualTo("iShares Core MSCI World");
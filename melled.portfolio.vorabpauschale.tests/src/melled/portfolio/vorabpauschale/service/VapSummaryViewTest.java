@@ -0,0 +1,227 @@
+package melled.portfolio.vorabpauschale.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.junit.repacked.PortfolioBuilder;
+import name.abuchen.portfolio.junit.repacked.SecurityBuilder;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.Security;
+
+public class VapSummaryViewTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private VapCalculator calculator;
+    private VapMetadataIndex index;
+    private VapSummaryCollector collector;
+    private VapSummaryView view;
+    private Client client;
+    private File csvFile;
+    private Security security1;
+    private Security security2;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        client = new Client();
+        calculator = new VapCalculator(new VapCsvDataReader());
+        collector = new VapSummaryCollector();
+        view = new VapSummaryView(collector);
+
+        csvFile = tempFolder.newFile("test_vap.csv");
+        try (FileWriter writer = new FileWriter(csvFile))
+        {
+            writer.write("ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+            writer.write("DE0001;2020;1,00;30\n");
+            writer.write("DE0001;2021;1,50;30\n");
+            writer.write("DE0002;2020;0,50;15\n");
+            writer.write("DE0002;2021;0,75;15\n");
+        }
+
+        index = calculator.loadIndex(csvFile.getAbsolutePath());
+
+        security1 = new SecurityBuilder().addTo(client);
+        security1.setIsin("DE0001");
+        security1.setName("Test ETF 1");
+        security2 = new SecurityBuilder().addTo(client);
+        security2.setIsin("DE0002");
+        security2.setName("Test ETF 2");
+    }
+
+    private List<UnsoldTransaction> getUnsoldTransactions(Portfolio portfolio)
+    {
+        return new ArrayList<>(portfolio.getTransactions().stream().map(UnsoldTransaction::new).toList());
+    }
+
+    @Test
+    public void testUpdateMatchesFullCollection()
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .buy(security2, "2020-07-15", PortfolioBuilder.sharesOf(20), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Broker A");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        transactions.put(portfolio, getUnsoldTransactions(portfolio));
+
+        assertSameRows(view.update(index, csvFile.getAbsolutePath(), transactions),
+                        collector.collectSummary(index, transactions));
+    }
+
+    @Test
+    public void testUpdateAppliesAddedAndRemovedLots()
+    {
+        Portfolio portfolioA = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolioA.setName("Broker A");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        transactions.put(portfolioA, getUnsoldTransactions(portfolioA));
+        view.update(index, csvFile.getAbsolutePath(), transactions);
+
+        Portfolio portfolioB = new PortfolioBuilder()
+                        .buy(security2, "2021-03-15", PortfolioBuilder.sharesOf(5), PortfolioBuilder.amountOf(500))
+                        .addTo(client);
+        portfolioB.setName("Broker B");
+        transactions.put(portfolioB, getUnsoldTransactions(portfolioB));
+
+        assertSameRows(view.update(index, csvFile.getAbsolutePath(), transactions),
+                        collector.collectSummary(index, transactions));
+
+        transactions.remove(portfolioA);
+
+        assertSameRows(view.update(index, csvFile.getAbsolutePath(), transactions),
+                        collector.collectSummary(index, transactions));
+
+        transactions.clear();
+
+        assertThat(view.update(index, csvFile.getAbsolutePath(), transactions)).isEmpty();
+    }
+
+    @Test
+    public void testUpdateAppliesReducedLots()
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Broker A");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        transactions.put(portfolio, getUnsoldTransactions(portfolio));
+        view.update(index, csvFile.getAbsolutePath(), transactions);
+
+        // Verkauf von 4 Anteilen
+        transactions.get(portfolio).get(0).reduzeUnsoldShare(4);
+
+        List<VapSummaryRow> rows = view.update(index, csvFile.getAbsolutePath(), transactions);
+
+        assertSameRows(rows, collector.collectSummary(index, transactions));
+        assertThat(rows.get(0).getVapBeforeTfs(2020)).isCloseTo(6.0, within(1e-9));
+    }
+
+    @Test
+    public void testListenerEventsUpdateRows()
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Broker A");
+
+        UnsoldTransaction lot = getUnsoldTransactions(portfolio).get(0);
+
+        view.update(index, csvFile.getAbsolutePath(), new HashMap<>());
+        view.lotAdded(portfolio, lot);
+        assertThat(view.getRows().get(0).getVapBeforeTfs(2021)).isCloseTo(15.0, within(1e-9));
+
+        view.lotReduced(portfolio, lot, 2);
+        assertThat(view.getRows().get(0).getVapBeforeTfs(2021)).isCloseTo(12.0, within(1e-9));
+
+        view.lotRemoved(portfolio, lot);
+        assertThat(view.getRows()).isEmpty();
+    }
+
+    @Test
+    public void testIgnoresEventsBeforeFirstUpdate()
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Broker A");
+
+        // ohne Metadaten kann die Sicht noch keine Werte fortschreiben
+        view.lotAdded(portfolio, getUnsoldTransactions(portfolio).get(0));
+        assertThat(view.getRows()).isEmpty();
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        transactions.put(portfolio, getUnsoldTransactions(portfolio));
+        assertSameRows(view.update(index, csvFile.getAbsolutePath(), transactions),
+                        collector.collectSummary(index, transactions));
+    }
+
+    @Test
+    public void testMetadataChangeRebuildsView() throws IOException
+    {
+        Portfolio portfolio = new PortfolioBuilder()
+                        .buy(security1, "2020-01-15", PortfolioBuilder.sharesOf(10), PortfolioBuilder.amountOf(1000))
+                        .addTo(client);
+        portfolio.setName("Broker A");
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new HashMap<>();
+        transactions.put(portfolio, getUnsoldTransactions(portfolio));
+        view.update(index, csvFile.getAbsolutePath(), transactions);
+
+        File otherFile = tempFolder.newFile("other_vap.csv");
+        try (FileWriter writer = new FileWriter(otherFile))
+        {
+            writer.write("ID;Jahr des Wertzuwachses;Vorabpauschale vor TFS pro Anteil;Prozent Teilfreistellung\n");
+            writer.write("DE0001;2020;2,00;30\n");
+        }
+        VapMetadataIndex otherIndex = calculator.loadIndex(otherFile.getAbsolutePath());
+
+        List<VapSummaryRow> rows = view.update(otherIndex, otherFile.getAbsolutePath(), transactions);
+
+        assertSameRows(rows, collector.collectSummary(otherIndex, transactions));
+        assertThat(rows.get(0).getYears()).containsExactly(2020);
+    }
+
+    private void assertSameRows(List<VapSummaryRow> actual, List<VapSummaryRow> expected)
+    {
+        assertThat(actual).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.size(); i++)
+        {
+            VapSummaryRow expectedRow = expected.get(i);
+            VapSummaryRow actualRow = actual.get(i);
+
+            assertThat(actualRow.getIsin()).isEqualTo(expectedRow.getIsin());
+            assertThat(actualRow.getDepot()).isEqualTo(expectedRow.getDepot());
+            assertThat(actualRow.isSumRow()).isEqualTo(expectedRow.isSumRow());
+            assertThat(actualRow.isEmptyRow()).isEqualTo(expectedRow.isEmptyRow());
+            assertThat(actualRow.getYears()).isEqualTo(expectedRow.getYears());
+            for (int year : expectedRow.getYears())
+            {
+                assertThat(actualRow.getVapBeforeTfs(year)).isCloseTo(expectedRow.getVapBeforeTfs(year), within(1e-9));
+                assertThat(actualRow.getVapAfterTfs(year)).isCloseTo(expectedRow.getVapAfterTfs(year), within(1e-9));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package melled.portfolio.vorabpauschale.ui.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import name.abuchen.portfolio.model.Client;
+
+/**
+ * Tests für ClientResolver.
+ */
+public class ClientResolverTest
+{
+    public static class ClientInput
+    {
+        private final Client client;
+
+        ClientInput(Client client)
+        {
+            this.client = client;
+        }
+
+        public Client getClient()
+        {
+            return client;
+        }
+    }
+
+    public static class ClientPart
+    {
+        private final Client client = new Client();
+
+        public Client getClient()
+        {
+            return client;
+        }
+    }
+
+    public static class InputPart
+    {
+        private final ClientInput input = new ClientInput(new Client());
+
+        public ClientInput getClient()
+        {
+            return input;
+        }
+    }
+
+    public static class ClientInputPart
+    {
+        private final ClientInput input = new ClientInput(new Client());
+
+        public ClientInput getClientInput()
+        {
+            return input;
+        }
+    }
+
+    public static class FailingPart
+    {
+        public Client getClient()
+        {
+            throw new IllegalStateException("nicht initialisiert");
+        }
+    }
+
+    @Test
+    public void testResolvesClient()
+    {
+        ClientPart part = new ClientPart();
+        assertThat(ClientResolver.resolve(part)).isSameAs(part.getClient());
+        assertThat(ClientResolver.resolve(part)).isSameAs(part.getClient());
+    }
+
+    @Test
+    public void testResolvesClientFromInput()
+    {
+        InputPart part = new InputPart();
+        assertThat(ClientResolver.resolve(part)).isSameAs(part.getClient().getClient());
+
+        ClientInputPart inputPart = new ClientInputPart();
+        assertThat(ClientResolver.resolve(inputPart)).isSameAs(inputPart.getClientInput().getClient());
+    }
+
+    @Test
+    public void testNoClient()
+    {
+        assertThat(ClientResolver.resolve(null)).isNull();
+        assertThat(ClientResolver.resolve(new Object())).isNull();
+        assertThat(ClientResolver.resolve(new Object())).isNull();
+        assertThat(ClientResolver.resolve(new FailingPart())).isNull();
+    }
+}
@@ -0,0 +1,282 @@
+package melled.portfolio.vorabpauschale.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import melled.portfolio.vorabpauschale.service.ClosedYearCache;
+import melled.portfolio.vorabpauschale.service.CostCalculator;
+import melled.portfolio.vorabpauschale.service.PortfolioValueCalculator;
+import melled.portfolio.vorabpauschale.service.TaxCalculator;
+import melled.portfolio.vorabpauschale.service.VapBatchExportOptions;
+import melled.portfolio.vorabpauschale.service.VapBatchExportService;
+import melled.portfolio.vorabpauschale.service.VapBatchExportService.BatchResult;
+import melled.portfolio.vorabpauschale.service.VapBatchExportService.ClientResult;
+import melled.portfolio.vorabpauschale.service.VapCalculator;
+import melled.portfolio.vorabpauschale.service.VapCsvDataReader;
+import melled.portfolio.vorabpauschale.service.VapExcelExporter;
+import melled.portfolio.vorabpauschale.service.VapExportProfile;
+import melled.portfolio.vorabpauschale.service.VapExportService;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector;
+
+/**
+ * Führt VAP-Exporte ohne Workbench aus, z.B. nächtlich auf einem Server für
+ * mehrere Portfolio-Dateien. Die Services werden einmal ohne
+ * Dependency-Injection verdrahtet, der eigentliche Export läuft über
+ * {@link VapBatchExportService}.
+ * <p>
+ * Aufruf:
+ *
+ * <pre>
+ * -metadata etf_metadaten.csv -output ausgabe/ [-passwordEnv VAR] [-lowMemory] [-parallelism n]
+ *     [-household haushalt.xlsx] [-fullModel] [-ledgerCache cache/] [-yearCache jahre.bin]
+ *     datei1.xml datei2.portfolio verzeichnis/
+ * </pre>
+ *
+ * Für jede Datei wird {@code <Dateiname>_VAP.xlsx} im Ausgabeverzeichnis
+ * geschrieben, bei Verzeichnissen für alle enthaltenen Portfolio-Dateien.
+ * Schlägt eine Datei fehl, werden die übrigen trotzdem exportiert.
+ */
+public class VapBatchRunner
+{
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = "Aufruf: -metadata <CSV-Datei> -output <Verzeichnis> [-passwordEnv <Variable>]"
+                    + " [-lowMemory] [-parallelism <Anzahl>] [-household <Excel-Datei>] [-fullModel]"
+                    + " [-ledgerCache <Verzeichnis>] [-yearCache <Datei>]"
+                    + " <Portfolio-Datei oder Verzeichnis>...";
+
+    /**
+     * Aufrufparameter
+     */
+    record Arguments(String metadataFile, File outputDirectory, String passwordVariable, boolean lowMemory,
+                    int parallelism, File householdFile, boolean fullModel, File ledgerCacheDirectory,
+                    File yearCacheFile, List<File> clientFiles)
+    {
+        static Arguments parse(String[] args)
+        {
+            String metadataFile = null;
+            File outputDirectory = null;
+            String passwordVariable = null;
+            boolean lowMemory = false;
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            File householdFile = null;
+            boolean fullModel = false;
+            File ledgerCacheDirectory = null;
+            File yearCacheFile = null;
+            List<File> clientFiles = new ArrayList<>();
+
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "-metadata" -> metadataFile = valueOf(args, ++i);
+                    case "-output" -> outputDirectory = new File(valueOf(args, ++i));
+                    case "-passwordEnv" -> passwordVariable = valueOf(args, ++i);
+                    case "-lowMemory" -> lowMemory = true;
+                    case "-parallelism" -> parallelism = parsePositive(valueOf(args, ++i));
+                    case "-household" -> householdFile = new File(valueOf(args, ++i));
+                    case "-fullModel" -> fullModel = true;
+                    case "-ledgerCache" -> ledgerCacheDirectory = new File(valueOf(args, ++i));
+                    case "-yearCache" -> yearCacheFile = new File(valueOf(args, ++i));
+                    default -> {
+                        if (args[i].startsWith("-"))
+                        { throw new IllegalArgumentException("Unbekannter Parameter: " + args[i]); }
+                        clientFiles.add(new File(args[i]));
+                    }
+                }
+            }
+
+            if (metadataFile == null)
+            { throw new IllegalArgumentException("Parameter -metadata fehlt"); }
+            if (outputDirectory == null)
+            { throw new IllegalArgumentException("Parameter -output fehlt"); }
+            if (clientFiles.isEmpty())
+            { throw new IllegalArgumentException("Keine Portfolio-Datei angegeben"); }
+
+            return new Arguments(metadataFile, outputDirectory, passwordVariable, lowMemory, parallelism,
+                            householdFile, fullModel, ledgerCacheDirectory, yearCacheFile, clientFiles);
+        }
+
+        private static int parsePositive(String value)
+        {
+            try
+            {
+                int number = Integer.parseInt(value);
+                if (number >= 1)
+                { return number; }
+            }
+            catch (NumberFormatException e)
+            {
+                // Meldung unten
+            }
+            throw new IllegalArgumentException("Ungültige Parallelität: " + value);
+        }
+
+        private static String valueOf(String[] args, int index)
+        {
+            if (index >= args.length)
+            { throw new IllegalArgumentException("Wert fehlt für Parameter " + args[index - 1]); }
+            return args[index];
+        }
+    }
+
+    private final VapBatchExportService batchExportService;
+
+    public VapBatchRunner()
+    {
+        this(createBatchExportService());
+    }
+
+    public VapBatchRunner(VapBatchExportService batchExportService)
+    {
+        this.batchExportService = batchExportService;
+    }
+
+    /**
+     * Verdrahtet die Services wie der e4-Kontext, aber ohne Workbench.
+     */
+    static VapBatchExportService createBatchExportService()
+    {
+        VapCalculator vapCalculator = new VapCalculator(new VapCsvDataReader());
+        PortfolioValueCalculator portfolioValueCalculator = new PortfolioValueCalculator(new CostCalculator(),
+                        new TaxCalculator());
+        VapSummaryCollector summaryCollector = new VapSummaryCollector();
+        VapExcelExporter exporter = new VapExcelExporter(vapCalculator, summaryCollector, portfolioValueCalculator);
+        return new VapBatchExportService(vapCalculator, new VapExportService(vapCalculator, exporter), exporter,
+                        summaryCollector);
+    }
+
+    /**
+     * Exportiert alle Dateien der Aufrufparameter.
+     *
+     * @return {@link #EXIT_OK}, {@link #EXIT_FAILED} falls mindestens eine
+     *         Datei fehlschlug oder {@link #EXIT_USAGE} bei ungültigen
+     *         Parametern
+     */
+    public int run(String[] args, PrintStream out, PrintStream err)
+    {
+        Arguments arguments;
+        try
+        {
+            arguments = Arguments.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        char[] password = null;
+        if (arguments.passwordVariable() != null)
+        {
+            String value = System.getenv(arguments.passwordVariable());
+            if (value == null)
+            {
+                err.println("Umgebungsvariable nicht gesetzt: " + arguments.passwordVariable());
+                return EXIT_USAGE;
+            }
+            password = value.toCharArray();
+        }
+
+        if (!arguments.outputDirectory().isDirectory() && !arguments.outputDirectory().mkdirs())
+        {
+            err.println("Ausgabeverzeichnis kann nicht angelegt werden: " + arguments.outputDirectory());
+            return EXIT_USAGE;
+        }
+
+        VapBatchExportOptions options = new VapBatchExportOptions();
+        options.setPassword(password);
+        options.setParallelism(arguments.parallelism());
+        options.setHouseholdSummaryFile(arguments.householdFile());
+        options.setLightweightReader(!arguments.fullModel());
+        options.setLedgerCacheDirectory(arguments.ledgerCacheDirectory());
+        if (arguments.lowMemory())
+        {
+            options.getExportOptions().setProfile(VapExportProfile.lowMemory());
+        }
+        ClosedYearCache closedYearCache = arguments.yearCacheFile() != null
+                        ? ClosedYearCache.load(arguments.yearCacheFile().toPath())
+                        : null;
+        options.getExportOptions().setClosedYearCache(closedYearCache);
+
+        BatchResult result;
+        try
+        {
+            result = batchExportService.exportAll(expandDirectories(arguments.clientFiles()),
+                            arguments.metadataFile(), arguments.outputDirectory(), options);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            err.println(e.getMessage());
+            return EXIT_FAILED;
+        }
+
+        for (ClientResult client : result.clients())
+        {
+            if (client.isSuccess())
+            {
+                out.println(client.clientFile() + " -> "
+                                + (client.outputFile() != null ? client.outputFile() : "keine VAP-Daten") + " (Laden "
+                                + client.loadMillis() + " ms, Export " + client.exportMillis() + " ms)");
+            }
+            else
+            {
+                // Fehler wie StackOverflowError haben oft keine Meldung
+                err.println(client.clientFile() + ": "
+                                + Objects.toString(client.error().getMessage(), client.error().toString()));
+            }
+        }
+        if (result.householdSummaryFile() != null)
+        {
+            out.println("Haushalt -> " + result.householdSummaryFile());
+        }
+        out.println("Gesamt: " + result.totalMillis() + " ms");
+
+        if (closedYearCache != null)
+        {
+            try
+            {
+                closedYearCache.save();
+            }
+            catch (IOException e)
+            {
+                err.println("Ablage der abgeschlossenen Jahre nicht gespeichert: " + e.getMessage());
+            }
+        }
+
+        return result.getFailedCount() == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Ersetzt Verzeichnisse durch die enthaltenen Portfolio-Dateien.
+     */
+    static List<File> expandDirectories(List<File> files)
+    {
+        List<File> expanded = new ArrayList<>();
+        for (File file : files)
+        {
+            if (file.isDirectory())
+            {
+                expanded.addAll(VapBatchExportService.listClientFiles(file));
+            }
+            else
+            {
+                expanded.add(file);
+            }
+        }
+        return expanded;
+    }
+
+    @SuppressWarnings("java:S106") // Kommandozeile
+    public static void main(String[] args)
+    {
+        System.exit(new VapBatchRunner().run(args, System.out, System.err));
+    }
+}
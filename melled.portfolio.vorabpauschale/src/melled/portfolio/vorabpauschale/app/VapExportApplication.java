@@ -0,0 +1,65 @@
+package melled.portfolio.vorabpauschale.app;
+
+import java.util.Arrays;
+
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.osgi.framework.FrameworkUtil;
+
+import melled.portfolio.vorabpauschale.service.ClosedYearCache;
+
+/**
+ * OSGi-Anwendung für den VAP-Export ohne Workbench. Startet im installierten
+ * Portfolio Performance, lädt aber weder Workbench noch Oberfläche:
+ *
+ * <pre>
+ * PortfolioPerformance -nosplash -consoleLog -application melled.portfolio.vorabpauschale.export \
+ *     -metadata etf_metadaten.csv -output ausgabe/ datei1.xml datei2.portfolio
+ * </pre>
+ *
+ * Die Parameter entsprechen {@link VapBatchRunner}. Ohne {@code -yearCache}
+ * liegt die Ablage der abgeschlossenen Jahre im Zustandsverzeichnis des
+ * Plugins im Workspace.
+ */
+public class VapExportApplication implements IApplication
+{
+    @Override
+    @SuppressWarnings("java:S106") // Kommandozeile
+    public Object start(IApplicationContext context)
+    {
+        String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+        context.applicationRunning();
+
+        int exitCode = new VapBatchRunner().run(withDefaultYearCache(args != null ? args : new String[0]),
+                        System.out, System.err);
+        return exitCode == VapBatchRunner.EXIT_OK ? IApplication.EXIT_OK : Integer.valueOf(exitCode);
+    }
+
+    private static String[] withDefaultYearCache(String[] args)
+    {
+        if (Arrays.asList(args).contains("-yearCache"))
+        { return args; }
+
+        try
+        {
+            String file = Platform.getStateLocation(FrameworkUtil.getBundle(VapExportApplication.class)).toFile()
+                            .toPath().resolve(ClosedYearCache.FILE_NAME).toString();
+            String[] extended = Arrays.copyOf(args, args.length + 2);
+            extended[args.length] = "-yearCache";
+            extended[args.length + 1] = file;
+            return extended;
+        }
+        catch (IllegalStateException e)
+        {
+            // ohne Workspace (-data @none) gibt es kein Zustandsverzeichnis
+            return args;
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        // Exporte laufen bis zum Ende, es gibt nichts abzubrechen
+    }
+}
@@ -0,0 +1,421 @@
+package melled.portfolio.vorabpauschale.model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.IntUnaryOperator;
+
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Spaltenweise Ablage offener Lots. Statt eines {@link UnsoldTransaction}
+ * Objekts je Lot werden Kaufdatum, Anteile, Preis sowie Wertpapier und Depot
+ * als Ordnungszahl in parallelen primitiven Arrays gehalten. Bei langen
+ * Sparplan-Historien spart das einen Großteil der Objekte auf dem Heap.
+ * Gelesen wird über einen {@link Cursor}.
+ */
+public final class LotStore
+{
+    private final List<Portfolio> portfolios;
+    private final List<Security> securities;
+
+    private final int[] purchaseEpochDays;
+    private final double[] shares;
+    private final double[] unsoldShares;
+    private final double[] pricesPerShare;
+    private final int[] securityOrdinals;
+    private final int[] portfolioOrdinals;
+    private final int size;
+
+    private LotStore(Builder builder)
+    {
+        this.portfolios = List.copyOf(builder.portfolios);
+        this.securities = List.copyOf(builder.securities);
+        this.size = builder.size;
+        this.purchaseEpochDays = Arrays.copyOf(builder.purchaseEpochDays, size);
+        this.shares = Arrays.copyOf(builder.shares, size);
+        this.unsoldShares = Arrays.copyOf(builder.unsoldShares, size);
+        this.pricesPerShare = Arrays.copyOf(builder.pricesPerShare, size);
+        this.securityOrdinals = Arrays.copyOf(builder.securityOrdinals, size);
+        this.portfolioOrdinals = Arrays.copyOf(builder.portfolioOrdinals, size);
+    }
+
+    /**
+     * Übernimmt die offenen Lots aller Portfolios. Die Reihenfolge der
+     * Portfolios und der Lots je Portfolio bleibt erhalten, Lots ohne
+     * Wertpapier werden übersprungen.
+     *
+     * @param transactions
+     *            Portfolio -> unverkaufte Transaktionen
+     * @return Lot-Ablage
+     */
+    public static LotStore of(Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        Builder builder = new Builder();
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        {
+            builder.addPortfolio(portfolio.getKey());
+            for (UnsoldTransaction transaction : portfolio.getValue())
+            {
+                builder.add(portfolio.getKey(), transaction);
+            }
+        }
+        return builder.build();
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * @return Anzahl Lots
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return Portfolios, Index entspricht der Ordnungszahl
+     */
+    public List<Portfolio> getPortfolios()
+    {
+        return portfolios;
+    }
+
+    /**
+     * @return Wertpapiere, Index entspricht der Ordnungszahl
+     */
+    public List<Security> getSecurities()
+    {
+        return securities;
+    }
+
+    public int getPortfolioOrdinal(int lot)
+    {
+        return portfolioOrdinals[lot];
+    }
+
+    public int getSecurityOrdinal(int lot)
+    {
+        return securityOrdinals[lot];
+    }
+
+    /**
+     * @return Cursor über alle Lots in Ablagereihenfolge
+     */
+    public Cursor cursor()
+    {
+        return new Cursor(null);
+    }
+
+    /**
+     * @param lots
+     *            Indizes der Lots, z.B. aus {@link #groupBy(IntUnaryOperator)}
+     * @return Cursor über die angegebenen Lots
+     */
+    public Cursor cursor(int[] lots)
+    {
+        return new Cursor(lots);
+    }
+
+    /**
+     * Gruppiert die Lots nach einem Schlüssel.
+     *
+     * @param groupOfLot
+     *            Index eines Lots -> Gruppenschlüssel
+     * @return Lot-Indizes je Gruppe, Gruppen in Reihenfolge ihres ersten
+     *         Auftretens, Lots je Gruppe in Ablagereihenfolge
+     */
+    public int[][] groupBy(IntUnaryOperator groupOfLot)
+    {
+        Map<Integer, Integer> slots = new HashMap<>();
+        int[] slotOfLot = new int[size];
+        int[] counts = new int[8];
+
+        for (int lot = 0; lot < size; lot++)
+        {
+            int slot = slots.computeIfAbsent(groupOfLot.applyAsInt(lot), k -> slots.size());
+            if (slot == counts.length)
+            {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            counts[slot]++;
+            slotOfLot[lot] = slot;
+        }
+
+        int[][] groups = new int[slots.size()][];
+        for (int slot = 0; slot < groups.length; slot++)
+        {
+            groups[slot] = new int[counts[slot]];
+            counts[slot] = 0;
+        }
+        for (int lot = 0; lot < size; lot++)
+        {
+            int slot = slotOfLot[lot];
+            groups[slot][counts[slot]++] = lot;
+        }
+        return groups;
+    }
+
+    /**
+     * Fasst Lots mit gleichem Depot, Wertpapier und Kaufmonat zusammen. Die
+     * VAP pro Anteil hängt nur vom Kaufmonat ab, daher liefern die
+     * zusammengefassten Lots dieselbe VAP wie die einzelnen Lots. Ein
+     * zusammengefasstes Lot hat als Kaufdatum den Monatsersten, die Summe der
+     * Anteile und den nach Anteilen gewichteten Kaufpreis. Für Detail-Sheets
+     * und Kostenbasis sind weiterhin die einzelnen Lots zu verwenden.
+     *
+     * @return Ablage mit einem Lot je Depot, Wertpapier und Kaufmonat, in
+     *         Reihenfolge des ersten Auftretens; dieselben Ordnungszahlen wie
+     *         diese Ablage
+     */
+    public LotStore compressByMonth()
+    {
+        Builder builder = new Builder();
+        portfolios.forEach(builder::addPortfolio);
+        securities.forEach(builder::addSecurity);
+
+        Map<Long, Integer> buckets = new HashMap<>();
+        double[] costs = new double[size];
+        for (int lot = 0; lot < size; lot++)
+        {
+            LocalDate month = LocalDate.ofEpochDay(purchaseEpochDays[lot]).withDayOfMonth(1);
+            long key = ((((long) portfolioOrdinals[lot] * securities.size()) + securityOrdinals[lot]) << 32)
+                            | (month.toEpochDay() & 0xFFFFFFFFL);
+
+            Integer bucket = buckets.get(key);
+            if (bucket == null)
+            {
+                bucket = builder.size;
+                buckets.put(key, bucket);
+                builder.add(Math.toIntExact(month.toEpochDay()), 0, 0, 0, securityOrdinals[lot],
+                                portfolioOrdinals[lot]);
+            }
+
+            builder.shares[bucket] += shares[lot];
+            builder.unsoldShares[bucket] += unsoldShares[lot];
+            costs[bucket] += shares[lot] * pricesPerShare[lot];
+        }
+
+        for (int bucket = 0; bucket < builder.size; bucket++)
+        {
+            builder.pricesPerShare[bucket] = builder.shares[bucket] != 0 ? costs[bucket] / builder.shares[bucket] : 0;
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Lesezeiger über Lots der Ablage. Vor dem ersten Zugriff muss
+     * {@link #next()} aufgerufen werden.
+     */
+    public final class Cursor
+    {
+        private final int[] lots;
+        private int position = -1;
+        private int lot = -1;
+
+        private Cursor(int[] lots)
+        {
+            this.lots = lots;
+        }
+
+        /**
+         * Springt zum nächsten Lot.
+         *
+         * @return {@code false}, wenn keine weiteren Lots vorhanden sind
+         */
+        public boolean next()
+        {
+            int end = lots != null ? lots.length : size;
+            if ((position + 1) >= end)
+            {
+                position = end;
+                return false;
+            }
+            position++;
+            lot = lots != null ? lots[position] : position;
+            return true;
+        }
+
+        /**
+         * Setzt den Cursor vor das erste Lot zurück.
+         */
+        public void reset()
+        {
+            position = -1;
+            lot = -1;
+        }
+
+        /**
+         * @return Index des aktuellen Lots in der Ablage
+         */
+        public int getIndex()
+        {
+            return lot;
+        }
+
+        public int getPurchaseEpochDay()
+        {
+            return purchaseEpochDays[lot];
+        }
+
+        public LocalDate getPurchaseDate()
+        {
+            return LocalDate.ofEpochDay(purchaseEpochDays[lot]);
+        }
+
+        /**
+         * @return ursprünglich gekaufte Anteile
+         */
+        public double getShare()
+        {
+            return shares[lot];
+        }
+
+        /**
+         * @return noch nicht verkaufte Anteile
+         */
+        public double getUnsoldShare()
+        {
+            return unsoldShares[lot];
+        }
+
+        /**
+         * @return Brutto-Kaufpreis pro Anteil
+         */
+        public double getPricePerShare()
+        {
+            return pricesPerShare[lot];
+        }
+
+        public int getSecurityOrdinal()
+        {
+            return securityOrdinals[lot];
+        }
+
+        public Security getSecurity()
+        {
+            return securities.get(securityOrdinals[lot]);
+        }
+
+        public int getPortfolioOrdinal()
+        {
+            return portfolioOrdinals[lot];
+        }
+
+        public Portfolio getPortfolio()
+        {
+            return portfolios.get(portfolioOrdinals[lot]);
+        }
+    }
+
+    /**
+     * Baut eine {@link LotStore} auf. Lots werden in der Reihenfolge des
+     * Hinzufügens abgelegt.
+     */
+    public static final class Builder
+    {
+        private final List<Portfolio> portfolios = new ArrayList<>();
+        private final List<Security> securities = new ArrayList<>();
+        private final Map<Portfolio, Integer> portfolioOrdinalsByPortfolio = new IdentityHashMap<>();
+        private final Map<Security, Integer> securityOrdinalsBySecurity = new IdentityHashMap<>();
+
+        private int[] purchaseEpochDays = new int[64];
+        private double[] shares = new double[64];
+        private double[] unsoldShares = new double[64];
+        private double[] pricesPerShare = new double[64];
+        private int[] securityOrdinals = new int[64];
+        private int[] portfolioOrdinals = new int[64];
+        private int size;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Vergibt eine Ordnungszahl für ein Portfolio, auch wenn es keine
+         * Lots hat.
+         *
+         * @return Ordnungszahl des Portfolios
+         */
+        public int addPortfolio(Portfolio portfolio)
+        {
+            return portfolioOrdinalsByPortfolio.computeIfAbsent(portfolio, p -> {
+                portfolios.add(p);
+                return portfolios.size() - 1;
+            });
+        }
+
+        private int addSecurity(Security security)
+        {
+            return securityOrdinalsBySecurity.computeIfAbsent(security, s -> {
+                securities.add(s);
+                return securities.size() - 1;
+            });
+        }
+
+        /**
+         * Fügt ein offenes Lot hinzu. Lots ohne Wertpapier werden ignoriert.
+         *
+         * @return dieser Builder
+         */
+        public Builder add(Portfolio portfolio, UnsoldTransaction transaction)
+        {
+            PortfolioTransaction tx = transaction.getTransaction();
+            if (tx.getSecurity() == null)
+            { return this; }
+
+            return add(Math.toIntExact(tx.getDateTime().toLocalDate().toEpochDay()), transaction.getShare(),
+                            transaction.getUnsoldShare(), tx.getGrossPricePerShare().toBigDecimal().doubleValue(),
+                            addSecurity(tx.getSecurity()), addPortfolio(portfolio));
+        }
+
+        private Builder add(int purchaseEpochDay, double share, double unsoldShare, double pricePerShare,
+                        int securityOrdinal, int portfolioOrdinal)
+        {
+            ensureCapacity(size + 1);
+            purchaseEpochDays[size] = purchaseEpochDay;
+            shares[size] = share;
+            unsoldShares[size] = unsoldShare;
+            pricesPerShare[size] = pricePerShare;
+            securityOrdinals[size] = securityOrdinal;
+            portfolioOrdinals[size] = portfolioOrdinal;
+            size++;
+            return this;
+        }
+
+        private void ensureCapacity(int capacity)
+        {
+            if (capacity > shares.length)
+            {
+                int newCapacity = Math.max(capacity, shares.length * 2);
+                purchaseEpochDays = Arrays.copyOf(purchaseEpochDays, newCapacity);
+                shares = Arrays.copyOf(shares, newCapacity);
+                unsoldShares = Arrays.copyOf(unsoldShares, newCapacity);
+                pricesPerShare = Arrays.copyOf(pricesPerShare, newCapacity);
+                securityOrdinals = Arrays.copyOf(securityOrdinals, newCapacity);
+                portfolioOrdinals = Arrays.copyOf(portfolioOrdinals, newCapacity);
+            }
+        }
+
+        public LotStore build()
+        {
+            return new LotStore(this);
+        }
+    }
+}
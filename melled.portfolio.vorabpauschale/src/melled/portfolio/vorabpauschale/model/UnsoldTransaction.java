@@ -13,10 +13,19 @@ public class UnsoldTransaction implements Comparable<UnsoldTransaction>
     private double share;
 
     public UnsoldTransaction(PortfolioTransaction transaction, double share)
+    {
+        this(transaction, share, share);
+    }
+
+    /**
+     * Stellt ein teilweise verkauftes Lot wieder her, z.B. aus einem
+     * gespeicherten Zwischenstand.
+     */
+    public UnsoldTransaction(PortfolioTransaction transaction, double share, double unsoldShare)
     {
         this.transaction = transaction;
         this.share = share;
-        this.unsoldShare = share;
+        this.unsoldShare = unsoldShare;
     }
 
     public UnsoldTransaction(PortfolioTransaction transaction)
@@ -0,0 +1,67 @@
+package melled.portfolio.vorabpauschale.model;
+
+import java.util.Objects;
+
+/**
+ * Schlüssel für VAP-Aggregation: (ISIN, Name, Broker, TFS%)
+ */
+public final class VapKey
+{
+    private final String isin;
+    private final String name;
+    private final String broker;
+    private final int tfsPercentage;
+
+    public VapKey(String isin, String name, String broker, int tfsPercentage)
+    {
+        this.isin = isin;
+        this.name = name;
+        this.broker = broker;
+        this.tfsPercentage = tfsPercentage;
+    }
+
+    public String getIsin()
+    {
+        return isin;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getBroker()
+    {
+        return broker;
+    }
+
+    public int getTfsPercentage()
+    {
+        return tfsPercentage;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        { return true; }
+        if ((o == null) || (getClass() != o.getClass()))
+        { return false; }
+        VapKey vapKey = (VapKey) o;
+        return (tfsPercentage == vapKey.tfsPercentage) && Objects.equals(isin, vapKey.isin)
+                        && Objects.equals(name, vapKey.name) && Objects.equals(broker, vapKey.broker);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(isin, name, broker, tfsPercentage);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "VapKey [isin=" + isin + ", name=" + name + ", broker=" + broker + ", tfsPercentage=" + tfsPercentage
+                        + "]";
+    }
+}
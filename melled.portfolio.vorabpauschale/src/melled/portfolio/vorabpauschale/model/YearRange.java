@@ -0,0 +1,256 @@
+package melled.portfolio.vorabpauschale.model;
+
+import java.util.Arrays;
+
+/**
+ * Kompakte, unveränderliche Menge von Jahren als Bitmaske. Die Jahre liegen in
+ * 64-Bit-Wörtern, Wort {@code i} umfasst die Jahre ab
+ * {@code 64 * (firstWord + i)}. Heutige Jahre passen in ein einzelnes Wort,
+ * Vereinigung und Schnitt sind dann einzelne Bitoperationen. Jahre außerhalb
+ * davon, z.B. fehlerhafte Zeilen in den Metadaten, belegen weitere Wörter.
+ * Die Spaltennummer eines Jahres ergibt sich aus der Anzahl der kleineren
+ * Jahre.
+ */
+public final class YearRange
+{
+    public static final YearRange EMPTY = new YearRange(0, new long[0]);
+
+    /**
+     * Index des ersten Worts, ohne führende und abschließende leere Wörter
+     */
+    private final int firstWord;
+    private final long[] words;
+
+    private YearRange(int firstWord, long[] words)
+    {
+        this.firstWord = firstWord;
+        this.words = words;
+    }
+
+    public static YearRange of(int... years)
+    {
+        if (years.length == 0)
+        { return EMPTY; }
+
+        int min = years[0];
+        int max = years[0];
+        for (int year : years)
+        {
+            min = Math.min(min, year);
+            max = Math.max(max, year);
+        }
+
+        int first = wordOf(min);
+        long[] words = new long[(wordOf(max) - first) + 1];
+        for (int year : years)
+        {
+            words[wordOf(year) - first] |= bitOf(year);
+        }
+        return new YearRange(first, words);
+    }
+
+    /**
+     * @return alle Jahre von {@code from} bis einschließlich {@code to}
+     */
+    public static YearRange between(int from, int to)
+    {
+        if (from > to)
+        { return EMPTY; }
+
+        int first = wordOf(from);
+        long[] words = new long[(wordOf(to) - first) + 1];
+        Arrays.fill(words, -1L);
+        words[0] &= -1L << Math.floorMod(from, Long.SIZE);
+        words[words.length - 1] &= -1L >>> (Long.SIZE - 1 - Math.floorMod(to, Long.SIZE));
+        return new YearRange(first, words);
+    }
+
+    private static int wordOf(int year)
+    {
+        return Math.floorDiv(year, Long.SIZE);
+    }
+
+    private static long bitOf(int year)
+    {
+        return 1L << Math.floorMod(year, Long.SIZE);
+    }
+
+    private long word(int index)
+    {
+        int i = index - firstWord;
+        return (i >= 0) && (i < words.length) ? words[i] : 0L;
+    }
+
+    /**
+     * Entfernt leere Wörter am Anfang und Ende.
+     */
+    private static YearRange trim(int firstWord, long[] words)
+    {
+        int start = 0;
+        int end = words.length;
+        while ((start < end) && (words[start] == 0L))
+        {
+            start++;
+        }
+        while ((end > start) && (words[end - 1] == 0L))
+        {
+            end--;
+        }
+        if (start == end)
+        { return EMPTY; }
+        if ((start == 0) && (end == words.length))
+        { return new YearRange(firstWord, words); }
+        return new YearRange(firstWord + start, Arrays.copyOfRange(words, start, end));
+    }
+
+    public YearRange with(int year)
+    {
+        return contains(year) ? this : union(of(year));
+    }
+
+    public YearRange union(YearRange other)
+    {
+        if (other.isEmpty())
+        { return this; }
+        if (isEmpty())
+        { return other; }
+
+        int first = Math.min(firstWord, other.firstWord);
+        int last = Math.max(firstWord + words.length, other.firstWord + other.words.length);
+        long[] newWords = new long[last - first];
+        for (int i = 0; i < newWords.length; i++)
+        {
+            newWords[i] = word(first + i) | other.word(first + i);
+        }
+        YearRange result = new YearRange(first, newWords);
+        return result.equals(this) ? this : result;
+    }
+
+    public YearRange intersect(YearRange other)
+    {
+        int first = Math.max(firstWord, other.firstWord);
+        int last = Math.min(firstWord + words.length, other.firstWord + other.words.length);
+        if (first >= last)
+        { return EMPTY; }
+
+        long[] newWords = new long[last - first];
+        for (int i = 0; i < newWords.length; i++)
+        {
+            newWords[i] = word(first + i) & other.word(first + i);
+        }
+        YearRange result = trim(first, newWords);
+        return result.equals(this) ? this : result;
+    }
+
+    /**
+     * @return Jahre ab einschließlich {@code year}
+     */
+    public YearRange from(int year)
+    {
+        if (isEmpty() || (year <= first()))
+        { return this; }
+        if (year > last())
+        { return EMPTY; }
+        return intersect(between(year, last()));
+    }
+
+    public boolean contains(int year)
+    {
+        return (word(wordOf(year)) & bitOf(year)) != 0L;
+    }
+
+    public boolean isEmpty()
+    {
+        return words.length == 0;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (long word : words)
+        {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    /**
+     * @return Position des Jahres in {@link #toArray()} oder -1
+     */
+    public int indexOf(int year)
+    {
+        if (!contains(year))
+        { return -1; }
+
+        int i = wordOf(year) - firstWord;
+        int index = Long.bitCount(words[i] & (bitOf(year) - 1));
+        for (int j = 0; j < i; j++)
+        {
+            index += Long.bitCount(words[j]);
+        }
+        return index;
+    }
+
+    /**
+     * @return kleinstes Jahr, nur für nicht leere Mengen
+     */
+    public int first()
+    {
+        if (isEmpty())
+        { throw new IllegalStateException("Keine Jahre vorhanden"); }
+        return (firstWord * Long.SIZE) + Long.numberOfTrailingZeros(words[0]);
+    }
+
+    /**
+     * @return größtes Jahr, nur für nicht leere Mengen
+     */
+    public int last()
+    {
+        if (isEmpty())
+        { throw new IllegalStateException("Keine Jahre vorhanden"); }
+        int i = words.length - 1;
+        return (((firstWord + i) * Long.SIZE) + Long.SIZE - 1) - Long.numberOfLeadingZeros(words[i]);
+    }
+
+    /**
+     * @return aufsteigend sortierte Jahre
+     */
+    public int[] toArray()
+    {
+        int[] years = new int[size()];
+        int index = 0;
+        for (int i = 0; i < words.length; i++)
+        {
+            long remaining = words[i];
+            while (remaining != 0L)
+            {
+                years[index++] = ((firstWord + i) * Long.SIZE) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+            }
+        }
+        return years;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        { return true; }
+        if ((obj == null) || (getClass() != obj.getClass()))
+        { return false; }
+        YearRange other = (YearRange) obj;
+        return (firstWord == other.firstWord) && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (31 * firstWord) + Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(toArray());
+    }
+}
@@ -0,0 +1,270 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Gepufferter OutputStream, der volle Puffer an einen eigenen Schreib-Thread
+ * übergibt. Dadurch laufen Komprimierung beim Schreiben der Arbeitsmappe und
+ * die eigentliche Ein-/Ausgabe parallel. Fehler des Schreib-Threads werden beim
+ * nächsten Schreiben bzw. spätestens in {@link #close()} geworfen. Nach einem
+ * Fehler nimmt der Schreib-Thread weiter Puffer bis zum Ende entgegen, damit der
+ * Erzeuger nicht an der vollen Warteschlange blockiert. {@link #close()}
+ * schließt den Ziel-Stream erst, wenn der Schreib-Thread beendet ist, auch
+ * wenn der aufrufende Thread unterbrochen wird.
+ */
+final class AsyncOutputStream extends OutputStream
+{
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final int QUEUE_CAPACITY = 4;
+
+    private record Chunk(byte[] data, int length)
+    {
+    }
+
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final OutputStream delegate;
+    private final boolean closeDelegate;
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+
+    private volatile Throwable failure;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param delegate
+     *            Ziel-Stream
+     * @param closeDelegate
+     *            {@code true}, wenn der Ziel-Stream beim Schließen ebenfalls
+     *            geschlossen werden soll
+     */
+    AsyncOutputStream(OutputStream delegate, boolean closeDelegate)
+    {
+        this.delegate = delegate;
+        this.closeDelegate = closeDelegate;
+        this.writer = new Thread(this::drain, "VAP Export Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private void drain()
+    {
+        boolean interrupted = false;
+        Chunk chunk = null;
+        while (chunk != END)
+        {
+            try
+            {
+                chunk = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                // bis zum Ende weiter entgegennehmen, sonst blockiert der Erzeuger
+                interrupted = true;
+                fail(new InterruptedIOException("Schreiben abgebrochen"));
+                continue;
+            }
+
+            if (failure == null)
+            {
+                writeToDelegate(chunk);
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("java:S1181") // jeder Fehler muss beim Erzeuger ankommen
+    private void writeToDelegate(Chunk chunk)
+    {
+        try
+        {
+            if (chunk == END)
+            {
+                delegate.flush();
+            }
+            else
+            {
+                delegate.write(chunk.data(), 0, chunk.length());
+            }
+        }
+        catch (Throwable e)
+        {
+            // weitere Chunks werden verworfen, damit der Erzeuger nicht blockiert
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable e)
+    {
+        if (failure == null)
+        {
+            failure = e;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureOpen();
+        if (count == buffer.length)
+        {
+            handOver();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ensureOpen();
+        while (len > 0)
+        {
+            if (count == buffer.length)
+            {
+                handOver();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Übergibt den aktuellen Puffer an den Schreib-Thread, wartet aber nicht
+     * auf das Schreiben.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        if (count > 0)
+        {
+            handOver();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        { return; }
+        closed = true;
+
+        boolean interrupted = false;
+        try
+        {
+            try
+            {
+                if (count > 0)
+                {
+                    enqueue(new Chunk(buffer, count));
+                }
+                enqueue(END);
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+                abort();
+            }
+            interrupted |= joinWriter();
+        }
+        finally
+        {
+            buffer = null;
+            if (closeDelegate)
+            {
+                delegate.close();
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Schreiben abgebrochen");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Verwirft die noch nicht geschriebenen Puffer und übergibt das Ende, ohne
+     * auf Platz in der Warteschlange zu warten. Nur der aufrufende Thread
+     * legt Puffer in die Warteschlange, nach dem Leeren ist daher Platz.
+     */
+    private void abort()
+    {
+        fail(new InterruptedIOException("Schreiben abgebrochen"));
+        queue.clear();
+        queue.offer(END);
+    }
+
+    /**
+     * Wartet auf das Ende des Schreib-Threads, auch bei einer Unterbrechung.
+     * Vorher darf der Ziel-Stream nicht geschlossen werden.
+     *
+     * @return {@code true}, wenn der aufrufende Thread unterbrochen wurde
+     */
+    private boolean joinWriter()
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                writer.join();
+                return interrupted;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+    }
+
+    private void handOver() throws IOException
+    {
+        try
+        {
+            enqueue(new Chunk(buffer, count));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Schreiben abgebrochen");
+        }
+        buffer = new byte[BUFFER_SIZE];
+        count = 0;
+        checkFailure();
+    }
+
+    private void enqueue(Chunk chunk) throws InterruptedException
+    {
+        queue.put(chunk);
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed)
+        { throw new IOException("Stream ist geschlossen"); }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException
+    {
+        Throwable e = failure;
+        if (e != null)
+        { throw new IOException("Fehler beim asynchronen Schreiben", e); }
+    }
+}
@@ -0,0 +1,315 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Fingerprint der für die VAP relevanten Teile eines Clients. Je Position
+ * (Portfolio, Wertpapier) wird ein Hash über UUID, Datum, Typ, Anteile und
+ * Betrag aller Umsätze geführt. Die Hashes der einzelnen Umsätze werden
+ * addiert, dadurch kann ein geänderter Umsatz ohne Neuberechnung der übrigen
+ * ausgetauscht werden. Zusammen mit dem Hash der Metadaten eines Wertpapiers
+ * aus dem {@link VapMetadataIndex} entscheiden Caches darüber, ob ihre
+ * Einträge noch gültig sind. {@link LotLedger} erkennt damit die Umsätze, die
+ * seit der letzten Verrechnung hinzugekommen, geändert oder entfallen sind.
+ */
+public final class ClientFingerprint
+{
+    /**
+     * Position eines Wertpapiers in einem Portfolio.
+     */
+    public record PositionKey(String portfolioUuid, String securityUuid)
+    {
+        public static PositionKey of(Portfolio portfolio, Security security)
+        {
+            return new PositionKey(portfolio.getUUID(), security != null ? security.getUUID() : "");
+        }
+    }
+
+    private record TransactionHash(PositionKey position, long hash)
+    {
+    }
+
+    private static final class PositionState
+    {
+        private final Security security;
+        private long hash;
+        private int count;
+
+        private PositionState(Security security)
+        {
+            this.security = security;
+        }
+    }
+
+    private final VapMetadataIndex index;
+    private final Map<PositionKey, PositionState> positions = new HashMap<>();
+    private final Map<String, TransactionHash> transactionHashes = new HashMap<>();
+
+    private ClientFingerprint(VapMetadataIndex index)
+    {
+        this.index = index;
+    }
+
+    /**
+     * @param index
+     *            Stand der VAP-Metadaten
+     * @return Fingerprint ohne Umsätze
+     */
+    public static ClientFingerprint empty(VapMetadataIndex index)
+    {
+        return new ClientFingerprint(index);
+    }
+
+    /**
+     * Berechnet den Fingerprint aller Portfolio-Umsätze eines Clients.
+     *
+     * @param client
+     *            Portfolio Performance Client
+     * @param index
+     *            Stand der VAP-Metadaten
+     * @return Fingerprint
+     */
+    public static ClientFingerprint of(Client client, VapMetadataIndex index)
+    {
+        ClientFingerprint fingerprint = new ClientFingerprint(index);
+        for (Portfolio portfolio : client.getPortfolios())
+        {
+            for (PortfolioTransaction tx : portfolio.getTransactions())
+            {
+                fingerprint.update(portfolio, tx);
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return unabhängige Kopie des aktuellen Stands
+     */
+    public synchronized ClientFingerprint copy()
+    {
+        ClientFingerprint copy = new ClientFingerprint(index);
+        copy.transactionHashes.putAll(transactionHashes);
+        positions.forEach((position, state) -> {
+            PositionState copied = new PositionState(state.security);
+            copied.hash = state.hash;
+            copied.count = state.count;
+            copy.positions.put(position, copied);
+        });
+        return copy;
+    }
+
+    /**
+     * @return Stand der VAP-Metadaten, auf den sich der Fingerprint bezieht
+     */
+    public VapMetadataIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Übernimmt einen neuen oder geänderten Umsatz.
+     *
+     * @return {@code true}, wenn sich der Fingerprint geändert hat
+     */
+    public synchronized boolean update(Portfolio portfolio, PortfolioTransaction tx)
+    {
+        PositionKey position = PositionKey.of(portfolio, tx.getSecurity());
+        TransactionHash current = new TransactionHash(position, hash(tx));
+        TransactionHash previous = transactionHashes.put(tx.getUUID(), current);
+        if (current.equals(previous))
+        { return false; }
+
+        if (previous != null)
+        {
+            subtract(previous);
+        }
+        PositionState state = positions.computeIfAbsent(position, key -> new PositionState(tx.getSecurity()));
+        state.hash += current.hash();
+        state.count++;
+        return true;
+    }
+
+    /**
+     * Entfernt einen gelöschten Umsatz.
+     *
+     * @return {@code true}, wenn der Umsatz enthalten war
+     */
+    public boolean remove(PortfolioTransaction tx)
+    {
+        return remove(tx.getUUID());
+    }
+
+    /**
+     * Entfernt einen gelöschten Umsatz anhand seiner UUID.
+     *
+     * @return {@code true}, wenn der Umsatz enthalten war
+     */
+    public synchronized boolean remove(String transactionUuid)
+    {
+        TransactionHash previous = transactionHashes.remove(transactionUuid);
+        if (previous == null)
+        { return false; }
+
+        subtract(previous);
+        return true;
+    }
+
+    private void subtract(TransactionHash transactionHash)
+    {
+        PositionState state = positions.get(transactionHash.position());
+        state.hash -= transactionHash.hash();
+        state.count--;
+        if (state.count == 0)
+        {
+            positions.remove(transactionHash.position());
+        }
+    }
+
+    /**
+     * @return Position eines enthaltenen Umsatzes, {@code null} für
+     *         unbekannte Umsätze
+     */
+    public synchronized PositionKey getPosition(String transactionUuid)
+    {
+        TransactionHash transactionHash = transactionHashes.get(transactionUuid);
+        return transactionHash != null ? transactionHash.position() : null;
+    }
+
+    /**
+     * @return UUIDs aller enthaltenen Umsätze
+     */
+    public synchronized Set<String> getTransactionIds()
+    {
+        return Set.copyOf(transactionHashes.keySet());
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return transactionHashes.isEmpty();
+    }
+
+    /**
+     * @return Hash der Umsätze einer Position, 0 ohne Umsätze
+     */
+    public synchronized long getTransactionHash(PositionKey position)
+    {
+        PositionState state = positions.get(position);
+        return state != null ? state.hash : 0L;
+    }
+
+    /**
+     * @return Hash der Umsätze einer Position, 0 ohne Umsätze
+     */
+    public long getTransactionHash(Portfolio portfolio, Security security)
+    {
+        return getTransactionHash(PositionKey.of(portfolio, security));
+    }
+
+    /**
+     * @return Hash der Metadaten eines Wertpapiers, 0 ohne Metadaten
+     */
+    public long getMetadataHash(Security security)
+    {
+        return index.getMetadataHash(security);
+    }
+
+    /**
+     * @return Hash aus Umsätzen der Position und Metadaten des Wertpapiers
+     */
+    public synchronized long getPositionHash(PositionKey position)
+    {
+        PositionState state = positions.get(position);
+        if (state == null)
+        { return 0L; }
+        return mix(state.hash ^ getMetadataHash(state.security));
+    }
+
+    /**
+     * @return Hash über alle Positionen
+     */
+    public synchronized long getHash()
+    {
+        long result = 0L;
+        for (PositionKey position : positions.keySet())
+        {
+            result += mix(hash(position.portfolioUuid()) ^ hash(position.securityUuid()) ^ getPositionHash(position));
+        }
+        return result;
+    }
+
+    /**
+     * @return alle Positionen mit mindestens einem Umsatz
+     */
+    public synchronized Set<PositionKey> getPositions()
+    {
+        return Set.copyOf(positions.keySet());
+    }
+
+    /**
+     * Ermittelt die Positionen, deren Umsätze oder Metadaten sich gegenüber
+     * einem älteren Fingerprint unterscheiden.
+     *
+     * @param other
+     *            älterer Fingerprint
+     * @return hinzugekommene, entfallene und geänderte Positionen
+     */
+    public Set<PositionKey> changedPositions(ClientFingerprint other)
+    {
+        Set<PositionKey> changed = new HashSet<>(getPositions());
+        changed.addAll(other.getPositions());
+        changed.removeIf(position -> getPositionHash(position) == other.getPositionHash(position));
+        return changed;
+    }
+
+    /**
+     * Hash eines einzelnen Umsatzes über UUID, Datum, Typ, Anteile und Betrag.
+     */
+    static long hash(PortfolioTransaction tx)
+    {
+        long result = hash(tx.getUUID());
+        result = mix(result + tx.getDateTime().toLocalDate().toEpochDay());
+        result = mix(result + tx.getDateTime().toLocalTime().toNanoOfDay());
+        result = mix(result + tx.getType().ordinal());
+        result = mix(result + tx.getShares());
+        return mix(result + tx.getAmount());
+    }
+
+    /**
+     * 64-Bit FNV-1a über die Zeichen eines Texts.
+     */
+    static long hash(String value)
+    {
+        if (value == null)
+        { return 0L; }
+
+        long result = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++)
+        {
+            result ^= value.charAt(i);
+            result *= 0x100000001b3L;
+        }
+        return mix(result);
+    }
+
+    /**
+     * Verteilt die Bits eines Werts gleichmäßig (Finalizer aus MurmurHash3).
+     */
+    static long mix(long value)
+    {
+        long result = value;
+        result ^= result >>> 33;
+        result *= 0xff51afd7ed558ccdL;
+        result ^= result >>> 33;
+        result *= 0xc4ceb9fe1a85ec53L;
+        result ^= result >>> 33;
+        return result;
+    }
+}
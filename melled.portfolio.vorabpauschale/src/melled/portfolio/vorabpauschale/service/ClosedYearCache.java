@@ -0,0 +1,270 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import melled.portfolio.vorabpauschale.service.ClientFingerprint.PositionKey;
+
+/**
+ * Persistente Ablage der VAP-Summen abgeschlossener Jahre je Position
+ * (Portfolio, Wertpapier). Die VAP eines Jahres steht fest, sobald Basiszins
+ * und Jahresendkurse bekannt sind. Solange sich die offenen Lots einer
+ * Position und die Metadaten des Wertpapiers nicht ändern, werden diese Jahre
+ * aus der Ablage übernommen und nur das laufende und künftige Jahre neu
+ * berechnet.
+ * <p>
+ * Die Ablage ist eine einzelne Datei, die beim Laden vollständig gelesen und
+ * mit {@link #save()} vollständig ersetzt wird. Einträge, die länger als
+ * {@link #MAX_UNUSED_DAYS} Tage nicht verwendet wurden, entfallen beim
+ * Speichern.
+ */
+public class ClosedYearCache
+{
+    /**
+     * Dateiname der Ablage im Zustandsverzeichnis des Plugins
+     */
+    public static final String FILE_NAME = "vap-closed-years.bin";
+
+    static final int MAX_UNUSED_DAYS = 180;
+
+    private static final int MAGIC = 0x56415059; // "VAPY"
+    private static final int VERSION = 1;
+
+    /**
+     * VAP-Summen vor TFS einer Position für alle Jahre vor
+     * {@code closedBefore}. Die Werte nach TFS ergeben sich aus der
+     * Teilfreistellung des Aggregationsschlüssels.
+     *
+     * @param hash
+     *            Hash über die offenen Lots der Position und die Metadaten des
+     *            Wertpapiers
+     * @param closedBefore
+     *            erstes nicht abgeschlossenes Jahr zum Zeitpunkt der Berechnung
+     * @param beforeTfs
+     *            Jahr -> VAP vor TFS, nur Jahre mit Wert
+     */
+    public record Entry(long hash, int closedBefore, Map<Integer, Double> beforeTfs)
+    {
+    }
+
+    private final Path file;
+    private final int closedBefore;
+    private final int today;
+    private final Map<PositionKey, Entry> entries = new HashMap<>();
+    private final Map<PositionKey, Integer> lastUsed = new HashMap<>();
+    private boolean dirty;
+
+    private ClosedYearCache(Path file, int closedBefore, int today)
+    {
+        this.file = file;
+        this.closedBefore = closedBefore;
+        this.today = today;
+    }
+
+    /**
+     * Lädt die Ablage. Jahre vor dem laufenden Jahr gelten als abgeschlossen.
+     *
+     * @param file
+     *            Datei der Ablage, muss nicht existieren
+     * @return Ablage, leer falls die Datei fehlt oder nicht lesbar ist
+     */
+    public static ClosedYearCache load(Path file)
+    {
+        LocalDate now = LocalDate.now();
+        return load(file, now.getYear(), now);
+    }
+
+    /**
+     * Lädt die Ablage mit vorgegebener Grenze der abgeschlossenen Jahre.
+     *
+     * @param file
+     *            Datei der Ablage, muss nicht existieren
+     * @param closedBefore
+     *            erstes nicht abgeschlossenes Jahr
+     * @param today
+     *            aktuelles Datum, für das Entfernen alter Einträge
+     * @return Ablage, leer falls die Datei fehlt oder nicht lesbar ist
+     */
+    static ClosedYearCache load(Path file, int closedBefore, LocalDate today)
+    {
+        ClosedYearCache cache = new ClosedYearCache(file, closedBefore, Math.toIntExact(today.toEpochDay()));
+        if (!Files.isRegularFile(file))
+        { return cache; }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+            { return cache; }
+
+            int count = in.readInt();
+            Map<PositionKey, Entry> entries = new HashMap<>();
+            Map<PositionKey, Integer> lastUsed = new HashMap<>();
+            for (int i = 0; i < count; i++)
+            {
+                PositionKey position = new PositionKey(in.readUTF(), in.readUTF());
+                long hash = in.readLong();
+                int entryClosedBefore = in.readInt();
+                int used = in.readInt();
+
+                int years = in.readInt();
+                Map<Integer, Double> beforeTfs = new TreeMap<>();
+                for (int year = 0; year < years; year++)
+                {
+                    beforeTfs.put(in.readInt(), in.readDouble());
+                }
+
+                entries.put(position, new Entry(hash, entryClosedBefore, Collections.unmodifiableMap(beforeTfs)));
+                lastUsed.put(position, used);
+            }
+
+            cache.entries.putAll(entries);
+            cache.lastUsed.putAll(lastUsed);
+        }
+        catch (IOException e)
+        {
+            // defekte Ablage wird beim nächsten Speichern ersetzt
+            cache.dirty = true;
+        }
+        return cache;
+    }
+
+    public Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return erstes nicht abgeschlossenes Jahr
+     */
+    public int getClosedBefore()
+    {
+        return closedBefore;
+    }
+
+    /**
+     * Liefert die gespeicherten Summen einer Position, wenn sie zum Hash
+     * passen und nicht aus einem späteren Jahr stammen.
+     *
+     * @return Eintrag oder {@code null}
+     */
+    public synchronized Entry lookup(PositionKey position, long hash)
+    {
+        Entry entry = entries.get(position);
+        if ((entry == null) || (entry.hash() != hash) || (entry.closedBefore() > closedBefore))
+        { return null; }
+
+        Integer previous = lastUsed.put(position, today);
+        if ((previous == null) || (previous.intValue() != today))
+        {
+            dirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * @return Eintrag einer Position ohne Prüfung des Hashs oder {@code null}
+     */
+    synchronized Entry get(PositionKey position)
+    {
+        return entries.get(position);
+    }
+
+    /**
+     * Legt die Summen der abgeschlossenen Jahre einer Position ab.
+     *
+     * @param beforeTfs
+     *            Jahr -> VAP vor TFS für alle Jahre vor
+     *            {@link #getClosedBefore()}
+     */
+    public synchronized void put(PositionKey position, long hash, Map<Integer, Double> beforeTfs)
+    {
+        entries.put(position, new Entry(hash, closedBefore, Collections.unmodifiableMap(new TreeMap<>(beforeTfs))));
+        lastUsed.put(position, today);
+        dirty = true;
+    }
+
+    /**
+     * @return Anzahl der Einträge
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Schreibt die Ablage, falls sie sich geändert hat. Die Datei wird atomar
+     * ersetzt.
+     *
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public synchronized void save() throws IOException
+    {
+        lastUsed.entrySet().removeIf(used -> {
+            boolean expired = (today - used.getValue()) > MAX_UNUSED_DAYS;
+            if (expired)
+            {
+                entries.remove(used.getKey());
+                dirty = true;
+            }
+            return expired;
+        });
+
+        if (!dirty)
+        { return; }
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<PositionKey, Entry> entry : entries.entrySet())
+                {
+                    out.writeUTF(entry.getKey().portfolioUuid());
+                    out.writeUTF(entry.getKey().securityUuid());
+                    out.writeLong(entry.getValue().hash());
+                    out.writeInt(entry.getValue().closedBefore());
+                    out.writeInt(lastUsed.get(entry.getKey()));
+
+                    out.writeInt(entry.getValue().beforeTfs().size());
+                    for (Map.Entry<Integer, Double> year : entry.getValue().beforeTfs().entrySet())
+                    {
+                        out.writeInt(year.getKey());
+                        out.writeDouble(year.getValue());
+                    }
+                }
+            }
+
+            try
+            {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty = false;
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import jakarta.inject.Singleton;
 
 import org.eclipse.e4.core.di.annotations.Creatable;
 
+import melled.portfolio.vorabpauschale.model.LotStore;
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
 
 /**
@@ -38,6 +39,30 @@ public class CostCalculator
         return tx.getShare() * costPerShare;
     }
 
+    /**
+     * Berechnet die Kosten pro Anteil eines Lots.
+     *
+     * @param lot
+     *            Cursor auf ein Lot
+     * @return Kosten pro Anteil
+     */
+    public double calculateCostPerShare(LotStore.Cursor lot)
+    {
+        return lot.getPricePerShare();
+    }
+
+    /**
+     * Berechnet die Gesamtkosten eines Lots.
+     *
+     * @param lot
+     *            Cursor auf ein Lot
+     * @return Gesamtkosten
+     */
+    public double calculateTotalCost(LotStore.Cursor lot)
+    {
+        return lot.getShare() * calculateCostPerShare(lot);
+    }
+
     /**
      * Berechnet den Anschaffungspreis pro Anteil inklusive VAP.
      *
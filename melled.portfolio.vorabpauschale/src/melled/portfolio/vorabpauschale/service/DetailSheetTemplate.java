@@ -0,0 +1,138 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+import melled.portfolio.vorabpauschale.model.YearRange;
+
+/**
+ * Vorberechnete Kopfzeile und Spaltenbreiten eines Detail-Sheets. Alle
+ * Detail-Sheets mit gleichem {@link Key} teilen sich dasselbe Template, das
+ * einmal aufgebaut und auf jedes Sheet übertragen wird.
+ */
+final class DetailSheetTemplate
+{
+    /**
+     * Schlüssel eines Templates: VAP-Jahre, aktueller Kurs vorhanden,
+     * Teilfreistellung vorhanden.
+     */
+    record Key(YearRange years, boolean hasCurrentPrice, boolean hasTfs)
+    {
+    }
+
+    private static final int DEFAULT_WIDTH = 15 * 256;
+
+    private final String[] headers;
+    private final int[] columnWidths;
+    private final boolean hasVap;
+
+    private DetailSheetTemplate(String[] headers, int[] columnWidths, boolean hasVap)
+    {
+        this.headers = headers;
+        this.columnWidths = columnWidths;
+        this.hasVap = hasVap;
+    }
+
+    /**
+     * Baut das Template für einen Schlüssel auf.
+     *
+     * @param key
+     *            Template-Schlüssel
+     * @param kest
+     *            formatierter KESt-Satz für die Spaltenüberschrift
+     * @return Template
+     */
+    static DetailSheetTemplate create(Key key, String kest)
+    {
+        List<String> headers = new ArrayList<>();
+
+        headers.add("ISIN");
+        headers.add("Name");
+        headers.add("Datum Kauf");
+        headers.add("Anzahl (noch unverkauft)");
+        headers.add("Anzahl (gekauft)");
+        headers.add("Gesamtkosten");
+        headers.add("Kosten pro Anteil");
+
+        for (int year : key.years().toArray())
+        {
+            headers.add("VAP " + year + " vor TFS pro Anteil");
+        }
+
+        boolean hasVap = !key.years().isEmpty();
+        if (hasVap)
+        {
+            headers.add("Summe VAP vor TFS pro Anteil");
+            headers.add("Anschaffungspreis inkl. VAP pro Anteil");
+        }
+
+        if (key.hasCurrentPrice())
+        {
+            headers.add("Brutto-Wert");
+
+            String taxableGainHeader = "KESt-pflichtiger Gewinn";
+            if (hasVap)
+            {
+                taxableGainHeader += " nach VAP";
+            }
+            if (key.hasTfs())
+            {
+                taxableGainHeader += " nach TFS";
+            }
+            headers.add(taxableGainHeader);
+
+            headers.add("KESt (" + kest + "%)");
+            headers.add("Netto-Wert");
+            headers.add("Steueranteil an Brutto-Auszahlung");
+        }
+
+        int[] columnWidths = new int[headers.size()];
+        for (int i = 0; i < columnWidths.length; i++)
+        {
+            columnWidths[i] = DEFAULT_WIDTH;
+        }
+        columnWidths[1] = 30 * 256; // Name
+        columnWidths[2] = 12 * 256; // Datum
+        columnWidths[3] = 12 * 256; // Anzahl unverkauft
+        columnWidths[4] = 12 * 256; // Anzahl gekauft
+
+        return new DetailSheetTemplate(headers.toArray(String[]::new), columnWidths, hasVap);
+    }
+
+    boolean hasVap()
+    {
+        return hasVap;
+    }
+
+    /**
+     * Überträgt Kopfzeile, fixierte erste Zeile und Spaltenbreiten auf ein
+     * Sheet.
+     *
+     * @param sheet
+     *            Detail-Sheet
+     * @param headerStyle
+     *            Stil der Kopfzeile aus der Arbeitsmappe des Sheets
+     */
+    void stamp(Sheet sheet, CellStyle headerStyle)
+    {
+        Row headerRow = sheet.createRow(0);
+        for (int i = 0; i < headers.length; i++)
+        {
+            Cell cell = headerRow.createCell(i);
+            cell.setCellValue(headers[i]);
+            cell.setCellStyle(headerStyle);
+        }
+
+        sheet.createFreezePane(0, 1);
+
+        for (int i = 0; i < columnWidths.length; i++)
+        {
+            sheet.setColumnWidth(i, columnWidths[i]);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import melled.portfolio.vorabpauschale.model.LotStore;
+import melled.portfolio.vorabpauschale.model.YearRange;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+
+/**
+ * Zustand eines einzelnen Exports. Wird zu Beginn des Exports vollständig
+ * aufgebaut und durch alle Schritte gereicht, die Services selbst halten
+ * keinen Zustand eines Exports. Mehrere Exporte, z.B. für zwei geöffnete
+ * Dateien, laufen dadurch unabhängig voneinander.
+ */
+final class ExportContext
+{
+    private final VapMetadataIndex index;
+    private final LotStore lots;
+    private final List<VapSummaryRow> summaryRows;
+    private final YearRange allYears;
+    private final VapExportOptions options;
+    private final TaxProfile taxProfile;
+    private final VapSheetCache sheetCache;
+    private final Map<DetailSheetTemplate.Key, DetailSheetTemplate> templates = new ConcurrentHashMap<>();
+
+    ExportContext(VapMetadataIndex index, LotStore lots, List<VapSummaryRow> summaryRows, YearRange allYears,
+                    VapExportOptions options, TaxProfile taxProfile)
+    {
+        this.index = index;
+        this.lots = lots;
+        this.summaryRows = summaryRows;
+        this.allYears = allYears;
+        this.options = options;
+        this.taxProfile = taxProfile;
+        this.sheetCache = options.getSheetCacheDirectory() != null
+                        ? new VapSheetCache(options.getSheetCacheDirectory())
+                        : null;
+    }
+
+    /**
+     * @return Stand der VAP-Metadaten dieses Exports
+     */
+    VapMetadataIndex getIndex()
+    {
+        return index;
+    }
+
+    LotStore getLots()
+    {
+        return lots;
+    }
+
+    List<VapSummaryRow> getSummaryRows()
+    {
+        return summaryRows;
+    }
+
+    /**
+     * @return Jahre aller Zeilen der Zusammenfassung
+     */
+    YearRange getAllYears()
+    {
+        return allYears;
+    }
+
+    VapExportOptions getOptions()
+    {
+        return options;
+    }
+
+    VapExportProfile getProfile()
+    {
+        return options.getProfile();
+    }
+
+    TaxProfile getTaxProfile()
+    {
+        return taxProfile;
+    }
+
+    /**
+     * @return Sheet-Cache oder {@code null}, falls nicht aktiviert
+     */
+    VapSheetCache getSheetCache()
+    {
+        return sheetCache;
+    }
+
+    /**
+     * @return Vorlagen der Detail-Sheets, von allen Arbeitsmappen dieses
+     *         Exports gemeinsam genutzt
+     */
+    Map<DetailSheetTemplate.Key, DetailSheetTemplate> getTemplates()
+    {
+        return templates;
+    }
+}
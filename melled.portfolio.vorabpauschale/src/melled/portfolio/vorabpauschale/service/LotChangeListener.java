@@ -0,0 +1,32 @@
+package melled.portfolio.vorabpauschale.service;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import name.abuchen.portfolio.model.Portfolio;
+
+/**
+ * Wird über Änderungen an unverkauften Kaufposten (Lots) informiert.
+ */
+public interface LotChangeListener
+{
+    /**
+     * Ein Lot ist hinzugekommen, z.B. durch einen Kauf oder eine Umbuchung in
+     * das Depot.
+     */
+    void lotAdded(Portfolio portfolio, UnsoldTransaction lot);
+
+    /**
+     * Ein Lot ist entfallen, z.B. durch eine gelöschte Transaktion oder eine
+     * Umbuchung aus dem Depot. {@code lot} enthält den zuletzt bekannten
+     * Bestand.
+     */
+    void lotRemoved(Portfolio portfolio, UnsoldTransaction lot);
+
+    /**
+     * Der unverkaufte Bestand eines Lots wurde verringert, z.B. durch einen
+     * Verkauf.
+     *
+     * @param shares
+     *            Anzahl der abgegangenen Anteile
+     */
+    void lotReduced(Portfolio portfolio, UnsoldTransaction lot, double shares);
+}
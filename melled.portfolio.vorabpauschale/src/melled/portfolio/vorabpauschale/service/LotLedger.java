@@ -0,0 +1,435 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.service.ClientFingerprint.PositionKey;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.PortfolioTransaction.Type;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Fortlaufend gepflegte Lot-Verrechnung eines Clients. Statt bei jeder Änderung
+ * alle Umsätze neu zu verrechnen, gleicht {@link #sync()} die Umsätze mit dem
+ * zuletzt verrechneten Stand ab:
+ * <ul>
+ * <li>ein neuer Kauf nach dem letzten Umsatz der Position wird als Lot
+ * angehängt,</li>
+ * <li>ein neuer Abgang nach dem letzten Umsatz der Position wird nach FIFO mit
+ * den Lots des Wertpapiers verrechnet,</li>
+ * <li>geänderte, gelöschte und nachträglich erfasste ältere Umsätze führen zu
+ * einer erneuten Verrechnung nur der betroffenen Position (Depot,
+ * Wertpapier).</li>
+ * </ul>
+ * Wertpapiere mit Umbuchungen verbinden die Positionen mehrerer Depots, sie
+ * werden bei jeder Änderung über alle Depots neu verrechnet. Das Ergebnis
+ * entspricht je Position der vollständigen Verrechnung in
+ * {@link VapExportService#collectLots(Client)}, die Reihenfolge der Lots
+ * verschiedener Wertpapiere mit gleichem Kaufdatum kann abweichen.
+ * <p>
+ * Das Erkennen der Änderungen vergleicht die Hashes je Umsatz aus dem
+ * {@link ClientFingerprint} der letzten Verrechnung und ist linear
+ * in der Anzahl der Umsätze, die FIFO-Verrechnung nur noch in der Anzahl der
+ * geänderten Positionen. Der {@link LotChangeListener} wird über jedes
+ * hinzugekommene, verringerte und entfallene Lot informiert.
+ */
+public class LotLedger
+{
+    /**
+     * Position eines Wertpapiers in einem Depot. Ohne Depot steht die Position
+     * für das Wertpapier in allen Depots.
+     */
+    private record Position(Portfolio portfolio, Security security)
+    {
+    }
+
+    private record Added(PortfolioTransaction transaction, Position position)
+    {
+    }
+
+    private final Client client;
+    private final LotChangeListener listener;
+
+    private final Map<Portfolio, List<UnsoldTransaction>> transactions = new LinkedHashMap<>();
+    private final Map<Position, LocalDateTime> lastDates = new HashMap<>();
+    private final Set<Position> shortfalls = new HashSet<>();
+    private ClientFingerprint fingerprint = ClientFingerprint.empty(VapMetadataIndex.EMPTY);
+    private Map<PositionKey, Position> positions = new HashMap<>();
+    private Set<Security> transferred = new HashSet<>();
+    private int replayed;
+
+    /**
+     * @param client
+     *            Portfolio Performance Client
+     * @param listener
+     *            wird über geänderte Lots informiert, kann {@code null} sein
+     */
+    public LotLedger(Client client, LotChangeListener listener)
+    {
+        this.client = client;
+        this.listener = listener;
+    }
+
+    public Client getClient()
+    {
+        return client;
+    }
+
+    /**
+     * Kopiert die Umsatzlisten aller Depots in der Reihenfolge des Clients.
+     * Der Client ist nicht threadsicher, die Kopie muss daher im Thread
+     * erstellt werden, der den Client bearbeitet, z.B. im UI-Thread.
+     *
+     * @param client
+     *            Portfolio Performance Client
+     * @return Umsätze je Depot
+     */
+    public static Map<Portfolio, List<PortfolioTransaction>> snapshot(Client client)
+    {
+        Map<Portfolio, List<PortfolioTransaction>> snapshot = new LinkedHashMap<>();
+        for (Portfolio portfolio : client.getPortfolios())
+        {
+            snapshot.put(portfolio, new ArrayList<>(portfolio.getTransactions()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gleicht die Lots mit den aktuellen Umsätzen des Clients ab, siehe
+     * {@link #sync(Map)}. Nur im Thread aufrufen, der den Client bearbeitet.
+     *
+     * @return {@code true}, wenn sich Umsätze geändert haben
+     */
+    public boolean sync()
+    {
+        return sync(snapshot(client));
+    }
+
+    /**
+     * Gleicht die Lots mit einer Kopie der Umsätze ab, siehe
+     * {@link #snapshot(Client)}. Die Kopie wird vollständig gelesen, bevor die
+     * Lots verändert werden. Schlägt das Lesen fehl, bleibt der bisherige
+     * Stand erhalten.
+     *
+     * @param snapshot
+     *            Umsätze je Depot in der Reihenfolge des Clients
+     * @return {@code true}, wenn sich Umsätze geändert haben
+     */
+    public synchronized boolean sync(Map<Portfolio, List<PortfolioTransaction>> snapshot)
+    {
+        List<Portfolio> portfolios = new ArrayList<>(snapshot.keySet());
+        ClientFingerprint next = fingerprint.copy();
+        Map<PositionKey, Position> currentPositions = new HashMap<>();
+        Set<String> current = new HashSet<>();
+        Map<Position, List<PortfolioTransaction>> byPosition = new HashMap<>();
+        Set<Security> currentTransferred = new HashSet<>();
+        List<Added> added = new ArrayList<>();
+        Set<Position> dirty = new LinkedHashSet<>();
+        boolean initial = fingerprint.isEmpty();
+
+        for (Portfolio portfolio : portfolios)
+        {
+            for (PortfolioTransaction tx : snapshot.get(portfolio))
+            {
+                Position position = new Position(portfolio, tx.getSecurity());
+                currentPositions.putIfAbsent(PositionKey.of(portfolio, tx.getSecurity()), position);
+                current.add(tx.getUUID());
+                byPosition.computeIfAbsent(position, p -> new ArrayList<>()).add(tx);
+                if ((tx.getType() == Type.TRANSFER_IN) || (tx.getType() == Type.TRANSFER_OUT))
+                {
+                    currentTransferred.add(tx.getSecurity());
+                }
+
+                PositionKey previous = next.getPosition(tx.getUUID());
+                if (!next.update(portfolio, tx))
+                {
+                    continue;
+                }
+
+                if ((previous == null) && initial)
+                {
+                    dirty.add(position);
+                }
+                else if (previous == null)
+                {
+                    added.add(new Added(tx, position));
+                }
+                else
+                {
+                    dirty.add(positions.get(previous));
+                    dirty.add(position);
+                }
+            }
+        }
+
+        for (String transactionUuid : fingerprint.getTransactionIds())
+        {
+            if (!current.contains(transactionUuid))
+            {
+                dirty.add(positions.get(fingerprint.getPosition(transactionUuid)));
+                next.remove(transactionUuid);
+            }
+        }
+
+        Set<Security> linked = new HashSet<>(transferred);
+        linked.addAll(currentTransferred);
+
+        Set<Position> replay = new LinkedHashSet<>();
+        dirty.forEach(position -> replay.add(unitOf(position, linked)));
+
+        updatePortfolios(portfolios);
+
+        added.sort(Comparator.comparing(a -> a.transaction().getDateTime()));
+        for (Added tx : added)
+        {
+            Position unit = unitOf(tx.position(), linked);
+            if (replay.contains(unit))
+            {
+                continue;
+            }
+            if ((unit.portfolio() == null) || !append(tx.position(), tx.transaction()))
+            {
+                replay.add(unit);
+            }
+        }
+
+        replayed = replay.size();
+        Set<Portfolio> touched = new HashSet<>();
+        for (Position unit : replay)
+        {
+            replay(unit, portfolios, byPosition, touched);
+        }
+        // neu verrechnete Lots stehen hinter allen Lots mit gleichem Kaufdatum
+        touched.forEach(portfolio -> Collections.sort(transactions.get(portfolio)));
+
+        fingerprint = next;
+        positions = currentPositions;
+        transferred = currentTransferred;
+        return !added.isEmpty() || !replay.isEmpty();
+    }
+
+    /**
+     * @return Anzahl der Positionen, die beim letzten {@link #sync()} neu
+     *         verrechnet wurden
+     */
+    synchronized int getReplayed()
+    {
+        return replayed;
+    }
+
+    /**
+     * @return Kopie der offenen Lots je Depot
+     */
+    public synchronized Map<Portfolio, List<UnsoldTransaction>> getTransactions()
+    {
+        Map<Portfolio, List<UnsoldTransaction>> copy = new LinkedHashMap<>();
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        {
+            copy.put(portfolio.getKey(), new ArrayList<>(portfolio.getValue().stream()
+                            .map(lot -> new UnsoldTransaction(lot.getTransaction(), lot.getShare(),
+                                            lot.getUnsoldShare()))
+                            .toList()));
+        }
+        return copy;
+    }
+
+    private static Position unitOf(Position position, Set<Security> linked)
+    {
+        return linked.contains(position.security()) ? new Position(null, position.security()) : position;
+    }
+
+    /**
+     * Übernimmt die Depots in der Reihenfolge des Clients. Lots entfallener
+     * Depots werden mit deren Umsätzen neu verrechnet.
+     */
+    private void updatePortfolios(List<Portfolio> portfolios)
+    {
+        if (List.copyOf(transactions.keySet()).equals(portfolios))
+        { return; }
+
+        Map<Portfolio, List<UnsoldTransaction>> previous = new LinkedHashMap<>(transactions);
+        transactions.clear();
+        portfolios.forEach(portfolio -> transactions.put(portfolio, previous.getOrDefault(portfolio,
+                        new ArrayList<>())));
+
+        previous.keySet().removeAll(portfolios);
+        if (listener != null)
+        {
+            previous.forEach((portfolio, lots) -> lots.forEach(lot -> listener.lotRemoved(portfolio, lot)));
+        }
+    }
+
+    /**
+     * Verrechnet einen neuen Umsatz auf dem bisherigen Stand.
+     *
+     * @return {@code false}, wenn der Umsatz nur durch eine erneute
+     *         Verrechnung der Position übernommen werden kann
+     */
+    private boolean append(Position position, PortfolioTransaction tx)
+    {
+        LocalDateTime last = lastDates.get(position);
+        if ((last != null) && tx.getDateTime().isBefore(last))
+        { return false; }
+
+        // offene Abgänge hätten bei vollständiger Verrechnung das neue Lot verwendet
+        if (tx.getType().isPurchase() && shortfalls.contains(position))
+        { return false; }
+
+        List<UnsoldTransaction> lots = transactions.get(position.portfolio());
+        if (tx.getType().isPurchase())
+        {
+            UnsoldTransaction lot = new UnsoldTransaction(tx);
+            insert(lots, lot);
+            if (listener != null)
+            {
+                listener.lotAdded(position.portfolio(), lot);
+            }
+        }
+        else if (tx.getType().isLiquidation())
+        {
+            List<UnsoldTransaction> before = lots.stream()
+                            .filter(lot -> lot.getTransaction().getSecurity().equals(position.security())).toList();
+            double[] unsold = before.stream().mapToDouble(UnsoldTransaction::getUnsoldShare).toArray();
+
+            if (VapExportService.handleLiquidation(position.portfolio(), tx, transactions) > 0)
+            {
+                shortfalls.add(position);
+            }
+
+            for (int i = 0; i < unsold.length; i++)
+            {
+                double sold = unsold[i] - before.get(i).getUnsoldShare();
+                if ((sold > 0) && (listener != null))
+                {
+                    listener.lotReduced(position.portfolio(), before.get(i), sold);
+                }
+            }
+        }
+
+        lastDates.merge(position, tx.getDateTime(), (a, b) -> a.isAfter(b) ? a : b);
+        return true;
+    }
+
+    /**
+     * Verrechnet alle Umsätze einer Position neu, in derselben Reihenfolge wie
+     * die vollständige Verrechnung: zuerst alle Käufe, danach die Abgänge je
+     * Depot in Datumsreihenfolge.
+     */
+    @SuppressWarnings("java:S3252") // Need type for sort
+    private void replay(Position unit, List<Portfolio> portfolios,
+                    Map<Position, List<PortfolioTransaction>> byPosition, Set<Portfolio> touched)
+    {
+        Security security = unit.security();
+        List<Portfolio> scope = unit.portfolio() != null ? List.of(unit.portfolio()) : portfolios;
+
+        for (Portfolio portfolio : transactions.keySet())
+        {
+            if ((unit.portfolio() == null) || (unit.portfolio() == portfolio))
+            {
+                removeLots(portfolio, security);
+            }
+        }
+        lastDates.keySet().removeIf(position -> isInUnit(position, unit));
+        shortfalls.removeIf(position -> isInUnit(position, unit));
+
+        Map<Portfolio, List<PortfolioTransaction>> mapped = new LinkedHashMap<>();
+        Map<Portfolio, List<UnsoldTransaction>> lots = new LinkedHashMap<>();
+        for (Portfolio portfolio : portfolios)
+        {
+            lots.put(portfolio, new ArrayList<>());
+            List<PortfolioTransaction> txs = byPosition.get(new Position(portfolio, security));
+            if ((txs != null) && scope.contains(portfolio))
+            {
+                mapped.put(portfolio, PortfolioTransaction.sortByDate(new ArrayList<>(txs)));
+            }
+        }
+
+        for (Entry<Portfolio, List<PortfolioTransaction>> portfolio : mapped.entrySet())
+        {
+            List<UnsoldTransaction> portfolioLots = lots.get(portfolio.getKey());
+            portfolio.getValue().stream()
+                            .filter(tx -> tx.getType().isPurchase() && (tx.getType() != Type.TRANSFER_IN))
+                            .map(UnsoldTransaction::new).forEach(portfolioLots::add);
+            lastDates.put(new Position(portfolio.getKey(), security),
+                            portfolio.getValue().get(portfolio.getValue().size() - 1).getDateTime());
+        }
+
+        for (Entry<Portfolio, List<PortfolioTransaction>> portfolio : mapped.entrySet())
+        {
+            for (PortfolioTransaction tx : portfolio.getValue())
+            {
+                if (tx.getType().isLiquidation()
+                                && (VapExportService.handleLiquidation(portfolio.getKey(), tx, lots) > 0))
+                {
+                    shortfalls.add(new Position(portfolio.getKey(), security));
+                }
+            }
+        }
+
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : lots.entrySet())
+        {
+            for (UnsoldTransaction lot : portfolio.getValue())
+            {
+                transactions.get(portfolio.getKey()).add(lot);
+                touched.add(portfolio.getKey());
+                if (listener != null)
+                {
+                    listener.lotAdded(portfolio.getKey(), lot);
+                }
+            }
+        }
+    }
+
+    private static boolean isInUnit(Position position, Position unit)
+    {
+        return position.security().equals(unit.security())
+                        && ((unit.portfolio() == null) || (unit.portfolio() == position.portfolio()));
+    }
+
+    private void removeLots(Portfolio portfolio, Security security)
+    {
+        transactions.get(portfolio).removeIf(lot -> {
+            boolean remove = lot.getTransaction().getSecurity().equals(security);
+            if (remove && (listener != null))
+            {
+                listener.lotRemoved(portfolio, lot);
+            }
+            return remove;
+        });
+    }
+
+    /**
+     * Fügt ein Lot nach allen Lots mit gleichem oder früherem Kaufdatum ein.
+     */
+    private static void insert(List<UnsoldTransaction> lots, UnsoldTransaction lot)
+    {
+        int low = 0;
+        int high = lots.size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (lots.get(mid).compareTo(lot) <= 0)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        lots.add(low, lot);
+    }
+}
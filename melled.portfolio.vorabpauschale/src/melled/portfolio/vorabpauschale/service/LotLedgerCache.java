@@ -0,0 +1,230 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Ablage von Zwischenständen der Lot-Verrechnung je Portfolio-Datei. Ein
+ * Zwischenstand enthält die offenen Lots nach allen Umsätzen bis zu einem
+ * Zeitpunkt und einen Hash dieser Umsätze. Beim nächsten Export werden nur
+ * neuere Umsätze verrechnet, solange die älteren unverändert sind.
+ */
+public class LotLedgerCache
+{
+    private static final int MAGIC = 0x5641504C; // "VAPL"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".ledger";
+
+    /**
+     * Offenes Lot eines Zwischenstands.
+     *
+     * @param transactionUuid
+     *            UUID des Kaufs oder der Einlieferung
+     * @param share
+     *            Anteile des Lots
+     * @param unsoldShare
+     *            davon noch nicht verkauft
+     */
+    public record LotEntry(String transactionUuid, double share, double unsoldShare)
+    {
+    }
+
+    /**
+     * Zwischenstand der Lot-Verrechnung.
+     *
+     * @param watermark
+     *            Zeitpunkt des letzten verrechneten Umsatzes
+     * @param historyHash
+     *            Hash aller Umsätze bis einschließlich {@code watermark}
+     * @param lots
+     *            Portfolio-UUID -> offene Lots in Verrechnungsreihenfolge
+     */
+    public record Checkpoint(LocalDateTime watermark, String historyHash, Map<String, List<LotEntry>> lots)
+    {
+    }
+
+    private final Path directory;
+
+    public LotLedgerCache(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * @return Schlüssel einer Portfolio-Datei, unabhängig von der
+     *         Schreibweise des Pfads
+     */
+    public static String keyOf(File clientFile)
+    {
+        try
+        {
+            return clientFile.getCanonicalPath();
+        }
+        catch (IOException e)
+        {
+            return clientFile.getAbsolutePath();
+        }
+    }
+
+    /**
+     * @return Zwischenstand zu einer Portfolio-Datei oder leer, wenn keiner
+     *         vorhanden oder lesbar ist
+     */
+    public Optional<Checkpoint> lookup(String clientKey)
+    {
+        Path file = directory.resolve(fileName(clientKey));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            { return Optional.empty(); }
+
+            LocalDateTime watermark = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+            String historyHash = in.readUTF();
+
+            int portfolioCount = in.readInt();
+            Map<String, List<LotEntry>> lots = new LinkedHashMap<>();
+            for (int p = 0; p < portfolioCount; p++)
+            {
+                String portfolioUuid = readUuid(in);
+                int lotCount = in.readInt();
+                List<LotEntry> entries = new ArrayList<>(lotCount);
+                for (int l = 0; l < lotCount; l++)
+                {
+                    entries.add(new LotEntry(readUuid(in), in.readDouble(), in.readDouble()));
+                }
+                lots.put(portfolioUuid, entries);
+            }
+            return Optional.of(new Checkpoint(watermark, historyHash, lots));
+        }
+        catch (IOException e)
+        {
+            // fehlender oder defekter Zwischenstand führt zur vollständigen
+            // Verrechnung
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Speichert den Zwischenstand einer Portfolio-Datei und ersetzt einen
+     * vorhandenen.
+     */
+    public void store(String clientKey, Checkpoint checkpoint) throws IOException
+    {
+        Files.createDirectories(directory);
+        String fileName = fileName(clientKey);
+        Path temp = Files.createTempFile(directory, fileName, ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(checkpoint.watermark().toEpochSecond(ZoneOffset.UTC));
+                out.writeInt(checkpoint.watermark().getNano());
+                out.writeUTF(checkpoint.historyHash());
+
+                out.writeInt(checkpoint.lots().size());
+                for (Map.Entry<String, List<LotEntry>> portfolio : checkpoint.lots().entrySet())
+                {
+                    writeUuid(out, portfolio.getKey());
+                    out.writeInt(portfolio.getValue().size());
+                    for (LotEntry lot : portfolio.getValue())
+                    {
+                        writeUuid(out, lot.transactionUuid());
+                        out.writeDouble(lot.share());
+                        out.writeDouble(lot.unsoldShare());
+                    }
+                }
+            }
+
+            try
+            {
+                Files.move(temp, directory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String fileName(String clientKey)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(clientKey.getBytes(StandardCharsets.UTF_8))) + SUFFIX;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * UUIDs werden als zwei {@code long} abgelegt, andere Kennungen als Text.
+     */
+    private static void writeUuid(DataOutputStream out, String uuid) throws IOException
+    {
+        UUID parsed = parseUuid(uuid);
+        if (parsed != null)
+        {
+            out.writeBoolean(true);
+            out.writeLong(parsed.getMostSignificantBits());
+            out.writeLong(parsed.getLeastSignificantBits());
+        }
+        else
+        {
+            out.writeBoolean(false);
+            out.writeUTF(uuid);
+        }
+    }
+
+    private static String readUuid(DataInputStream in) throws IOException
+    {
+        if (in.readBoolean())
+        { return new UUID(in.readLong(), in.readLong()).toString(); }
+        return in.readUTF();
+    }
+
+    private static UUID parseUuid(String uuid)
+    {
+        if (uuid.length() != 36)
+        { return null; }
+        try
+        {
+            UUID parsed = UUID.fromString(uuid);
+            // nur verwenden, wenn die Textform exakt erhalten bleibt
+            return parsed.toString().equals(uuid) ? parsed : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+}
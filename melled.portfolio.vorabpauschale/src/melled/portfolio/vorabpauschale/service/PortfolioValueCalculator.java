@@ -179,8 +179,47 @@ public class PortfolioValueCalculator
     public PositionValues calculatePositionValues(UnsoldTransaction tx, double currentPricePerShare,
                     double acquisitionPricePerShare, int tfsPercentage, double cumulativeTaxableGain)
     {
-        double shares = tx.getUnsoldShare();
+        return calculatePositionValues(tx.getUnsoldShare(), currentPricePerShare, acquisitionPricePerShare,
+                        tfsPercentage, cumulativeTaxableGain);
+    }
+
+    /**
+     * Berechnet alle Portfolio-Werte für eine Anzahl unverkaufter Anteile, z.B.
+     * eines Lots aus einer {@link melled.portfolio.vorabpauschale.model.LotStore}.
+     *
+     * @param shares
+     *            Anzahl unverkaufter Anteile
+     * @param currentPricePerShare
+     *            Aktueller Preis pro Anteil
+     * @param acquisitionPricePerShare
+     *            Anschaffungspreis inkl. VAP pro Anteil
+     * @param tfsPercentage
+     *            Teilfreistellungs-Prozentsatz
+     * @param cumulativeTaxableGain
+     *            Kumulierter steuerpflichtiger Gewinn
+     * @return Alle berechneten Werte
+     */
+    public PositionValues calculatePositionValues(double shares, double currentPricePerShare,
+                    double acquisitionPricePerShare, int tfsPercentage, double cumulativeTaxableGain)
+    {
+        return calculatePositionValues(shares, currentPricePerShare, acquisitionPricePerShare, tfsPercentage,
+                        cumulativeTaxableGain, taxCalculator.getProfile());
+    }
 
+    /**
+     * Wie {@link #calculatePositionValues(double, double, double, int, double)},
+     * aber mit einem festen Steuerprofil statt des aktuellen Profils des
+     * {@link TaxCalculator}. Die Berechnung hat keinen gemeinsamen Zustand und
+     * kann für verschiedene Profile parallel laufen.
+     *
+     * @param taxProfile
+     *            Steuerprofil
+     * @return Alle berechneten Werte
+     */
+    public PositionValues calculatePositionValues(double shares, double currentPricePerShare,
+                    double acquisitionPricePerShare, int tfsPercentage, double cumulativeTaxableGain,
+                    TaxProfile taxProfile)
+    {
         // Brutto-Wert
         double grossValue = calculateGrossValue(currentPricePerShare, shares);
 
@@ -193,7 +232,7 @@ public class PortfolioValueCalculator
                         taxableGain);
 
         // Steuern
-        double taxes = calculateTaxes(taxableGainToConsider);
+        double taxes = taxProfile.calculateTax(taxableGainToConsider);
 
         // Netto-Wert
         double netValue = calculateNetValue(grossValue, taxes);
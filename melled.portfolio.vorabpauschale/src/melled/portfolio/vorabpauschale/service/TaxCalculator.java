@@ -1,22 +1,42 @@
 package melled.portfolio.vorabpauschale.service;
 
-import java.text.DecimalFormat;
+import java.util.Objects;
 
 import jakarta.inject.Singleton;
 
 import org.eclipse.e4.core.di.annotations.Creatable;
 
 /**
- * Berechnet Steuern (KESt, Kirchensteuer) für Wertpapiergewinne.
+ * Berechnet Steuern (KESt, Kirchensteuer) für Wertpapiergewinne. Die
+ * Steuersätze stehen in einem unveränderlichen {@link TaxProfile}; Exporte
+ * übernehmen das aktuelle Profil einmal zu Beginn und rechnen danach
+ * unabhängig von späteren Änderungen.
  */
 @Creatable
 @Singleton
 public class TaxCalculator
 {
-    private static final double KEST_BASE_RATE = 0.25;
-    private static final double SOLIDARITY_SURCHARGE = 0.055;
+    private volatile TaxProfile profile = TaxProfile.DEFAULT;
 
-    private double kirchensteuer = 0.0; // 0.08 für 8% oder 0.09 für 9%
+    /**
+     * @return aktuelles Steuerprofil
+     */
+    public TaxProfile getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * Setzt das Steuerprofil für nachfolgende Berechnungen ohne explizites
+     * Profil.
+     *
+     * @param profile
+     *            Steuerprofil
+     */
+    public void setProfile(TaxProfile profile)
+    {
+        this.profile = Objects.requireNonNull(profile);
+    }
 
     /**
      * Berechnet den KESt-Faktor inkl. Solidaritätszuschlag und Kirchensteuer.
@@ -25,8 +45,7 @@ public class TaxCalculator
      */
     public double getKestFactor()
     {
-        double factor = 1.0 + SOLIDARITY_SURCHARGE + kirchensteuer;
-        return KEST_BASE_RATE * factor;
+        return profile.getKestFactor();
     }
 
     /**
@@ -37,7 +56,7 @@ public class TaxCalculator
      */
     public void setKirchensteuer(double kirchensteuer)
     {
-        this.kirchensteuer = kirchensteuer;
+        this.profile = profile.withKirchensteuer(kirchensteuer);
     }
 
     /**
@@ -47,7 +66,7 @@ public class TaxCalculator
      */
     public double getKirchensteuer()
     {
-        return kirchensteuer;
+        return profile.getKirchensteuer();
     }
 
     /**
@@ -100,7 +119,7 @@ public class TaxCalculator
      */
     public double calculateTax(double taxableGain)
     {
-        return taxableGain * getKestFactor();
+        return profile.calculateTax(taxableGain);
     }
 
     /**
@@ -131,9 +150,13 @@ public class TaxCalculator
         return grossValue > 0 ? taxes / grossValue : 0.0;
     }
 
+    /**
+     * Formatiert den KESt-Satz in Prozent, z.B. für Spaltenüberschriften.
+     *
+     * @return KESt-Satz in Prozent
+     */
     public String formatKest()
     {
-        DecimalFormat df = new DecimalFormat("#.##");
-        return df.format(getKestFactor() * 100);
+        return profile.formatKest();
     }
 }
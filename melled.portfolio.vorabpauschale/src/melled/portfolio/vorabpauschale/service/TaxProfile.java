@@ -0,0 +1,155 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.text.DecimalFormat;
+
+/**
+ * Unveränderliche Steuereinstellungen einer Person: Kirchensteuer-Satz und
+ * Sparerpauschbetrag. Der KESt-Faktor wird beim Erzeugen einmal berechnet.
+ * Ein Profil kann ohne Synchronisation von mehreren Exporten gleichzeitig
+ * verwendet werden, z.B. für verschiedene Haushaltsmitglieder.
+ */
+public final class TaxProfile
+{
+    private static final double KEST_BASE_RATE = 0.25;
+    private static final double SOLIDARITY_SURCHARGE = 0.055;
+
+    /** Profil ohne Kirchensteuer und ohne Sparerpauschbetrag */
+    public static final TaxProfile DEFAULT = new TaxProfile(0.0, 0.0);
+
+    private final double kirchensteuer;
+    private final double allowance;
+    private final double kestFactor;
+    private final String formattedKest;
+
+    private TaxProfile(double kirchensteuer, double allowance)
+    {
+        this.kirchensteuer = kirchensteuer;
+        this.allowance = allowance;
+        this.kestFactor = KEST_BASE_RATE * (1.0 + SOLIDARITY_SURCHARGE + kirchensteuer);
+        this.formattedKest = new DecimalFormat("#.##").format(kestFactor * 100);
+    }
+
+    /**
+     * Erzeugt ein Profil ohne Sparerpauschbetrag.
+     *
+     * @param kirchensteuer
+     *            Kirchensteuer-Satz (z.B. 0.08 für 8%, 0.09 für 9%)
+     * @return Profil
+     */
+    public static TaxProfile of(double kirchensteuer)
+    {
+        return of(kirchensteuer, 0.0);
+    }
+
+    /**
+     * Erzeugt ein Profil.
+     *
+     * @param kirchensteuer
+     *            Kirchensteuer-Satz (z.B. 0.08 für 8%, 0.09 für 9%)
+     * @param allowance
+     *            Sparerpauschbetrag in Euro
+     * @return Profil
+     */
+    public static TaxProfile of(double kirchensteuer, double allowance)
+    {
+        if ((kirchensteuer < 0) || (allowance < 0))
+        {
+            throw new IllegalArgumentException(
+                            "Kirchensteuer und Sparerpauschbetrag müssen >= 0 sein: " + kirchensteuer + ", "
+                                            + allowance);
+        }
+        if ((kirchensteuer == 0.0) && (allowance == 0.0))
+        { return DEFAULT; }
+        return new TaxProfile(kirchensteuer, allowance);
+    }
+
+    /**
+     * @return Kopie mit geändertem Kirchensteuer-Satz
+     */
+    public TaxProfile withKirchensteuer(double newKirchensteuer)
+    {
+        return of(newKirchensteuer, allowance);
+    }
+
+    /**
+     * @return Kopie mit geändertem Sparerpauschbetrag
+     */
+    public TaxProfile withAllowance(double newAllowance)
+    {
+        return of(kirchensteuer, newAllowance);
+    }
+
+    public double getKirchensteuer()
+    {
+        return kirchensteuer;
+    }
+
+    public double getAllowance()
+    {
+        return allowance;
+    }
+
+    /**
+     * @return KESt-Faktor inkl. Solidaritätszuschlag und Kirchensteuer
+     */
+    public double getKestFactor()
+    {
+        return kestFactor;
+    }
+
+    /**
+     * @return KESt-Satz in Prozent, z.B. für Spaltenüberschriften
+     */
+    public String formatKest()
+    {
+        return formattedKest;
+    }
+
+    /**
+     * Berechnet die zu zahlende Steuer auf einen Gewinn.
+     *
+     * @param taxableGain
+     *            Steuerpflichtiger Gewinn
+     * @return Zu zahlende Steuer
+     */
+    public double calculateTax(double taxableGain)
+    {
+        return taxableGain * kestFactor;
+    }
+
+    /**
+     * Zieht den Sparerpauschbetrag von einem Gewinn ab, z.B. von der Summe
+     * aller steuerpflichtigen Gewinne einer Person.
+     *
+     * @param taxableGain
+     *            Steuerpflichtiger Gewinn
+     * @return Gewinn nach Sparerpauschbetrag, mindestens 0
+     */
+    public double applyAllowance(double taxableGain)
+    {
+        return Math.max(0.0, taxableGain - allowance);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        { return true; }
+        if (!(obj instanceof TaxProfile other))
+        { return false; }
+        return (Double.compare(kirchensteuer, other.kirchensteuer) == 0)
+                        && (Double.compare(allowance, other.allowance) == 0);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (31 * Double.hashCode(kirchensteuer)) + Double.hashCode(allowance);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TaxProfile[kirchensteuer=" + kirchensteuer + ", allowance=" + allowance + "]";
+    }
+}
@@ -0,0 +1,131 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.File;
+
+/**
+ * Optionen für den Export mehrerer Portfolio-Dateien mit
+ * {@link VapBatchExportService}.
+ */
+public class VapBatchExportOptions
+{
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private VapExportOptions exportOptions;
+    private File householdSummaryFile;
+    private char[] password;
+    private boolean lightweightReader = true;
+    private File ledgerCacheDirectory;
+
+    public VapBatchExportOptions()
+    {
+        // Die Dateien laufen bereits parallel, innerhalb eines Exports
+        // daher standardmäßig keine weiteren Threads
+        exportOptions = new VapExportOptions();
+        exportOptions.setParallelism(1);
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Setzt die Anzahl der Portfolio-Dateien, die gleichzeitig geladen und
+     * exportiert werden.
+     *
+     * @param parallelism
+     *            Anzahl Threads (mindestens 1)
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+        { throw new IllegalArgumentException("Parallelität muss >= 1 sein: " + parallelism); }
+        this.parallelism = parallelism;
+    }
+
+    public VapExportOptions getExportOptions()
+    {
+        return exportOptions;
+    }
+
+    /**
+     * Setzt die Optionen, mit denen jede Portfolio-Datei exportiert wird. Die
+     * Optionen werden von allen Exporten gemeinsam gelesen und dürfen während
+     * des Exports nicht geändert werden.
+     *
+     * @param exportOptions
+     *            Export-Optionen
+     */
+    public void setExportOptions(VapExportOptions exportOptions)
+    {
+        this.exportOptions = exportOptions;
+    }
+
+    public File getHouseholdSummaryFile()
+    {
+        return householdSummaryFile;
+    }
+
+    /**
+     * Aktiviert eine gemeinsame VAP-Zusammenfassung aller Portfolio-Dateien,
+     * z.B. für einen Haushalt.
+     *
+     * @param householdSummaryFile
+     *            Ausgabedatei oder {@code null} für keine Zusammenfassung
+     */
+    public void setHouseholdSummaryFile(File householdSummaryFile)
+    {
+        this.householdSummaryFile = householdSummaryFile;
+    }
+
+    public char[] getPassword()
+    {
+        return password;
+    }
+
+    /**
+     * Setzt das Passwort für verschlüsselte Portfolio-Dateien.
+     *
+     * @param password
+     *            Passwort oder {@code null}
+     */
+    public void setPassword(char[] password)
+    {
+        this.password = password;
+    }
+
+    public boolean isLightweightReader()
+    {
+        return lightweightReader;
+    }
+
+    /**
+     * Steuert, ob XML-Dateien mit {@link VapClientReader} nur mit den für die
+     * VAP nötigen Teilen gelesen werden. Ohne werden alle Dateien vollständig
+     * über Portfolio Performance geladen.
+     *
+     * @param lightweightReader
+     *            {@code true} für den schlanken Leser (Standard)
+     */
+    public void setLightweightReader(boolean lightweightReader)
+    {
+        this.lightweightReader = lightweightReader;
+    }
+
+    public File getLedgerCacheDirectory()
+    {
+        return ledgerCacheDirectory;
+    }
+
+    /**
+     * Aktiviert Zwischenstände der Lot-Verrechnung je Portfolio-Datei, siehe
+     * {@link LotLedgerCache}. Wiederholte Exporte verrechnen dann nur neue
+     * Umsätze.
+     *
+     * @param ledgerCacheDirectory
+     *            Verzeichnis der Zwischenstände oder {@code null} für keine
+     */
+    public void setLedgerCacheDirectory(File ledgerCacheDirectory)
+    {
+        this.ledgerCacheDirectory = ledgerCacheDirectory;
+    }
+}
@@ -0,0 +1,322 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jakarta.inject.Inject;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.e4.core.di.annotations.Creatable;
+
+import melled.portfolio.vorabpauschale.model.LotStore;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.ClientFactory;
+
+/**
+ * Exportiert mehrere Portfolio-Dateien, z.B. aller Personen eines Haushalts.
+ * Die Metadaten werden einmal geladen, die Dateien werden mit begrenzter
+ * Parallelität geladen und jeweils in eine eigene Arbeitsmappe exportiert.
+ * Fehler einer Datei brechen die übrigen Exporte nicht ab.
+ */
+@Creatable
+public class VapBatchExportService
+{
+    public static final String OUTPUT_SUFFIX = "_VAP.xlsx";
+
+    /**
+     * Lädt eine Portfolio-Datei.
+     */
+    @FunctionalInterface
+    interface ClientLoader
+    {
+        Client load(File file, VapBatchExportOptions options) throws IOException;
+    }
+
+    /**
+     * Ergebnis einer Portfolio-Datei.
+     *
+     * @param clientFile
+     *            Portfolio-Datei
+     * @param outputFile
+     *            geschriebene Arbeitsmappe, {@code null} bei Fehler oder ohne
+     *            VAP-Daten
+     * @param loadMillis
+     *            Dauer für Laden und Ermitteln der Lots
+     * @param exportMillis
+     *            Dauer für das Schreiben der Arbeitsmappe
+     * @param error
+     *            Fehler oder {@code null}, auch behebbare Fehler der JVM wie
+     *            {@link OutOfMemoryError} einer einzelnen Datei
+     */
+    public record ClientResult(File clientFile, File outputFile, long loadMillis, long exportMillis, Throwable error)
+    {
+        public boolean isSuccess()
+        {
+            return error == null;
+        }
+    }
+
+    /**
+     * Ergebnis aller Portfolio-Dateien in der Reihenfolge des Aufrufs.
+     *
+     * @param clients
+     *            Ergebnis je Portfolio-Datei
+     * @param householdSummaryFile
+     *            gemeinsame Zusammenfassung oder {@code null}
+     * @param totalMillis
+     *            Gesamtdauer
+     */
+    public record BatchResult(List<ClientResult> clients, File householdSummaryFile, long totalMillis)
+    {
+        public long getFailedCount()
+        {
+            return clients.stream().filter(result -> !result.isSuccess()).count();
+        }
+    }
+
+    private final VapCalculator vapCalculator;
+    private final VapExportService vapExportService;
+    private final VapExcelExporter vapExcelExporter;
+    private final VapSummaryCollector vapSummaryCollector;
+    private final ClientLoader clientLoader;
+
+    @Inject
+    public VapBatchExportService(VapCalculator vapCalculator, VapExportService vapExportService,
+                    VapExcelExporter vapExcelExporter, VapSummaryCollector vapSummaryCollector)
+    {
+        this(vapCalculator, vapExportService, vapExcelExporter, vapSummaryCollector,
+                        VapBatchExportService::loadClient);
+    }
+
+    VapBatchExportService(VapCalculator vapCalculator, VapExportService vapExportService,
+                    VapExcelExporter vapExcelExporter, VapSummaryCollector vapSummaryCollector,
+                    ClientLoader clientLoader)
+    {
+        this.vapCalculator = vapCalculator;
+        this.vapExportService = vapExportService;
+        this.vapExcelExporter = vapExcelExporter;
+        this.vapSummaryCollector = vapSummaryCollector;
+        this.clientLoader = clientLoader;
+    }
+
+    /**
+     * Lädt XML-Dateien per {@link VapClientReader} nur mit den für die VAP
+     * nötigen Teilen, andere Formate über {@link ClientFactory}.
+     */
+    static Client loadClient(File file, VapBatchExportOptions options) throws IOException
+    {
+        if (options.isLightweightReader() && VapClientReader.supports(file))
+        { return new VapClientReader().read(file); }
+        return ClientFactory.load(file, options.getPassword(), new NullProgressMonitor());
+    }
+
+    /**
+     * Exportiert alle Portfolio-Dateien ({@code *.xml}, {@code *.portfolio})
+     * eines Verzeichnisses, sortiert nach Dateiname.
+     *
+     * @see #exportAll(List, String, File, VapBatchExportOptions)
+     */
+    public BatchResult exportDirectory(File directory, String metadataFile, File outputDirectory,
+                    VapBatchExportOptions options) throws IOException
+    {
+        return exportAll(listClientFiles(directory), metadataFile, outputDirectory, options);
+    }
+
+    /**
+     * @return Portfolio-Dateien ({@code *.xml}, {@code *.portfolio}) eines
+     *         Verzeichnisses, sortiert nach Dateiname; leer, wenn das
+     *         Verzeichnis nicht gelesen werden kann
+     */
+    public static List<File> listClientFiles(File directory)
+    {
+        File[] files = directory.listFiles((dir, name) -> {
+            String lowerCase = name.toLowerCase(Locale.ROOT);
+            return lowerCase.endsWith(".xml") || lowerCase.endsWith(".portfolio");
+        });
+        if (files == null)
+        { return List.of(); }
+
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Exportiert jede Portfolio-Datei in eine eigene Arbeitsmappe
+     * {@code <Dateiname>_VAP.xlsx} im Ausgabeverzeichnis. Gleichnamige Dateien
+     * aus verschiedenen Verzeichnissen erhalten eine laufende Nummer.
+     *
+     * @param clientFiles
+     *            Portfolio-Dateien
+     * @param metadataFile
+     *            Pfad zur ETF-Metadaten CSV, wird einmal für alle Dateien
+     *            geladen
+     * @param outputDirectory
+     *            Ausgabeverzeichnis, wird bei Bedarf angelegt
+     * @param options
+     *            Optionen
+     * @return Ergebnis je Datei inklusive Laufzeiten
+     * @throws IOException
+     *             wenn Metadaten, Ausgabeverzeichnis oder
+     *             Haushaltsübersicht nicht geschrieben werden können
+     */
+    public BatchResult exportAll(List<File> clientFiles, String metadataFile, File outputDirectory,
+                    VapBatchExportOptions options) throws IOException
+    {
+        long start = System.nanoTime();
+
+        VapMetadataIndex index = vapCalculator.loadIndex(metadataFile);
+        Files.createDirectories(outputDirectory.toPath());
+
+        List<String> names = uniqueBaseNames(clientFiles);
+        LotLedgerCache ledgerCache = options.getLedgerCacheDirectory() != null
+                        ? new LotLedgerCache(options.getLedgerCacheDirectory().toPath())
+                        : null;
+        LotStore[] memberLots = new LotStore[clientFiles.size()];
+        boolean household = options.getHouseholdSummaryFile() != null;
+
+        List<ClientResult> results = new ArrayList<>();
+        ExecutorService executor = Executors
+                        .newFixedThreadPool(Math.max(1, Math.min(options.getParallelism(), clientFiles.size())));
+        try
+        {
+            List<Future<ClientResult>> futures = new ArrayList<>();
+            for (int i = 0; i < clientFiles.size(); i++)
+            {
+                int position = i;
+                futures.add(executor.submit(() -> {
+                    File outputFile = new File(outputDirectory, names.get(position) + OUTPUT_SUFFIX);
+                    return exportClient(clientFiles.get(position), outputFile, index, options, ledgerCache,
+                                    household ? memberLots : null, position);
+                }));
+            }
+
+            for (Future<ClientResult> future : futures)
+            {
+                results.add(await(future));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        File householdSummaryFile = null;
+        if (household)
+        {
+            Map<String, LotStore> lotsByMember = new LinkedHashMap<>();
+            for (int i = 0; i < memberLots.length; i++)
+            {
+                if (memberLots[i] != null)
+                {
+                    lotsByMember.put(names.get(i), memberLots[i]);
+                }
+            }
+
+            householdSummaryFile = options.getHouseholdSummaryFile();
+            vapExcelExporter.exportSummary(householdSummaryFile.getPath(),
+                            vapSummaryCollector.collectHouseholdSummary(index, lotsByMember),
+                            options.getExportOptions());
+        }
+
+        return new BatchResult(results, householdSummaryFile, millisSince(start));
+    }
+
+    @SuppressWarnings("java:S1181") // Fehler einer Datei dürfen den Batch nicht abbrechen
+    private ClientResult exportClient(File clientFile, File outputFile, VapMetadataIndex index,
+                    VapBatchExportOptions options, LotLedgerCache ledgerCache, LotStore[] memberLots, int position)
+    {
+        long start = System.nanoTime();
+        long loadMillis = 0;
+        try
+        {
+            Client client = clientLoader.load(clientFile, options);
+            LotStore lots = ledgerCache != null
+                            ? vapExportService.collectLots(client, ledgerCache, LotLedgerCache.keyOf(clientFile))
+                            : vapExportService.collectLots(client);
+            loadMillis = millisSince(start);
+
+            long exportStart = System.nanoTime();
+            vapExcelExporter.export(index, outputFile.getPath(), lots, options.getExportOptions());
+            long exportMillis = millisSince(exportStart);
+
+            if (memberLots != null)
+            {
+                memberLots[position] = lots;
+            }
+
+            return new ClientResult(clientFile, outputFile.exists() ? outputFile : null, loadMillis, exportMillis,
+                            null);
+        }
+        catch (VirtualMachineError e)
+        {
+            // z.B. eine sehr große Datei, die übrigen Dateien können noch gelingen
+            if (!(e instanceof OutOfMemoryError) && !(e instanceof StackOverflowError))
+            { throw e; }
+            return new ClientResult(clientFile, null, loadMillis, 0, e);
+        }
+        catch (Exception | Error e)
+        {
+            return new ClientResult(clientFile, null, loadMillis, 0, e);
+        }
+    }
+
+    private static ClientResult await(Future<ClientResult> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export abgebrochen");
+        }
+        catch (ExecutionException e)
+        {
+            // exportClient fängt alle behebbaren Fehler einer Datei selbst ab
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Ermittelt eindeutige Namen ohne Dateiendung, z.B. für Ausgabedateien
+     * und Personen in der Haushaltsübersicht.
+     */
+    static List<String> uniqueBaseNames(List<File> files)
+    {
+        Map<String, Integer> counts = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (File file : files)
+        {
+            String baseName = getBaseName(file);
+            int count = counts.merge(baseName.toLowerCase(Locale.ROOT), 1, Integer::sum);
+            names.add(count == 1 ? baseName : baseName + " (" + count + ")");
+        }
+        return names;
+    }
+
+    static String getBaseName(File file)
+    {
+        String name = file.getName();
+        int extension = name.lastIndexOf('.');
+        return extension > 0 ? name.substring(0, extension) : name;
+    }
+
+    private static long millisSince(long start)
+    {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
@@ -0,0 +1,675 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import name.abuchen.portfolio.model.Account;
+import name.abuchen.portfolio.model.BuySellEntry;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.LatestSecurityPrice;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+import name.abuchen.portfolio.model.PortfolioTransferEntry;
+import name.abuchen.portfolio.model.Security;
+import name.abuchen.portfolio.model.SecurityPrice;
+import name.abuchen.portfolio.model.Transaction;
+import name.abuchen.portfolio.model.Transaction.Unit;
+import name.abuchen.portfolio.money.Money;
+
+/**
+ * Liest eine Portfolio Performance XML-Datei per StAX und übernimmt nur, was
+ * für die VAP gebraucht wird: Wertpapiere mit dem letzten Kurs, Depots und
+ * Depotumsätze inklusive Kauf/Verkauf- und Umbuchungsverknüpfung. Kurshistorie,
+ * Kontobuchungen, Taxonomien usw. werden überlesen.
+ * <p>
+ * Der gelieferte {@link Client} enthält nur diese Teile und ist für
+ * {@link VapExportService#collectLots(Client)} gedacht, nicht zum Speichern.
+ * Referenzen werden wie in XStream aufgelöst, sowohl als relativer Pfad
+ * ({@code reference="../../security[2]"}) als auch über {@code id}-Attribute.
+ * <p>
+ * Wertpapiere, Depots und Umsätze behalten die UUIDs aus der Datei, damit
+ * {@link LotLedgerCache} und {@link ClosedYearCache} ihre Einträge beim
+ * nächsten Lesen wiederfinden.
+ */
+public class VapClientReader
+{
+    private static final String BUY_SELL = "buysell";
+    private static final String PORTFOLIO_TRANSFER = "portfolio-transfer";
+
+    /**
+     * Platzhalter für Kontobuchungen, deren Inhalt nicht gebraucht wird.
+     */
+    private static final Object ACCOUNT_TRANSACTION = new Object();
+
+    /**
+     * Die Modellklassen haben keinen öffentlichen Setter für die UUID, das
+     * Feld entspricht dem Element {@code uuid} der XML-Datei. Fehlt das Feld,
+     * behalten die Objekte ihre erzeugte UUID.
+     */
+    private static final Field SECURITY_UUID = uuidField(Security.class);
+    private static final Field PORTFOLIO_UUID = uuidField(Portfolio.class);
+    private static final Field TRANSACTION_UUID = uuidField(Transaction.class);
+
+    private static final class SecurityData
+    {
+        private String uuid;
+        private String name;
+        private String currencyCode;
+        private String isin;
+        private String wkn;
+        private String tickerSymbol;
+        private SecurityPrice lastPrice;
+        private LatestSecurityPrice latest;
+        private Security security;
+    }
+
+    private static final class AccountData
+    {
+        private String name;
+        private Account account;
+    }
+
+    private static final class PortfolioData
+    {
+        private String uuid;
+        private String name;
+        private AccountData referenceAccount;
+        private final List<TransactionData> transactions = new ArrayList<>();
+        private Portfolio portfolio;
+    }
+
+    private static final class TransactionData
+    {
+        private String uuid;
+        private PortfolioTransaction.Type type;
+        private LocalDateTime dateTime;
+        private String currencyCode;
+        private long amount;
+        private long shares;
+        private SecurityData security;
+        private CrossEntryData crossEntry;
+        private final List<Unit> units = new ArrayList<>(0);
+    }
+
+    private static final class CrossEntryData
+    {
+        private final String kind;
+        private PortfolioData portfolio;
+        private PortfolioData portfolioTo;
+        private AccountData account;
+        private TransactionData transactionTo;
+        private PortfolioTransferEntry transfer;
+
+        private CrossEntryData(String kind)
+        {
+            this.kind = kind;
+        }
+    }
+
+    @SuppressWarnings("java:S3011") // UUID aus der Datei übernehmen
+    private static Field uuidField(Class<?> type)
+    {
+        try
+        {
+            Field field = type.getDeclaredField("uuid");
+            field.setAccessible(true);
+            return field;
+        }
+        catch (NoSuchFieldException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    private static void setUuid(Field field, Object target, String uuid)
+    {
+        if ((field == null) || (uuid == null))
+        { return; }
+
+        try
+        {
+            field.set(target, uuid);
+        }
+        catch (IllegalAccessException e)
+        {
+            // erzeugte UUID bleibt erhalten
+        }
+    }
+
+    /**
+     * @return {@code true}, wenn die Datei als unverschlüsseltes XML
+     *         gespeichert ist
+     */
+    public static boolean supports(File file)
+    {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".xml");
+    }
+
+    public Client read(File file) throws IOException
+    {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath())))
+        {
+            return read(in);
+        }
+    }
+
+    /**
+     * Liest eine Portfolio Performance XML-Datei. Der Stream wird nicht
+     * geschlossen.
+     *
+     * @throws IOException
+     *             bei Lesefehlern oder wenn der Inhalt keine Portfolio
+     *             Performance XML-Datei ist
+     */
+    public Client read(InputStream in) throws IOException
+    {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+
+        XMLStreamReader xml = null;
+        try
+        {
+            xml = factory.createXMLStreamReader(in);
+            Parser parser = new Parser(xml);
+            parser.readClient();
+            return parser.build();
+        }
+        catch (XMLStreamException | DateTimeParseException | IllegalArgumentException e)
+        {
+            throw new IOException("Portfolio-Datei kann nicht gelesen werden: " + e.getMessage(), e);
+        }
+        finally
+        {
+            if (xml != null)
+            {
+                try
+                {
+                    xml.close();
+                }
+                catch (XMLStreamException e)
+                {
+                    // Stream gehört dem Aufrufer
+                }
+            }
+        }
+    }
+
+    /**
+     * Löst einen XStream-Pfad relativ zum referenzierenden Element auf.
+     * Fehlende Indizes bedeuten {@code [1]}.
+     */
+    static String resolvePath(String current, String reference)
+    {
+        Deque<String> segments = new ArrayDeque<>();
+        if (!reference.startsWith("/"))
+        {
+            for (String segment : current.substring(1).split("/"))
+            {
+                segments.addLast(segment);
+            }
+        }
+
+        for (String segment : reference.split("/"))
+        {
+            if (segment.isEmpty() || ".".equals(segment))
+            {
+                continue;
+            }
+            if ("..".equals(segment))
+            {
+                segments.pollLast();
+            }
+            else
+            {
+                segments.addLast(segment.endsWith("]") ? segment : segment + "[1]");
+            }
+        }
+        return "/" + String.join("/", segments);
+    }
+
+    @FunctionalInterface
+    private interface ChildHandler
+    {
+        void handle(String name) throws XMLStreamException, IOException;
+    }
+
+    /**
+     * Zustand eines Lesevorgangs.
+     */
+    private static final class Parser
+    {
+        private final XMLStreamReader xml;
+
+        /**
+         * Pfade der geöffneten Elemente, z.B.
+         * {@code /client[1]/securities[1]/security[2]}
+         */
+        private final Deque<String> paths = new ArrayDeque<>();
+        private final Map<String, Object> byPath = new HashMap<>();
+        private final Map<String, Object> byId = new HashMap<>();
+
+        private final List<SecurityData> securities = new ArrayList<>();
+        private final List<PortfolioData> portfolios = new ArrayList<>();
+
+        private Parser(XMLStreamReader xml)
+        {
+            this.xml = xml;
+        }
+
+        private void readClient() throws XMLStreamException, IOException
+        {
+            if (xml.nextTag() != XMLStreamConstants.START_ELEMENT || !"client".equals(xml.getLocalName()))
+            { throw new IOException("Keine Portfolio Performance XML-Datei"); }
+
+            paths.push("/client[1]");
+            readChildren(name -> {
+                switch (name)
+                {
+                    case "securities" -> readChildren(child -> securities.add(readSecurity()));
+                    case "accounts" -> readChildren(child -> readAccount());
+                    case "portfolios" -> readChildren(child -> portfolios.add(readPortfolio()));
+                    default -> skip();
+                }
+            });
+        }
+
+        private SecurityData readSecurity() throws XMLStreamException, IOException
+        {
+            if (isReference())
+            { return resolve(SecurityData.class); }
+
+            SecurityData security = register(new SecurityData());
+            readChildren(name -> {
+                switch (name)
+                {
+                    case "uuid" -> security.uuid = xml.getElementText();
+                    case "name" -> security.name = xml.getElementText();
+                    case "currencyCode" -> security.currencyCode = xml.getElementText();
+                    case "isin" -> security.isin = xml.getElementText();
+                    case "wkn" -> security.wkn = xml.getElementText();
+                    case "tickerSymbol" -> security.tickerSymbol = xml.getElementText();
+                    case "prices" -> readChildren(child -> {
+                        // Kurse sind nach Datum sortiert, nur der letzte
+                        // wird für die Bewertung gebraucht
+                        security.lastPrice = new SecurityPrice(LocalDate.parse(attribute("t")),
+                                        Long.parseLong(attribute("v")));
+                        skip();
+                    });
+                    case "latest" -> {
+                        security.latest = new LatestSecurityPrice(LocalDate.parse(attribute("t")),
+                                        Long.parseLong(attribute("v")));
+                        skip();
+                    }
+                    default -> skip();
+                }
+            });
+            return security;
+        }
+
+        private AccountData readAccount() throws XMLStreamException, IOException
+        {
+            if (isReference())
+            { return resolve(AccountData.class); }
+
+            AccountData account = register(new AccountData());
+            readChildren(name -> {
+                switch (name)
+                {
+                    case "name" -> account.name = xml.getElementText();
+                    case "transactions" -> readChildren(child -> readAccountTransaction());
+                    default -> skip();
+                }
+            });
+            return account;
+        }
+
+        /**
+         * Kontobuchungen werden nur nach verknüpften Depotumsätzen
+         * durchsucht. Sie werden nicht registriert, Referenzen auf sie werden
+         * überlesen.
+         */
+        private Object readAccountTransaction() throws XMLStreamException, IOException
+        {
+            if (isReference())
+            {
+                skip();
+                return ACCOUNT_TRANSACTION;
+            }
+
+            readChildren(name -> {
+                if ("crossEntry".equals(name))
+                {
+                    readCrossEntry();
+                }
+                else
+                {
+                    skip();
+                }
+            });
+            return ACCOUNT_TRANSACTION;
+        }
+
+        private PortfolioData readPortfolio() throws XMLStreamException, IOException
+        {
+            if (isReference())
+            { return resolve(PortfolioData.class); }
+
+            PortfolioData portfolio = register(new PortfolioData());
+            readChildren(name -> {
+                switch (name)
+                {
+                    case "uuid" -> portfolio.uuid = xml.getElementText();
+                    case "name" -> portfolio.name = xml.getElementText();
+                    case "referenceAccount" -> portfolio.referenceAccount = readAccount();
+                    case "transactions" -> readChildren(child -> portfolio.transactions.add(readTransaction()));
+                    default -> skip();
+                }
+            });
+            return portfolio;
+        }
+
+        private TransactionData readTransaction() throws XMLStreamException, IOException
+        {
+            if (isReference())
+            { return resolve(TransactionData.class); }
+
+            TransactionData transaction = register(new TransactionData());
+            readChildren(name -> {
+                switch (name)
+                {
+                    case "uuid" -> transaction.uuid = xml.getElementText();
+                    case "type" -> transaction.type = PortfolioTransaction.Type.valueOf(xml.getElementText());
+                    case "date" -> transaction.dateTime = parseDateTime(xml.getElementText());
+                    case "currencyCode" -> transaction.currencyCode = xml.getElementText();
+                    case "amount" -> transaction.amount = Long.parseLong(xml.getElementText());
+                    case "shares" -> transaction.shares = Long.parseLong(xml.getElementText());
+                    case "security" -> transaction.security = readSecurity();
+                    case "crossEntry" -> transaction.crossEntry = readCrossEntry();
+                    case "units" -> readChildren(child -> readUnit(transaction));
+                    default -> skip();
+                }
+            });
+            return transaction;
+        }
+
+        /**
+         * Übernimmt Gebühren und Steuern, sie gehen in den Brutto-Kaufpreis
+         * ein. Bruttobeträge in Fremdwährung werden nicht gebraucht.
+         */
+        private void readUnit(TransactionData transaction) throws XMLStreamException, IOException
+        {
+            Unit.Type type = Unit.Type.valueOf(attribute("type"));
+            readChildren(name -> {
+                if ("amount".equals(name) && (type == Unit.Type.FEE || type == Unit.Type.TAX))
+                {
+                    transaction.units.add(new Unit(type,
+                                    Money.of(attribute("currency"), Long.parseLong(attribute("amount")))));
+                }
+                skip();
+            });
+        }
+
+        private CrossEntryData readCrossEntry() throws XMLStreamException, IOException
+        {
+            if (isReference())
+            { return resolve(CrossEntryData.class); }
+
+            CrossEntryData crossEntry = register(new CrossEntryData(xml.getAttributeValue(null, "class")));
+            readChildren(name -> {
+                switch (name)
+                {
+                    case "portfolio", "portfolioFrom" -> crossEntry.portfolio = readPortfolio();
+                    case "portfolioTo" -> crossEntry.portfolioTo = readPortfolio();
+                    case "account" -> crossEntry.account = readAccount();
+                    case "accountFrom", "accountTo" -> readAccount();
+                    case "portfolioTransaction" -> readTransaction();
+                    case "transactionFrom", "transactionTo" -> {
+                        if (PORTFOLIO_TRANSFER.equals(crossEntry.kind))
+                        {
+                            TransactionData transaction = readTransaction();
+                            if ("transactionTo".equals(name))
+                            {
+                                crossEntry.transactionTo = transaction;
+                            }
+                        }
+                        else
+                        {
+                            readAccountTransaction();
+                        }
+                    }
+                    case "accountTransaction" -> readAccountTransaction();
+                    default -> skip();
+                }
+            });
+            return crossEntry;
+        }
+
+        /**
+         * Liest alle Kindelemente des aktuellen Elements. Der Handler muss das
+         * Kindelement bis zu dessen Ende lesen.
+         */
+        private void readChildren(ChildHandler handler) throws XMLStreamException, IOException
+        {
+            Map<String, Integer> counts = new HashMap<>();
+            while (true)
+            {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT)
+                { return; }
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String name = xml.getLocalName();
+                    int index = counts.merge(name, 1, Integer::sum);
+                    paths.push(paths.peek() + '/' + name + '[' + index + ']');
+                    handler.handle(name);
+                    paths.pop();
+                }
+            }
+        }
+
+        private void skip() throws XMLStreamException
+        {
+            int depth = 1;
+            while (depth > 0)
+            {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    depth++;
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    depth--;
+                }
+            }
+        }
+
+        private String attribute(String name) throws IOException
+        {
+            String value = xml.getAttributeValue(null, name);
+            if (value == null)
+            { throw new IOException("Attribut " + name + " fehlt in " + paths.peek()); }
+            return value;
+        }
+
+        private boolean isReference()
+        {
+            return xml.getAttributeValue(null, "reference") != null;
+        }
+
+        private <T> T register(T data)
+        {
+            byPath.put(paths.peek(), data);
+            String id = xml.getAttributeValue(null, "id");
+            if (id != null)
+            {
+                byId.put(id, data);
+            }
+            return data;
+        }
+
+        private <T> T resolve(Class<T> type) throws XMLStreamException, IOException
+        {
+            String reference = xml.getAttributeValue(null, "reference");
+            Object data = byId.get(reference);
+            if (data == null)
+            {
+                data = byPath.get(resolvePath(paths.peek(), reference));
+            }
+            if (!type.isInstance(data))
+            { throw new IOException("Ungültige Referenz " + reference + " in " + paths.peek()); }
+
+            skip();
+            return type.cast(data);
+        }
+
+        private static LocalDateTime parseDateTime(String value)
+        {
+            return value.length() <= 10 ? LocalDate.parse(value).atStartOfDay() : LocalDateTime.parse(value);
+        }
+
+        private Client build()
+        {
+            Client client = new Client();
+            for (SecurityData security : securities)
+            {
+                client.addSecurity(toSecurity(security));
+            }
+            for (PortfolioData portfolio : portfolios)
+            {
+                client.addPortfolio(toPortfolio(portfolio));
+            }
+
+            // Reihenfolge der Umsätze je Depot wie in der Datei
+            for (PortfolioData portfolio : portfolios)
+            {
+                for (TransactionData transaction : portfolio.transactions)
+                {
+                    PortfolioTransaction tx = toTransaction(portfolio, transaction);
+                    setUuid(TRANSACTION_UUID, tx, transaction.uuid);
+                    portfolio.portfolio.addTransaction(tx);
+                }
+            }
+            return client;
+        }
+
+        private PortfolioTransaction toTransaction(PortfolioData portfolio, TransactionData data)
+        {
+            CrossEntryData crossEntry = data.crossEntry;
+            String kind = crossEntry != null ? crossEntry.kind : null;
+
+            if (BUY_SELL.equals(kind))
+            {
+                BuySellEntry entry = new BuySellEntry(toPortfolio(portfolio), toAccount(crossEntry.account));
+                entry.setType(data.type);
+                entry.setDate(data.dateTime);
+                entry.setSecurity(toSecurity(data.security));
+                entry.setShares(data.shares);
+                entry.setAmount(data.amount);
+                entry.setCurrencyCode(data.currencyCode);
+                PortfolioTransaction transaction = entry.getPortfolioTransaction();
+                data.units.forEach(transaction::addUnit);
+                return transaction;
+            }
+
+            if (PORTFOLIO_TRANSFER.equals(kind))
+            {
+                if (crossEntry.transfer == null)
+                {
+                    PortfolioTransferEntry entry = new PortfolioTransferEntry(toPortfolio(crossEntry.portfolio),
+                                    toPortfolio(crossEntry.portfolioTo));
+                    entry.setDate(data.dateTime);
+                    entry.setSecurity(toSecurity(data.security));
+                    entry.setShares(data.shares);
+                    entry.setAmount(data.amount);
+                    entry.setCurrencyCode(data.currencyCode);
+                    crossEntry.transfer = entry;
+                }
+                return data == crossEntry.transactionTo ? crossEntry.transfer.getTargetTransaction()
+                                : crossEntry.transfer.getSourceTransaction();
+            }
+
+            PortfolioTransaction transaction = new PortfolioTransaction();
+            transaction.setType(data.type);
+            transaction.setDateTime(data.dateTime);
+            transaction.setSecurity(toSecurity(data.security));
+            transaction.setShares(data.shares);
+            transaction.setAmount(data.amount);
+            transaction.setCurrencyCode(data.currencyCode);
+            data.units.forEach(transaction::addUnit);
+            return transaction;
+        }
+
+        private static Security toSecurity(SecurityData data)
+        {
+            if (data == null)
+            { return null; }
+            if (data.security == null)
+            {
+                Security security = new Security(data.name, data.currencyCode);
+                setUuid(SECURITY_UUID, security, data.uuid);
+                security.setIsin(data.isin);
+                security.setWkn(data.wkn);
+                security.setTickerSymbol(data.tickerSymbol);
+                if (data.lastPrice != null)
+                {
+                    security.addPrice(data.lastPrice);
+                }
+                if (data.latest != null)
+                {
+                    security.setLatest(data.latest);
+                }
+                data.security = security;
+            }
+            return data.security;
+        }
+
+        private static Portfolio toPortfolio(PortfolioData data)
+        {
+            if (data.portfolio == null)
+            {
+                Portfolio portfolio = new Portfolio();
+                setUuid(PORTFOLIO_UUID, portfolio, data.uuid);
+                portfolio.setName(data.name);
+                if (data.referenceAccount != null)
+                {
+                    portfolio.setReferenceAccount(toAccount(data.referenceAccount));
+                }
+                data.portfolio = portfolio;
+            }
+            return data.portfolio;
+        }
+
+        private static Account toAccount(AccountData data)
+        {
+            if (data == null)
+            { return new Account(); }
+            if (data.account == null)
+            {
+                data.account = new Account(data.name);
+            }
+            return data.account;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import melled.portfolio.vorabpauschale.model.VapKey;
+import melled.portfolio.vorabpauschale.model.YearRange;
+
+/**
+ * Würfel der VAP-Werte über die Dimensionen Jahr, Depot, Wertpapier und
+ * Teilfreistellung. Die Zellen sind die Aggregationsschlüssel
+ * ({@link VapKey}) mit ihren Werten je Jahr. Für jede Dimension werden die
+ * Summen beim Aufbau vorberechnet, Abfragen liefern sie ohne weitere
+ * Rechnung.
+ * <p>
+ * Die Schlüssel sind nach Depot, ISIN und Name sortiert. Alle Summen werden in
+ * dieser Reihenfolge gebildet und entsprechen damit den Summen der
+ * VAP-Zusammenfassung.
+ */
+public final class VapCube
+{
+    /**
+     * Dimension für Summen über mehrere Schlüssel.
+     */
+    public enum Dimension
+    {
+        /** Summe je Depot über alle Wertpapiere, Element ist der Depotname */
+        DEPOT(VapKey::getBroker),
+        /**
+         * Summe je Wertpapier über alle Depots, Element ist der Schlüssel ohne
+         * Depot
+         */
+        SECURITY(key -> new VapKey(key.getIsin(), key.getName(), null, key.getTfsPercentage())),
+        /** Summe je Teilfreistellung in Prozent */
+        TFS(VapKey::getTfsPercentage);
+
+        private final Function<VapKey, Object> member;
+
+        Dimension(Function<VapKey, Object> member)
+        {
+            this.member = member;
+        }
+
+        /**
+         * @return Element der Dimension, zu dem der Schlüssel gehört
+         */
+        public Object memberOf(VapKey key)
+        {
+            return member.apply(key);
+        }
+    }
+
+    /**
+     * Werte je Jahr eines Schlüssels oder einer Summe.
+     */
+    public static final class Slice
+    {
+        private final Object member;
+        private final int[] years;
+        private final double[] beforeTfs;
+        private final double[] afterTfs;
+        private final List<VapKey> keys;
+
+        private Slice(Object member, int[] years, double[] beforeTfs, double[] afterTfs, List<VapKey> keys)
+        {
+            this.member = member;
+            this.years = years;
+            this.beforeTfs = beforeTfs;
+            this.afterTfs = afterTfs;
+            this.keys = keys;
+        }
+
+        /**
+         * @return Schlüssel oder Element der Dimension, {@code null} für die
+         *         Gesamtsumme
+         */
+        public Object getMember()
+        {
+            return member;
+        }
+
+        /**
+         * @return enthaltene Schlüssel in sortierter Reihenfolge
+         */
+        public List<VapKey> getKeys()
+        {
+            return keys;
+        }
+
+        public double getVapBeforeTfs(int year)
+        {
+            int index = Arrays.binarySearch(years, year);
+            return index >= 0 ? beforeTfs[index] : 0.0;
+        }
+
+        public double getVapAfterTfs(int year)
+        {
+            int index = Arrays.binarySearch(years, year);
+            return index >= 0 ? afterTfs[index] : 0.0;
+        }
+
+        /**
+         * @return Summe vor TFS über alle Jahre
+         */
+        public double getTotalBeforeTfs()
+        {
+            double sum = 0;
+            for (double value : beforeTfs)
+            {
+                sum += value;
+            }
+            return sum;
+        }
+
+        /**
+         * @return Summe nach TFS über alle Jahre
+         */
+        public double getTotalAfterTfs()
+        {
+            double sum = 0;
+            for (double value : afterTfs)
+            {
+                sum += value;
+            }
+            return sum;
+        }
+
+        double[] beforeTfs()
+        {
+            return beforeTfs;
+        }
+
+        double[] afterTfs()
+        {
+            return afterTfs;
+        }
+    }
+
+    private static final Comparator<VapKey> KEY_ORDER = Comparator.comparing(VapKey::getBroker)
+                    .thenComparing(VapKey::getIsin).thenComparing(VapKey::getName);
+
+    private final int[] years;
+    private final List<VapKey> keys;
+    private final Map<VapKey, Slice> cells;
+    private final Map<Dimension, Map<Object, Slice>> rollUps = new EnumMap<>(Dimension.class);
+    private final Slice total;
+
+    private VapCube(int[] years, List<VapKey> keys, Map<VapKey, Slice> cells)
+    {
+        this.years = years;
+        this.keys = keys;
+        this.cells = cells;
+
+        for (Dimension dimension : Dimension.values())
+        {
+            rollUps.put(dimension, rollUp(dimension::memberOf));
+        }
+        this.total = rollUp(key -> Boolean.TRUE).getOrDefault(Boolean.TRUE, emptySlice());
+    }
+
+    /**
+     * Baut den Würfel aus einer Matrix mit einer Zeile je Schlüssel.
+     *
+     * @param keys
+     *            Schlüssel in Reihenfolge der Matrixzeilen
+     * @param yearRange
+     *            Jahre der Matrixspalten
+     * @param matrix
+     *            VAP vor TFS, {@code [Schlüssel × Jahre]}
+     */
+    static VapCube create(List<VapKey> keys, YearRange yearRange, double[] matrix)
+    {
+        int[] years = yearRange.toArray();
+        int columns = years.length;
+
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(keys::get, KEY_ORDER));
+
+        List<VapKey> sortedKeys = new ArrayList<>(order.length);
+        Map<VapKey, Slice> cells = new HashMap<>();
+        for (int ordinal : order)
+        {
+            VapKey key = keys.get(ordinal);
+
+            double[] beforeTfs = Arrays.copyOfRange(matrix, ordinal * columns, (ordinal + 1) * columns);
+            double[] afterTfs = new double[columns];
+            for (int column = 0; column < columns; column++)
+            {
+                double vapBefore = beforeTfs[column];
+                double tfsAmount = (vapBefore * key.getTfsPercentage()) / 100.0;
+                afterTfs[column] = vapBefore - tfsAmount;
+            }
+
+            sortedKeys.add(key);
+            cells.put(key, new Slice(key, years, beforeTfs, afterTfs, List.of(key)));
+        }
+
+        return new VapCube(years, Collections.unmodifiableList(sortedKeys), cells);
+    }
+
+    private Map<Object, Slice> rollUp(Function<VapKey, Object> memberOf)
+    {
+        Map<Object, List<VapKey>> members = new LinkedHashMap<>();
+        for (VapKey key : keys)
+        {
+            members.computeIfAbsent(memberOf.apply(key), m -> new ArrayList<>()).add(key);
+        }
+
+        Map<Object, Slice> result = new LinkedHashMap<>();
+        for (Map.Entry<Object, List<VapKey>> member : members.entrySet())
+        {
+            double[] beforeTfs = new double[years.length];
+            double[] afterTfs = new double[years.length];
+            for (VapKey key : member.getValue())
+            {
+                Slice cell = cells.get(key);
+                for (int column = 0; column < years.length; column++)
+                {
+                    beforeTfs[column] += cell.beforeTfs[column];
+                    afterTfs[column] += cell.afterTfs[column];
+                }
+            }
+            result.put(member.getKey(), new Slice(member.getKey(), years, beforeTfs, afterTfs,
+                            Collections.unmodifiableList(member.getValue())));
+        }
+        return result;
+    }
+
+    private Slice emptySlice()
+    {
+        return new Slice(null, years, new double[years.length], new double[years.length], List.of());
+    }
+
+    /**
+     * @return aufsteigend sortierte Jahre
+     */
+    public int[] getYears()
+    {
+        return years.clone();
+    }
+
+    /**
+     * @return alle Schlüssel, sortiert nach Depot, ISIN und Name
+     */
+    public List<VapKey> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return Werte eines Schlüssels oder {@code null}, falls unbekannt
+     */
+    public Slice get(VapKey key)
+    {
+        return cells.get(key);
+    }
+
+    /**
+     * @return vorberechnete Summen aller Elemente einer Dimension, in
+     *         Reihenfolge des ersten Schlüssels
+     */
+    public Collection<Slice> rollUp(Dimension dimension)
+    {
+        return Collections.unmodifiableCollection(rollUps.get(dimension).values());
+    }
+
+    /**
+     * @return vorberechnete Summe eines Elements der Dimension oder
+     *         {@code null}, falls unbekannt
+     */
+    public Slice rollUp(Dimension dimension, Object member)
+    {
+        return rollUps.get(dimension).get(member);
+    }
+
+    /**
+     * @return Gesamtsumme über alle Schlüssel, je Jahr
+     */
+    public Slice total()
+    {
+        return total;
+    }
+
+    public boolean isEmpty()
+    {
+        return keys.isEmpty();
+    }
+}
@@ -1,52 +1,88 @@
 package melled.portfolio.vorabpauschale.service;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import jakarta.inject.Inject;
 
+import org.apache.poi.common.usermodel.HyperlinkType;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.DataFormat;
 import org.apache.poi.ss.usermodel.FillPatternType;
 import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Hyperlink;
 import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.VerticalAlignment;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.eclipse.e4.core.di.annotations.Creatable;
 
+import melled.portfolio.vorabpauschale.model.LotStore;
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.model.YearRange;
 import melled.portfolio.vorabpauschale.service.VapCalculator.VapEntry;
+import melled.portfolio.vorabpauschale.service.VapExportOptions.SplitMode;
+import melled.portfolio.vorabpauschale.service.VapExportProfile.Strategy;
+import melled.portfolio.vorabpauschale.service.VapSheetCache.CachedPart;
 import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
 import name.abuchen.portfolio.model.Portfolio;
 import name.abuchen.portfolio.model.Security;
 
 /**
- * Exportiert VAP-Daten nach Excel.
+ * Exportiert VAP-Daten nach Excel. Der Zustand eines Exports liegt in einem
+ * {@link ExportContext}, eine Instanz kann mehrere Exporte gleichzeitig
+ * ausführen.
  */
 @Creatable
 public class VapExcelExporter
 {
+    /**
+     * Version des Sheet-Layouts. Muss erhöht werden, sobald sich der Aufbau
+     * der Detail-Sheets ändert, damit gecachte Sheet-Parts verworfen werden.
+     */
+    private static final int DETAIL_SHEET_LAYOUT_VERSION = 3;
+    private static final Duration SHEET_CACHE_MAX_AGE = Duration.ofDays(180);
+    private static final VapEntry NO_VAP = new VapEntry(0.0, 0);
 
     private final VapCalculator vapCalculator;
     private final VapSummaryCollector vapSummaryCollector;
     private final PortfolioValueCalculator portfolioValueCalculator;
 
-    private Map<Portfolio, List<UnsoldTransaction>> transactions;
-    private List<VapSummaryRow> summaryRows;
-    private Set<Integer> allYears;
-
     @Inject
     public VapExcelExporter(VapCalculator vapCalculator, VapSummaryCollector vapSummaryCollector,
                     PortfolioValueCalculator portfolioValueCalculator)
@@ -56,13 +92,12 @@ public class VapExcelExporter
         this.portfolioValueCalculator = portfolioValueCalculator;
     }
 
-    private Set<Integer> extractAllYears(List<VapSummaryRow> rows)
+    private YearRange extractAllYears(List<VapSummaryRow> rows)
     {
-        Set<Integer> years = new TreeSet<>();
+        YearRange years = YearRange.EMPTY;
         for (VapSummaryRow row : rows)
         {
-            years.addAll(row.getVapBeforeTfs().keySet());
-            years.addAll(row.getVapAfterTfs().keySet());
+            years = years.union(YearRange.of(row.getYears()));
         }
         return years;
     }
@@ -78,31 +113,614 @@ public class VapExcelExporter
     public void export(String metadataFile, String outputFile, Map<Portfolio, List<UnsoldTransaction>> transactions)
                     throws IOException
     {
-        vapCalculator.initializeVapData(metadataFile);
-        this.transactions = transactions;
-        this.summaryRows = vapSummaryCollector.collectSummary(transactions);
-        this.allYears = extractAllYears(summaryRows);
+        export(metadataFile, outputFile, transactions, new VapExportOptions());
+    }
+
+    /**
+     * Exportiert VAP-Zusammenfassung und Detail-Sheets nach Excel. Je nach
+     * {@link VapExportOptions#getSplitMode()} werden die Detail-Sheets auf
+     * mehrere Arbeitsmappen verteilt, die parallel geschrieben werden. Die
+     * Ausgabedatei enthält dann die VAP-Zusammenfassung und ein Index-Sheet
+     * mit Verweisen auf die Teil-Dateien. Teil-Dateien eines früheren Exports
+     * in dieselbe Ausgabedatei, die nicht mehr entstehen, werden gelöscht.
+     *
+     * @param outputFile
+     *            Ausgabedatei
+     * @param options
+     *            Export-Optionen
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, String outputFile, Map<Portfolio, List<UnsoldTransaction>> transactions,
+                    VapExportOptions options) throws IOException
+    {
+        exportPrepared(prepare(metadataFile, transactions, options), outputFile);
+    }
+
+    /**
+     * Exportiert VAP-Zusammenfassung und Detail-Sheets für Lots aus einer
+     * spaltenweisen Ablage nach Excel. Eine inkrementelle Zusammenfassung aus
+     * {@link VapExportOptions#getSummaryView()} wird dabei nicht verwendet.
+     *
+     * @param outputFile
+     *            Ausgabedatei
+     * @param lots
+     *            offene Lots aller Portfolios
+     * @param options
+     *            Export-Optionen
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, String outputFile, LotStore lots, VapExportOptions options)
+                    throws IOException
+    {
+        exportPrepared(prepare(metadataFile, lots, options), outputFile);
+    }
+
+    /**
+     * Exportiert wie {@link #export(String, String, LotStore, VapExportOptions)}
+     * mit einer bereits berechneten Zusammenfassung, z.B. aus
+     * {@link VapPrecomputeService}.
+     *
+     * @param outputFile
+     *            Ausgabedatei
+     * @param lots
+     *            offene Lots aller Portfolios
+     * @param summaryRows
+     *            Zusammenfassung zu {@code lots} und {@code metadataFile}
+     * @param options
+     *            Export-Optionen
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, String outputFile, LotStore lots, List<VapSummaryRow> summaryRows,
+                    VapExportOptions options) throws IOException
+    {
+        exportPrepared(prepare(vapCalculator.loadIndex(metadataFile), lots, summaryRows, options), outputFile);
+    }
+
+    /**
+     * Exportiert wie {@link #export(String, String, LotStore, VapExportOptions)}
+     * mit bereits geladenen Metadaten, z.B. für mehrere Portfolio-Dateien mit
+     * denselben Metadaten.
+     *
+     * @param index
+     *            geladene Metadaten, siehe {@link VapCalculator#loadIndex(String)}
+     * @param outputFile
+     *            Ausgabedatei
+     * @param lots
+     *            offene Lots aller Portfolios
+     * @param options
+     *            Export-Optionen
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(VapMetadataIndex index, String outputFile, LotStore lots, VapExportOptions options)
+                    throws IOException
+    {
+        exportPrepared(prepare(index, lots, options), outputFile);
+    }
+
+    /**
+     * Schreibt eine Arbeitsmappe, die nur die VAP-Zusammenfassung enthält,
+     * z.B. eine Haushaltsübersicht aus
+     * {@link VapSummaryCollector#collectHouseholdSummary(VapMetadataIndex, Map)}.
+     *
+     * @param outputFile
+     *            Ausgabedatei
+     * @param summaryRows
+     *            Zeilen der Zusammenfassung
+     * @param options
+     *            Export-Optionen, Aufteilung und Sheet-Cache werden nicht
+     *            verwendet
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void exportSummary(String outputFile, List<VapSummaryRow> summaryRows, VapExportOptions options)
+                    throws IOException
+    {
+        ExportContext context = new ExportContext(VapMetadataIndex.EMPTY, LotStore.builder().build(), summaryRows,
+                        extractAllYears(summaryRows), options,
+                        portfolioValueCalculator.getTaxCalculator().getProfile());
+        try (OutputStream out = openOutput(outputFile, options))
+        {
+            writeWorkbook(context, out, estimateSummaryCells(context),
+                            (workbook, sheetParts) -> createVapSummarySheet(context, workbook));
+        }
+    }
 
-        if (summaryRows.isEmpty())
+    private void exportPrepared(ExportContext context, String outputFile) throws IOException
+    {
+        if (context.getSummaryRows().isEmpty())
         { return; }
 
-        try (Workbook workbook = new SXSSFWorkbook())
+        VapExportOptions options = context.getOptions();
+        List<DetailSheet> detailSheets = collectDetailSheets(context);
+
+        if (options.getSplitMode() == SplitMode.NONE)
+        {
+            try (OutputStream out = openOutput(outputFile, options))
+            {
+                writeSingleWorkbook(context, out, detailSheets);
+            }
+        }
+        else
+        {
+            exportSplit(context, outputFile, splitDetailSheets(outputFile, detailSheets, options));
+        }
+
+        pruneSheetCache(context);
+    }
+
+    /**
+     * Exportiert VAP-Zusammenfassung und Detail-Sheets als eine Arbeitsmappe in
+     * einen Stream, z.B. in eine Netzwerkverbindung oder einen Puffer im
+     * Speicher. Der Stream wird nicht geschlossen. Mit
+     * {@link VapExportOptions#isAsyncWrite()} wird über einen eigenen
+     * Schreib-Thread geschrieben.
+     *
+     * @param out
+     *            Ziel der xlsx-Daten
+     * @param options
+     *            Export-Optionen, Aufteilung wird nicht unterstützt
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, OutputStream out, Map<Portfolio, List<UnsoldTransaction>> transactions,
+                    VapExportOptions options) throws IOException
+    {
+        if (options.getSplitMode() != SplitMode.NONE)
+        { throw new IllegalArgumentException("Aufgeteilter Export benötigt eine Ausgabedatei"); }
+
+        exportPrepared(prepare(metadataFile, transactions, options), out);
+    }
+
+    /**
+     * Exportiert VAP-Zusammenfassung und Detail-Sheets für Lots aus einer
+     * spaltenweisen Ablage als eine Arbeitsmappe in einen Stream. Der Stream
+     * wird nicht geschlossen.
+     *
+     * @param out
+     *            Ziel der xlsx-Daten
+     * @param lots
+     *            offene Lots aller Portfolios
+     * @param options
+     *            Export-Optionen, Aufteilung wird nicht unterstützt
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, OutputStream out, LotStore lots, VapExportOptions options)
+                    throws IOException
+    {
+        if (options.getSplitMode() != SplitMode.NONE)
+        { throw new IllegalArgumentException("Aufgeteilter Export benötigt eine Ausgabedatei"); }
+
+        exportPrepared(prepare(metadataFile, lots, options), out);
+    }
+
+    /**
+     * Exportiert wie {@link #export(String, OutputStream, LotStore, VapExportOptions)}
+     * mit einer bereits berechneten Zusammenfassung. Der Stream wird nicht
+     * geschlossen.
+     *
+     * @param out
+     *            Ziel der xlsx-Daten
+     * @param lots
+     *            offene Lots aller Portfolios
+     * @param summaryRows
+     *            Zusammenfassung zu {@code lots} und {@code metadataFile}
+     * @param options
+     *            Export-Optionen, Aufteilung wird nicht unterstützt
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, OutputStream out, LotStore lots, List<VapSummaryRow> summaryRows,
+                    VapExportOptions options) throws IOException
+    {
+        if (options.getSplitMode() != SplitMode.NONE)
+        { throw new IllegalArgumentException("Aufgeteilter Export benötigt eine Ausgabedatei"); }
+
+        exportPrepared(prepare(vapCalculator.loadIndex(metadataFile), lots, summaryRows, options), out);
+    }
+
+    private void exportPrepared(ExportContext context, OutputStream out) throws IOException
+    {
+        if (context.getSummaryRows().isEmpty())
+        { return; }
+
+        List<DetailSheet> detailSheets = collectDetailSheets(context);
+
+        if (context.getOptions().isAsyncWrite())
+        {
+            try (OutputStream asyncOut = new AsyncOutputStream(out, false))
+            {
+                writeSingleWorkbook(context, asyncOut, detailSheets);
+            }
+        }
+        else
+        {
+            writeSingleWorkbook(context, out, detailSheets);
+        }
+        out.flush();
+
+        pruneSheetCache(context);
+    }
+
+    /**
+     * Exportiert VAP-Zusammenfassung und Detail-Sheets als eine Arbeitsmappe in
+     * einen Kanal. Der Kanal wird nicht geschlossen.
+     *
+     * @param channel
+     *            Ziel der xlsx-Daten
+     * @param options
+     *            Export-Optionen, Aufteilung wird nicht unterstützt
+     * @throws IOException
+     *             bei Schreibfehlern
+     */
+    public void export(String metadataFile, WritableByteChannel channel,
+                    Map<Portfolio, List<UnsoldTransaction>> transactions, VapExportOptions options) throws IOException
+    {
+        export(metadataFile, Channels.newOutputStream(channel), transactions, options);
+    }
+
+    private ExportContext prepare(String metadataFile, Map<Portfolio, List<UnsoldTransaction>> transactions,
+                    VapExportOptions options)
+    {
+        VapMetadataIndex index = vapCalculator.loadIndex(metadataFile);
+        LotStore lots = LotStore.of(transactions);
+        List<VapSummaryRow> rows;
+        if (options.getSummaryView() != null)
+        {
+            rows = options.getSummaryView().update(index, metadataFile, transactions);
+        }
+        else if (options.isMonthBuckets() || (options.getClosedYearCache() != null))
+        {
+            rows = collectSummary(index, lots, options);
+        }
+        else
+        {
+            rows = vapSummaryCollector.collectSummary(index, transactions, options.getParallelism());
+        }
+        return prepare(index, lots, rows, options);
+    }
+
+    private ExportContext prepare(String metadataFile, LotStore lots, VapExportOptions options)
+    {
+        return prepare(vapCalculator.loadIndex(metadataFile), lots, options);
+    }
+
+    private ExportContext prepare(VapMetadataIndex index, LotStore lots, VapExportOptions options)
+    {
+        return prepare(index, lots, collectSummary(index, lots, options), options);
+    }
+
+    private List<VapSummaryRow> collectSummary(VapMetadataIndex index, LotStore lots, VapExportOptions options)
+    {
+        LotStore vapLots = options.isMonthBuckets() ? lots.compressByMonth() : lots;
+        if (options.getClosedYearCache() != null)
+        {
+            return vapSummaryCollector.collectSummary(index, vapLots, options.getParallelism(),
+                            options.getClosedYearCache());
+        }
+        return vapSummaryCollector.collectSummary(index, vapLots, options.getParallelism());
+    }
+
+    private ExportContext prepare(VapMetadataIndex index, LotStore lots, List<VapSummaryRow> summaryRows,
+                    VapExportOptions options)
+    {
+        TaxProfile taxProfile = options.getTaxProfile() != null
+                        ? options.getTaxProfile()
+                        : portfolioValueCalculator.getTaxCalculator().getProfile();
+        return new ExportContext(index, lots, summaryRows, extractAllYears(summaryRows), options, taxProfile);
+    }
+
+    private void writeSingleWorkbook(ExportContext context, OutputStream out, List<DetailSheet> detailSheets)
+                    throws IOException
+    {
+        writeWorkbook(context, out, estimateSummaryCells(context) + estimateDetailCells(context, detailSheets),
+                        (workbook, sheetParts) -> {
+                            createVapSummarySheet(context, workbook);
+                            createDetailSheets(context, workbook, detailSheets, sheetParts);
+                        });
+    }
+
+    private void pruneSheetCache(ExportContext context)
+    {
+        if (context.getSheetCache() != null)
+        {
+            context.getSheetCache().prune(SHEET_CACHE_MAX_AGE);
+        }
+    }
+
+    /**
+     * Öffnet eine Ausgabedatei, gepuffert oder mit eigenem Schreib-Thread.
+     */
+    private static OutputStream openOutput(String file, VapExportOptions options) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        return options.isAsyncWrite() ? new AsyncOutputStream(out, true) : new BufferedOutputStream(out);
+    }
+
+    /**
+     * Schreibt die Teil-Arbeitsmappen parallel und danach die Zusammenfassung
+     * mit Index-Sheet in die Ausgabedatei. Schlägt eine Teil-Arbeitsmappe fehl,
+     * entsteht keine Ausgabedatei, die auf unvollständige Teile verweist.
+     */
+    private void exportSplit(ExportContext context, String outputFile, List<WorkbookPart> parts) throws IOException
+    {
+        VapExportOptions options = context.getOptions();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                        Math.min(options.getParallelism(), parts.size())));
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (WorkbookPart part : parts)
+            {
+                futures.add(executor.submit(() -> {
+                    try (OutputStream out = openOutput(part.file().getPath(), options))
+                    {
+                        writeWorkbook(context, out, estimateDetailCells(context, part.sheets()),
+                                        (workbook, sheetParts) -> createDetailSheets(context, workbook, part.sheets(),
+                                                        sheetParts));
+                    }
+                    return null;
+                }));
+            }
+
+            awaitAll(futures);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        try (OutputStream out = openOutput(outputFile, options))
+        {
+            writeWorkbook(context, out, estimateSummaryCells(context) + (parts.size() * 3L),
+                            (workbook, sheetParts) -> {
+                                createVapSummarySheet(context, workbook);
+                                createIndexSheet(workbook, parts);
+                            });
+        }
+
+        deleteStaleParts(outputFile, parts);
+    }
+
+    /**
+     * Löscht Teil-Arbeitsmappen eines früheren Exports, z.B. eines Depots,
+     * das es nicht mehr gibt. Teil-Dateien heißen wie die Ausgabedatei mit
+     * laufender Nummer und Inhalt, siehe {@link #splitDetailSheets}.
+     */
+    private static void deleteStaleParts(String outputFile, List<WorkbookPart> parts) throws IOException
+    {
+        File output = new File(outputFile).getAbsoluteFile();
+        Pattern partName = Pattern.compile(Pattern.quote(getPartBaseName(output)) + "_\\d{2,}_.*\\.xlsx");
+        Set<File> current = new HashSet<>();
+        parts.forEach(part -> current.add(part.file().getAbsoluteFile()));
+
+        File[] files = output.getParentFile().listFiles((dir, name) -> partName.matcher(name).matches());
+        if (files == null)
+        { return; }
+
+        for (File file : files)
+        {
+            if (!current.contains(file))
+            {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    private static String getPartBaseName(File output)
+    {
+        return output.getName().replaceFirst("(?i)\\.xlsx$", "");
+    }
+
+    private void awaitAll(List<Future<Void>> futures) throws IOException
+    {
+        for (Future<Void> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Export abgebrochen");
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof IOException ioException)
+                { throw ioException; }
+                if (e.getCause() instanceof RuntimeException runtimeException)
+                { throw runtimeException; }
+                throw new IOException("Fehler beim Schreiben der Teil-Arbeitsmappe", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Erzeugt eine Arbeitsmappe gemäß Speicherprofil, befüllt und schreibt
+     * sie. Temporäre Dateien des Streamings werden in jedem Fall gelöscht.
+     */
+    private void writeWorkbook(ExportContext context, OutputStream out, long estimatedCells, WorkbookContent content)
+                    throws IOException
+    {
+        Workbook workbook = createWorkbook(context.getProfile(), estimatedCells, context.getSheetCache() != null);
+        try
+        {
+            SheetParts sheetParts = new SheetParts();
+            content.fill(workbook, sheetParts);
+            write(context.getSheetCache(), workbook, out, sheetParts);
+        }
+        finally
+        {
+            try
+            {
+                workbook.close();
+            }
+            finally
+            {
+                if (workbook instanceof SXSSFWorkbook sxssfWorkbook)
+                {
+                    sxssfWorkbook.dispose();
+                }
+            }
+        }
+    }
+
+    /**
+     * Erzeugt die Arbeitsmappe gemäß Speicherprofil. Mit Sheet-Cache wird
+     * immer streamend mit Inline-Texten geschrieben: gecachte Sheet-Parts
+     * dürfen keine Indizes in die Shared-Strings-Tabelle einer anderen
+     * Arbeitsmappe enthalten.
+     */
+    private Workbook createWorkbook(VapExportProfile profile, long estimatedCells, boolean portableSheets)
+    {
+        Strategy strategy = profile.resolveStrategy(estimatedCells);
+        if (portableSheets && (strategy == Strategy.IN_MEMORY))
         {
-            createVapSummarySheet(workbook);
+            strategy = Strategy.STREAMING;
+        }
+        boolean useSharedStrings = profile.isUseSharedStrings() && !portableSheets;
+
+        return switch (strategy)
+        {
+            case IN_MEMORY -> new XSSFWorkbook();
+            case STREAMING_COMPRESSED -> new SXSSFWorkbook(null, profile.getRowAccessWindow(), true,
+                            useSharedStrings);
+            default -> new SXSSFWorkbook(null, profile.getRowAccessWindow(), profile.isCompressTempFiles(),
+                            useSharedStrings);
+        };
+    }
+
+    private long estimateSummaryCells(ExportContext context)
+    {
+        return (context.getSummaryRows().size() + 1L) * (3L + (2L * context.getAllYears().size()));
+    }
+
+    private long estimateDetailCells(ExportContext context, List<DetailSheet> detailSheets)
+    {
+        long columns = 14L + context.getAllYears().size();
+        long cells = 0;
+        for (DetailSheet detailSheet : detailSheets)
+        {
+            cells += (detailSheet.lots().length + 1L) * columns;
+        }
+        return cells;
+    }
 
-            createDetailSheets(workbook);
+    /**
+     * Schreibt die Arbeitsmappe in den Stream, ohne ihn zu schließen. Mit
+     * Sheet-Cache wird zunächst in eine temporäre Datei geschrieben und die
+     * Ausgabe anschließend aus neu erzeugten und gecachten Sheet-Parts
+     * zusammengesetzt.
+     */
+    private void write(VapSheetCache sheetCache, Workbook workbook, OutputStream out, SheetParts sheetParts)
+                    throws IOException
+    {
+        if ((sheetCache == null) || (sheetParts.fingerprints.isEmpty() && sheetParts.hits.isEmpty()))
+        {
+            workbook.write(out);
+            return;
+        }
 
-            try (FileOutputStream fos = new FileOutputStream(outputFile))
+        File temp = File.createTempFile("vap-export", ".xlsx");
+        try
+        {
+            try (FileOutputStream fos = new FileOutputStream(temp))
             {
                 workbook.write(fos);
             }
+
+            sheetCache.assemble(temp, out, sheetParts.fingerprints, sheetParts.hits);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Verteilt die Detail-Sheets auf Teil-Arbeitsmappen neben der
+     * Ausgabedatei.
+     */
+    private List<WorkbookPart> splitDetailSheets(String outputFile, List<DetailSheet> detailSheets,
+                    VapExportOptions options)
+    {
+        Map<String, List<DetailSheet>> groups = new LinkedHashMap<>();
+        if (options.getSplitMode() == SplitMode.PER_DEPOT)
+        {
+            for (DetailSheet detailSheet : detailSheets)
+            {
+                groups.computeIfAbsent(detailSheet.broker(), k -> new ArrayList<>()).add(detailSheet);
+            }
+        }
+        else
+        {
+            int size = options.getSheetsPerWorkbook();
+            for (int i = 0; i < detailSheets.size(); i += size)
+            {
+                groups.put("Teil " + ((i / size) + 1),
+                                detailSheets.subList(i, Math.min(i + size, detailSheets.size())));
+            }
         }
+
+        File output = new File(outputFile);
+        String baseName = getPartBaseName(output);
+        List<WorkbookPart> parts = new ArrayList<>();
+        int index = 1;
+        for (Entry<String, List<DetailSheet>> group : groups.entrySet())
+        {
+            String fileName = String.format("%s_%02d_%s.xlsx", baseName, index++,
+                            group.getKey().replaceAll("[\\\\/:*?\"<>|]", "_"));
+            parts.add(new WorkbookPart(group.getKey(), new File(output.getAbsoluteFile().getParentFile(), fileName),
+                            group.getValue()));
+        }
+        return parts;
+    }
+
+    /**
+     * Erstellt ein Index-Sheet mit Verweisen auf die Teil-Arbeitsmappen.
+     */
+    private void createIndexSheet(Workbook workbook, List<WorkbookPart> parts)
+    {
+        Sheet sheet = workbook.createSheet("Index");
+        CellStyle headerStyle = createHeaderStyle(workbook);
+        CellStyle linkStyle = createLinkStyle(workbook);
+
+        Row headerRow = sheet.createRow(0);
+        createCell(headerRow, 0, "Datei", headerStyle);
+        createCell(headerRow, 1, "Inhalt", headerStyle);
+        createCell(headerRow, 2, "Anzahl Sheets", headerStyle);
+        sheet.createFreezePane(0, 1);
+
+        int rowIndex = 1;
+        for (WorkbookPart part : parts)
+        {
+            Row row = sheet.createRow(rowIndex++);
+
+            Hyperlink link = workbook.getCreationHelper().createHyperlink(HyperlinkType.FILE);
+            link.setAddress(part.file().getName());
+            Cell fileCell = row.createCell(0);
+            fileCell.setCellValue(part.file().getName());
+            fileCell.setHyperlink(link);
+            fileCell.setCellStyle(linkStyle);
+
+            createCell(row, 1, part.label(), null);
+            createCell(row, 2, part.sheets().size(), null);
+        }
+
+        sheet.setColumnWidth(0, 40 * 256);
+        sheet.setColumnWidth(1, 30 * 256);
+        sheet.setColumnWidth(2, 15 * 256);
     }
 
     /**
      * Erstellt das VAP-Zusammenfassungs-Sheet.
      */
-    private void createVapSummarySheet(Workbook workbook)
+    private void createVapSummarySheet(ExportContext context, Workbook workbook)
     {
         Sheet sheet = workbook.createSheet("VAP");
 
@@ -110,12 +728,13 @@ public class VapExcelExporter
         CellStyle moneyStyle = createMoneyStyle(workbook);
         CellStyle sumStyle = createSumStyle(workbook);
 
-        createVapHeaderRow(sheet, headerStyle);
+        createVapHeaderRow(sheet, headerStyle, context.getAllYears());
 
         sheet.createFreezePane(0, 1);
 
+        int[] years = context.getAllYears().toArray();
         int rowIndex = 1;
-        for (VapSummaryRow summaryRow : summaryRows)
+        for (VapSummaryRow summaryRow : context.getSummaryRows())
         {
             if (summaryRow.isEmptyRow())
             {
@@ -137,60 +756,157 @@ public class VapExcelExporter
 
             // Jahr-Spalten
             int colIndex = 3;
-            for (int year : allYears)
+            for (int year : years)
             {
                 // vor TFS
-                double vapBefore = summaryRow.getVapBeforeTfs().getOrDefault(year, 0.0);
+                double vapBefore = summaryRow.getVapBeforeTfs(year);
                 createCell(row, colIndex++, vapBefore, dataStyle);
 
                 // nach TFS
-                double vapAfter = summaryRow.getVapAfterTfs().getOrDefault(year, 0.0);
+                double vapAfter = summaryRow.getVapAfterTfs(year);
                 createCell(row, colIndex++, vapAfter, dataStyle);
             }
         }
 
-        adjustVapColumnWidths(sheet);
+        adjustVapColumnWidths(sheet, context.getAllYears());
+    }
+
+    /**
+     * Ermittelt die Detail-Sheets für jede Security in jedem Portfolio.
+     */
+    private List<DetailSheet> collectDetailSheets(ExportContext context)
+    {
+        List<DetailSheet> detailSheets = new ArrayList<>();
+
+        LotStore lots = context.getLots();
+        int securityCount = lots.getSecurities().size();
+        for (int[] group : lots.groupBy(
+                        lot -> (lots.getPortfolioOrdinal(lot) * securityCount) + lots.getSecurityOrdinal(lot)))
+        {
+            String broker = lots.getPortfolios().get(lots.getPortfolioOrdinal(group[0])).getName();
+            Security security = lots.getSecurities().get(lots.getSecurityOrdinal(group[0]));
+            detailSheets.add(new DetailSheet(broker, security, group));
+        }
+
+        return detailSheets;
     }
 
     /**
      * Erstellt Detail-Sheets für jede Security in jedem Portfolio.
      */
-    private void createDetailSheets(Workbook workbook)
+    private void createDetailSheets(ExportContext context, Workbook workbook, List<DetailSheet> detailSheets,
+                    SheetParts sheetParts)
     {
-        CellStyle headerStyle = createHeaderStyle(workbook);
-        CellStyle moneyStyle = createMoneyStyle(workbook);
-        CellStyle dateStyle = createDateStyle(workbook);
-        CellStyle percentStyle = createPercentStyle(workbook);
+        VapSheetCache sheetCache = context.getSheetCache();
+        DetailStyles styles = new DetailStyles(createHeaderStyle(workbook), createMoneyStyle(workbook),
+                        createDateStyle(workbook), createPercentStyle(workbook));
 
-        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        for (DetailSheet detailSheet : detailSheets)
         {
+            Security security = detailSheet.security();
 
-            String broker = portfolio.getKey().getName();
+            String isin = getIsin(security);
+            String sheetName = getSheetName(detailSheet.broker(), security, isin);
 
-            Map<Security, List<UnsoldTransaction>> transactionsBySecurity = new LinkedHashMap<>();
-            for (UnsoldTransaction tx : portfolio.getValue())
+            Sheet sheet = workbook.createSheet(sheetName);
+
+            if (sheetCache != null)
             {
-                if (tx.getTransaction().getSecurity() == null)
+                int sheetIndex = workbook.getNumberOfSheets() - 1;
+                String partName = getPartName(workbook, sheetIndex);
+                String fingerprint = fingerprint(context, workbook, detailSheet, sheetName, sheetIndex == 0,
+                                styles);
+
+                Optional<CachedPart> cachedPart = sheetCache.lookup(fingerprint);
+                if (cachedPart.isPresent())
                 {
+                    // Platzhalter, wird beim Schreiben durch den gecachten Part
+                    // ersetzt
+                    sheetParts.hits.put(partName, cachedPart.get());
                     continue;
                 }
-
-                transactionsBySecurity.computeIfAbsent(tx.getTransaction().getSecurity(), k -> new ArrayList<>())
-                                .add(tx);
+                sheetParts.fingerprints.put(partName, fingerprint);
             }
 
-            for (Map.Entry<Security, List<UnsoldTransaction>> entry : transactionsBySecurity.entrySet())
-            {
-                Security security = entry.getKey();
-                List<UnsoldTransaction> transactionsValue = entry.getValue();
+            createDetailSheet(context, sheet, security, context.getLots().cursor(detailSheet.lots()), styles);
+        }
+    }
+
+    private String getPartName(Workbook workbook, int sheetIndex)
+    {
+        XSSFWorkbook xssfWorkbook = workbook instanceof SXSSFWorkbook sxssfWorkbook ? sxssfWorkbook.getXSSFWorkbook()
+                        : (XSSFWorkbook) workbook;
+        // Partnamen beginnen mit "/", Zip-Einträge nicht
+        return xssfWorkbook.getSheetAt(sheetIndex).getPackagePart().getPartName().getName().substring(1);
+    }
+
+    /**
+     * Berechnet den Fingerprint aller Eingabedaten eines Detail-Sheets. Gleiche
+     * Fingerprints erzeugen ein identisches Sheet-XML.
+     */
+    private String fingerprint(ExportContext context, Workbook workbook, DetailSheet detailSheet, String sheetName,
+                    boolean firstSheet, DetailStyles styles)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
 
-                String isin = getIsin(security);
-                String sheetName = getSheetName(broker, security, isin);
+        Security security = detailSheet.security();
+        try (DataOutputStream out = new DataOutputStream(
+                        new DigestOutputStream(OutputStream.nullOutputStream(), digest)))
+        {
+            out.writeInt(DETAIL_SHEET_LAYOUT_VERSION);
+            // Art der Arbeitsmappe bestimmt die Darstellung der Texte im Sheet-XML, mit
+            // Sheet-Cache sind die Texte immer inline, siehe createWorkbook
+            out.writeUTF(workbook.getClass().getName());
+            out.writeUTF(sheetName);
+            out.writeBoolean(firstSheet);
+            out.writeShort(styles.header().getIndex());
+            out.writeShort(styles.money().getIndex());
+            out.writeShort(styles.date().getIndex());
+            out.writeShort(styles.percent().getIndex());
+
+            out.writeUTF(getIsin(security));
+            out.writeUTF(Objects.toString(security.getName(), ""));
+            boolean hasCurrentPrice = (security.getCurrencyCode() != null)
+                            && (security.getSecurityPrice(LocalDate.now()) != null);
+            out.writeBoolean(hasCurrentPrice);
+            if (hasCurrentPrice)
+            {
+                out.writeDouble(portfolioValueCalculator.calculateCurrentPricePerShare(security));
+            }
+            out.writeDouble(context.getTaxProfile().getKestFactor());
 
-                Sheet sheet = workbook.createSheet(sheetName);
-                createDetailSheet(sheet, security, transactionsValue, headerStyle, moneyStyle, dateStyle, percentStyle);
+            LotStore.Cursor lot = context.getLots().cursor(detailSheet.lots());
+            while (lot.next())
+            {
+                out.writeLong(lot.getPurchaseEpochDay());
+                out.writeDouble(lot.getUnsoldShare());
+                out.writeDouble(lot.getShare());
+                out.writeDouble(portfolioValueCalculator.getCostCalculator().calculateCostPerShare(lot));
+
+                Map<Integer, VapEntry> vapList = new TreeMap<>(context.getIndex().calculateVapList(lot));
+                out.writeInt(vapList.size());
+                for (Map.Entry<Integer, VapEntry> entry : vapList.entrySet())
+                {
+                    out.writeInt(entry.getKey());
+                    out.writeDouble(entry.getValue().vap());
+                    out.writeInt(entry.getValue().tfsPercentage());
+                }
             }
         }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
     }
 
     private String getSheetName(String broker, Security security, String isin)
@@ -207,31 +923,47 @@ public class VapExcelExporter
     /**
      * Erstellt ein Detail-Sheet für eine Security.
      */
-    private void createDetailSheet(Sheet sheet, Security security, List<UnsoldTransaction> transactions,
-                    CellStyle headerStyle, CellStyle moneyStyle, CellStyle dateStyle, CellStyle percentStyle)
+    private void createDetailSheet(ExportContext context, Sheet sheet, Security security, LotStore.Cursor lot,
+                    DetailStyles styles)
     {
+        VapMetadataIndex index = context.getIndex();
+        TaxProfile taxProfile = context.getTaxProfile();
+        CellStyle moneyStyle = styles.money();
 
         boolean hasCurrentPrice = (security.getCurrencyCode() != null)
                         && (security.getSecurityPrice(LocalDate.now()) != null);
         int tfsPercentage = 0;
-        Set<Integer> years = new TreeSet<>();
-        for (UnsoldTransaction tx : transactions)
+        YearRange vapYears = YearRange.EMPTY;
+        List<Map<Integer, VapEntry>> vapLists = new ArrayList<>();
+        while (lot.next())
         {
-            Map<Integer, VapEntry> vapList = vapCalculator.calculateVapList(tx);
+            Map<Integer, VapEntry> vapList = index.calculateVapList(lot);
             if (!vapList.isEmpty())
             {
                 tfsPercentage = vapList.values().iterator().next().tfsPercentage();
             }
-            years.addAll(vapList.keySet());
+            for (int year : vapList.keySet())
+            {
+                vapYears = vapYears.with(year);
+            }
+            vapLists.add(vapList);
         }
 
-        boolean hasVap = createDeteilSheetHeader(sheet, headerStyle, hasCurrentPrice, tfsPercentage, years);
+        DetailSheetTemplate.Key templateKey = new DetailSheetTemplate.Key(vapYears, hasCurrentPrice,
+                        tfsPercentage > 0);
+        DetailSheetTemplate template = context.getTemplates().computeIfAbsent(templateKey,
+                        key -> DetailSheetTemplate.create(key, taxProfile.formatKest()));
+        template.stamp(sheet, styles.header());
+        boolean hasVap = template.hasVap();
+        int[] years = vapYears.toArray();
+        VapSuffixTable suffixTable = index.getSuffixTable(security);
 
         int colIdx;
         int rowIdx = 1;
         double cumulativeTaxableGain = 0.0;
 
-        for (UnsoldTransaction tx : transactions)
+        lot.reset();
+        for (int lotIdx = 0; lot.next(); lotIdx++)
         {
             Row row = sheet.createRow(rowIdx++);
             colIdx = 0;
@@ -240,31 +972,31 @@ public class VapExcelExporter
             createCell(row, colIdx++, isin, null);
             createCell(row, colIdx++, security.getName(), null);
 
-            LocalDate purchaseDate = tx.getTransaction().getDateTime().toLocalDate();
+            LocalDate purchaseDate = lot.getPurchaseDate();
             Cell dateCell = row.createCell(colIdx++);
             dateCell.setCellValue(purchaseDate);
-            dateCell.setCellStyle(dateStyle);
+            dateCell.setCellStyle(styles.date());
 
-            createCell(row, colIdx++, tx.getUnsoldShare(), null);
-            createCell(row, colIdx++, tx.getShare(), null);
+            createCell(row, colIdx++, lot.getUnsoldShare(), null);
+            createCell(row, colIdx++, lot.getShare(), null);
 
             // Kostenberechnungen mit CostCalculator
-            double costPerShare = portfolioValueCalculator.getCostCalculator().calculateCostPerShare(tx);
-            double totalCost = portfolioValueCalculator.getCostCalculator().calculateTotalCost(tx);
+            double costPerShare = portfolioValueCalculator.getCostCalculator().calculateCostPerShare(lot);
+            double totalCost = portfolioValueCalculator.getCostCalculator().calculateTotalCost(lot);
             createCell(row, colIdx++, totalCost, moneyStyle);
             createCell(row, colIdx++, costPerShare, moneyStyle);
 
             // VAP pro Jahr
-            Map<Integer, VapEntry> vapList = vapCalculator.calculateVapList(tx);
-            double totalVapPerShare = 0.0;
+            Map<Integer, VapEntry> vapList = vapLists.get(lotIdx);
 
             for (int year : years)
             {
-                VapEntry vapPerShare = vapList.getOrDefault(year, new VapEntry(0.0, 0));
+                VapEntry vapPerShare = vapList.getOrDefault(year, NO_VAP);
                 createCell(row, colIdx++, vapPerShare.vap(), moneyStyle);
-                totalVapPerShare += vapPerShare.vap();
             }
 
+            double totalVapPerShare = suffixTable.getTotalVapPerShare(purchaseDate);
+
             double acquisitionPricePerShare = portfolioValueCalculator.getCostCalculator()
                             .calculateAcquisitionPriceWithVap(costPerShare, totalVapPerShare);
 
@@ -280,8 +1012,9 @@ public class VapExcelExporter
                 double currentPricePerShare = portfolioValueCalculator.calculateCurrentPricePerShare(security);
 
                 // Alle Werte mit PortfolioValueCalculator berechnen
-                var values = portfolioValueCalculator.calculatePositionValues(tx, currentPricePerShare,
-                                acquisitionPricePerShare, tfsPercentage, cumulativeTaxableGain);
+                var values = portfolioValueCalculator.calculatePositionValues(lot.getUnsoldShare(),
+                                currentPricePerShare, acquisitionPricePerShare, tfsPercentage, cumulativeTaxableGain,
+                                taxProfile);
 
                 // Kumulativen Gewinn aktualisieren
                 cumulativeTaxableGain += values.taxableGain;
@@ -299,67 +1032,12 @@ public class VapExcelExporter
                 createCell(row, colIdx++, values.netValue, moneyStyle);
 
                 // Steueranteil
-                createCell(row, colIdx, values.taxRatio, percentStyle);
+                createCell(row, colIdx, values.taxRatio, styles.percent());
             }
         }
-
-        // Spaltenbreiten
-        int totalColumns = 7 + years.size() + (hasVap ? 2 : 0) + (hasCurrentPrice ? 5 : 0);
-        adjustDetailColumnWidths(sheet, totalColumns);
     }
 
-    private boolean createDeteilSheetHeader(Sheet sheet, CellStyle headerStyle, boolean hasCurrentPrice,
-                    int tfsPercentage, Set<Integer> years)
-    {
-        Row headerRow = sheet.createRow(0);
-        int colIdx = 0;
-
-        createCell(headerRow, colIdx++, "ISIN", headerStyle);
-        createCell(headerRow, colIdx++, "Name", headerStyle);
-        createCell(headerRow, colIdx++, "Datum Kauf", headerStyle);
-        createCell(headerRow, colIdx++, "Anzahl (noch unverkauft)", headerStyle);
-        createCell(headerRow, colIdx++, "Anzahl (gekauft)", headerStyle);
-        createCell(headerRow, colIdx++, "Gesamtkosten", headerStyle);
-        createCell(headerRow, colIdx++, "Kosten pro Anteil", headerStyle);
-
-        for (int year : years)
-        {
-            createCell(headerRow, colIdx++, "VAP " + year + " vor TFS pro Anteil", headerStyle);
-        }
-
-        boolean hasVap = !years.isEmpty();
-        if (hasVap)
-        {
-            createCell(headerRow, colIdx++, "Summe VAP vor TFS pro Anteil", headerStyle);
-            createCell(headerRow, colIdx++, "Anschaffungspreis inkl. VAP pro Anteil", headerStyle);
-        }
-
-        if (hasCurrentPrice)
-        {
-            createCell(headerRow, colIdx++, "Brutto-Wert", headerStyle);
-
-            String taxableGainHeader = "KESt-pflichtiger Gewinn";
-            if (hasVap)
-            {
-                taxableGainHeader += " nach VAP";
-            }
-            if (tfsPercentage > 0)
-            {
-                taxableGainHeader += " nach TFS";
-            }
-            createCell(headerRow, colIdx++, taxableGainHeader, headerStyle);
-
-            String kest = portfolioValueCalculator.getTaxCalculator().formatKest();
-            createCell(headerRow, colIdx++, "KESt (" + kest + "%)", headerStyle);
-            createCell(headerRow, colIdx++, "Netto-Wert", headerStyle);
-            createCell(headerRow, colIdx, "Steueranteil an Brutto-Auszahlung", headerStyle);
-        }
-
-        sheet.createFreezePane(0, 1);
-        return hasVap;
-    }
-
-    private void createVapHeaderRow(Sheet sheet, CellStyle headerStyle)
+    private void createVapHeaderRow(Sheet sheet, CellStyle headerStyle, YearRange allYears)
     {
         Row headerRow = sheet.createRow(0);
 
@@ -368,7 +1046,7 @@ public class VapExcelExporter
         createCell(headerRow, 2, "Depot", headerStyle);
 
         int colIndex = 3;
-        for (int year : allYears)
+        for (int year : allYears.toArray())
         {
             createCell(headerRow, colIndex++, year + " vor TFS", headerStyle);
             createCell(headerRow, colIndex++, year + " nach TFS", headerStyle);
@@ -429,6 +1107,16 @@ public class VapExcelExporter
         return style;
     }
 
+    private CellStyle createLinkStyle(Workbook workbook)
+    {
+        CellStyle style = workbook.createCellStyle();
+        Font font = workbook.createFont();
+        font.setUnderline(Font.U_SINGLE);
+        font.setColor(IndexedColors.BLUE.getIndex());
+        style.setFont(font);
+        return style;
+    }
+
     private CellStyle createDateStyle(Workbook workbook)
     {
         CellStyle style = workbook.createCellStyle();
@@ -445,7 +1133,7 @@ public class VapExcelExporter
         return style;
     }
 
-    private void adjustVapColumnWidths(Sheet sheet)
+    private void adjustVapColumnWidths(Sheet sheet, YearRange allYears)
     {
         sheet.setColumnWidth(0, 15 * 256); // ISIN
         sheet.setColumnWidth(1, 30 * 256); // Name
@@ -453,26 +1141,44 @@ public class VapExcelExporter
 
         // Jahr-Spalten
         int colIndex = 3;
-        for (int year : allYears)
+        for (int year : allYears.toArray())
         {
             sheet.setColumnWidth(colIndex++, 15 * 256); // vor TFS
             sheet.setColumnWidth(colIndex++, 15 * 256); // nach TFS
         }
     }
 
-    private void adjustDetailColumnWidths(Sheet sheet, int numColumns)
+    /**
+     * Detail-Sheet einer Security in einem Depot.
+     */
+    private record DetailSheet(String broker, Security security, int[] lots)
     {
-        sheet.setColumnWidth(0, 15 * 256); // ISIN
-        sheet.setColumnWidth(1, 30 * 256); // Name
-        sheet.setColumnWidth(2, 12 * 256); // Datum
-        sheet.setColumnWidth(3, 12 * 256); // Anzahl unverkauft
-        sheet.setColumnWidth(4, 12 * 256); // Anzahl gekauft
-        sheet.setColumnWidth(5, 15 * 256); // Gesamtkosten
-        sheet.setColumnWidth(6, 15 * 256); // Kosten pro Anteil
+    }
 
-        for (int i = 7; i < numColumns; i++)
-        {
-            sheet.setColumnWidth(i, 15 * 256);
-        }
+    /**
+     * Teil-Arbeitsmappe beim aufgeteilten Export.
+     */
+    private record WorkbookPart(String label, File file, List<DetailSheet> sheets)
+    {
+    }
+
+    @FunctionalInterface
+    private interface WorkbookContent
+    {
+        void fill(Workbook workbook, SheetParts sheetParts);
+    }
+
+    /**
+     * Sheet-Parts einer Arbeitsmappe, die mit dem Sheet-Cache abgeglichen
+     * werden.
+     */
+    private static class SheetParts
+    {
+        private final Map<String, String> fingerprints = new HashMap<>();
+        private final Map<String, CachedPart> hits = new HashMap<>();
+    }
+
+    private record DetailStyles(CellStyle header, CellStyle money, CellStyle date, CellStyle percent)
+    {
     }
 }
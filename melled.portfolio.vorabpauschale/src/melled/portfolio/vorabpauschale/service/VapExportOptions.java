@@ -0,0 +1,231 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.nio.file.Path;
+
+/**
+ * Optionen für den Excel-Export. Ohne weitere Angaben wird eine einzelne
+ * Arbeitsmappe mit VAP-Zusammenfassung und allen Detail-Sheets geschrieben.
+ */
+public class VapExportOptions
+{
+    /**
+     * Aufteilung der Detail-Sheets auf mehrere Arbeitsmappen.
+     */
+    public enum SplitMode
+    {
+        /** Alle Sheets in einer Arbeitsmappe */
+        NONE,
+        /** Eine Arbeitsmappe pro Depot */
+        PER_DEPOT,
+        /** Eine Arbeitsmappe pro N Detail-Sheets */
+        PER_SHEET_COUNT
+    }
+
+    public static final int DEFAULT_SHEETS_PER_WORKBOOK = 50;
+
+    private SplitMode splitMode = SplitMode.NONE;
+    private int sheetsPerWorkbook = DEFAULT_SHEETS_PER_WORKBOOK;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private Path sheetCacheDirectory;
+    private VapExportProfile profile = new VapExportProfile();
+    private boolean asyncWrite;
+    private VapSummaryView summaryView;
+    private boolean monthBuckets;
+    private TaxProfile taxProfile;
+    private ClosedYearCache closedYearCache;
+    private VapPrecomputeService precomputeService;
+
+    public SplitMode getSplitMode()
+    {
+        return splitMode;
+    }
+
+    public void setSplitMode(SplitMode splitMode)
+    {
+        this.splitMode = splitMode;
+    }
+
+    public int getSheetsPerWorkbook()
+    {
+        return sheetsPerWorkbook;
+    }
+
+    /**
+     * Setzt die maximale Anzahl Detail-Sheets pro Arbeitsmappe für
+     * {@link SplitMode#PER_SHEET_COUNT}.
+     *
+     * @param sheetsPerWorkbook
+     *            Anzahl Sheets (mindestens 1)
+     */
+    public void setSheetsPerWorkbook(int sheetsPerWorkbook)
+    {
+        if (sheetsPerWorkbook < 1)
+        { throw new IllegalArgumentException("Anzahl Sheets pro Arbeitsmappe muss >= 1 sein: " + sheetsPerWorkbook); }
+        this.sheetsPerWorkbook = sheetsPerWorkbook;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Setzt die Anzahl der Arbeitsmappen, die gleichzeitig geschrieben werden.
+     *
+     * @param parallelism
+     *            Anzahl Threads (mindestens 1)
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+        { throw new IllegalArgumentException("Parallelität muss >= 1 sein: " + parallelism); }
+        this.parallelism = parallelism;
+    }
+
+    public Path getSheetCacheDirectory()
+    {
+        return sheetCacheDirectory;
+    }
+
+    /**
+     * Aktiviert den Cache für unveränderte Detail-Sheets. Sheets, deren
+     * Eingabedaten sich seit dem letzten Export nicht geändert haben, werden
+     * als komprimierter Zip-Eintrag aus dem Cache übernommen. Mit Cache wird
+     * unabhängig vom Speicherprofil streamend und ohne Shared-Strings-Tabelle
+     * geschrieben, da gecachte Sheets nur mit Inline-Texten übertragbar sind.
+     *
+     * @param sheetCacheDirectory
+     *            Cache-Verzeichnis oder {@code null} zum Deaktivieren
+     */
+    public void setSheetCacheDirectory(Path sheetCacheDirectory)
+    {
+        this.sheetCacheDirectory = sheetCacheDirectory;
+    }
+
+    public VapExportProfile getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * Setzt das Speicherprofil, z.B. {@link VapExportProfile#lowMemory()}.
+     *
+     * @param profile
+     *            Speicherprofil
+     */
+    public void setProfile(VapExportProfile profile)
+    {
+        this.profile = profile;
+    }
+
+    public boolean isAsyncWrite()
+    {
+        return asyncWrite;
+    }
+
+    /**
+     * Aktiviert das Schreiben über einen eigenen Thread. Die komprimierten
+     * Daten werden in Blöcken an den Schreib-Thread übergeben, sodass
+     * Komprimierung und Ein-/Ausgabe parallel laufen.
+     *
+     * @param asyncWrite
+     *            {@code true} für asynchrones Schreiben
+     */
+    public void setAsyncWrite(boolean asyncWrite)
+    {
+        this.asyncWrite = asyncWrite;
+    }
+
+    public VapSummaryView getSummaryView()
+    {
+        return summaryView;
+    }
+
+    /**
+     * Setzt eine inkrementell gepflegte Zusammenfassung. Der Export gleicht
+     * sie mit den aktuellen Lots ab, statt die Zusammenfassung neu zu
+     * berechnen.
+     *
+     * @param summaryView
+     *            Zusammenfassung oder {@code null} für eine Neuberechnung
+     */
+    public void setSummaryView(VapSummaryView summaryView)
+    {
+        this.summaryView = summaryView;
+    }
+
+    public boolean isMonthBuckets()
+    {
+        return monthBuckets;
+    }
+
+    /**
+     * Berechnet die VAP-Zusammenfassung je Depot, Wertpapier und Kaufmonat
+     * statt je Lot. Bei Sparplänen mit mehreren Ausführungen pro Monat sinkt
+     * der Rechenaufwand entsprechend, die Summen können in den letzten
+     * Nachkommastellen abweichen. Detail-Sheets zeigen weiterhin jedes Lot.
+     * Mit {@link #getSummaryView()} hat die Option keine Wirkung.
+     *
+     * @param monthBuckets
+     *            {@code true} für Zusammenfassung je Kaufmonat
+     */
+    public void setMonthBuckets(boolean monthBuckets)
+    {
+        this.monthBuckets = monthBuckets;
+    }
+
+    public TaxProfile getTaxProfile()
+    {
+        return taxProfile;
+    }
+
+    /**
+     * Setzt das Steuerprofil für diesen Export. Ohne Angabe wird das Profil
+     * des {@link TaxCalculator} zu Beginn des Exports übernommen.
+     *
+     * @param taxProfile
+     *            Steuerprofil oder {@code null}
+     */
+    public void setTaxProfile(TaxProfile taxProfile)
+    {
+        this.taxProfile = taxProfile;
+    }
+
+    public ClosedYearCache getClosedYearCache()
+    {
+        return closedYearCache;
+    }
+
+    /**
+     * Übernimmt die VAP abgeschlossener Jahre aus einer Ablage, statt sie für
+     * jedes Lot neu zu berechnen. Laden und Speichern der Ablage liegen beim
+     * Aufrufer, damit mehrere Exporte eine Ablage teilen können. Mit
+     * {@link #getSummaryView()} hat die Option keine Wirkung.
+     *
+     * @param closedYearCache
+     *            Ablage oder {@code null}
+     */
+    public void setClosedYearCache(ClosedYearCache closedYearCache)
+    {
+        this.closedYearCache = closedYearCache;
+    }
+
+    public VapPrecomputeService getPrecomputeService()
+    {
+        return precomputeService;
+    }
+
+    /**
+     * Übernimmt die im Hintergrund vorberechneten Lots, sofern sie dem
+     * aktuellen Stand des Clients entsprechen. Sonst werden die Lots wie
+     * bisher beim Export verrechnet. Ist die fortgeschriebene Zusammenfassung
+     * der Vorberechnung aktuell, wird auch sie übernommen.
+     *
+     * @param precomputeService
+     *            Vorberechnung oder {@code null}
+     */
+    public void setPrecomputeService(VapPrecomputeService precomputeService)
+    {
+        this.precomputeService = precomputeService;
+    }
+}
@@ -0,0 +1,168 @@
+package melled.portfolio.vorabpauschale.service;
+
+/**
+ * Speicherprofil für den Excel-Export. Legt fest, ob Arbeitsmappen komplett im
+ * Speicher oder streamend über temporäre Dateien geschrieben werden.
+ */
+public class VapExportProfile
+{
+    /**
+     * Strategie zum Erzeugen einer Arbeitsmappe.
+     */
+    public enum Strategy
+    {
+        /** Strategie anhand der geschätzten Zellanzahl und des freien Heaps */
+        AUTO,
+        /** Komplette Arbeitsmappe im Speicher (XSSF), keine temporären Dateien */
+        IN_MEMORY,
+        /** Streamend (SXSSF) mit Zeilenfenster im Speicher */
+        STREAMING,
+        /** Streamend (SXSSF) mit komprimierten temporären Dateien */
+        STREAMING_COMPRESSED
+    }
+
+    public static final int DEFAULT_ROW_ACCESS_WINDOW = 100;
+
+    /**
+     * Grob geschätzter Heap-Bedarf einer Zelle in einer XSSF-Arbeitsmappe.
+     */
+    static final long ESTIMATED_BYTES_PER_CELL = 1024;
+
+    /**
+     * Ab dieser Zellanzahl werden temporäre Dateien bei {@link Strategy#AUTO}
+     * komprimiert.
+     */
+    static final long COMPRESSION_THRESHOLD_CELLS = 1_000_000;
+
+    private Strategy strategy = Strategy.STREAMING;
+    private int rowAccessWindow = DEFAULT_ROW_ACCESS_WINDOW;
+    private boolean compressTempFiles;
+    private boolean useSharedStrings;
+    private double heapFraction = 0.25;
+
+    /**
+     * Profil für Rechner mit wenig Arbeitsspeicher: kleine Arbeitsmappen im
+     * Speicher, große streamend mit komprimierten temporären Dateien.
+     */
+    public static VapExportProfile lowMemory()
+    {
+        VapExportProfile profile = new VapExportProfile();
+        profile.setStrategy(Strategy.AUTO);
+        profile.setRowAccessWindow(50);
+        profile.setCompressTempFiles(true);
+        profile.setHeapFraction(0.1);
+        return profile;
+    }
+
+    public Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    public void setStrategy(Strategy strategy)
+    {
+        this.strategy = strategy;
+    }
+
+    public int getRowAccessWindow()
+    {
+        return rowAccessWindow;
+    }
+
+    /**
+     * Setzt die Anzahl Zeilen pro Sheet, die beim Streaming im Speicher
+     * gehalten werden.
+     *
+     * @param rowAccessWindow
+     *            Anzahl Zeilen (mindestens 1)
+     */
+    public void setRowAccessWindow(int rowAccessWindow)
+    {
+        if (rowAccessWindow < 1)
+        { throw new IllegalArgumentException("Zeilenfenster muss >= 1 sein: " + rowAccessWindow); }
+        this.rowAccessWindow = rowAccessWindow;
+    }
+
+    public boolean isCompressTempFiles()
+    {
+        return compressTempFiles;
+    }
+
+    public void setCompressTempFiles(boolean compressTempFiles)
+    {
+        this.compressTempFiles = compressTempFiles;
+    }
+
+    public boolean isUseSharedStrings()
+    {
+        return useSharedStrings;
+    }
+
+    /**
+     * Aktiviert die Shared-Strings-Tabelle beim Streaming. Ohne Tabelle werden
+     * Texte inline geschrieben und müssen nicht im Speicher gehalten werden.
+     *
+     * @param useSharedStrings
+     *            {@code true} für eine Shared-Strings-Tabelle
+     */
+    public void setUseSharedStrings(boolean useSharedStrings)
+    {
+        this.useSharedStrings = useSharedStrings;
+    }
+
+    public double getHeapFraction()
+    {
+        return heapFraction;
+    }
+
+    /**
+     * Setzt den Anteil des freien Heaps, den eine Arbeitsmappe bei
+     * {@link Strategy#AUTO} im Speicher belegen darf.
+     *
+     * @param heapFraction
+     *            Anteil zwischen 0 und 1
+     */
+    public void setHeapFraction(double heapFraction)
+    {
+        if ((heapFraction < 0) || (heapFraction > 1))
+        { throw new IllegalArgumentException("Heap-Anteil muss zwischen 0 und 1 liegen: " + heapFraction); }
+        this.heapFraction = heapFraction;
+    }
+
+    /**
+     * Bestimmt die Strategie für eine Arbeitsmappe mit der geschätzten
+     * Zellanzahl anhand des aktuell freien Heaps.
+     *
+     * @param estimatedCells
+     *            geschätzte Anzahl Zellen
+     * @return Strategie, nie {@link Strategy#AUTO}
+     */
+    public Strategy resolveStrategy(long estimatedCells)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long availableHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return resolveStrategy(estimatedCells, availableHeap);
+    }
+
+    /**
+     * Bestimmt die Strategie für eine Arbeitsmappe mit der geschätzten
+     * Zellanzahl.
+     *
+     * @param estimatedCells
+     *            geschätzte Anzahl Zellen
+     * @param availableHeap
+     *            freier Heap in Bytes
+     * @return Strategie, nie {@link Strategy#AUTO}
+     */
+    public Strategy resolveStrategy(long estimatedCells, long availableHeap)
+    {
+        if (strategy != Strategy.AUTO)
+        { return strategy; }
+
+        if ((estimatedCells * ESTIMATED_BYTES_PER_CELL) <= (availableHeap * heapFraction))
+        { return Strategy.IN_MEMORY; }
+
+        return compressTempFiles || (estimatedCells >= COMPRESSION_THRESHOLD_CELLS) ? Strategy.STREAMING_COMPRESSED
+                        : Strategy.STREAMING;
+    }
+}
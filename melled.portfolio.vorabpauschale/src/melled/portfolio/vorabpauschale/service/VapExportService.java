@@ -1,19 +1,32 @@
 package melled.portfolio.vorabpauschale.service;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import jakarta.inject.Inject;
 
 import org.eclipse.e4.core.di.annotations.Creatable;
 
+import melled.portfolio.vorabpauschale.model.LotStore;
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.service.LotLedgerCache.Checkpoint;
+import melled.portfolio.vorabpauschale.service.LotLedgerCache.LotEntry;
+import melled.portfolio.vorabpauschale.service.VapPrecomputeService.Precomputed;
 import name.abuchen.portfolio.model.BuySellEntry;
 import name.abuchen.portfolio.model.Client;
 import name.abuchen.portfolio.model.Portfolio;
@@ -50,40 +63,394 @@ public class VapExportService
 
     public void exportVap(Client client, String metadataFile, String outputFile) throws IOException
     {
+        exportVap(client, metadataFile, outputFile, new VapExportOptions());
+    }
 
-        Map<Portfolio, List<UnsoldTransaction>> transactions = getTransactions(client);
+    /**
+     * Exportiert VAP-Daten aus einem Portfolio Performance Client nach Excel.
+     *
+     * @param client
+     *            Portfolio Performance Client
+     * @param metadataFile
+     *            Pfad zur ETF-Metadaten CSV (etf_metadaten.csv)
+     * @param outputFile
+     *            Pfad zur Ausgabe-Excel-Datei
+     * @param options
+     *            Export-Optionen, z.B. Aufteilung auf mehrere Arbeitsmappen
+     * @throws IOException
+     */
+    public void exportVap(Client client, String metadataFile, String outputFile, VapExportOptions options)
+                    throws IOException
+    {
+        Precomputed precomputed = getPrecomputed(client, metadataFile, options);
+        if ((precomputed != null) && (precomputed.summaryRows() != null))
+        {
+            vapExcelExporter.export(metadataFile, outputFile, LotStore.of(precomputed.transactions()),
+                            precomputed.summaryRows(), options);
+        }
+        else if (options.getSummaryView() != null)
+        {
+            vapExcelExporter.export(metadataFile, outputFile, collectUnsoldTransactions(client, precomputed),
+                            options);
+        }
+        else
+        {
+            vapExcelExporter.export(metadataFile, outputFile, collectLots(client, precomputed), options);
+        }
+    }
 
+    /**
+     * Exportiert VAP-Daten aus einem Portfolio Performance Client als
+     * Excel-Arbeitsmappe in einen Stream. Der Stream wird nicht geschlossen.
+     *
+     * @param client
+     *            Portfolio Performance Client
+     * @param metadataFile
+     *            Pfad zur ETF-Metadaten CSV (etf_metadaten.csv)
+     * @param out
+     *            Ziel der Excel-Daten
+     * @param options
+     *            Export-Optionen, Aufteilung wird nicht unterstützt
+     * @throws IOException
+     */
+    public void exportVap(Client client, String metadataFile, OutputStream out, VapExportOptions options)
+                    throws IOException
+    {
+        Precomputed precomputed = getPrecomputed(client, metadataFile, options);
+        if ((precomputed != null) && (precomputed.summaryRows() != null))
+        {
+            vapExcelExporter.export(metadataFile, out, LotStore.of(precomputed.transactions()),
+                            precomputed.summaryRows(), options);
+        }
+        else if (options.getSummaryView() != null)
+        {
+            vapExcelExporter.export(metadataFile, out, collectUnsoldTransactions(client, precomputed), options);
+        }
+        else
+        {
+            vapExcelExporter.export(metadataFile, out, collectLots(client, precomputed), options);
+        }
+    }
+
+    /**
+     * Ermittelt die offenen Lots aller Portfolios als spaltenweise Ablage. Die
+     * Zwischenobjekte der Verkaufsverrechnung werden danach nicht mehr
+     * referenziert.
+     *
+     * @param client
+     *            Portfolio Performance Client
+     * @return offene Lots aller Portfolios
+     */
+    public LotStore collectLots(Client client)
+    {
+        return LotStore.of(collectUnsoldTransactions(client));
+    }
+
+    /**
+     * Ermittelt die offenen Lots wie {@link #collectLots(Client)}, setzt aber
+     * auf dem gespeicherten Zwischenstand der Portfolio-Datei auf. Sind alle
+     * Umsätze bis zum Zwischenstand unverändert, werden nur neuere Umsätze
+     * verrechnet, sonst alle. Danach wird der Zwischenstand aktualisiert.
+     * <p>
+     * Die vollständige Verrechnung bearbeitet die Abgänge je Depot in der
+     * Reihenfolge des Clients und nicht über alle Depots nach Datum. Damit
+     * das Ergebnis nicht vom Zwischenstand abhängt, wird nur fortgesetzt,
+     * wenn die neueren Umsätze keine Umbuchungen enthalten und kein neuerer
+     * Abgang in einem Depot liegt, das Lots aus einem später folgenden Depot
+     * erhalten hat. Zwischenstände mit nicht gedeckten Abgängen werden nicht
+     * gespeichert, da diese bei vollständiger Verrechnung auch spätere Käufe
+     * verwenden.
+     *
+     * @param client
+     *            Portfolio Performance Client
+     * @param cache
+     *            Ablage der Zwischenstände
+     * @param clientKey
+     *            Schlüssel der Portfolio-Datei, siehe
+     *            {@link LotLedgerCache#keyOf(java.io.File)}
+     * @return offene Lots aller Portfolios
+     */
+    public LotStore collectLots(Client client, LotLedgerCache cache, String clientKey)
+    {
+        Map<Portfolio, List<PortfolioTransaction>> mappedTransactions = getMappedTransactions(client);
+        LocalDateTime watermark = getWatermark(mappedTransactions);
+
+        Checkpoint checkpoint = cache.lookup(clientKey).orElse(null);
+        Replayed replayed = checkpoint != null ? resume(checkpoint, mappedTransactions) : null;
+        boolean resumed = replayed != null;
+        if (!resumed)
+        {
+            replayed = replay(mappedTransactions, createLots(mappedTransactions), null);
+        }
+        Map<Portfolio, List<UnsoldTransaction>> transactions = replayed.transactions();
+
+        if ((watermark != null) && (replayed.covered()) && !(resumed && checkpoint.watermark().equals(watermark)))
+        {
+            try
+            {
+                cache.store(clientKey, createCheckpoint(watermark, mappedTransactions, transactions));
+            }
+            catch (IOException e)
+            {
+                // ohne Zwischenstand wird beim nächsten Export alles verrechnet
+            }
+        }
+
+        return LotStore.of(transactions);
+    }
+
+    private LotStore collectLots(Client client, Precomputed precomputed)
+    {
+        return precomputed != null ? LotStore.of(precomputed.transactions()) : collectLots(client);
+    }
+
+    private Map<Portfolio, List<UnsoldTransaction>> collectUnsoldTransactions(Client client,
+                    Precomputed precomputed)
+    {
+        return precomputed != null ? precomputed.transactions() : collectUnsoldTransactions(client);
+    }
+
+    private static Precomputed getPrecomputed(Client client, String metadataFile, VapExportOptions options)
+    {
+        VapPrecomputeService precomputeService = options.getPrecomputeService();
+        return precomputeService != null ? precomputeService.getPrecomputed(client, metadataFile) : null;
+    }
+
+    /**
+     * Verrechnet alle Umsätze des Clients zu offenen Lots je Depot.
+     */
+    Map<Portfolio, List<UnsoldTransaction>> collectUnsoldTransactions(Client client)
+    {
         Map<Portfolio, List<PortfolioTransaction>> mappedTransactions = getMappedTransactions(client);
+        return replay(mappedTransactions, createLots(mappedTransactions), null).transactions();
+    }
+
+    /**
+     * Ergebnis einer Verrechnung.
+     *
+     * @param covered
+     *            {@code true}, falls für alle Abgänge genügend Lots vorhanden
+     *            waren
+     */
+    private record Replayed(Map<Portfolio, List<UnsoldTransaction>> transactions, boolean covered)
+    {
+    }
+
+    /**
+     * Verrechnet die Umsätze nach {@code after}: zuerst werden alle Käufe als
+     * Lots übernommen, danach die Abgänge je Portfolio in Datumsreihenfolge.
+     *
+     * @param after
+     *            Zeitpunkt des Zwischenstands oder {@code null} für alle
+     *            Umsätze
+     */
+    private Replayed replay(Map<Portfolio, List<PortfolioTransaction>> mappedTransactions,
+                    Map<Portfolio, List<UnsoldTransaction>> transactions, LocalDateTime after)
+    {
+        for (Entry<Portfolio, List<PortfolioTransaction>> portfolio : mappedTransactions.entrySet())
+        {
+            List<UnsoldTransaction> lots = transactions.get(portfolio.getKey());
+            portfolio.getValue().stream().filter(tx -> isAfter(tx, after))
+                            .filter(tx -> tx.getType().isPurchase() && (tx.getType() != Type.TRANSFER_IN))
+                            .map(UnsoldTransaction::new).forEach(lots::add);
+        }
 
+        double shortfall = 0;
         for (Entry<Portfolio, List<PortfolioTransaction>> portfolio : mappedTransactions.entrySet())
         {
+            for (PortfolioTransaction tx : portfolio.getValue())
+            {
+                if (isAfter(tx, after) && tx.getType().isLiquidation())
+                {
+                    shortfall += handleLiquidation(portfolio.getKey(), tx, transactions);
+                }
+            }
+        }
 
-            portfolio.getValue().stream().filter(tx -> tx.getType().isLiquidation())
-                            .forEach(tx -> handleLiquidation(portfolio.getKey(), tx, transactions));
+        return new Replayed(transactions, shortfall <= 0);
+    }
 
+    private static boolean isAfter(PortfolioTransaction tx, LocalDateTime after)
+    {
+        return (after == null) || tx.getDateTime().isAfter(after);
+    }
+
+    /**
+     * Stellt die Lots eines Zwischenstands wieder her und verrechnet die
+     * neueren Umsätze.
+     *
+     * @return offene Lots oder {@code null}, wenn sich ältere Umsätze
+     *         geändert haben oder die vollständige Verrechnung die neueren
+     *         Umsätze in anderer Reihenfolge bearbeiten würde
+     */
+    private Replayed resume(Checkpoint checkpoint, Map<Portfolio, List<PortfolioTransaction>> mappedTransactions)
+    {
+        if (!isResumable(mappedTransactions, checkpoint.watermark()))
+        { return null; }
+        if (!checkpoint.historyHash().equals(hashHistory(mappedTransactions, checkpoint.watermark())))
+        { return null; }
+
+        Map<String, PortfolioTransaction> purchases = new HashMap<>();
+        mappedTransactions.values().forEach(list -> list.stream().filter(tx -> tx.getType().isPurchase())
+                        .forEach(tx -> purchases.put(tx.getUUID(), tx)));
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions = createLots(mappedTransactions);
+        int restored = 0;
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        {
+            for (LotEntry lot : checkpoint.lots().getOrDefault(portfolio.getKey().getUUID(), List.of()))
+            {
+                PortfolioTransaction tx = purchases.get(lot.transactionUuid());
+                if (tx == null)
+                { return null; }
+                portfolio.getValue().add(new UnsoldTransaction(tx, lot.share(), lot.unsoldShare()));
+            }
+            restored++;
         }
+        if (restored < checkpoint.lots().size())
+        { return null; }
 
-        vapExcelExporter.export(metadataFile, outputFile, transactions);
+        return replay(mappedTransactions, transactions, checkpoint.watermark());
+    }
 
+    /**
+     * Prüft, ob das Verrechnen der Umsätze nach {@code watermark} im Anschluss
+     * an den Zwischenstand dasselbe Ergebnis liefert wie die vollständige
+     * Verrechnung. Diese bearbeitet ein Depot komplett, bevor Umbuchungen aus
+     * später folgenden Depots dessen Lots ergänzen.
+     */
+    private static boolean isResumable(Map<Portfolio, List<PortfolioTransaction>> mappedTransactions,
+                    LocalDateTime watermark)
+    {
+        List<Portfolio> order = new ArrayList<>(mappedTransactions.keySet());
+        for (Entry<Portfolio, List<PortfolioTransaction>> portfolio : mappedTransactions.entrySet())
+        {
+            boolean receivesFromLater = false;
+            boolean liquidatesLater = false;
+            for (PortfolioTransaction tx : portfolio.getValue())
+            {
+                boolean transfer = tx.getCrossEntry() instanceof PortfolioTransferEntry;
+                if (tx.getDateTime().isAfter(watermark))
+                {
+                    if (transfer)
+                    { return false; }
+                    liquidatesLater |= tx.getType().isLiquidation();
+                }
+                else if (transfer && (tx.getType() == Type.TRANSFER_IN))
+                {
+                    Portfolio source = ((PortfolioTransferEntry) tx.getCrossEntry()).getSourcePortfolio();
+                    receivesFromLater |= order.indexOf(source) > order.indexOf(portfolio.getKey());
+                }
+            }
+            if (receivesFromLater && liquidatesLater)
+            { return false; }
+        }
+        return true;
     }
 
-    @SuppressWarnings({ "java:S3252", "java:S6204" }) // Need type for sort
+    private static Checkpoint createCheckpoint(LocalDateTime watermark,
+                    Map<Portfolio, List<PortfolioTransaction>> mappedTransactions,
+                    Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        Map<String, List<LotEntry>> lots = new LinkedHashMap<>();
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        {
+            lots.put(portfolio.getKey().getUUID(), portfolio.getValue().stream()
+                            .map(lot -> new LotEntry(lot.getTransaction().getUUID(), lot.getShare(),
+                                            lot.getUnsoldShare()))
+                            .toList());
+        }
+        return new Checkpoint(watermark, hashHistory(mappedTransactions, watermark), lots);
+    }
+
+    private static LocalDateTime getWatermark(Map<Portfolio, List<PortfolioTransaction>> mappedTransactions)
+    {
+        return mappedTransactions.values().stream().flatMap(List::stream).map(PortfolioTransaction::getDateTime)
+                        .max(Comparator.naturalOrder()).orElse(null);
+    }
+
+    /**
+     * Hash über alle Umsätze bis einschließlich {@code watermark}, die in die
+     * Lot-Verrechnung eingehen.
+     */
+    private static String hashHistory(Map<Portfolio, List<PortfolioTransaction>> mappedTransactions,
+                    LocalDateTime watermark)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                        new DigestOutputStream(OutputStream.nullOutputStream(), digest)))
+        {
+            for (Entry<Portfolio, List<PortfolioTransaction>> portfolio : mappedTransactions.entrySet())
+            {
+                out.writeUTF(portfolio.getKey().getUUID());
+                for (PortfolioTransaction tx : portfolio.getValue())
+                {
+                    if (tx.getDateTime().isAfter(watermark))
+                    {
+                        continue;
+                    }
+                    out.writeUTF(tx.getUUID());
+                    out.writeUTF(tx.getType().name());
+                    out.writeUTF(tx.getDateTime().toString());
+                    out.writeLong(tx.getShares());
+                    out.writeLong(tx.getAmount());
+                    out.writeUTF(tx.getSecurity() != null ? tx.getSecurity().getUUID() : "");
+                    out.writeUTF(describeCrossEntry(tx));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String describeCrossEntry(PortfolioTransaction tx)
+    {
+        if (tx.getCrossEntry() instanceof PortfolioTransferEntry entry)
+        { return entry.getSourcePortfolio().getUUID() + ">" + entry.getTargetPortfolio().getUUID(); }
+        if (tx.getCrossEntry() instanceof BuySellEntry entry)
+        { return entry.getPortfolio().getUUID(); }
+        return "";
+    }
+
+    @SuppressWarnings("java:S3252") // Need type for sort
     private Map<Portfolio, List<PortfolioTransaction>> getMappedTransactions(Client client)
     {
-        return client.getPortfolios().stream().collect(Collectors.toMap(Function.identity(),
-                        portfolio -> PortfolioTransaction.sortByDate(portfolio.getTransactions())));
+        Map<Portfolio, List<PortfolioTransaction>> mappedTransactions = new LinkedHashMap<>();
+        for (Portfolio portfolio : client.getPortfolios())
+        {
+            mappedTransactions.put(portfolio, PortfolioTransaction.sortByDate(portfolio.getTransactions()));
+        }
+        return mappedTransactions;
     }
 
-    @SuppressWarnings({ "java:S3252", "java:S6204" }) // Need type for sort
-    private Map<Portfolio, List<UnsoldTransaction>> getTransactions(Client client)
+    private static Map<Portfolio, List<UnsoldTransaction>> createLots(
+                    Map<Portfolio, List<PortfolioTransaction>> mappedTransactions)
     {
-        return client.getPortfolios().stream().collect(Collectors.toMap(Function.identity(),
-                        portfolio -> PortfolioTransaction.sortByDate(portfolio.getTransactions()).stream()
-                                        .filter(tx -> tx.getType().isPurchase() && (tx.getType() != Type.TRANSFER_IN))
-                                        .map(UnsoldTransaction::new).collect(Collectors.toList())));
+        Map<Portfolio, List<UnsoldTransaction>> transactions = new LinkedHashMap<>();
+        mappedTransactions.keySet().forEach(portfolio -> transactions.put(portfolio, new ArrayList<>()));
+        return transactions;
     }
 
-    private void handleLiquidation(Portfolio portfolio, PortfolioTransaction tx,
+    /**
+     * Verrechnet einen Abgang nach FIFO mit den Lots des abgebenden Depots.
+     * Bei Umbuchungen werden die Lots in das Zieldepot übernommen.
+     *
+     * @return Anteile, für die kein Lot mehr vorhanden war
+     */
+    static double handleLiquidation(Portfolio portfolio, PortfolioTransaction tx,
                     Map<Portfolio, List<UnsoldTransaction>> transactions)
     {
 
@@ -105,9 +472,10 @@ public class VapExportService
 
         double sharesToTransfer = UnsoldTransaction.calcluateShare(tx);
         if (sharesToTransfer <= 0)
-        { return; }
+        { return 0; }
 
-        List<UnsoldTransaction> toTransfer = calcluateShares(tx, fromTransactions, sharesToTransfer);
+        List<UnsoldTransaction> toTransfer = new ArrayList<>();
+        double remaining = calcluateShares(tx, fromTransactions, sharesToTransfer, toTransfer);
 
         if (tx.getCrossEntry() instanceof PortfolioTransferEntry crossTx)
         {
@@ -118,17 +486,16 @@ public class VapExportService
             Collections.sort(transactions.get(toPortfolio));
         }
 
+        return remaining;
     }
 
-    private List<UnsoldTransaction> calcluateShares(PortfolioTransaction tx, List<UnsoldTransaction> fromTransactions,
-                    double sharesToTransfer)
+    private static double calcluateShares(PortfolioTransaction tx, List<UnsoldTransaction> fromTransactions,
+                    double sharesToTransfer, List<UnsoldTransaction> toTransfer)
     {
-        List<UnsoldTransaction> toTransfer = new ArrayList<>();
-
         for (UnsoldTransaction unsoldTx : fromTransactions)
         {
             if (sharesToTransfer <= 0)
-            { return toTransfer; }
+            { return 0; }
             if (!unsoldTx.getTransaction().getSecurity().equals(tx.getSecurity()))
             {
                 continue;
@@ -146,7 +513,7 @@ public class VapExportService
                 sharesToTransfer = 0;
             }
         }
-        return toTransfer;
+        return sharesToTransfer;
     }
 
 }
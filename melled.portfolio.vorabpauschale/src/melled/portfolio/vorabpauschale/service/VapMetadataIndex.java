@@ -0,0 +1,346 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import melled.portfolio.vorabpauschale.model.LotStore;
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.model.VapMetadata;
+import melled.portfolio.vorabpauschale.model.YearRange;
+import melled.portfolio.vorabpauschale.service.VapCalculator.VapEntry;
+import name.abuchen.portfolio.model.Security;
+
+/**
+ * Unveränderlicher Stand der VAP-Metadaten einer Metadaten-Datei. Enthält je
+ * ID (ISIN, WKN oder Name) die Metadaten, die Jahre mit positiver VAP und die
+ * vorberechneten {@link VapSuffixTable Summentabellen}. Ein Index wird einmal
+ * pro Export geladen und kann ohne Synchronisation von mehreren Exporten
+ * gleichzeitig gelesen werden.
+ */
+public final class VapMetadataIndex
+{
+    public static final VapMetadataIndex EMPTY = new VapMetadataIndex(Collections.emptyMap(),
+                    Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), 0L);
+
+    private final Map<String, Set<VapMetadata>> metadataById;
+    private final Map<String, YearRange> vapYearsById;
+    private final Map<String, VapSuffixTable> suffixTablesById;
+    private final Map<String, Long> hashesById;
+    private final long hash;
+
+    private VapMetadataIndex(Map<String, Set<VapMetadata>> metadataById, Map<String, YearRange> vapYearsById,
+                    Map<String, VapSuffixTable> suffixTablesById, Map<String, Long> hashesById, long hash)
+    {
+        this.metadataById = metadataById;
+        this.vapYearsById = vapYearsById;
+        this.suffixTablesById = suffixTablesById;
+        this.hashesById = hashesById;
+        this.hash = hash;
+    }
+
+    /**
+     * Baut den Index aus den eingelesenen Metadaten. Die Mengen werden
+     * kopiert, spätere Änderungen an {@code metadataById} wirken sich nicht
+     * aus.
+     *
+     * @param metadataById
+     *            ID -> VAP-Metadaten aller Jahre
+     * @return Index
+     */
+    public static VapMetadataIndex create(Map<String, Set<VapMetadata>> metadataById)
+    {
+        Map<String, Set<VapMetadata>> metadata = new HashMap<>();
+        Map<String, YearRange> vapYears = new HashMap<>();
+        Map<String, VapSuffixTable> suffixTables = new HashMap<>();
+        Map<String, Long> hashes = new HashMap<>();
+        long indexHash = 0L;
+
+        for (Map.Entry<String, Set<VapMetadata>> entry : metadataById.entrySet())
+        {
+            metadata.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<>(entry.getValue())));
+            suffixTables.put(entry.getKey(), VapSuffixTable.create(entry.getValue()));
+
+            YearRange years = YearRange.EMPTY;
+            for (VapMetadata entryMetadata : entry.getValue())
+            {
+                if (entryMetadata.getVapBeforeTfs() > 0)
+                {
+                    years = years.with(entryMetadata.getYear());
+                }
+            }
+            vapYears.put(entry.getKey(), years);
+
+            long idHash = hashMetadata(entry.getValue());
+            hashes.put(entry.getKey(), idHash);
+            indexHash += ClientFingerprint.mix(ClientFingerprint.hash(entry.getKey()) ^ idHash);
+        }
+
+        return new VapMetadataIndex(Collections.unmodifiableMap(metadata), Collections.unmodifiableMap(vapYears),
+                        Collections.unmodifiableMap(suffixTables), Collections.unmodifiableMap(hashes), indexHash);
+    }
+
+    /**
+     * Hash über alle Einträge einer ID, unabhängig von ihrer Reihenfolge.
+     */
+    private static long hashMetadata(Set<VapMetadata> entries)
+    {
+        long result = entries.size();
+        for (VapMetadata entry : entries)
+        {
+            long entryHash = ClientFingerprint.mix(entry.getYear());
+            entryHash = ClientFingerprint.mix(entryHash + Double.doubleToLongBits(entry.getVapBeforeTfs()));
+            entryHash = ClientFingerprint.mix(entryHash + entry.getTfsPercentage());
+            result += entryHash;
+        }
+        return ClientFingerprint.mix(result);
+    }
+
+    /**
+     * @return {@code true}, wenn keine Metadaten enthalten sind
+     */
+    public boolean isEmpty()
+    {
+        return metadataById.isEmpty();
+    }
+
+    /**
+     * Liefert die Metadaten eines Wertpapiers, gesucht über ISIN, WKN und
+     * Name.
+     *
+     * @param security
+     *            Wertpapier
+     * @return Metadaten, leer falls keine vorhanden sind
+     */
+    public Set<VapMetadata> getMetadata(Security security)
+    {
+        if (security == null)
+        { return Collections.emptySet(); }
+
+        Set<VapMetadata> metadata = lookup(metadataById, security);
+        return metadata != null ? metadata : Collections.emptySet();
+    }
+
+    /**
+     * Liefert einen Hash der Metadaten eines Wertpapiers. Er ändert sich,
+     * sobald ein Jahr hinzukommt oder sich VAP bzw. Teilfreistellung eines
+     * Jahres ändern.
+     *
+     * @param security
+     *            Wertpapier
+     * @return Hash, 0 falls keine Metadaten vorhanden sind
+     */
+    public long getMetadataHash(Security security)
+    {
+        if (security == null)
+        { return 0L; }
+
+        Long metadataHash = lookup(hashesById, security);
+        return metadataHash != null ? metadataHash : 0L;
+    }
+
+    /**
+     * @return Hash über die Metadaten aller IDs, 0 für einen leeren Index
+     */
+    public long getHash()
+    {
+        return hash;
+    }
+
+    /**
+     * @return Teilfreistellung des Wertpapiers in Prozent, 0 ohne Metadaten
+     */
+    public int getTfsPercentage(Security security)
+    {
+        Set<VapMetadata> metadata = getMetadata(security);
+        return metadata.isEmpty() ? 0 : metadata.iterator().next().getTfsPercentage();
+    }
+
+    /**
+     * Liefert die Jahre, für die das Wertpapier eine positive VAP hat.
+     *
+     * @param security
+     *            Wertpapier
+     * @return Jahre, leer falls keine VAP-Daten vorhanden sind
+     */
+    public YearRange getVapYears(Security security)
+    {
+        if (security == null)
+        { return YearRange.EMPTY; }
+
+        YearRange years = lookup(vapYearsById, security);
+        return years != null ? years : YearRange.EMPTY;
+    }
+
+    /**
+     * Liefert die Jahre, für die eine Transaktion VAP hat. Entspricht den
+     * Schlüsseln von {@link #calculateVapList(UnsoldTransaction)}.
+     *
+     * @param transaction
+     *            Portfolio-Transaktion
+     * @return Jahre ab dem Kaufjahr mit positiver VAP
+     */
+    public YearRange getVapYears(UnsoldTransaction transaction)
+    {
+        return getVapYears(transaction.getTransaction().getSecurity())
+                        .from(transaction.getTransaction().getDateTime().getYear());
+    }
+
+    /**
+     * Liefert die vorberechneten VAP-Summen eines Wertpapiers.
+     *
+     * @param security
+     *            Wertpapier
+     * @return Summentabelle, leer falls keine VAP-Daten vorhanden sind
+     */
+    public VapSuffixTable getSuffixTable(Security security)
+    {
+        if (security == null)
+        { return VapSuffixTable.EMPTY; }
+
+        VapSuffixTable table = lookup(suffixTablesById, security);
+        return table != null ? table : VapSuffixTable.EMPTY;
+    }
+
+    /**
+     * Berechnet die VAP-Liste für eine Transaktion.
+     *
+     * @return Map von Jahr -> VAP pro Anteil vor TFS
+     */
+    public Map<Integer, VapEntry> calculateVapList(UnsoldTransaction transaction)
+    {
+        return calculateVapList(transaction.getTransaction().getSecurity(),
+                        transaction.getTransaction().getDateTime().toLocalDate());
+    }
+
+    /**
+     * Berechnet die VAP-Liste für das aktuelle Lot eines Cursors.
+     *
+     * @return Map von Jahr -> VAP pro Anteil vor TFS
+     */
+    public Map<Integer, VapEntry> calculateVapList(LotStore.Cursor lot)
+    {
+        return calculateVapList(lot.getSecurity(), lot.getPurchaseDate());
+    }
+
+    /**
+     * Berechnet die Gesamt-VAP für eine Transaktion unter Berücksichtigung der
+     * Anteile.
+     *
+     * @param transaction
+     *            Portfolio-Transaktion
+     * @param year
+     *            Jahr
+     * @return Gesamt-VAP (VAP pro Anteil * Anzahl Anteile)
+     */
+    public double calculateTotalVap(UnsoldTransaction transaction, int year)
+    {
+        VapEntry entry = calculateVapList(transaction).get(year);
+        return entry != null ? entry.vap() * transaction.getUnsoldShare() : 0.0;
+    }
+
+    /**
+     * Berechnet die Summe aller VAP für eine Transaktion.
+     *
+     * @param transaction
+     *            Portfolio-Transaktion
+     * @return Summe VAP vor TFS pro Anteil
+     */
+    public double calculateTotalVapPerShare(UnsoldTransaction transaction)
+    {
+        return getSuffixTable(transaction.getTransaction().getSecurity())
+                        .getTotalVapPerShare(transaction.getTransaction().getDateTime().toLocalDate());
+    }
+
+    /**
+     * Berechnet die VAP-Liste für ein Wertpapier ab einem Kaufdatum. Im
+     * Kaufjahr zählt die VAP anteilig ab dem Kaufmonat, Jahre ohne positive
+     * VAP entfallen.
+     *
+     * @param security
+     *            Wertpapier
+     * @param purchasedDate
+     *            Kaufdatum
+     * @return Map von Jahr -> VAP pro Anteil vor TFS
+     */
+    public Map<Integer, VapEntry> calculateVapList(Security security, LocalDate purchasedDate)
+    {
+        return calculateVapList(security, purchasedDate, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Wie {@link #calculateVapList(Security, LocalDate)}, aber nur für Jahre
+     * ab {@code fromYear}.
+     *
+     * @param security
+     *            Wertpapier
+     * @param purchasedDate
+     *            Kaufdatum
+     * @param fromYear
+     *            erstes zu berechnendes Jahr
+     * @return Map von Jahr -> VAP pro Anteil vor TFS
+     */
+    public Map<Integer, VapEntry> calculateVapList(Security security, LocalDate purchasedDate, int fromYear)
+    {
+        Map<Integer, VapEntry> vapList = new HashMap<>();
+
+        Set<VapMetadata> vapYears = getMetadata(security);
+
+        if (vapYears.isEmpty())
+        {
+            return vapList; // Keine VAP-Daten für dieses Wertpapier
+        }
+
+        int purchasedYear = purchasedDate.getYear();
+
+        for (VapMetadata metadata : vapYears)
+        {
+            int year = metadata.getYear();
+            double vapPerShareBeforeTfs = metadata.getVapBeforeTfs();
+
+            if ((year < purchasedYear) || (year < fromYear))
+            {
+                continue;
+            }
+
+            double proportionOfYear;
+            if (purchasedYear == year)
+            {
+                // Anteilige VAP für jeden Teilmonat
+                // 12/12 für Januar, 1/12 für Dezember
+                proportionOfYear = (13 - purchasedDate.getMonthValue()) / 12.0;
+            }
+            else
+            {
+                // Volles Jahr
+                proportionOfYear = 1.0;
+            }
+
+            double vap = proportionOfYear * vapPerShareBeforeTfs;
+            if (vap > 0)
+            {
+                vapList.put(year, new VapEntry(vap, metadata.getTfsPercentage()));
+            }
+        }
+
+        return vapList;
+    }
+
+    private static <T> T lookup(Map<String, T> byId, Security security)
+    {
+        T value = byId.get(security.getIsin());
+        if (value != null)
+        {
+            return value;
+        }
+        value = byId.get(security.getWkn());
+        if (value != null)
+        {
+            return value;
+        }
+        return byId.get(security.getName());
+    }
+}
@@ -0,0 +1,309 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.beans.PropertyChangeListener;
+import java.util.List;
+import java.util.Map;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.e4.core.di.annotations.Creatable;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.model.Client;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+
+/**
+ * Berechnet die offenen Lots des geöffneten Clients und die
+ * VAP-Zusammenfassung im Hintergrund vor. Änderungen am Client werden über
+ * dessen PropertyChangeEvents erkannt und nach {@link #DEBOUNCE_MILLIS} ohne
+ * weitere Änderung mit niedriger Priorität neu berechnet. Ein Export muss
+ * dadurch nur noch die Ausgabe schreiben.
+ * <p>
+ * Die Lots werden über ein {@link LotLedger} fortgeschrieben, das nur
+ * geänderte Positionen neu verrechnet. Mit {@link #SUMMARY_PROPERTY} meldet
+ * es die Änderungen zusätzlich an eine {@link VapSummaryView} je Client, deren
+ * Zusammenfassung der Export dann übernimmt. Da die fortgeschriebenen Summen
+ * in den letzten Nachkommastellen von einer vollständigen Neuberechnung
+ * abweichen können, ist dies standardmäßig abgeschaltet.
+ * <p>
+ * Vorberechnete Lots werden nur geliefert, solange seit ihrer Berechnung keine
+ * Änderung am Client gemeldet wurde, sonst rechnet der Export wie bisher
+ * selbst.
+ * <p>
+ * Der Client ist nicht threadsicher. Die Umsatzlisten werden daher beim Setzen
+ * des Clients und bei jeder gemeldeten Änderung im meldenden Thread kopiert,
+ * der Job verrechnet nur diese Kopie.
+ * <p>
+ * Die Metadaten-Datei ist erst nach dem ersten Export bekannt, siehe
+ * {@link #setMetadataFile(String)}. Bis dahin werden nur die Lots
+ * vorberechnet.
+ */
+@Creatable
+@Singleton
+public class VapPrecomputeService
+{
+    /**
+     * Systemeigenschaft zum Abschalten der Vorberechnung, z.B.
+     * {@code -Dmelled.portfolio.vorabpauschale.precompute=false}
+     */
+    public static final String ENABLED_PROPERTY = "melled.portfolio.vorabpauschale.precompute";
+
+    /**
+     * Systemeigenschaft zum Einschalten der inkrementellen Zusammenfassung,
+     * z.B. {@code -Dmelled.portfolio.vorabpauschale.incrementalSummary=true}
+     */
+    public static final String SUMMARY_PROPERTY = "melled.portfolio.vorabpauschale.incrementalSummary";
+
+    static final long DEBOUNCE_MILLIS = 750;
+
+    /**
+     * Vorberechneter Stand eines Clients.
+     *
+     * @param generation
+     *            Zähler der Änderungen am Client zum Zeitpunkt der Berechnung
+     */
+    private record Snapshot(Client client, long generation, Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+    }
+
+    /**
+     * Vorberechneter Stand für einen Export.
+     *
+     * @param transactions
+     *            offene Lots je Depot
+     * @param summaryRows
+     *            fortgeschriebene Zusammenfassung oder {@code null}, falls sie
+     *            für die Metadaten nicht aktuell ist
+     */
+    public record Precomputed(Map<Portfolio, List<UnsoldTransaction>> transactions, List<VapSummaryRow> summaryRows)
+    {
+    }
+
+    private final VapCalculator vapCalculator;
+    private final VapSummaryCollector vapSummaryCollector;
+
+    private final PropertyChangeListener clientListener = event -> clientChanged();
+    private final Job job = new Job("VAP Vorberechnung")
+    {
+        @Override
+        protected IStatus run(IProgressMonitor monitor)
+        {
+            precompute(monitor);
+            return Status.OK_STATUS;
+        }
+    };
+
+    private Client client;
+    private LotLedger ledger;
+    private Map<Portfolio, List<PortfolioTransaction>> pending;
+    private VapSummaryView summaryView;
+    private String metadataFile;
+    private String summaryMetadataFile;
+    private long generation;
+    private Snapshot snapshot;
+
+    @Inject
+    public VapPrecomputeService(VapCalculator vapCalculator, VapSummaryCollector vapSummaryCollector)
+    {
+        this.vapCalculator = vapCalculator;
+        this.vapSummaryCollector = vapSummaryCollector;
+
+        job.setSystem(true);
+        job.setPriority(Job.DECORATE);
+    }
+
+    /**
+     * @return {@code true}, falls die Vorberechnung nicht über
+     *         {@link #ENABLED_PROPERTY} abgeschaltet ist
+     */
+    public static boolean isEnabled()
+    {
+        return !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+    }
+
+    /**
+     * @return {@code true}, falls die inkrementelle Zusammenfassung über
+     *         {@link #SUMMARY_PROPERTY} eingeschaltet ist
+     */
+    public static boolean isSummaryEnabled()
+    {
+        return Boolean.getBoolean(SUMMARY_PROPERTY);
+    }
+
+    /**
+     * Setzt den Client, dessen Lots vorberechnet werden. Der bisherige Client
+     * wird nicht mehr beobachtet.
+     *
+     * @param newClient
+     *            geöffneter Client oder {@code null}, um die Vorberechnung zu
+     *            beenden
+     */
+    public synchronized void setClient(Client newClient)
+    {
+        if (newClient == client)
+        { return; }
+
+        if (client != null)
+        {
+            client.removePropertyChangeListener(clientListener);
+        }
+
+        client = newClient;
+        // eigene Sicht je Client, damit sich die Stände mehrerer Clients nicht mischen
+        summaryView = (client != null) && isSummaryEnabled() ? new VapSummaryView(vapSummaryCollector) : null;
+        ledger = client != null ? new LotLedger(client, summaryView) : null;
+        pending = client != null ? LotLedger.snapshot(client) : null;
+        summaryMetadataFile = null;
+        snapshot = null;
+        generation++;
+
+        if (client != null)
+        {
+            client.addPropertyChangeListener(clientListener);
+            job.schedule(DEBOUNCE_MILLIS);
+        }
+        else
+        {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Merkt sich die Metadaten-Datei des letzten Exports. Ab dann wird mit
+     * {@link #SUMMARY_PROPERTY} auch die VAP-Zusammenfassung vorberechnet,
+     * vor dem ersten Export eines Clients also noch nicht. Die Datei wird
+     * nicht gespeichert und gilt bis zum Beenden der Anwendung.
+     *
+     * @param file
+     *            Pfad der Metadaten-Datei
+     */
+    public synchronized void setMetadataFile(String file)
+    {
+        this.metadataFile = file;
+    }
+
+    /**
+     * Liefert die vorberechneten Lots eines Clients.
+     *
+     * @return Lots je Depot oder {@code null}, falls für den Client kein
+     *         aktueller Stand vorliegt
+     */
+    public synchronized Map<Portfolio, List<UnsoldTransaction>> getTransactions(Client forClient)
+    {
+        if ((snapshot == null) || (snapshot.client() != forClient) || (snapshot.generation() != generation))
+        { return null; }
+        return snapshot.transactions();
+    }
+
+    /**
+     * Liefert Lots und Zusammenfassung eines Clients aus demselben Stand. Die
+     * Zusammenfassung wird nur geliefert, wenn die Meldungen des Ledgers sie
+     * seit dem Laden von {@code file} aktuell gehalten haben.
+     *
+     * @param forClient
+     *            zu exportierender Client
+     * @param file
+     *            Pfad der Metadaten-Datei des Exports
+     * @return vorberechneter Stand oder {@code null}, falls für den Client
+     *         kein aktueller Stand vorliegt
+     */
+    public synchronized Precomputed getPrecomputed(Client forClient, String file)
+    {
+        Map<Portfolio, List<UnsoldTransaction>> transactions = getTransactions(forClient);
+        if (transactions == null)
+        { return null; }
+
+        // der Ledger ändert die Sicht erst nach einer Änderung am Client, also nach Verwerfen des Stands
+        boolean summaryCurrent = (summaryView != null) && file.equals(summaryMetadataFile)
+                        && summaryView.isCurrent(file);
+        return new Precomputed(transactions, summaryCurrent ? summaryView.getRows() : null);
+    }
+
+    private synchronized void clientChanged()
+    {
+        // im Thread der Änderung kopieren, der Job liest den Client nicht selbst
+        if (client != null)
+        {
+            pending = LotLedger.snapshot(client);
+        }
+        generation++;
+        // erneutes Einplanen verschiebt einen wartenden Lauf
+        job.schedule(DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Berechnet Lots und Zusammenfassung für den aktuellen Stand. Wird der
+     * Client währenddessen geändert, wird das Ergebnis verworfen, der nächste
+     * Lauf ist dann bereits eingeplant.
+     */
+    void precompute(IProgressMonitor monitor)
+    {
+        Client current;
+        LotLedger currentLedger;
+        Map<Portfolio, List<PortfolioTransaction>> currentPending;
+        VapSummaryView currentView;
+        long currentGeneration;
+        String currentMetadataFile;
+        boolean summaryCurrent;
+        synchronized (this)
+        {
+            current = client;
+            currentLedger = ledger;
+            currentPending = pending;
+            currentView = summaryView;
+            currentGeneration = generation;
+            currentMetadataFile = metadataFile;
+            summaryCurrent = (summaryView == null) || (metadataFile == null)
+                            || (metadataFile.equals(summaryMetadataFile) && summaryView.isCurrent(metadataFile));
+        }
+
+        if ((current == null) || monitor.isCanceled())
+        { return; }
+
+        Map<Portfolio, List<UnsoldTransaction>> transactions;
+        try
+        {
+            currentLedger.sync(currentPending);
+            transactions = currentLedger.getTransactions();
+        }
+        catch (RuntimeException e)
+        {
+            // Umsatz während des Laufs im UI geändert, der nächste Lauf ist eingeplant
+            return;
+        }
+
+        synchronized (this)
+        {
+            if ((current != client) || (currentGeneration != generation))
+            { return; }
+            snapshot = new Snapshot(current, currentGeneration, transactions);
+        }
+
+        // nach dem ersten Abgleich halten die Meldungen des Ledgers die Sicht aktuell
+        if (!summaryCurrent && !monitor.isCanceled())
+        {
+            try
+            {
+                currentView.update(vapCalculator.loadIndex(currentMetadataFile), currentMetadataFile, transactions);
+                synchronized (this)
+                {
+                    if (current == client)
+                    {
+                        summaryMetadataFile = currentMetadataFile;
+                    }
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Metadaten nicht lesbar, der Export meldet den Fehler
+            }
+        }
+    }
+}
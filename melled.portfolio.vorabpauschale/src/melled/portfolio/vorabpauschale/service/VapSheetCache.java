@@ -0,0 +1,219 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Inhaltsadressierter Cache für komprimierte Sheet-Parts einer xlsx-Datei.
+ * Ein Eintrag enthält die bereits komprimierten Bytes eines
+ * {@code xl/worksheets/sheetN.xml} Parts und wird über einen Fingerprint der
+ * Eingabedaten des Sheets adressiert. Beim Zusammensetzen der Ausgabedatei
+ * werden Treffer unverändert als Zip-Eintrag kopiert, nur geänderte Sheets
+ * werden neu erzeugt und anschließend im Cache abgelegt.
+ */
+public class VapSheetCache
+{
+    private static final int MAGIC = 0x56415053; // "VAPS"
+    private static final String SUFFIX = ".part";
+
+    /**
+     * Komprimierter Sheet-Part inklusive der Zip-Metadaten, die für eine
+     * unveränderte Kopie benötigt werden.
+     */
+    public record CachedPart(int method, long crc, long size, byte[] compressed)
+    {
+    }
+
+    private final Path directory;
+
+    public VapSheetCache(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Liefert den gecachten Part zu einem Fingerprint. Der Inhalt wird
+     * vollständig geladen, damit ein parallel laufendes Aufräumen des Caches
+     * den laufenden Export nicht beeinflusst.
+     *
+     * @param fingerprint
+     *            Fingerprint der Sheet-Eingabedaten
+     * @return gecachter Part oder leer
+     */
+    public Optional<CachedPart> lookup(String fingerprint)
+    {
+        Path file = directory.resolve(fingerprint + SUFFIX);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file)))
+        {
+            if (in.readInt() != MAGIC)
+            { return Optional.empty(); }
+            int method = in.readInt();
+            long crc = in.readLong();
+            long size = in.readLong();
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            return Optional.of(new CachedPart(method, crc, size, compressed));
+        }
+        catch (IOException e)
+        {
+            // fehlender oder defekter Eintrag wird beim Export neu geschrieben
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Setzt die Ausgabedatei aus einer frisch geschriebenen xlsx-Datei
+     * zusammen. Parts mit Cache-Treffer werden durch den gecachten Inhalt
+     * ersetzt, alle anderen Sheet-Parts mit Fingerprint werden in den Cache
+     * übernommen.
+     *
+     * @param workbookFile
+     *            geschriebene xlsx-Datei mit Platzhaltern für Cache-Treffer
+     * @param out
+     *            Ziel der zusammengesetzten xlsx-Datei, wird nicht geschlossen
+     * @param fingerprints
+     *            Zip-Eintragsname -> Fingerprint der neu erzeugten Sheets
+     * @param hits
+     *            Zip-Eintragsname -> gecachter Part
+     * @throws IOException
+     *             bei Lese- oder Schreibfehlern
+     */
+    public void assemble(File workbookFile, OutputStream out, Map<String, String> fingerprints,
+                    Map<String, CachedPart> hits) throws IOException
+    {
+        Files.createDirectories(directory);
+
+        try (ZipFile zipFile = ZipFile.builder().setFile(workbookFile).get();
+                        ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(CloseShieldOutputStream.wrap(out)))
+        {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements())
+            {
+                ZipArchiveEntry entry = entries.nextElement();
+                CachedPart hit = hits.get(entry.getName());
+
+                if (hit != null)
+                {
+                    zipOut.addRawArchiveEntry(toEntry(entry.getName(), hit),
+                                    new ByteArrayInputStream(hit.compressed()));
+                    continue;
+                }
+
+                String fingerprint = fingerprints.get(entry.getName());
+                if (fingerprint != null)
+                {
+                    CachedPart part;
+                    try (InputStream raw = zipFile.getRawInputStream(entry))
+                    {
+                        part = new CachedPart(entry.getMethod(), entry.getCrc(), entry.getSize(), raw.readAllBytes());
+                    }
+                    store(fingerprint, part);
+                    zipOut.addRawArchiveEntry(toEntry(entry.getName(), part),
+                                    new ByteArrayInputStream(part.compressed()));
+                    continue;
+                }
+
+                try (InputStream raw = zipFile.getRawInputStream(entry))
+                {
+                    zipOut.addRawArchiveEntry(entry, raw);
+                }
+            }
+            zipOut.finish();
+        }
+    }
+
+    /**
+     * Entfernt Einträge, die länger als die angegebene Dauer nicht verwendet
+     * wurden.
+     *
+     * @param maxAge
+     *            maximales Alter seit der letzten Verwendung
+     */
+    public void prune(Duration maxAge)
+    {
+        if (!Files.isDirectory(directory))
+        { return; }
+
+        Instant threshold = Instant.now().minus(maxAge);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX))
+        {
+            for (Path file : files)
+            {
+                if (Files.getLastModifiedTime(file).toInstant().isBefore(threshold))
+                {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // Aufräumen ist optional
+        }
+    }
+
+    private void store(String fingerprint, CachedPart part) throws IOException
+    {
+        Path target = directory.resolve(fingerprint + SUFFIX);
+        if (Files.exists(target))
+        { return; }
+
+        Path temp = Files.createTempFile(directory, fingerprint, ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp)))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(part.method());
+                out.writeLong(part.crc());
+                out.writeLong(part.size());
+                out.writeInt(part.compressed().length);
+                out.write(part.compressed());
+            }
+
+            try
+            {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static ZipArchiveEntry toEntry(String name, CachedPart part)
+    {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(part.method());
+        entry.setCrc(part.crc());
+        entry.setSize(part.size());
+        entry.setCompressedSize(part.compressed().length);
+        return entry;
+    }
+}
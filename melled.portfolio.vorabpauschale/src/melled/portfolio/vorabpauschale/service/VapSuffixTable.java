@@ -0,0 +1,96 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.time.LocalDate;
+import java.util.Collection;
+
+import melled.portfolio.vorabpauschale.model.VapMetadata;
+
+/**
+ * Vorberechnete Summen der VAP pro Anteil eines Wertpapiers. Für jedes Jahr
+ * wird die Summe der VAP dieses und aller späteren Jahre abgelegt. Die
+ * Gesamt-VAP pro Anteil eines Lots ist damit die anteilige VAP des Kaufjahres
+ * plus die Summe ab dem Folgejahr und benötigt keine VAP-Liste.
+ */
+public final class VapSuffixTable
+{
+    public static final VapSuffixTable EMPTY = new VapSuffixTable(0, new double[0]);
+
+    private final int firstYear;
+    private final double[] vapByYear;
+    private final double[] suffixSums;
+
+    private VapSuffixTable(int firstYear, double[] vapByYear)
+    {
+        this.firstYear = firstYear;
+        this.vapByYear = vapByYear;
+        this.suffixSums = new double[vapByYear.length + 1];
+        for (int i = vapByYear.length - 1; i >= 0; i--)
+        {
+            suffixSums[i] = vapByYear[i] + suffixSums[i + 1];
+        }
+    }
+
+    /**
+     * Baut die Tabelle aus den VAP-Metadaten eines Wertpapiers. Jahre ohne
+     * positive VAP tragen nichts bei, wie in
+     * {@link VapMetadataIndex#calculateVapList(melled.portfolio.vorabpauschale.model.UnsoldTransaction)}.
+     *
+     * @param metadata
+     *            VAP-Metadaten eines Wertpapiers
+     * @return Tabelle, leer falls keine Metadaten vorhanden sind
+     */
+    public static VapSuffixTable create(Collection<VapMetadata> metadata)
+    {
+        if (metadata.isEmpty())
+        { return EMPTY; }
+
+        int minYear = Integer.MAX_VALUE;
+        int maxYear = Integer.MIN_VALUE;
+        for (VapMetadata entry : metadata)
+        {
+            minYear = Math.min(minYear, entry.getYear());
+            maxYear = Math.max(maxYear, entry.getYear());
+        }
+
+        double[] vapByYear = new double[(maxYear - minYear) + 1];
+        for (VapMetadata entry : metadata)
+        {
+            vapByYear[entry.getYear() - minYear] = Math.max(0, entry.getVapBeforeTfs());
+        }
+        return new VapSuffixTable(minYear, vapByYear);
+    }
+
+    /**
+     * Liefert die Summe der VAP vor TFS pro Anteil für ein Lot. Im Kaufjahr
+     * zählt die VAP anteilig ab dem Kaufmonat.
+     *
+     * @param purchaseDate
+     *            Kaufdatum des Lots
+     * @return Summe VAP vor TFS pro Anteil
+     */
+    public double getTotalVapPerShare(LocalDate purchaseDate)
+    {
+        int index = purchaseDate.getYear() - firstYear;
+        if (index < 0)
+        { return suffixSums[0]; }
+        if (index >= vapByYear.length)
+        { return 0.0; }
+
+        double proportionOfYear = (13 - purchaseDate.getMonthValue()) / 12.0;
+        return (proportionOfYear * vapByYear[index]) + suffixSums[index + 1];
+    }
+
+    /**
+     * @return Summe der VAP vor TFS pro Anteil ab einschließlich
+     *         {@code year}, jeweils für volle Jahre
+     */
+    public double getSuffixSum(int year)
+    {
+        int index = year - firstYear;
+        if (index < 0)
+        { return suffixSums[0]; }
+        if (index >= vapByYear.length)
+        { return 0.0; }
+        return suffixSums[index];
+    }
+}
@@ -1,23 +1,28 @@
 package melled.portfolio.vorabpauschale.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
-import java.util.Set;
-import java.util.TreeSet;
-
-import jakarta.inject.Inject;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
 
 import org.eclipse.e4.core.di.annotations.Creatable;
 
+import melled.portfolio.vorabpauschale.model.LotStore;
 import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
-import melled.portfolio.vorabpauschale.model.VapMetadata;
+import melled.portfolio.vorabpauschale.model.VapKey;
+import melled.portfolio.vorabpauschale.model.YearRange;
+import melled.portfolio.vorabpauschale.service.ClientFingerprint.PositionKey;
 import melled.portfolio.vorabpauschale.service.VapCalculator.VapEntry;
+import melled.portfolio.vorabpauschale.service.VapCube.Dimension;
 import name.abuchen.portfolio.model.Portfolio;
 import name.abuchen.portfolio.model.Security;
 
@@ -28,54 +33,26 @@ import name.abuchen.portfolio.model.Security;
 public class VapSummaryCollector
 {
 
-    /**
-     * Schlüssel für VAP-Aggregation: (ISIN, Name, Broker, TFS%)
-     */
-    private static class VapKey
-    {
-        final String isin;
-        final String name;
-        final String broker;
-        final int tfsPercentage;
-
-        VapKey(String isin, String name, String broker, int tfsPercentage)
-        {
-            this.isin = isin;
-            this.name = name;
-            this.broker = broker;
-            this.tfsPercentage = tfsPercentage;
-        }
-
-        @Override
-        public boolean equals(Object o)
-        {
-            if (this == o)
-            { return true; }
-            if ((o == null) || (getClass() != o.getClass()))
-            { return false; }
-            VapKey vapKey = (VapKey) o;
-            return (tfsPercentage == vapKey.tfsPercentage) && Objects.equals(isin, vapKey.isin)
-                            && Objects.equals(name, vapKey.name) && Objects.equals(broker, vapKey.broker);
-        }
-
-        @Override
-        public int hashCode()
-        {
-            return Objects.hash(isin, name, broker, tfsPercentage);
-        }
-    }
-
     /**
      * Zeile in der VAP-Zusammenfassung.
      */
     public static class VapSummaryRow
     {
 
+        private static final int[] NO_YEARS = new int[0];
+        private static final double[] NO_VALUES = new double[0];
+
         private String isin;
         private String name;
         private String depot;
-        private Map<Integer, Double> vapBeforeTfs = new HashMap<>();
-        private Map<Integer, Double> vapAfterTfs = new HashMap<>();
+
+        // Werte je Jahr als Spalten einer Zeile der Aggregationsmatrix,
+        // die Maps werden erst bei Bedarf daraus erzeugt
+        private int[] years = NO_YEARS;
+        private double[] beforeTfs = NO_VALUES;
+        private double[] afterTfs = NO_VALUES;
+        private Map<Integer, Double> vapBeforeTfs;
+        private Map<Integer, Double> vapAfterTfs;
 
         private boolean sumRow;
 
@@ -139,6 +116,10 @@ public class VapSummaryCollector
 
         public Map<Integer, Double> getVapBeforeTfs()
         {
+            if (vapBeforeTfs == null)
+            {
+                vapBeforeTfs = toMap(beforeTfs);
+            }
             return vapBeforeTfs;
         }
 
@@ -149,6 +130,10 @@ public class VapSummaryCollector
 
         public Map<Integer, Double> getVapAfterTfs()
         {
+            if (vapAfterTfs == null)
+            {
+                vapAfterTfs = toMap(afterTfs);
+            }
             return vapAfterTfs;
         }
 
@@ -157,6 +142,73 @@ public class VapSummaryCollector
             this.vapAfterTfs = vapAfterTfs;
         }
 
+        /**
+         * @return VAP vor TFS im Jahr oder 0, falls für das Jahr kein Wert
+         *         vorhanden ist
+         */
+        public double getVapBeforeTfs(int year)
+        {
+            return vapBeforeTfs != null ? vapBeforeTfs.getOrDefault(year, 0.0) : valueOf(beforeTfs, year);
+        }
+
+        /**
+         * @return VAP nach TFS im Jahr oder 0, falls für das Jahr kein Wert
+         *         vorhanden ist
+         */
+        public double getVapAfterTfs(int year)
+        {
+            return vapAfterTfs != null ? vapAfterTfs.getOrDefault(year, 0.0) : valueOf(afterTfs, year);
+        }
+
+        /**
+         * @return aufsteigend sortierte Jahre mit Werten
+         */
+        public int[] getYears()
+        {
+            if ((vapBeforeTfs == null) && (vapAfterTfs == null))
+            { return years.clone(); }
+
+            YearRange keys = YearRange.EMPTY;
+            for (int year : getVapBeforeTfs().keySet())
+            {
+                keys = keys.with(year);
+            }
+            for (int year : getVapAfterTfs().keySet())
+            {
+                keys = keys.with(year);
+            }
+            return keys.toArray();
+        }
+
+        /**
+         * Übernimmt die Werte einer Matrixzeile. Die Arrays werden nicht
+         * kopiert.
+         */
+        void setValues(int[] years, double[] beforeTfs, double[] afterTfs)
+        {
+            this.years = years;
+            this.beforeTfs = beforeTfs;
+            this.afterTfs = afterTfs;
+            this.vapBeforeTfs = null;
+            this.vapAfterTfs = null;
+        }
+
+        private double valueOf(double[] values, int year)
+        {
+            int index = Arrays.binarySearch(years, year);
+            return index >= 0 ? values[index] : 0.0;
+        }
+
+        private Map<Integer, Double> toMap(double[] values)
+        {
+            Map<Integer, Double> map = new HashMap<>();
+            for (int i = 0; i < years.length; i++)
+            {
+                map.put(years[i], values[i]);
+            }
+            return map;
+        }
+
         public boolean isSumRow()
         {
             return sumRow;
@@ -189,161 +241,620 @@ public class VapSummaryCollector
 
     }
 
-    private final VapCalculator vapCalculator;
+    /**
+     * Sammelt VAP-Zusammenfassung für alle Portfolios mit einem festen Stand
+     * der Metadaten.
+     *
+     * @param index
+     *            Metadaten des Exports
+     * @return Liste von VAP-Zeilen, sortiert nach Depot
+     */
+    public List<VapSummaryRow> collectSummary(VapMetadataIndex index,
+                    Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        Aggregation aggregation = new Aggregation();
+
+        collectTransactions(index, transactions.entrySet(), aggregation);
+
+        return createRows(aggregation);
+    }
+
+    /**
+     * Sammelt VAP-Zusammenfassung für alle Portfolios parallel. Die Portfolios
+     * werden nach Depotname gruppiert, jede Teilaufgabe aggregiert eigene
+     * Gruppen und die Teilergebnisse werden anschließend zusammengeführt. Da
+     * alle Werte eines Schlüssels in derselben Gruppe und in derselben
+     * Reihenfolge summiert werden, ist das Ergebnis identisch mit
+     * {@link #collectSummary(VapMetadataIndex, Map)}.
+     *
+     * @param index
+     *            Metadaten des Exports
+     * @param parallelism
+     *            maximale Anzahl paralleler Threads
+     * @return Liste von VAP-Zeilen, sortiert nach Depot
+     */
+    public List<VapSummaryRow> collectSummary(VapMetadataIndex index,
+                    Map<Portfolio, List<UnsoldTransaction>> transactions, int parallelism)
+    {
+        List<List<Entry<Portfolio, List<UnsoldTransaction>>>> groups = groupByBroker(transactions);
+
+        if ((parallelism <= 1) || (groups.size() <= 1))
+        { return collectSummary(index, transactions); }
+
+        return createRows(invoke(parallelism, new CollectTask<>(groups, 0, groups.size(), List::size,
+                        (group, aggregation) -> collectTransactions(index, group, aggregation))));
+    }
 
-    @Inject
-    public VapSummaryCollector(VapCalculator vapCalculator)
+    /**
+     * Sammelt VAP-Zusammenfassung für alle Lots einer spaltenweisen Ablage.
+     * Das Ergebnis ist identisch mit
+     * {@link #collectSummary(VapMetadataIndex, Map, int)} für dieselben Lots.
+     * Mit {@link LotStore#compressByMonth()} zusammengefasste Lots liefern
+     * dieselbe Zusammenfassung bis auf Rundungsdifferenzen.
+     *
+     * @param index
+     *            Metadaten des Exports
+     * @param parallelism
+     *            maximale Anzahl paralleler Threads
+     * @return Liste von VAP-Zeilen, sortiert nach Depot
+     */
+    public List<VapSummaryRow> collectSummary(VapMetadataIndex index, LotStore lots, int parallelism)
     {
-        this.vapCalculator = vapCalculator;
+        VapKey[] keys = createKeys(index, lots);
+        int securityCount = lots.getSecurities().size();
+
+        Map<String, Integer> brokers = new HashMap<>();
+        int[] brokerOfPortfolio = new int[lots.getPortfolios().size()];
+        for (int i = 0; i < brokerOfPortfolio.length; i++)
+        {
+            brokerOfPortfolio[i] = brokers.computeIfAbsent(lots.getPortfolios().get(i).getName(),
+                            k -> brokers.size());
+        }
+        List<int[]> groups = List.of(lots.groupBy(lot -> brokerOfPortfolio[lots.getPortfolioOrdinal(lot)]));
+
+        CollectTask<int[]> task = new CollectTask<>(groups, 0, groups.size(), group -> group.length,
+                        (group, aggregation) -> collectLots(index, lots.cursor(group), keys, securityCount,
+                                        aggregation));
+
+        if ((parallelism <= 1) || (groups.size() <= 1))
+        { return createRows(task.compute()); }
+
+        return createRows(invoke(parallelism, task));
     }
 
     /**
-     * Sammelt VAP-Zusammenfassung für alle Portfolios.
+     * Wie {@link #collectSummary(VapMetadataIndex, LotStore, int)}, übernimmt
+     * aber die VAP abgeschlossener Jahre aus einer {@link ClosedYearCache
+     * Ablage}. Für Positionen mit unveränderten Lots und Metadaten werden nur
+     * das laufende und künftige Jahre berechnet, alle anderen Positionen
+     * vollständig und anschließend in der Ablage hinterlegt. Gespeichert wird
+     * die Ablage nicht.
+     * <p>
+     * Die abgeschlossenen Jahre werden je Position summiert, dadurch kann das
+     * Ergebnis in den letzten Nachkommastellen von einer Berechnung ohne
+     * Ablage abweichen. Mit und ohne Treffer in der Ablage ist es identisch.
      *
+     * @param index
+     *            Metadaten des Exports
+     * @param parallelism
+     *            maximale Anzahl paralleler Threads
+     * @param cache
+     *            Ablage der abgeschlossenen Jahre
      * @return Liste von VAP-Zeilen, sortiert nach Depot
      */
-    public List<VapSummaryRow> collectSummary(Map<Portfolio, List<UnsoldTransaction>> transactions)
+    public List<VapSummaryRow> collectSummary(VapMetadataIndex index, LotStore lots, int parallelism,
+                    ClosedYearCache cache)
+    {
+        VapKey[] keys = createKeys(index, lots);
+        int securityCount = lots.getSecurities().size();
+        List<int[]> positions = List.of(lots.groupBy(
+                        lot -> (lots.getPortfolioOrdinal(lot) * securityCount) + lots.getSecurityOrdinal(lot)));
+
+        CollectTask<int[]> task = new CollectTask<>(positions, 0, positions.size(), position -> position.length,
+                        (position, aggregation) -> collectPosition(index, lots, position,
+                                        keys[(lots.getPortfolioOrdinal(position[0]) * securityCount)
+                                                        + lots.getSecurityOrdinal(position[0])],
+                                        cache, aggregation));
+
+        if ((parallelism <= 1) || (positions.size() <= 1))
+        { return createRows(task.compute()); }
+
+        return createRows(invoke(parallelism, task));
+    }
+
+    /**
+     * Aggregiert die Lots einer Position. Abgeschlossene Jahre kommen aus der
+     * Ablage oder werden je Jahr summiert und danach abgelegt.
+     */
+    private void collectPosition(VapMetadataIndex index, LotStore lots, int[] position, VapKey key,
+                    ClosedYearCache cache, Aggregation aggregation)
+    {
+        Portfolio portfolio = lots.getPortfolios().get(lots.getPortfolioOrdinal(position[0]));
+        Security security = lots.getSecurities().get(lots.getSecurityOrdinal(position[0]));
+        PositionKey positionKey = PositionKey.of(portfolio, security);
+        int closedBefore = cache.getClosedBefore();
+
+        long hash = hashLots(index, security, lots.cursor(position));
+        ClosedYearCache.Entry cached = cache.lookup(positionKey, hash);
+        int fromYear = cached != null ? cached.closedBefore() : Integer.MIN_VALUE;
+        Map<Integer, Double> closedYears = new TreeMap<>(cached != null ? cached.beforeTfs() : Map.of());
+
+        LotStore.Cursor lot = lots.cursor(position);
+        while (lot.next())
+        {
+            Map<Integer, VapEntry> vapList = index.calculateVapList(security, lot.getPurchaseDate(), fromYear);
+            for (Entry<Integer, VapEntry> entry : vapList.entrySet())
+            {
+                double value = entry.getValue().vap() * lot.getUnsoldShare();
+                if (entry.getKey() < closedBefore)
+                {
+                    closedYears.merge(entry.getKey(), value, Double::sum);
+                }
+                else
+                {
+                    aggregation.add(key, entry.getKey(), value);
+                }
+            }
+        }
+
+        closedYears.forEach((year, value) -> aggregation.add(key, year, value));
+
+        if ((cached == null) || (cached.closedBefore() < closedBefore))
+        {
+            cache.put(positionKey, hash, closedYears);
+        }
+    }
+
+    /**
+     * Hash über Kaufdatum und unverkaufte Anteile der Lots einer Position und
+     * die Metadaten des Wertpapiers, also alle Eingaben der VAP-Berechnung.
+     */
+    private static long hashLots(VapMetadataIndex index, Security security, LotStore.Cursor lot)
+    {
+        long hash = ClientFingerprint.mix(index.getMetadataHash(security));
+        while (lot.next())
+        {
+            hash = ClientFingerprint.mix(hash + lot.getPurchaseEpochDay());
+            hash = ClientFingerprint.mix(hash + Double.doubleToLongBits(lot.getUnsoldShare()));
+        }
+        return hash;
+    }
+
+    /**
+     * Sammelt eine gemeinsame VAP-Zusammenfassung für mehrere Personen eines
+     * Haushalts. Die Depots werden als {@code Person / Depot} geführt, damit
+     * gleichnamige Depots verschiedener Personen getrennt bleiben. Die
+     * Gesamtsumme umfasst alle Personen.
+     *
+     * @param index
+     *            Metadaten des Exports
+     * @param lotsByMember
+     *            Person -> offene Lots, in Ausgabereihenfolge
+     * @return Liste von VAP-Zeilen, sortiert nach Person und Depot
+     */
+    public List<VapSummaryRow> collectHouseholdSummary(VapMetadataIndex index, Map<String, LotStore> lotsByMember)
+    {
+        Aggregation aggregation = new Aggregation();
+        for (Entry<String, LotStore> member : lotsByMember.entrySet())
+        {
+            LotStore lots = member.getValue();
+            VapKey[] keys = createKeys(index, lots, member.getKey() + " / ");
+            collectLots(index, lots.cursor(), keys, lots.getSecurities().size(), aggregation);
+        }
+        return createRows(aggregation);
+    }
+
+    private static Aggregation invoke(int parallelism, CollectTask<?> task)
+    {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            return pool.invoke(task);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static List<List<Entry<Portfolio, List<UnsoldTransaction>>>> groupByBroker(
+                    Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        Map<String, List<Entry<Portfolio, List<UnsoldTransaction>>>> groups = new LinkedHashMap<>();
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        {
+            groups.computeIfAbsent(portfolio.getKey().getName(), k -> new ArrayList<>()).add(portfolio);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * Aggregiert einen Bereich von Depot-Gruppen. Bereiche mit wenigen
+     * Transaktionen werden direkt berechnet, größere werden halbiert.
+     *
+     * @param <G>
+     *            Depot-Gruppe, z.B. Portfolios oder Lot-Indizes
+     */
+    @SuppressWarnings("serial")
+    private static final class CollectTask<G> extends RecursiveTask<Aggregation>
+    {
+        private static final int MIN_TRANSACTIONS_PER_TASK = 256;
+
+        private final transient List<G> groups;
+        private final int from;
+        private final int to;
+        private final transient ToIntFunction<G> sizeOfGroup;
+        private final transient BiConsumer<G, Aggregation> collector;
+
+        CollectTask(List<G> groups, int from, int to, ToIntFunction<G> sizeOfGroup,
+                        BiConsumer<G, Aggregation> collector)
+        {
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+            this.sizeOfGroup = sizeOfGroup;
+            this.collector = collector;
+        }
+
+        @Override
+        protected Aggregation compute()
+        {
+            if (((to - from) > 1) && (countTransactions() > MIN_TRANSACTIONS_PER_TASK))
+            {
+                int middle = (from + to) >>> 1;
+                CollectTask<G> left = new CollectTask<>(groups, from, middle, sizeOfGroup, collector);
+                left.fork();
+                Aggregation right = new CollectTask<>(groups, middle, to, sizeOfGroup, collector).compute();
+                return left.join().merge(right);
+            }
+
+            Aggregation aggregation = new Aggregation();
+            for (int i = from; i < to; i++)
+            {
+                collector.accept(groups.get(i), aggregation);
+            }
+            return aggregation;
+        }
+
+        private int countTransactions()
+        {
+            int count = 0;
+            for (int i = from; i < to; i++)
+            {
+                count += sizeOfGroup.applyAsInt(groups.get(i));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Baut den VAP-Würfel für alle Portfolios, z.B. für Auswertungen je Jahr,
+     * Teilfreistellung oder Wertpapier über alle Depots.
+     *
+     * @param index
+     *            Metadaten des Exports
+     * @return Würfel, leer falls keine VAP-Daten vorhanden sind
+     */
+    public VapCube collectCube(VapMetadataIndex index, Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        Aggregation aggregation = new Aggregation();
+
+        collectTransactions(index, transactions.entrySet(), aggregation);
+
+        return createCube(aggregation);
+    }
+
+    private VapCube createCube(Aggregation aggregation)
     {
-        Map<VapKey, Map<Integer, Double>> vapSummary = new HashMap<>();
-        Set<Integer> allYears = new TreeSet<>();
+        if (aggregation.keys.isEmpty())
+        { return VapCube.create(List.of(), YearRange.EMPTY, new double[0]); }
 
-        collectTransactions(transactions, vapSummary, allYears);
+        return VapCube.create(aggregation.keys, aggregation.years(), aggregation.toMatrix());
+    }
+
+    List<VapSummaryRow> createRows(Aggregation aggregation)
+    {
+        return createRows(createCube(aggregation));
+    }
 
-        if (vapSummary.isEmpty())
+    /**
+     * Projiziert den Würfel auf die Zeilen der VAP-Zusammenfassung:
+     * Wertpapierzeilen je Depot, gefolgt von der Depot-Summe, und am Ende die
+     * Gesamtsumme.
+     *
+     * @return Liste von VAP-Zeilen, sortiert nach Depot
+     */
+    public List<VapSummaryRow> createRows(VapCube cube)
+    {
+        if (cube.isEmpty())
         { return Collections.emptyList(); }
 
-        List<VapKey> sortedKeys = vapSummary.keySet().stream().sorted(Comparator.comparing((VapKey k) -> k.broker)
-                        .thenComparing(k -> k.isin).thenComparing(k -> k.name)).toList();
+        int[] years = cube.getYears();
 
         List<VapSummaryRow> rows = new ArrayList<>();
         String lastBroker = null;
-        Map<String, Map<Integer, Double>> depotSumsBeforeTfs = new HashMap<>();
-        Map<String, Map<Integer, Double>> depotSumsAfterTfs = new HashMap<>();
-        Map<Integer, Double> totalSumsBeforeTfs = new HashMap<>();
-        Map<Integer, Double> totalSumsAfterTfs = new HashMap<>();
 
-        for (VapKey key : sortedKeys)
+        for (VapKey key : cube.getKeys())
         {
+            if ((lastBroker != null) && !key.getBroker().equals(lastBroker))
+            {
+                rows.add(createSumRow(lastBroker, years, cube.rollUp(Dimension.DEPOT, lastBroker)));
+                rows.add(VapSummaryRow.empty());
+            }
 
-            collectLastBroker(rows, lastBroker, depotSumsBeforeTfs, depotSumsAfterTfs, key);
+            VapCube.Slice cell = cube.get(key);
 
             VapSummaryRow row = new VapSummaryRow();
-            row.isin = key.isin;
-            row.name = key.name;
-            row.depot = key.broker;
-
-            collectYears(vapSummary, allYears, depotSumsBeforeTfs, depotSumsAfterTfs, totalSumsBeforeTfs,
-                            totalSumsAfterTfs, key, row);
-
+            row.isin = key.getIsin();
+            row.name = key.getName();
+            row.depot = key.getBroker();
+            row.setValues(years, cell.beforeTfs(), cell.afterTfs());
             rows.add(row);
-            lastBroker = key.broker;
+
+            lastBroker = key.getBroker();
         }
 
         // Letzte Depot-Summe
-        if (lastBroker != null)
-        {
-            VapSummaryRow sumRow = VapSummaryRow.sumRow(lastBroker);
-            sumRow.vapBeforeTfs = depotSumsBeforeTfs.getOrDefault(lastBroker, new HashMap<>());
-            sumRow.vapAfterTfs = depotSumsAfterTfs.getOrDefault(lastBroker, new HashMap<>());
-            rows.add(sumRow);
-        }
+        rows.add(createSumRow(lastBroker, years, cube.rollUp(Dimension.DEPOT, lastBroker)));
 
         // Leerzeile vor Gesamtsumme
         rows.add(VapSummaryRow.empty());
 
         // Gesamtsumme
         VapSummaryRow totalRow = VapSummaryRow.totalRow();
-        totalRow.vapBeforeTfs = totalSumsBeforeTfs;
-        totalRow.vapAfterTfs = totalSumsAfterTfs;
+        totalRow.setValues(years, cube.total().beforeTfs(), cube.total().afterTfs());
         rows.add(totalRow);
 
         return rows;
     }
 
-    @SuppressWarnings("java:S107") // need more parameters here
-    private void collectYears(Map<VapKey, Map<Integer, Double>> vapSummary, Set<Integer> allYears,
-                    Map<String, Map<Integer, Double>> depotSumsBeforeTfs,
-                    Map<String, Map<Integer, Double>> depotSumsAfterTfs, Map<Integer, Double> totalSumsBeforeTfs,
-                    Map<Integer, Double> totalSumsAfterTfs, VapKey key, VapSummaryRow row)
+    private VapSummaryRow createSumRow(String broker, int[] years, VapCube.Slice depot)
     {
-        Map<Integer, Double> yearVaps = vapSummary.get(key);
-        for (int year : allYears)
+        VapSummaryRow sumRow = VapSummaryRow.sumRow(broker);
+        sumRow.setValues(years, depot.beforeTfs(), depot.afterTfs());
+        return sumRow;
+    }
+
+    private void collectTransactions(VapMetadataIndex index,
+                    Iterable<Entry<Portfolio, List<UnsoldTransaction>>> portfolios, Aggregation aggregation)
+    {
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : portfolios)
         {
-            double vapBefore = yearVaps.getOrDefault(year, 0.0);
-            double tfsAmount = (vapBefore * key.tfsPercentage) / 100.0;
-            double vapAfter = vapBefore - tfsAmount;
+            String broker = portfolio.getKey().getName();
+
+            for (UnsoldTransaction transaction : portfolio.getValue())
+            {
+                VapKey key = createKey(index, broker, transaction);
+                if (key == null)
+                {
+                    continue;
+                }
+
+                // Berechne VAP für diese Transaktion
+                Map<Integer, VapEntry> vapList = index.calculateVapList(transaction);
 
-            row.vapBeforeTfs.put(year, vapBefore);
-            row.vapAfterTfs.put(year, vapAfter);
+                for (Entry<Integer, VapEntry> entry : vapList.entrySet())
+                {
+                    // Gesamt-VAP wie VapMetadataIndex#calculateTotalVap
+                    aggregation.add(key, entry.getKey(), entry.getValue().vap() * transaction.getUnsoldShare());
+                }
+            }
+        }
+    }
 
-            // Depot-Summen
-            depotSumsBeforeTfs.computeIfAbsent(key.broker, k -> new HashMap<>()).merge(year, vapBefore, Double::sum);
-            depotSumsAfterTfs.computeIfAbsent(key.broker, k -> new HashMap<>()).merge(year, vapAfter, Double::sum);
+    /**
+     * Aggregiert die Lots eines Cursors. Die Gesamt-VAP eines Jahres ergibt
+     * sich wie bei {@link VapMetadataIndex#calculateTotalVap} aus VAP pro Anteil
+     * mal unverkaufter Anteile, die VAP-Liste wird aber nur einmal je Lot
+     * berechnet.
+     */
+    private void collectLots(VapMetadataIndex index, LotStore.Cursor lot, VapKey[] keys, int securityCount,
+                    Aggregation aggregation)
+    {
+        while (lot.next())
+        {
+            VapKey key = keys[(lot.getPortfolioOrdinal() * securityCount) + lot.getSecurityOrdinal()];
 
-            // Gesamt-Summen
-            totalSumsBeforeTfs.merge(year, vapBefore, Double::sum);
-            totalSumsAfterTfs.merge(year, vapAfter, Double::sum);
+            Map<Integer, VapEntry> vapList = index.calculateVapList(lot);
+            for (Entry<Integer, VapEntry> entry : vapList.entrySet())
+            {
+                aggregation.add(key, entry.getKey(), entry.getValue().vap() * lot.getUnsoldShare());
+            }
         }
     }
 
-    private void collectLastBroker(List<VapSummaryRow> rows, String lastBroker,
-                    Map<String, Map<Integer, Double>> depotSumsBeforeTfs,
-                    Map<String, Map<Integer, Double>> depotSumsAfterTfs, VapKey key)
+    /**
+     * Ermittelt den Aggregationsschlüssel einer Transaktion.
+     *
+     * @return Schlüssel oder {@code null}, wenn die Transaktion kein
+     *         Wertpapier hat
+     */
+    VapKey createKey(VapMetadataIndex index, String broker, UnsoldTransaction transaction)
+    {
+        Security security = transaction.getTransaction().getSecurity();
+        if (security == null)
+        { return null; }
+
+        return createKey(index, broker, security);
+    }
+
+    /**
+     * Ermittelt die Aggregationsschlüssel aller Kombinationen aus Depot und
+     * Wertpapier, die in der Ablage vorkommen.
+     *
+     * @return Schlüssel, Index {@code Depot-Ordnungszahl × Anzahl Wertpapiere +
+     *         Wertpapier-Ordnungszahl}
+     */
+    private VapKey[] createKeys(VapMetadataIndex vapIndex, LotStore lots)
+    {
+        return createKeys(vapIndex, lots, "");
+    }
+
+    private VapKey[] createKeys(VapMetadataIndex vapIndex, LotStore lots, String brokerPrefix)
     {
-        if ((lastBroker != null) && !key.broker.equals(lastBroker))
+        int securityCount = lots.getSecurities().size();
+        VapKey[] keys = new VapKey[lots.getPortfolios().size() * securityCount];
+        for (int lot = 0; lot < lots.size(); lot++)
         {
-            VapSummaryRow sumRow = VapSummaryRow.sumRow(lastBroker);
-            sumRow.vapBeforeTfs = depotSumsBeforeTfs.getOrDefault(lastBroker, new HashMap<>());
-            sumRow.vapAfterTfs = depotSumsAfterTfs.getOrDefault(lastBroker, new HashMap<>());
-            rows.add(sumRow);
-            rows.add(VapSummaryRow.empty());
+            int portfolio = lots.getPortfolioOrdinal(lot);
+            int security = lots.getSecurityOrdinal(lot);
+            int index = (portfolio * securityCount) + security;
+            if (keys[index] == null)
+            {
+                keys[index] = createKey(vapIndex, brokerPrefix + lots.getPortfolios().get(portfolio).getName(),
+                                lots.getSecurities().get(security));
+            }
         }
+        return keys;
     }
 
-    private void collectTransactions(Map<Portfolio, List<UnsoldTransaction>> transactions,
-                    Map<VapKey, Map<Integer, Double>> vapSummary, Set<Integer> allYears)
+    private VapKey createKey(VapMetadataIndex index, String broker, Security security)
     {
-        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+
+        String securityName = security.getName();
+        String isin = security.getIsin() != null ? security.getIsin() : "";
+
+        return new VapKey(isin, securityName, broker, index.getTfsPercentage(security));
+    }
+
+    /**
+     * Sammelt VAP-Werte je Schlüssel und Jahr. Jeder Schlüssel erhält eine
+     * Ordnungszahl und die Werte werden direkt in einer dichten Matrix
+     * {@code [Schlüssel × Jahre]} summiert. Die Spalten umfassen alle Jahre
+     * vom ersten bis zum letzten gesammelten Jahr und werden erweitert, sobald
+     * ein Jahr außerhalb davon hinzukommt. Die Reihenfolge der Additionen je
+     * Zelle entspricht der Reihenfolge der Transaktionen.
+     */
+    static final class Aggregation
+    {
+        private static final int INITIAL_ROWS = 16;
+
+        private final Map<VapKey, Integer> ordinals = new HashMap<>();
+        private final List<VapKey> keys = new ArrayList<>();
+
+        private double[] matrix = new double[0];
+        private int rowCapacity;
+        private int firstYear;
+        private int columns;
+        private YearRange years = YearRange.EMPTY;
+
+        void add(VapKey key, int year, double value)
         {
-            String broker = portfolio.getKey().getName();
+            int ordinal = ordinalOf(key);
+            ensureYears(year, year);
 
-            for (UnsoldTransaction transaction : portfolio.getValue())
+            matrix[(ordinal * columns) + (year - firstYear)] += value;
+            years = years.with(year);
+        }
+
+        /**
+         * Addiert die Werte einer anderen Aggregation zellenweise. Das
+         * Zusammenführen ist assoziativ. Solange jeder Schlüssel nur in einer
+         * der beiden Aggregationen vorkommt, ist das Ergebnis identisch mit
+         * dem Sammeln aller Werte in einer Aggregation.
+         *
+         * @return diese Aggregation
+         */
+        Aggregation merge(Aggregation other)
+        {
+            if (other.keys.isEmpty())
+            { return this; }
+
+            int[] mapping = new int[other.keys.size()];
+            for (int i = 0; i < mapping.length; i++)
+            {
+                mapping[i] = ordinalOf(other.keys.get(i));
+            }
+            ensureYears(other.firstYear, (other.firstYear + other.columns) - 1);
+
+            int offset = other.firstYear - firstYear;
+            for (int i = 0; i < mapping.length; i++)
             {
-                Security security = transaction.getTransaction().getSecurity();
-                if (security == null)
+                int row = mapping[i] * columns;
+                int otherRow = i * other.columns;
+                for (int column = 0; column < other.columns; column++)
                 {
-                    continue;
+                    matrix[row + offset + column] += other.matrix[otherRow + column];
                 }
+            }
 
-                String securityName = security.getName();
-                String isin = security.getIsin() != null ? security.getIsin() : "";
+            years = years.union(other.years);
+            return this;
+        }
 
-                Set<VapMetadata> metadata = vapCalculator.getVapMedatasById(security);
+        private int ordinalOf(VapKey key)
+        {
+            Integer ordinal = ordinals.get(key);
+            if (ordinal != null)
+            { return ordinal; }
 
-                int tfsPercentage = 0;
-                if (!metadata.isEmpty())
-                {
-                    tfsPercentage = metadata.iterator().next().getTfsPercentage();
-                }
+            keys.add(key);
+            ordinals.put(key, keys.size() - 1);
+            if (keys.size() > rowCapacity)
+            {
+                rowCapacity = Math.max(INITIAL_ROWS, rowCapacity * 2);
+                matrix = Arrays.copyOf(matrix, rowCapacity * columns);
+            }
+            return keys.size() - 1;
+        }
 
-                VapKey key = new VapKey(isin, securityName, broker, tfsPercentage);
+        /**
+         * Erweitert die Spalten, bis sie die Jahre {@code from} bis {@code to}
+         * umfassen.
+         */
+        private void ensureYears(int from, int to)
+        {
+            if (columns == 0)
+            {
+                firstYear = from;
+                columns = (to - from) + 1;
+                matrix = new double[rowCapacity * columns];
+                return;
+            }
 
-                // Berechne VAP für diese Transaktion
-                Map<Integer, VapEntry> vapList = vapCalculator.calculateVapList(transaction);
+            int lastYear = (firstYear + columns) - 1;
+            if ((from >= firstYear) && (to <= lastYear))
+            { return; }
 
-                for (Map.Entry<Integer, VapEntry> entry : vapList.entrySet())
-                {
-                    int year = entry.getKey();
+            int newFirstYear = Math.min(firstYear, from);
+            int newColumns = (Math.max(lastYear, to) - newFirstYear) + 1;
+            double[] newMatrix = new double[rowCapacity * newColumns];
+            for (int row = 0; row < keys.size(); row++)
+            {
+                System.arraycopy(matrix, row * columns, newMatrix, (row * newColumns) + (firstYear - newFirstYear),
+                                columns);
+            }
 
-                    // Berechne Gesamt-VAP
-                    double totalVap = vapCalculator.calculateTotalVap(transaction, year);
+            matrix = newMatrix;
+            firstYear = newFirstYear;
+            columns = newColumns;
+        }
 
-                    // Aggregiere
-                    vapSummary.computeIfAbsent(key, k -> new HashMap<>()).merge(year, totalVap, Double::sum);
+        /**
+         * @return Jahre mit mindestens einem Wert
+         */
+        YearRange years()
+        {
+            return years;
+        }
 
-                    allYears.add(year);
+        /**
+         * @return Matrix mit einer Zeile je Ordnungszahl und einer Spalte je
+         *         Jahr aus {@link #years()}
+         */
+        double[] toMatrix()
+        {
+            int[] yearArray = years.toArray();
+            double[] result = new double[keys.size() * yearArray.length];
+            for (int row = 0; row < keys.size(); row++)
+            {
+                for (int column = 0; column < yearArray.length; column++)
+                {
+                    result[(row * yearArray.length) + column] = matrix[(row * columns)
+                                    + (yearArray[column] - firstYear)];
                 }
             }
+            return result;
         }
     }
 
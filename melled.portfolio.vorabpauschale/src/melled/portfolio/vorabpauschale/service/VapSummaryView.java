@@ -0,0 +1,361 @@
+package melled.portfolio.vorabpauschale.service;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import melled.portfolio.vorabpauschale.model.UnsoldTransaction;
+import melled.portfolio.vorabpauschale.model.VapKey;
+import melled.portfolio.vorabpauschale.service.VapCalculator.VapEntry;
+import melled.portfolio.vorabpauschale.service.VapSummaryCollector.VapSummaryRow;
+import name.abuchen.portfolio.model.Portfolio;
+import name.abuchen.portfolio.model.PortfolioTransaction;
+
+/**
+ * Inkrementell gepflegte VAP-Zusammenfassung. Die Summen je Schlüssel
+ * (ISIN, Name, Depot, TFS%) und Jahr werden über {@link LotChangeListener}
+ * fortgeschrieben, statt bei jedem Export alle Lots neu zu aggregieren. Ändert
+ * sich die Metadaten-Datei, wird die Sicht vollständig neu aufgebaut.
+ * <p>
+ * Durch das Fortschreiben können die Summen in den letzten Nachkommastellen
+ * von einer vollständigen Neuberechnung abweichen. Entfällt das letzte Lot
+ * eines Jahres, wird der Wert wieder exakt 0.
+ * <p>
+ * Eine Sicht gehört zu genau einem Client, siehe {@link VapPrecomputeService}.
+ */
+public class VapSummaryView implements LotChangeListener
+{
+    /**
+     * Identität eines Lots: Kauftransaktion im aktuellen Depot.
+     */
+    private record LotId(Portfolio portfolio, PortfolioTransaction transaction)
+    {
+    }
+
+    /**
+     * Zuletzt bekannter Stand eines Lots inklusive der fortgeschriebenen
+     * VAP-Werte pro Anteil, damit ein Lot exakt wieder abgezogen werden kann.
+     */
+    private record LotState(UnsoldTransaction lot, VapKey key, LocalDateTime dateTime,
+                    Map<Integer, VapEntry> vapList)
+    {
+    }
+
+    /**
+     * Fortgeschriebene Werte eines Schlüssels. {@code lots} zählt je Jahr die
+     * beitragenden Lots, ein Jahr ohne Lots entfällt wie bei der vollständigen
+     * Aggregation.
+     */
+    private static final class Cell
+    {
+        private int firstYear;
+        private double[] values = new double[0];
+        private int[] lots = new int[0];
+        private int years;
+
+        void add(int year, double value, int lotDelta)
+        {
+            ensureYear(year);
+            int index = year - firstYear;
+
+            if ((lots[index] == 0) && (lotDelta > 0))
+            {
+                years++;
+            }
+
+            lots[index] += lotDelta;
+            if (lots[index] == 0)
+            {
+                values[index] = 0.0;
+                if (lotDelta < 0)
+                {
+                    years--;
+                }
+            }
+            else
+            {
+                values[index] += value;
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return years == 0;
+        }
+
+        private void ensureYear(int year)
+        {
+            if (values.length == 0)
+            {
+                firstYear = year;
+                values = new double[1];
+                lots = new int[1];
+                return;
+            }
+
+            if (year < firstYear)
+            {
+                int shift = firstYear - year;
+                double[] newValues = new double[values.length + shift];
+                int[] newLots = new int[lots.length + shift];
+                System.arraycopy(values, 0, newValues, shift, values.length);
+                System.arraycopy(lots, 0, newLots, shift, lots.length);
+                values = newValues;
+                lots = newLots;
+                firstYear = year;
+            }
+            else if ((year - firstYear) >= values.length)
+            {
+                int length = (year - firstYear) + 1;
+                values = Arrays.copyOf(values, length);
+                lots = Arrays.copyOf(lots, length);
+            }
+        }
+    }
+
+    private final VapSummaryCollector vapSummaryCollector;
+
+    private final Map<VapKey, Cell> cells = new LinkedHashMap<>();
+    private final Map<LotId, LotState> lots = new HashMap<>();
+
+    private String metadataFile;
+    private long metadataModified;
+    private long metadataLength;
+    private VapMetadataIndex index;
+
+    private List<VapSummaryRow> rows;
+
+    public VapSummaryView(VapSummaryCollector vapSummaryCollector)
+    {
+        this.vapSummaryCollector = vapSummaryCollector;
+    }
+
+    /**
+     * Gleicht die Sicht mit dem aktuellen Bestand an Lots ab und liefert die
+     * Zusammenfassung. Nur neue, entfallene und verringerte Lots werden
+     * fortgeschrieben. Der Index gilt auch für nachfolgende
+     * {@link LotChangeListener} Ereignisse, davor eintreffende Ereignisse
+     * werden ignoriert und beim ersten Abgleich nachgeholt.
+     *
+     * @param metadataIndex
+     *            aus {@code metadataFile} geladener Index
+     * @param metadataFile
+     *            Pfad der geladenen Metadaten-Datei
+     * @param transactions
+     *            aktuelle Lots je Depot
+     * @return Liste von VAP-Zeilen, sortiert nach Depot
+     */
+    public synchronized List<VapSummaryRow> update(VapMetadataIndex metadataIndex, String metadataFile,
+                    Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        this.index = metadataIndex;
+        if (isMetadataChanged(metadataFile))
+        {
+            invalidate();
+            File file = new File(metadataFile);
+            this.metadataFile = metadataFile;
+            this.metadataModified = file.lastModified();
+            this.metadataLength = file.length();
+        }
+
+        Map<LotId, UnsoldTransaction> current = snapshot(transactions);
+
+        List<LotId> removed = lots.keySet().stream().filter(id -> !current.containsKey(id)).toList();
+        for (LotId id : removed)
+        {
+            lotRemoved(id.portfolio(), lots.get(id).lot());
+        }
+
+        for (Entry<LotId, UnsoldTransaction> entry : current.entrySet())
+        {
+            Portfolio portfolio = entry.getKey().portfolio();
+            UnsoldTransaction now = entry.getValue();
+            LotState before = lots.get(entry.getKey());
+
+            if (before == null)
+            {
+                lotAdded(portfolio, now);
+            }
+            else if (Objects.equals(before.key(), vapSummaryCollector.createKey(index, portfolio.getName(), now))
+                            && before.dateTime().equals(now.getTransaction().getDateTime())
+                            && (now.getUnsoldShare() <= before.lot().getUnsoldShare()))
+            {
+                double sold = before.lot().getUnsoldShare() - now.getUnsoldShare();
+                if (sold > 0)
+                {
+                    lotReduced(portfolio, now, sold);
+                }
+            }
+            else
+            {
+                lotRemoved(portfolio, before.lot());
+                lotAdded(portfolio, now);
+            }
+        }
+
+        return getRows();
+    }
+
+    /**
+     * @param file
+     *            Pfad der Metadaten-Datei
+     * @return {@code true}, falls die Sicht mit dieser unveränderten
+     *         Metadaten-Datei abgeglichen wurde
+     */
+    public synchronized boolean isCurrent(String file)
+    {
+        return (index != null) && !isMetadataChanged(file);
+    }
+
+    /**
+     * @return aktuelle Zusammenfassung, sortiert nach Depot
+     */
+    public synchronized List<VapSummaryRow> getRows()
+    {
+        if (rows == null)
+        {
+            VapSummaryCollector.Aggregation aggregation = new VapSummaryCollector.Aggregation();
+            for (Entry<VapKey, Cell> entry : cells.entrySet())
+            {
+                Cell cell = entry.getValue();
+                for (int i = 0; i < cell.values.length; i++)
+                {
+                    if (cell.lots[i] > 0)
+                    {
+                        aggregation.add(entry.getKey(), cell.firstYear + i, cell.values[i]);
+                    }
+                }
+            }
+            rows = vapSummaryCollector.createRows(aggregation);
+        }
+        return rows;
+    }
+
+    /**
+     * Verwirft alle fortgeschriebenen Werte. Der nächste Abgleich baut die
+     * Sicht vollständig neu auf.
+     */
+    public synchronized void invalidate()
+    {
+        cells.clear();
+        lots.clear();
+        metadataFile = null;
+        rows = null;
+    }
+
+    /**
+     * Nimmt ein Lot auf. Ist dieselbe Kauftransaktion im Depot bereits
+     * vorhanden, werden die Anteile zusammengefasst.
+     */
+    @Override
+    public synchronized void lotAdded(Portfolio portfolio, UnsoldTransaction lot)
+    {
+        if (index == null)
+        { return; }
+
+        LotId id = new LotId(portfolio, lot.getTransaction());
+        double shares = lot.getUnsoldShare();
+
+        LotState existing = lots.remove(id);
+        if (existing != null)
+        {
+            remove(existing);
+            shares += existing.lot().getUnsoldShare();
+        }
+
+        VapKey key = vapSummaryCollector.createKey(index, portfolio.getName(), lot);
+        Map<Integer, VapEntry> vapList = key != null ? index.calculateVapList(lot) : Map.of();
+
+        // Kopie, damit spätere Änderungen am Lot den Stand nicht verändern
+        LotState state = new LotState(new UnsoldTransaction(lot.getTransaction(), shares), key,
+                        lot.getTransaction().getDateTime(), vapList);
+        apply(key, vapList, shares, 1);
+        lots.put(id, state);
+    }
+
+    /**
+     * Entfernt ein Lot mit den beim Aufnehmen berechneten Werten.
+     */
+    @Override
+    public synchronized void lotRemoved(Portfolio portfolio, UnsoldTransaction lot)
+    {
+        LotState state = lots.remove(new LotId(portfolio, lot.getTransaction()));
+        if (state != null)
+        {
+            remove(state);
+        }
+    }
+
+    @Override
+    public synchronized void lotReduced(Portfolio portfolio, UnsoldTransaction lot, double shares)
+    {
+        LotId id = new LotId(portfolio, lot.getTransaction());
+        LotState state = lots.get(id);
+        if (state == null)
+        { return; }
+
+        apply(state.key(), state.vapList(), -shares, 0);
+
+        UnsoldTransaction reduced = new UnsoldTransaction(lot.getTransaction(), state.lot().getUnsoldShare());
+        reduced.reduzeUnsoldShare(shares);
+        lots.put(id, new LotState(reduced, state.key(), state.dateTime(), state.vapList()));
+    }
+
+    private void remove(LotState state)
+    {
+        apply(state.key(), state.vapList(), -state.lot().getUnsoldShare(), -1);
+    }
+
+    private void apply(VapKey key, Map<Integer, VapEntry> vapList, double shares, int lotDelta)
+    {
+        if ((key == null) || vapList.isEmpty())
+        { return; }
+
+        Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+        for (Entry<Integer, VapEntry> entry : vapList.entrySet())
+        {
+            cell.add(entry.getKey(), entry.getValue().vap() * shares, lotDelta);
+        }
+
+        if (cell.isEmpty())
+        {
+            cells.remove(key);
+        }
+
+        rows = null;
+    }
+
+    /**
+     * Fasst die Lots je Depot und Kauftransaktion zusammen.
+     */
+    private Map<LotId, UnsoldTransaction> snapshot(Map<Portfolio, List<UnsoldTransaction>> transactions)
+    {
+        Map<LotId, UnsoldTransaction> snapshot = new LinkedHashMap<>();
+        for (Entry<Portfolio, List<UnsoldTransaction>> portfolio : transactions.entrySet())
+        {
+            for (UnsoldTransaction lot : portfolio.getValue())
+            {
+                LotId id = new LotId(portfolio.getKey(), lot.getTransaction());
+                UnsoldTransaction existing = snapshot.get(id);
+                double shares = lot.getUnsoldShare() + (existing != null ? existing.getUnsoldShare() : 0.0);
+                snapshot.put(id, new UnsoldTransaction(lot.getTransaction(), shares));
+            }
+        }
+        return snapshot;
+    }
+
+    private boolean isMetadataChanged(String file)
+    {
+        if (!Objects.equals(metadataFile, file))
+        { return true; }
+
+        File metadata = new File(file);
+        return (metadata.lastModified() != metadataModified) || (metadata.length() != metadataLength);
+    }
+}
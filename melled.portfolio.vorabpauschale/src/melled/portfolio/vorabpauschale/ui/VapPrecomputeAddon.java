@@ -0,0 +1,58 @@
+package melled.portfolio.vorabpauschale.ui;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+
+import org.eclipse.e4.core.contexts.IEclipseContext;
+import org.eclipse.e4.core.contexts.RunAndTrack;
+
+import melled.portfolio.vorabpauschale.service.VapPrecomputeService;
+import name.abuchen.portfolio.model.Client;
+
+/**
+ * Model-Addon, das den Client des aktiven Parts an den
+ * {@link VapPrecomputeService} übergibt. Wechselt der aktive Part auf einen
+ * Part ohne Client, bleibt der zuletzt geöffnete Client vorberechnet.
+ */
+// NOSONAR
+@SuppressWarnings("java:S6813") // Eclipse Addon field injection
+public class VapPrecomputeAddon
+{
+    @Inject
+    private VapPrecomputeService vapPrecomputeService;
+
+    private boolean active;
+
+    @PostConstruct
+    public void init(IEclipseContext context)
+    {
+        if (!VapPrecomputeService.isEnabled())
+        { return; }
+
+        active = true;
+        context.runAndTrack(new RunAndTrack()
+        {
+            @Override
+            public boolean changed(IEclipseContext ctx)
+            {
+                if (!active)
+                { return false; }
+
+                Client client = ctx.getActiveLeaf().get(Client.class);
+                if (client != null)
+                {
+                    vapPrecomputeService.setClient(client);
+                }
+                return true;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void dispose()
+    {
+        active = false;
+        vapPrecomputeService.setClient(null);
+    }
+}
@@ -0,0 +1,118 @@
+package melled.portfolio.vorabpauschale.ui.handler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+import name.abuchen.portfolio.model.Client;
+
+/**
+ * Ermittelt den Client aus dem Objekt eines Parts über dessen öffentliche
+ * Methoden {@code getClient()} bzw. {@code getClientInput().getClient()}. Dies
+ * umgeht die Access Restrictions auf interne Klassen.
+ * <p>
+ * Die Methoden werden je Klasse einmal gesucht und als MethodHandle abgelegt,
+ * auch wenn eine Klasse die Methode nicht hat. Weitere Aufrufe, z.B. aus
+ * {@code @CanExecute}, kosten danach nur noch das Nachschlagen der Klasse.
+ */
+final class ClientResolver
+{
+    private static final String GET_CLIENT = "getClient";
+    private static final String GET_CLIENT_INPUT = "getClientInput";
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * Liefert für jedes Objekt {@code null}, für Klassen ohne passende Methode
+     */
+    private static final MethodHandle NONE = MethodHandles
+                    .dropArguments(MethodHandles.constant(Object.class, null), 0, Object.class);
+
+    private static final ClassValue<MethodHandle> CLIENT_GETTERS = new ClassValue<>()
+    {
+        @Override
+        protected MethodHandle computeValue(Class<?> type)
+        {
+            return findGetter(type, GET_CLIENT);
+        }
+    };
+
+    private static final ClassValue<MethodHandle> CLIENT_INPUT_GETTERS = new ClassValue<>()
+    {
+        @Override
+        protected MethodHandle computeValue(Class<?> type)
+        {
+            return findGetter(type, GET_CLIENT_INPUT);
+        }
+    };
+
+    private ClientResolver()
+    {
+    }
+
+    /**
+     * @param partObject
+     *            Objekt des aktiven Parts, kann {@code null} sein
+     * @return Client oder {@code null}, falls das Objekt keinen Client liefert
+     */
+    static Client resolve(Object partObject)
+    {
+        if (partObject == null)
+        { return null; }
+
+        Object result = invoke(CLIENT_GETTERS, partObject);
+        if (result instanceof Client client)
+        { return client; }
+
+        // Falls getClient() ClientInput zurückgibt, hole den Client daraus
+        if ((result != null) && (invoke(CLIENT_GETTERS, result) instanceof Client client))
+        { return client; }
+
+        Object clientInput = invoke(CLIENT_INPUT_GETTERS, partObject);
+        if ((clientInput != null) && (invoke(CLIENT_GETTERS, clientInput) instanceof Client client))
+        { return client; }
+
+        return null;
+    }
+
+    @SuppressWarnings("java:S1181") // Getter fremder Parts dürfen den Handler nicht abbrechen
+    private static Object invoke(ClassValue<MethodHandle> getters, Object target)
+    {
+        try
+        {
+            return (Object) getters.get(target.getClass()).invokeExact(target);
+        }
+        catch (Throwable e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Sucht eine öffentliche Methode ohne Parameter, ohne Exceptions für
+     * fehlende Methoden auszulösen.
+     *
+     * @return Handle mit Typ {@code (Object)Object} oder {@link #NONE}
+     */
+    private static MethodHandle findGetter(Class<?> type, String name)
+    {
+        for (Method method : type.getMethods())
+        {
+            if (method.getName().equals(name) && (method.getParameterCount() == 0) && !method.isBridge()
+                            && (method.getReturnType() != void.class))
+            {
+                try
+                {
+                    return MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE);
+                }
+                catch (IllegalAccessException e)
+                {
+                    // z.B. öffentliche Methode einer nicht öffentlichen Klasse
+                    return NONE;
+                }
+            }
+        }
+        return NONE;
+    }
+}
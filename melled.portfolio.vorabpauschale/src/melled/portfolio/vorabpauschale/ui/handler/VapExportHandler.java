@@ -20,7 +20,9 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Shell;
 
+import melled.portfolio.vorabpauschale.service.VapExportOptions;
 import melled.portfolio.vorabpauschale.service.VapExportService;
+import melled.portfolio.vorabpauschale.service.VapPrecomputeService;
 import name.abuchen.portfolio.model.Client;
 
 /**
@@ -32,11 +34,12 @@ import name.abuchen.portfolio.model.Client;
 public class VapExportHandler
 {
 
-    private static final String GET_CLIENT_METHOD_NAME = "getClient";
-
     @Inject
     private VapExportService vapExportService;
 
+    @Inject
+    private VapPrecomputeService vapPrecomputeService;
+
     @Inject
     private IEclipseContext context;
 
@@ -67,62 +70,10 @@ public class VapExportHandler
     {
         Client client = context.get(Client.class);
         if (client == null)
-        { return extractClient(part.getObject()); }
+        { return ClientResolver.resolve(part.getObject()); }
         return client;
     }
 
-    /**
-     * Extrahiert den Client aus dem Part-Object via Reflection. Dies umgeht die
-     * Access Restrictions auf interne Klassen.
-     */
-    private Client extractClient(Object partObject)
-    {
-        if (partObject == null)
-        { return null; }
-
-        try
-        {
-
-            java.lang.reflect.Method getClientMethod = partObject.getClass().getMethod(GET_CLIENT_METHOD_NAME);
-            Object result = getClientMethod.invoke(partObject);
-
-            if (result instanceof Client client)
-            { return client; }
-
-            // Falls getClient() ClientInput zurückgibt, hole den Client daraus
-            if (result != null)
-            {
-                java.lang.reflect.Method getClientFromInput = result.getClass().getMethod(GET_CLIENT_METHOD_NAME);
-                Object clientResult = getClientFromInput.invoke(result);
-                if (clientResult instanceof Client client)
-                { return client; }
-            }
-        }
-        catch (Exception e)
-        {
-
-            try
-            {
-
-                java.lang.reflect.Method getClientInputMethod = partObject.getClass().getMethod("getClientInput");
-                Object clientInput = getClientInputMethod.invoke(partObject);
-                if (clientInput != null)
-                {
-                    java.lang.reflect.Method getClientMethod = clientInput.getClass().getMethod(GET_CLIENT_METHOD_NAME);
-                    Object clientResult = getClientMethod.invoke(clientInput);
-                    if (clientResult instanceof Client client)
-                    { return client; }
-                }
-            }
-            catch (Exception ex)
-            {
-                // nothing to do
-            }
-        }
-
-        return null;
-    }
-
     public void exportVap(Client client, Shell shell)
     {
 
@@ -171,7 +122,10 @@ public class VapExportHandler
                     monitor.subTask("Lade Metadaten...");
                     monitor.worked(1);
 
-                    vapExportService.exportVap(client, metadataFile, outputFile);
+                    VapExportOptions options = new VapExportOptions();
+                    options.setPrecomputeService(vapPrecomputeService);
+                    vapPrecomputeService.setMetadataFile(metadataFile);
+                    vapExportService.exportVap(client, metadataFile, outputFile, options);
                     monitor.worked(4);
 
                     shell.getDisplay().asyncExec(() -> {